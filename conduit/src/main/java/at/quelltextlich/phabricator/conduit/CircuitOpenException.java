@@ -0,0 +1,35 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit;
+
+/**
+ * Exception thrown if a call fails fast, as the circuit for its method is
+ * open
+ */
+public class CircuitOpenException extends ConduitException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String method;
+
+  public CircuitOpenException(final String method) {
+    super("Circuit for method '" + method + "' is open");
+    this.method = method;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+}
@@ -0,0 +1,36 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit;
+
+/**
+ * Exception thrown if a call got rejected, as too many calls are in flight
+ * already, and too many calls wait for them
+ */
+public class ConcurrencyLimitException extends ConduitException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String method;
+
+  public ConcurrencyLimitException(final String method, final int limit) {
+    super("Concurrency limit of " + limit + " reached for method '" + method
+        + "'");
+    this.method = method;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+}
@@ -0,0 +1,44 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit;
+
+/**
+ * Exception thrown if a call did not complete within its timeout
+ * <p/>
+ * The call got aborted, so it no longer holds a connection.
+ */
+public class DeadlineExceededException extends ConduitException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String method;
+  private final long timeoutMillis;
+
+  public DeadlineExceededException(final String method,
+      final long timeoutMillis, final Throwable e) {
+    super("Call of method '" + method + "' did not complete within "
+        + timeoutMillis + "ms", e);
+    this.method = method;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+}
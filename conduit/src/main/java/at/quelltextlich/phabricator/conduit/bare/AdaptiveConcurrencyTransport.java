@@ -0,0 +1,493 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.ConcurrencyLimitException;
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that adapts the number of concurrent calls to the server's
+ * capacity
+ * <p/>
+ * The limit of concurrent calls moves as decided by a
+ * {@link ConcurrencyLimitPolicy}: it grows while calls complete quickly, and
+ * shrinks once round trips get longer or calls fail, as the server queues
+ * work instead of doing it. Calls over the limit wait in order until a call
+ * completes. If too many calls wait already, calls get rejected with a
+ * {@link ConcurrencyLimitException}.
+ * <p/>
+ * Blocking and non-blocking calls share the same limit. Blocking calls wait
+ * on the calling thread. Non-blocking calls wait without tying up a thread.
+ * Calls stop waiting once they get cancelled, and calls whose deadline passes
+ * while waiting fail with a {@link DeadlineExceededException}.
+ * <p/>
+ * A call stays in flight until its response got closed, and its round trip
+ * includes reading the response. Calls that got cancelled, or ran out of time
+ * before their deadline, do not move the limit.
+ */
+public class AdaptiveConcurrencyTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private static final int TOO_MANY_REQUESTS_STATUS_CODE = 429;
+
+  private static final int WAITING = 0;
+  private static final int GRANTED = 1;
+  private static final int ABANDONED = 2;
+
+  private final Transport transport;
+  private final ConcurrencyLimitPolicy policy;
+
+  private final Object lock;
+  private final Queue<Waiter> waiters;
+  private final Map<String, Long> baselineRoundTrips;
+  private double limit;
+  private int inFlight;
+  private long lastDecrease;
+
+  private final AtomicLong rejectedCalls;
+
+  public AdaptiveConcurrencyTransport(final Transport transport) {
+    this(transport, new ConcurrencyLimitPolicy());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   * @param policy
+   *          The policy deciding how the limit moves
+   */
+  public AdaptiveConcurrencyTransport(final Transport transport,
+      final ConcurrencyLimitPolicy policy) {
+    this.transport = transport;
+    this.policy = policy;
+    lock = new Object();
+    waiters = new LinkedList<Waiter>();
+    baselineRoundTrips = new HashMap<String, Long>();
+    limit = policy.getInitialLimit();
+    inFlight = 0;
+    lastDecrease = System.nanoTime();
+    rejectedCalls = new AtomicLong();
+  }
+
+  /**
+   * Gets the current limit
+   *
+   * @return the number of calls that may currently be in flight
+   */
+  public int getLimit() {
+    synchronized (lock) {
+      return (int) limit;
+    }
+  }
+
+  /**
+   * Gets the number of calls in flight
+   *
+   * @return the number of calls that are currently in flight
+   */
+  public int getInFlight() {
+    synchronized (lock) {
+      return inFlight;
+    }
+  }
+
+  /**
+   * Gets the number of calls that wait for the limit
+   *
+   * @return the number of waiting calls
+   */
+  public int getQueued() {
+    synchronized (lock) {
+      return waiters.size();
+    }
+  }
+
+  /**
+   * Gets the number of calls that got rejected
+   *
+   * @return the number of rejected calls so far
+   */
+  public long getRejectedCalls() {
+    return rejectedCalls.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    transport.close();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final String method = request.getMethod();
+    final BlockingWaiter waiter = new BlockingWaiter();
+    if (!enqueue(waiter)) {
+      throw reject(method);
+    }
+    // Cancelling the call, or passing its deadline, ends the wait.
+    final Cancellable abort = new Cancellable() {
+      @Override
+      public boolean cancel() {
+        if (abandon(waiter)) {
+          waiter.latch.countDown();
+        }
+        return true;
+      }
+    };
+    request.addCancellable(abort);
+    try {
+      final long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(policy
+          .getMaxWaitMillis());
+      final long remainingNanos = request.getRemainingNanos();
+      if (!waiter.latch.await(Math.min(maxWaitNanos, remainingNanos),
+          TimeUnit.NANOSECONDS) && abandon(waiter)) {
+        if (remainingNanos < maxWaitNanos) {
+          throw new CallRejectedException(new DeadlineExceededException(
+              method, request.getTimeoutMillis(), null));
+        }
+        throw reject(method);
+      }
+    } catch (final InterruptedException e) {
+      if (!abandon(waiter)) {
+        release(null, 0, false);
+      }
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for concurrency limit",
+          e);
+    } finally {
+      request.removeCancellable(abort);
+    }
+    if (waiter.state.get() != GRANTED) {
+      throw new IOException(
+          "Call got aborted while waiting for concurrency limit");
+    }
+
+    final long start = System.nanoTime();
+    final TransportResponse response;
+    try {
+      response = transport.send(request);
+    } catch (final CallRejectedException e) {
+      release(null, 0, false);
+      throw e;
+    } catch (final IOException e) {
+      release(isAborted(request) ? null : method, start, true);
+      throw e;
+    } catch (final RuntimeException e) {
+      release(method, start, true);
+      throw e;
+    }
+    return new ReleasingResponse(response, method, start);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final AsyncWaiter waiter = new AsyncWaiter(request, future);
+    future.setCancellable(waiter);
+    if (!enqueue(waiter)) {
+      future.failed(reject(request.getMethod()));
+    }
+    return future;
+  }
+
+  /**
+   * Lets a call in, or lines it up
+   * <p/>
+   * If the call may go in right away, it gets granted before this method
+   * returns.
+   *
+   * @param waiter
+   *          The call to let in
+   * @return true, if the call got granted or lined up. false, if too many
+   *         calls wait already.
+   */
+  private boolean enqueue(final Waiter waiter) {
+    synchronized (lock) {
+      if (waiters.isEmpty() && inFlight < (int) limit) {
+        waiter.state.set(GRANTED);
+        inFlight++;
+      } else if (waiters.size() < policy.getMaxQueued()) {
+        waiters.add(waiter);
+        return true;
+      } else {
+        return false;
+      }
+    }
+    waiter.granted();
+    return true;
+  }
+
+  /**
+   * Gives up waiting
+   *
+   * @param waiter
+   *          The call that gives up waiting
+   * @return true, if the call gave up. false, if the call got granted
+   *         concurrently, and has to go through.
+   */
+  private boolean abandon(final Waiter waiter) {
+    if (!waiter.state.compareAndSet(WAITING, ABANDONED)) {
+      return false;
+    }
+    synchronized (lock) {
+      waiters.remove(waiter);
+    }
+    return true;
+  }
+
+  private CallRejectedException reject(final String method) {
+    rejectedCalls.incrementAndGet();
+    return new CallRejectedException(new ConcurrencyLimitException(method,
+        getLimit()));
+  }
+
+  /**
+   * Accounts for a completed call, adapts the limit, and lets waiting calls
+   * in
+   *
+   * @param method
+   *          The name of the completed call's method. null, if the call did
+   *          not reach the server, and should not affect the limit.
+   * @param start
+   *          The time the call started at, as of {@link System#nanoTime()}
+   * @param failed
+   *          true, if the call failed
+   */
+  private void release(final String method, final long start,
+      final boolean failed) {
+    final List<Waiter> granted = new ArrayList<Waiter>();
+    synchronized (lock) {
+      if (method != null) {
+        adaptLimit(method, start, System.nanoTime() - start, failed);
+      }
+      inFlight--;
+      while (inFlight < (int) limit && !waiters.isEmpty()) {
+        final Waiter waiter = waiters.poll();
+        if (waiter.state.compareAndSet(WAITING, GRANTED)) {
+          inFlight++;
+          granted.add(waiter);
+        }
+      }
+    }
+    for (final Waiter waiter : granted) {
+      waiter.granted();
+    }
+  }
+
+  /**
+   * Moves the limit according to a completed call
+   * <p/>
+   * The call counts as slow by the method's baseline from before the call.
+   * Then, the baseline drops to the call's round trip if it was faster, or
+   * drifts up towards it otherwise.
+   * <p/>
+   * The limit shrinks at most once per round trip: only calls that started
+   * after the last decrease may shrink it again. Otherwise, a burst of
+   * concurrent slow calls, which all saw the same overload, would shrink the
+   * limit once per call, and a single spike would drive it to the minimum.
+   */
+  private void adaptLimit(final String method, final long start,
+      final long roundTripNanos, final boolean failed) {
+    final Long baseline = baselineRoundTrips.get(method);
+    if (!failed) {
+      if (baseline == null || roundTripNanos < baseline) {
+        baselineRoundTrips.put(method, roundTripNanos);
+      } else {
+        baselineRoundTrips.put(method, baseline
+            + Math.round((roundTripNanos - baseline)
+                * policy.getBaselineDecay()));
+      }
+    }
+    final boolean slow = baseline != null
+        && roundTripNanos > baseline * policy.getLatencyTolerance();
+    if (failed || slow) {
+      if (start - lastDecrease >= 0) {
+        limit = Math.max(policy.getMinLimit(),
+            limit * policy.getBackoffRatio());
+        lastDecrease = System.nanoTime();
+      }
+    } else if (inFlight * 2 >= (int) limit) {
+      // Only grow the limit while it is actually in use. Otherwise, a quiet
+      // period would lift the limit without evidence that the server copes.
+      limit = Math.min(policy.getMaxLimit(), limit + 1 / limit);
+    }
+  }
+
+  /**
+   * Checks whether a response signals an overloaded server
+   * <p/>
+   * Server errors count, as do throttled calls, as the server throttles
+   * calls once it cannot keep up.
+   *
+   * @param response
+   *          The response to check
+   * @return true, if the call failed
+   */
+  private boolean isFailure(final TransportResponse response) {
+    final int statusCode = response.getStatusCode();
+    return statusCode >= 500 || statusCode == TOO_MANY_REQUESTS_STATUS_CODE;
+  }
+
+  /**
+   * Checks whether a call failed because the client gave up on it
+   *
+   * @param request
+   *          The failed call's request
+   * @return true, if the call got cancelled, or its deadline passed
+   */
+  private boolean isAborted(final TransportRequest request) {
+    return request.isCancelled() || request.isExpired();
+  }
+
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * A response, whose call stays in flight until it got closed
+   */
+  private class ReleasingResponse extends ClosingResponse {
+    private final String method;
+    private final long start;
+
+    public ReleasingResponse(final TransportResponse response,
+        final String method, final long start) {
+      super(response);
+      this.method = method;
+      this.start = start;
+    }
+
+    @Override
+    protected void closed() {
+      release(method, start, isFailure(this));
+    }
+  }
+
+  /**
+   * A call that waits to go through
+   */
+  private abstract static class Waiter {
+    protected final AtomicInteger state = new AtomicInteger(WAITING);
+
+    /**
+     * Lets the call go through
+     */
+    protected abstract void granted();
+  }
+
+  /**
+   * A blocking call, whose thread waits to go through
+   */
+  private static class BlockingWaiter extends Waiter {
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    @Override
+    protected void granted() {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * A non-blocking call, that gets sent once it may go through
+   */
+  private class AsyncWaiter extends Waiter implements Cancellable {
+    private final TransportRequest request;
+    private final CallFuture<TransportResponse> future;
+    private volatile Future<TransportResponse> transportFuture;
+
+    public AsyncWaiter(final TransportRequest request,
+        final CallFuture<TransportResponse> future) {
+      this.request = request;
+      this.future = future;
+    }
+
+    @Override
+    protected void granted() {
+      if (future.isDone()) {
+        release(null, 0, false);
+        return;
+      }
+      final String method = request.getMethod();
+      final long start = System.nanoTime();
+      transportFuture = transport.sendAsync(request,
+          new FutureCallback<TransportResponse>() {
+            @Override
+            public void completed(final TransportResponse response) {
+              final TransportResponse releasingResponse = new ReleasingResponse(
+                  response, method, start);
+              if (!future.completed(releasingResponse)) {
+                closeQuietly(releasingResponse);
+              }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+              if (e instanceof CallRejectedException || isAborted(request)) {
+                release(null, 0, false);
+              } else {
+                release(method, start, true);
+              }
+              future.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+              release(null, 0, false);
+              future.cancel();
+            }
+          });
+      if (future.isCancelled()) {
+        transportFuture.cancel(true);
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      if (abandon(this)) {
+        return true;
+      }
+      final Future<TransportResponse> currentFuture = transportFuture;
+      if (currentFuture != null) {
+        currentFuture.cancel(true);
+      }
+      return true;
+    }
+  }
+}
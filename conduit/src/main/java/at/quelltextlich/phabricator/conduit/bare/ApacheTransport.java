@@ -0,0 +1,465 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport on top of Apache HttpClient
+ * <p/>
+ * Blocking calls go through a pooled HttpClient, non-blocking calls through a
+ * pooled HttpAsyncClient. Both clients are spawned on first use, and pooled
+ * as configured by a {@link ConnectionConfig}.
+ * <p/>
+ * Timeouts of the {@link ConnectionConfig} get capped by the call's
+ * deadline. Cancelling a call aborts its HTTP request, which releases its
+ * connection right away.
+ */
+public class ApacheTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private final String apiUrlBase;
+  private final ConnectionConfig config;
+
+  // Creating a client starts the I/O reactor, which may take a while. Waiting
+  // on a Lock instead of a monitor keeps virtual threads that wait for it from
+  // pinning their carrier thread.
+  private final Lock clientLock;
+  private volatile CloseableHttpClient client;
+  private volatile CloseableHttpAsyncClient asyncClient;
+  private volatile boolean closed;
+
+  public ApacheTransport(final String baseUrl) {
+    this(baseUrl, new ConnectionConfig());
+  }
+
+  public ApacheTransport(final String baseUrl, final ConnectionConfig config) {
+    apiUrlBase = baseUrl.replaceAll("/+$", "") + "/api/";
+    this.config = config;
+    clientLock = new ReentrantLock();
+    client = null;
+    asyncClient = null;
+    closed = false;
+  }
+
+  /**
+   * Gives a cached HttpClient
+   * <p/>
+   * If no cached HttpClient exists, a new one is spawned. Concurrent callers
+   * get the same HttpClient.
+   *
+   * @return the cached CloseableHttpClient
+   * @throws IOException
+   *           if the transport has already been closed
+   */
+  private CloseableHttpClient getClient() throws IOException {
+    CloseableHttpClient ret = client;
+    if (ret == null) {
+      clientLock.lock();
+      try {
+        if (closed) {
+          throw new IOException("Transport has already been closed");
+        }
+        ret = client;
+        if (ret == null) {
+          log.trace("Creating new client connection");
+          ret = createClient();
+          client = ret;
+        }
+      } finally {
+        clientLock.unlock();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Spawns a new HttpClient backed by a connection pool as configured in
+   * {@link #config}
+   *
+   * @return the spawned HttpClient
+   */
+  private CloseableHttpClient createClient() {
+    final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+        config.getTimeToLiveMillis(), TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(config.getMaxTotal());
+    connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+
+    // Content compression is handled by the Connection, so it works the same
+    // for all transports, and compressed bytes can be counted.
+    final HttpClientBuilder builder = HttpClients.custom()
+        .disableContentCompression()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(new CappedKeepAliveStrategy(
+            config.getKeepAliveMillis()));
+    if (config.getIdleTimeoutMillis() > 0) {
+      builder.evictExpiredConnections();
+      builder.evictIdleConnections(config.getIdleTimeoutMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Gives a cached, started non-blocking HttpClient
+   * <p/>
+   * If no cached non-blocking HttpClient exists, a new one is spawned and
+   * started. Concurrent callers get the same client.
+   *
+   * @return the cached CloseableHttpAsyncClient
+   * @throws IOException
+   *           if the transport has already been closed, or the client's I/O
+   *           reactor could not be started
+   */
+  private CloseableHttpAsyncClient getAsyncClient() throws IOException {
+    CloseableHttpAsyncClient ret = asyncClient;
+    if (ret == null) {
+      clientLock.lock();
+      try {
+        if (closed) {
+          throw new IOException("Transport has already been closed");
+        }
+        ret = asyncClient;
+        if (ret == null) {
+          log.trace("Creating new async client connection");
+          ret = createAsyncClient();
+          ret.start();
+          asyncClient = ret;
+        }
+      } finally {
+        clientLock.unlock();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Spawns a new non-blocking HttpClient backed by a connection pool as
+   * configured in {@link #config}
+   *
+   * @return the spawned, not yet started client
+   * @throws IOException
+   *           if the I/O reactor could not be created
+   */
+  private CloseableHttpAsyncClient createAsyncClient() throws IOException {
+    final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+        .setIoThreadCount(config.getIoThreadCount()).build();
+    final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+        new DefaultConnectingIOReactor(ioReactorConfig), null,
+        RegistryBuilder.<SchemeIOSessionStrategy> create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+            .build(), null, null, config.getTimeToLiveMillis(),
+        TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(config.getMaxTotal());
+    connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+
+    return HttpAsyncClients
+        .custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(
+            new CappedKeepAliveStrategy(config.getKeepAliveMillis())).build();
+  }
+
+  /**
+   * Closes the transport and releases all pooled HTTP connections
+   * <p/>
+   * Calls that are in progress while closing may fail. Calls after closing
+   * fail with an IOException.
+   */
+  @Override
+  public void close() throws IOException {
+    final CloseableHttpClient closingClient;
+    final CloseableHttpAsyncClient closingAsyncClient;
+    clientLock.lock();
+    try {
+      closed = true;
+      closingClient = client;
+      client = null;
+      closingAsyncClient = asyncClient;
+      asyncClient = null;
+    } finally {
+      clientLock.unlock();
+    }
+    try {
+      if (closingClient != null) {
+        log.trace("Closing client connection");
+        closingClient.close();
+      }
+    } finally {
+      if (closingAsyncClient != null) {
+        log.trace("Closing async client connection");
+        closingAsyncClient.close();
+      }
+    }
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final HttpPost httppost = createRequest(request);
+    final Cancellable abort = new Cancellable() {
+      @Override
+      public boolean cancel() {
+        httppost.abort();
+        return true;
+      }
+    };
+    request.addCancellable(abort);
+    boolean sent = false;
+    try {
+      final HttpResponse response = getClient().execute(httppost);
+      sent = true;
+      return new ApacheTransportResponse(response, request, abort);
+    } catch (final IllegalStateException e) {
+      // HttpClient signals calls on a shut down connection pool by an
+      // IllegalStateException. This happens, if the transport got closed
+      // while the call was about to start.
+      throw new IOException("Transport has been closed", e);
+    } finally {
+      if (!sent) {
+        request.removeCancellable(abort);
+      }
+    }
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final HttpPost httppost = createRequest(request);
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        httppost.abort();
+        return true;
+      }
+    });
+
+    final CloseableHttpAsyncClient asyncClient;
+    try {
+      asyncClient = getAsyncClient();
+    } catch (final IOException e) {
+      future.failed(e);
+      return future;
+    }
+
+    try {
+      asyncClient.execute(httppost, new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(final HttpResponse response) {
+          future.completed(new ApacheTransportResponse(response, null, null));
+        }
+
+        @Override
+        public void failed(final Exception e) {
+          if (e instanceof IOException) {
+            future.failed(e);
+          } else {
+            future.failed(new IOException("Could not send request", e));
+          }
+        }
+
+        @Override
+        public void cancelled() {
+          future.cancel();
+        }
+      });
+    } catch (final IllegalStateException e) {
+      // See send(TransportRequest) for why IllegalStateExceptions may occur.
+      future.failed(new IOException("Transport has been closed", e));
+    }
+    return future;
+  }
+
+  /**
+   * Creates the HTTP request for a Conduit call
+   *
+   * @param request
+   *          The call to create the HTTP request for
+   * @return the request to send
+   */
+  private HttpPost createRequest(final TransportRequest request) {
+    final HttpPost httppost = new HttpPost(apiUrlBase + request.getMethod());
+    httppost.setConfig(RequestConfig
+        .custom()
+        .setConnectTimeout(
+            toTimeout(request, config.getConnectTimeoutMillis()))
+        .setSocketTimeout(toTimeout(request, config.getSocketTimeoutMillis()))
+        .setConnectionRequestTimeout(
+            toTimeout(request, config.getConnectionRequestTimeoutMillis()))
+        .build());
+    httppost.setEntity(new ParamsEntity(request));
+    if (request.isCompressionAccepted()) {
+      httppost.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+    }
+    return httppost;
+  }
+
+  /**
+   * Converts a configured timeout to HttpClient's notion, capped by the
+   * call's deadline
+   *
+   * @param request
+   *          The call to cap the timeout for
+   * @param timeoutMillis
+   *          The configured timeout in milliseconds. Non-positive values mean
+   *          no timeout.
+   * @return the timeout in milliseconds, where 0 means no timeout
+   */
+  private static int toTimeout(final TransportRequest request,
+      final long timeoutMillis) {
+    final long capped = request.capTimeoutMillis(timeoutMillis);
+    if (capped <= 0) {
+      return 0;
+    }
+    return (int) Math.min(Integer.MAX_VALUE, capped);
+  }
+
+  /**
+   * TransportResponse backed by an HttpClient response
+   */
+  private static class ApacheTransportResponse implements TransportResponse {
+    private final HttpResponse response;
+    private final TransportRequest request;
+    private final Cancellable abort;
+
+    /**
+     * @param response
+     *          The HttpClient response
+     * @param request
+     *          The call the response answers. May be null, if the response
+     *          does not need to stay abortable.
+     * @param abort
+     *          Aborts the response while its content gets read. Gets
+     *          unregistered from the request once the response is closed.
+     *          May be null.
+     */
+    public ApacheTransportResponse(final HttpResponse response,
+        final TransportRequest request, final Cancellable abort) {
+      this.response = response;
+      this.request = request;
+      this.abort = abort;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return response.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    public String getContentEncoding() {
+      final HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        return null;
+      }
+      final Header header = entity.getContentEncoding();
+      return (header == null) ? null : header.getValue();
+    }
+
+    @Override
+    public Charset getCharset() {
+      final HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        return null;
+      }
+      return ContentType.getOrDefault(entity).getCharset();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      final HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw new IOException("Response has no content");
+      }
+      return entity.getContent();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (request != null) {
+        request.removeCancellable(abort);
+      }
+      if (response instanceof Closeable) {
+        ((Closeable) response).close();
+      }
+    }
+  }
+
+  /**
+   * Keep-alive strategy that honors the server's keep-alive, but caps it at a
+   * maximum
+   */
+  private static class CappedKeepAliveStrategy implements
+      ConnectionKeepAliveStrategy {
+    private final long maxKeepAliveMillis;
+
+    public CappedKeepAliveStrategy(final long maxKeepAliveMillis) {
+      this.maxKeepAliveMillis = maxKeepAliveMillis;
+    }
+
+    @Override
+    public long getKeepAliveDuration(final HttpResponse response,
+        final HttpContext context) {
+      final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+          .getKeepAliveDuration(response, context);
+      if (maxKeepAliveMillis <= 0) {
+        return serverKeepAlive;
+      }
+      if (serverKeepAlive <= 0) {
+        // Server did not limit keep-alive.
+        return maxKeepAliveMillis;
+      }
+      return Math.min(serverKeepAlive, maxKeepAliveMillis);
+    }
+  }
+}
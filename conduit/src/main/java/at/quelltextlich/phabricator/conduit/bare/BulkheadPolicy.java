@@ -0,0 +1,198 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Settings for the bulkheads of a {@link BulkheadTransport}
+ * <p/>
+ * Each method belongs to a bulkhead. By default, a method's bulkhead is its
+ * module, which is the part of the method name up to the first dot (E.g.:
+ * {@code maniphest} for {@code maniphest.gettasktransactions}). Methods can
+ * be moved to bulkheads of their own, to isolate groups of methods within a
+ * module.
+ * <p/>
+ * Each bulkhead caps its concurrent calls, and the calls that may wait for
+ * them. Caps can be set for all bulkheads, and overridden per bulkhead.
+ */
+public class BulkheadPolicy {
+  // Defaults get read by every call, and may change while calls wait.
+  private volatile int maxConcurrentCalls;
+  private volatile int maxQueued;
+  private volatile long maxWaitMillis;
+  private final ConcurrentMap<String, String> bulkheads;
+  private final ConcurrentMap<String, Integer> bulkheadMaxConcurrentCalls;
+  private final ConcurrentMap<String, Integer> bulkheadMaxQueued;
+
+  /**
+   * Creates settings with defaults suitable for a single Phabricator host
+   * <p/>
+   * Defaults are one bulkhead per module, each allowing 10 concurrent calls,
+   * and 20 calls waiting for at most 10 seconds.
+   */
+  public BulkheadPolicy() {
+    maxConcurrentCalls = 10;
+    maxQueued = 20;
+    maxWaitMillis = 10000;
+    bulkheads = new ConcurrentHashMap<String, String>();
+    bulkheadMaxConcurrentCalls = new ConcurrentHashMap<String, Integer>();
+    bulkheadMaxQueued = new ConcurrentHashMap<String, Integer>();
+  }
+
+  /**
+   * Gets the bulkhead of a method
+   *
+   * @param method
+   *          The name of the method to get the bulkhead for
+   * @return the name of the method's bulkhead
+   */
+  public String getBulkhead(final String method) {
+    final String bulkhead = bulkheads.get(method);
+    if (bulkhead != null) {
+      return bulkhead;
+    }
+    final int dot = method.indexOf('.');
+    return (dot < 0) ? method : method.substring(0, dot);
+  }
+
+  /**
+   * Moves a method to a bulkhead
+   *
+   * @param method
+   *          The name of the method to move
+   * @param bulkhead
+   *          The name of the bulkhead to move the method to. null moves the
+   *          method back to its module's bulkhead.
+   */
+  public void setBulkhead(final String method, final String bulkhead) {
+    if (bulkhead == null) {
+      bulkheads.remove(method);
+    } else {
+      bulkheads.put(method, bulkhead);
+    }
+  }
+
+  /**
+   * Gets the default number of concurrent calls per bulkhead
+   *
+   * @return the number of calls that may be in flight per bulkhead
+   */
+  public int getMaxConcurrentCalls() {
+    return maxConcurrentCalls;
+  }
+
+  /**
+   * Sets the default number of concurrent calls per bulkhead
+   *
+   * @param maxConcurrentCalls
+   *          the number of calls that may be in flight per bulkhead
+   */
+  public void setMaxConcurrentCalls(final int maxConcurrentCalls) {
+    this.maxConcurrentCalls = maxConcurrentCalls;
+  }
+
+  /**
+   * Gets the number of concurrent calls of a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @return the number of calls that may be in flight in the bulkhead
+   */
+  public int getMaxConcurrentCalls(final String bulkhead) {
+    final Integer ret = bulkheadMaxConcurrentCalls.get(bulkhead);
+    return (ret == null) ? maxConcurrentCalls : ret;
+  }
+
+  /**
+   * Sets the number of concurrent calls of a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @param maxConcurrentCalls
+   *          the number of calls that may be in flight in the bulkhead
+   */
+  public void setMaxConcurrentCalls(final String bulkhead,
+      final int maxConcurrentCalls) {
+    bulkheadMaxConcurrentCalls.put(bulkhead, maxConcurrentCalls);
+  }
+
+  /**
+   * Gets the default number of calls that may wait per bulkhead
+   *
+   * @return the number of waiting calls per bulkhead
+   */
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  /**
+   * Sets the default number of calls that may wait per bulkhead
+   *
+   * @param maxQueued
+   *          the number of waiting calls per bulkhead. 0 rejects calls right
+   *          away, if the bulkhead is full.
+   */
+  public void setMaxQueued(final int maxQueued) {
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Gets the number of calls that may wait for a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @return the number of calls that may wait for the bulkhead
+   */
+  public int getMaxQueued(final String bulkhead) {
+    final Integer ret = bulkheadMaxQueued.get(bulkhead);
+    return (ret == null) ? maxQueued : ret;
+  }
+
+  /**
+   * Sets the number of calls that may wait for a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @param maxQueued
+   *          the number of calls that may wait for the bulkhead. 0 rejects
+   *          calls right away, if the bulkhead is full.
+   */
+  public void setMaxQueued(final String bulkhead, final int maxQueued) {
+    bulkheadMaxQueued.put(bulkhead, maxQueued);
+  }
+
+  /**
+   * Gets the time a blocking call may wait for its bulkhead
+   *
+   * @return the maximum wait in milliseconds
+   */
+  public long getMaxWaitMillis() {
+    return maxWaitMillis;
+  }
+
+  /**
+   * Sets the time a blocking call may wait for its bulkhead
+   * <p/>
+   * Calls that waited that long get rejected. Non-blocking calls wait until
+   * they get cancelled, or their deadline passes.
+   *
+   * @param maxWaitMillis
+   *          the maximum wait in milliseconds
+   */
+  public void setMaxWaitMillis(final long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+  }
+}
@@ -0,0 +1,438 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.BulkheadFullException;
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that isolates groups of methods from each other
+ * <p/>
+ * Each method belongs to a bulkhead, as decided by a {@link BulkheadPolicy}.
+ * Each bulkhead caps its concurrent calls, and has its own queue of calls
+ * that wait for them. So a burst of slow calls (e.g.: a backfill through
+ * {@code maniphest.gettasktransactions}) can only fill up its own bulkhead,
+ * while calls of other bulkheads (e.g.: {@code phid.query}) still get
+ * through. If too many calls wait for a bulkhead already, calls get rejected
+ * with a {@link BulkheadFullException}.
+ * <p/>
+ * Blocking calls wait on the calling thread, until they get in, their wait
+ * times out, or their call gets cancelled. Non-blocking calls wait without
+ * tying up a thread.
+ * <p/>
+ * A call stays in flight until its response got closed, as streamed
+ * responses keep their connection busy until then. Bulkheads only isolate
+ * HTTP connections, if the caps of the busy bulkheads add up to less than the
+ * transport's pool.
+ */
+public class BulkheadTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private static final int WAITING = 0;
+  private static final int GRANTED = 1;
+  private static final int ABANDONED = 2;
+
+  private final Transport transport;
+  private final BulkheadPolicy policy;
+  private final ConcurrentMap<String, Bulkhead> bulkheads;
+  private final AtomicLong rejectedCalls;
+
+  public BulkheadTransport(final Transport transport) {
+    this(transport, new BulkheadPolicy());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   * @param policy
+   *          The policy deciding the bulkheads and their caps
+   */
+  public BulkheadTransport(final Transport transport,
+      final BulkheadPolicy policy) {
+    this.transport = transport;
+    this.policy = policy;
+    bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    rejectedCalls = new AtomicLong();
+  }
+
+  /**
+   * Gets the policy deciding the bulkheads and their caps
+   *
+   * @return the transport's bulkhead policy
+   */
+  public BulkheadPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Gets the number of calls in flight in a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @return the number of calls that are currently in flight
+   */
+  public int getInFlight(final String bulkhead) {
+    final Bulkhead ret = bulkheads.get(bulkhead);
+    return (ret == null) ? 0 : ret.getInFlight();
+  }
+
+  /**
+   * Gets the number of calls that wait for a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @return the number of waiting calls
+   */
+  public int getQueued(final String bulkhead) {
+    final Bulkhead ret = bulkheads.get(bulkhead);
+    return (ret == null) ? 0 : ret.getQueued();
+  }
+
+  /**
+   * Gets the number of calls that got rejected
+   *
+   * @return the number of rejected calls of all bulkheads so far
+   */
+  public long getRejectedCalls() {
+    return rejectedCalls.get();
+  }
+
+  /**
+   * Gets the number of calls that got rejected by a bulkhead
+   *
+   * @param bulkhead
+   *          The name of the bulkhead
+   * @return the number of the bulkhead's rejected calls so far
+   */
+  public long getRejectedCalls(final String bulkhead) {
+    final Bulkhead ret = bulkheads.get(bulkhead);
+    return (ret == null) ? 0 : ret.rejectedCalls.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    transport.close();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final String method = request.getMethod();
+    final Bulkhead bulkhead = getBulkhead(method);
+    final BlockingWaiter waiter = new BlockingWaiter();
+    if (!bulkhead.enqueue(waiter)) {
+      throw bulkhead.reject(method);
+    }
+    // Cancelling the call, or passing its deadline, ends the wait.
+    final Cancellable abort = new Cancellable() {
+      @Override
+      public boolean cancel() {
+        if (bulkhead.abandon(waiter)) {
+          waiter.latch.countDown();
+        }
+        return true;
+      }
+    };
+    request.addCancellable(abort);
+    try {
+      if (!waiter.latch.await(policy.getMaxWaitMillis(),
+          TimeUnit.MILLISECONDS) && bulkhead.abandon(waiter)) {
+        throw bulkhead.reject(method);
+      }
+    } catch (final InterruptedException e) {
+      if (!bulkhead.abandon(waiter)) {
+        bulkhead.release();
+      }
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for bulkhead '"
+          + bulkhead.name + "'", e);
+    } finally {
+      request.removeCancellable(abort);
+    }
+    if (waiter.state.get() != GRANTED) {
+      throw new IOException("Call got aborted while waiting for bulkhead '"
+          + bulkhead.name + "'");
+    }
+
+    final TransportResponse response;
+    try {
+      response = transport.send(request);
+    } catch (final IOException e) {
+      bulkhead.release();
+      throw e;
+    } catch (final RuntimeException e) {
+      bulkhead.release();
+      throw e;
+    }
+    return new ReleasingResponse(response, bulkhead);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final String method = request.getMethod();
+    final Bulkhead bulkhead = getBulkhead(method);
+    final AsyncWaiter waiter = new AsyncWaiter(bulkhead, request, future);
+    future.setCancellable(waiter);
+    if (!bulkhead.enqueue(waiter)) {
+      future.failed(bulkhead.reject(method));
+    }
+    return future;
+  }
+
+  private Bulkhead getBulkhead(final String method) {
+    final String name = policy.getBulkhead(method);
+    Bulkhead bulkhead = bulkheads.get(name);
+    if (bulkhead == null) {
+      final Bulkhead newBulkhead = new Bulkhead(name);
+      bulkhead = bulkheads.putIfAbsent(name, newBulkhead);
+      if (bulkhead == null) {
+        bulkhead = newBulkhead;
+      }
+    }
+    return bulkhead;
+  }
+
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * A response, whose call stays in its bulkhead until it got closed
+   */
+  private static class ReleasingResponse extends ClosingResponse {
+    private final Bulkhead bulkhead;
+
+    public ReleasingResponse(final TransportResponse response,
+        final Bulkhead bulkhead) {
+      super(response);
+      this.bulkhead = bulkhead;
+    }
+
+    @Override
+    protected void closed() {
+      bulkhead.release();
+    }
+  }
+
+  /**
+   * A bulkhead's calls in flight, and the calls waiting for them
+   */
+  private class Bulkhead {
+    private final String name;
+    private final Queue<Waiter> waiters;
+    private int inFlight;
+    private final AtomicLong rejectedCalls;
+
+    public Bulkhead(final String name) {
+      this.name = name;
+      waiters = new LinkedList<Waiter>();
+      inFlight = 0;
+      rejectedCalls = new AtomicLong();
+    }
+
+    public synchronized int getInFlight() {
+      return inFlight;
+    }
+
+    public synchronized int getQueued() {
+      return waiters.size();
+    }
+
+    /**
+     * Lets a call in, or lines it up
+     * <p/>
+     * If the call may go in right away, it gets granted before this method
+     * returns.
+     *
+     * @param waiter
+     *          The call to let in
+     * @return true, if the call got granted or lined up. false, if too many
+     *         calls wait already.
+     */
+    public boolean enqueue(final Waiter waiter) {
+      synchronized (this) {
+        if (waiters.isEmpty()
+            && inFlight < policy.getMaxConcurrentCalls(name)) {
+          waiter.state.set(GRANTED);
+          inFlight++;
+        } else if (waiters.size() < policy.getMaxQueued(name)) {
+          waiters.add(waiter);
+          return true;
+        } else {
+          return false;
+        }
+      }
+      waiter.granted();
+      return true;
+    }
+
+    /**
+     * Gives up waiting
+     *
+     * @param waiter
+     *          The call that gives up waiting
+     * @return true, if the call gave up. false, if the call got granted
+     *         concurrently, and has to go through.
+     */
+    public boolean abandon(final Waiter waiter) {
+      if (!waiter.state.compareAndSet(WAITING, ABANDONED)) {
+        return false;
+      }
+      synchronized (this) {
+        waiters.remove(waiter);
+      }
+      return true;
+    }
+
+    /**
+     * Accounts for a completed call, and lets waiting calls in
+     */
+    public void release() {
+      final Queue<Waiter> granted = new LinkedList<Waiter>();
+      synchronized (this) {
+        inFlight--;
+        while (inFlight < policy.getMaxConcurrentCalls(name)
+            && !waiters.isEmpty()) {
+          final Waiter waiter = waiters.poll();
+          if (waiter.state.compareAndSet(WAITING, GRANTED)) {
+            inFlight++;
+            granted.add(waiter);
+          }
+        }
+      }
+      for (final Waiter waiter : granted) {
+        waiter.granted();
+      }
+    }
+
+    public CallRejectedException reject(final String method) {
+      rejectedCalls.incrementAndGet();
+      BulkheadTransport.this.rejectedCalls.incrementAndGet();
+      return new CallRejectedException(new BulkheadFullException(name,
+          method, policy.getMaxConcurrentCalls(name)));
+    }
+  }
+
+  /**
+   * A call that waits to go through
+   */
+  private abstract static class Waiter {
+    protected final AtomicInteger state = new AtomicInteger(WAITING);
+
+    /**
+     * Lets the call go through
+     */
+    protected abstract void granted();
+  }
+
+  /**
+   * A blocking call, whose thread waits to go through
+   */
+  private static class BlockingWaiter extends Waiter {
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    @Override
+    protected void granted() {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * A non-blocking call, that gets sent once it may go through
+   */
+  private class AsyncWaiter extends Waiter implements Cancellable {
+    private final Bulkhead bulkhead;
+    private final TransportRequest request;
+    private final CallFuture<TransportResponse> future;
+    private volatile Future<TransportResponse> transportFuture;
+
+    public AsyncWaiter(final Bulkhead bulkhead,
+        final TransportRequest request,
+        final CallFuture<TransportResponse> future) {
+      this.bulkhead = bulkhead;
+      this.request = request;
+      this.future = future;
+    }
+
+    @Override
+    protected void granted() {
+      if (future.isDone()) {
+        bulkhead.release();
+        return;
+      }
+      transportFuture = transport.sendAsync(request,
+          new FutureCallback<TransportResponse>() {
+            @Override
+            public void completed(final TransportResponse response) {
+              final TransportResponse releasingResponse = new ReleasingResponse(
+                  response, bulkhead);
+              if (!future.completed(releasingResponse)) {
+                closeQuietly(releasingResponse);
+              }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+              bulkhead.release();
+              future.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+              bulkhead.release();
+              future.cancel();
+            }
+          });
+      if (future.isCancelled()) {
+        transportFuture.cancel(true);
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      if (bulkhead.abandon(this)) {
+        return true;
+      }
+      final Future<TransportResponse> currentFuture = transportFuture;
+      if (currentFuture != null) {
+        currentFuture.cancel(true);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors for running blocking Conduit calls on threads of their own
+ * <p/>
+ * On Java 21 and newer, the multi-release jar replaces this class by one that
+ * runs each call on a virtual thread of its own. On older Java versions, calls
+ * run on a cached pool of daemon threads.
+ */
+public class CallExecutors {
+  /**
+   * Checks whether calls run on virtual threads
+   *
+   * @return true, if {@link #newCallExecutor()} gives virtual threads. false,
+   *         if it gives platform threads.
+   */
+  public static boolean isVirtual() {
+    return false;
+  }
+
+  /**
+   * Gets the executor that is shared by the whole library
+   * <p/>
+   * It is meant for short blocking work that must not run on I/O threads
+   * (E.g.: opening a session). It gets created on first use, and is never
+   * shut down. As its threads are daemon threads that end after a minute of
+   * idling, it does not keep the JVM alive.
+   *
+   * @return the shared executor
+   */
+  public static ExecutorService getSharedCallExecutor() {
+    return SharedCallExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Creates an executor that runs each task on a thread of its own
+   * <p/>
+   * Idle threads are reused for later tasks. Shutting the executor down is up
+   * to the caller.
+   *
+   * @return the created executor
+   */
+  public static ExecutorService newCallExecutor() {
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "conduit-call");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Holds the shared executor, so it gets created on first use
+   */
+  private static class SharedCallExecutorHolder {
+    private static final ExecutorService EXECUTOR = newCallExecutor();
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Future for the result of a non-blocking Conduit call
+ * <p/>
+ * Cancelling the future also cancels the work that produces the result (e.g.:
+ * aborts the underlying HTTP request).
+ */
+public class CallFuture<T> extends BasicFuture<T> {
+  private volatile Cancellable cancellable;
+
+  public CallFuture(final FutureCallback<T> callback) {
+    super(callback);
+    cancellable = null;
+  }
+
+  /**
+   * Sets the work to cancel, when this future gets cancelled
+   * <p/>
+   * If this future has already been cancelled, the work gets cancelled right
+   * away.
+   *
+   * @param cancellable
+   *          the work to cancel
+   */
+  public void setCancellable(final Cancellable cancellable) {
+    this.cancellable = cancellable;
+    if (isCancelled()) {
+      cancellable.cancel();
+    }
+  }
+
+  @Override
+  public boolean cancel(final boolean mayInterruptIfRunning) {
+    final boolean ret = super.cancel(mayInterruptIfRunning);
+    final Cancellable currentCancellable = cancellable;
+    if (ret && currentCancellable != null) {
+      currentCancellable.cancel();
+    }
+    return ret;
+  }
+}
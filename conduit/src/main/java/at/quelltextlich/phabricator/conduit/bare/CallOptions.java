@@ -0,0 +1,136 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import at.quelltextlich.phabricator.conduit.CallCancelledException;
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+
+/**
+ * Options for Conduit calls of a {@link Connection}
+ * <p/>
+ * A timeout bounds each call as a whole, from sending the request up to
+ * parsing the response, including retries and waiting for limits. Once the
+ * timeout passes, the call gets aborted and fails with a
+ * {@link DeadlineExceededException}.
+ * <p/>
+ * Cancelling the options aborts all calls that are in flight with them, and
+ * makes later calls with them fail right away. Aborted calls release their
+ * HTTP connection right away. Blocking calls fail with a
+ * {@link CallCancelledException}, non-blocking calls get cancelled.
+ * <p/>
+ * Options may be shared by any number of calls and threads.
+ */
+public class CallOptions {
+  private volatile long timeoutMillis;
+  private volatile boolean cancelled;
+  private final Set<TransportRequest> activeRequests;
+
+  /**
+   * Creates options without timeout
+   */
+  public CallOptions() {
+    timeoutMillis = 0;
+    cancelled = false;
+    activeRequests = Collections
+        .newSetFromMap(new ConcurrentHashMap<TransportRequest, Boolean>());
+  }
+
+  /**
+   * Gets the time each call may take
+   *
+   * @return the timeout in milliseconds. Non-positive values mean calls do
+   *         not time out.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Sets the time each call may take
+   *
+   * @param timeoutMillis
+   *          the timeout in milliseconds. Non-positive values mean calls do
+   *          not time out.
+   */
+  public void setTimeoutMillis(final long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Sets the time each call may take
+   *
+   * @param timeout
+   *          the timeout. Non-positive values mean calls do not time out.
+   * @param unit
+   *          The unit of {@code timeout}
+   */
+  public void setTimeout(final long timeout, final TimeUnit unit) {
+    setTimeoutMillis(unit.toMillis(timeout));
+  }
+
+  /**
+   * Checks whether the options have been cancelled
+   *
+   * @return true, if calls with these options fail right away
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Aborts all calls that are in flight with these options
+   * <p/>
+   * Later calls with these options fail right away.
+   */
+  public void cancel() {
+    cancelled = true;
+    final List<TransportRequest> requests = new ArrayList<TransportRequest>(
+        activeRequests);
+    for (final TransportRequest request : requests) {
+      request.cancel();
+    }
+  }
+
+  /**
+   * Tracks a call that starts with these options
+   * <p/>
+   * If the options have been cancelled, the call gets cancelled right away.
+   *
+   * @param request
+   *          The starting call
+   */
+  void register(final TransportRequest request) {
+    activeRequests.add(request);
+    if (cancelled) {
+      request.cancel();
+    }
+  }
+
+  /**
+   * Stops tracking a call that is done
+   *
+   * @param request
+   *          The call that is done
+   */
+  void unregister(final TransportRequest request) {
+    activeRequests.remove(request);
+  }
+}
@@ -0,0 +1,48 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+
+/**
+ * Signals that a transport refused a call without sending it
+ * <p/>
+ * Transports only fail with IOExceptions. A transport that refuses a call on
+ * purpose (e.g.: as a circuit is open) wraps the {@link ConduitException} to
+ * report in this exception, and the {@link Connection} hands the wrapped
+ * exception on to the caller. Refused calls do not get retried.
+ */
+public class CallRejectedException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final ConduitException reason;
+
+  public CallRejectedException(final ConduitException reason) {
+    super(reason.getMessage(), reason);
+    this.reason = reason;
+  }
+
+  /**
+   * Gets the exception to report to the caller
+   *
+   * @return the reason for refusing the call
+   */
+  public ConduitException getReason() {
+    return reason;
+  }
+
+}
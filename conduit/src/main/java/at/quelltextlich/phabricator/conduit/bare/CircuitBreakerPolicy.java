@@ -0,0 +1,196 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+/**
+ * Settings for the circuits of a {@link CircuitBreakerTransport}
+ * <p/>
+ * Each method's circuit watches the outcome of the method's most recent
+ * calls. Once the share of failed calls, or the share of slow calls, reaches
+ * its threshold, the circuit opens and calls fail fast. After a while, a few
+ * trial calls get through. If they are fine, the circuit closes again.
+ * Otherwise, it stays open for another while.
+ */
+public class CircuitBreakerPolicy {
+  // The policy may get tuned while calls are in flight, and gets read on
+  // every call, so the settings are volatile.
+  private volatile int windowSize;
+  private volatile int minimumCalls;
+  private volatile double failureRateThreshold;
+  private volatile long slowCallMillis;
+  private volatile double slowCallRateThreshold;
+  private volatile long openMillis;
+  private volatile int trialCalls;
+
+  /**
+   * Creates settings with defaults suitable for a single Phabricator host
+   * <p/>
+   * Defaults are a window of the last 20 calls, of which at least 10 are
+   * needed before a circuit may open. A circuit opens if half of the calls
+   * failed, or if 80 percent of the calls took 5 seconds or longer. Open
+   * circuits let 3 trial calls through after 30 seconds.
+   */
+  public CircuitBreakerPolicy() {
+    windowSize = 20;
+    minimumCalls = 10;
+    failureRateThreshold = 0.5;
+    slowCallMillis = 5000;
+    slowCallRateThreshold = 0.8;
+    openMillis = 30000;
+    trialCalls = 3;
+  }
+
+  /**
+   * Gets the number of recent calls a circuit decides upon
+   *
+   * @return the number of calls in a circuit's window
+   */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Sets the number of recent calls a circuit decides upon
+   *
+   * @param windowSize
+   *          the number of calls in a circuit's window
+   */
+  public void setWindowSize(final int windowSize) {
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Gets the number of calls needed before a circuit may open
+   *
+   * @return the minimum number of calls in a circuit's window
+   */
+  public int getMinimumCalls() {
+    return minimumCalls;
+  }
+
+  /**
+   * Sets the number of calls needed before a circuit may open
+   * <p/>
+   * This keeps a single failure from opening the circuit of a rarely called
+   * method.
+   *
+   * @param minimumCalls
+   *          the minimum number of calls in a circuit's window
+   */
+  public void setMinimumCalls(final int minimumCalls) {
+    this.minimumCalls = minimumCalls;
+  }
+
+  /**
+   * Gets the share of failed calls that opens a circuit
+   *
+   * @return the failure rate between 0 and 1
+   */
+  public double getFailureRateThreshold() {
+    return failureRateThreshold;
+  }
+
+  /**
+   * Sets the share of failed calls that opens a circuit
+   * <p/>
+   * Calls count as failed, if the transport failed, or the server answered
+   * with a 5xx status.
+   *
+   * @param failureRateThreshold
+   *          the failure rate between 0 and 1
+   */
+  public void setFailureRateThreshold(final double failureRateThreshold) {
+    this.failureRateThreshold = failureRateThreshold;
+  }
+
+  /**
+   * Gets the duration from which on calls count as slow
+   *
+   * @return the duration in milliseconds
+   */
+  public long getSlowCallMillis() {
+    return slowCallMillis;
+  }
+
+  /**
+   * Sets the duration from which on calls count as slow
+   *
+   * @param slowCallMillis
+   *          the duration in milliseconds
+   */
+  public void setSlowCallMillis(final long slowCallMillis) {
+    this.slowCallMillis = slowCallMillis;
+  }
+
+  /**
+   * Gets the share of slow calls that opens a circuit
+   *
+   * @return the slow call rate between 0 and 1
+   */
+  public double getSlowCallRateThreshold() {
+    return slowCallRateThreshold;
+  }
+
+  /**
+   * Sets the share of slow calls that opens a circuit
+   *
+   * @param slowCallRateThreshold
+   *          the slow call rate between 0 and 1. Values above 1 keep slow
+   *          calls from opening circuits.
+   */
+  public void setSlowCallRateThreshold(final double slowCallRateThreshold) {
+    this.slowCallRateThreshold = slowCallRateThreshold;
+  }
+
+  /**
+   * Gets the time an open circuit fails calls before trying again
+   *
+   * @return the time in milliseconds
+   */
+  public long getOpenMillis() {
+    return openMillis;
+  }
+
+  /**
+   * Sets the time an open circuit fails calls before trying again
+   *
+   * @param openMillis
+   *          the time in milliseconds
+   */
+  public void setOpenMillis(final long openMillis) {
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Gets the number of trial calls that decide whether a circuit closes
+   *
+   * @return the number of trial calls
+   */
+  public int getTrialCalls() {
+    return trialCalls;
+  }
+
+  /**
+   * Sets the number of trial calls that decide whether a circuit closes
+   * <p/>
+   * Once an open circuit's time is up, this many calls get through. Further
+   * calls fail fast until the trial calls completed.
+   *
+   * @param trialCalls
+   *          the number of trial calls
+   */
+  public void setTrialCalls(final int trialCalls) {
+    this.trialCalls = trialCalls;
+  }
+}
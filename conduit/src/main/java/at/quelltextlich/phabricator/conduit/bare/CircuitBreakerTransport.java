@@ -0,0 +1,398 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.CircuitOpenException;
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that fails calls fast, while a method's calls keep failing
+ * <p/>
+ * Each Conduit method gets its own circuit, so trouble with one method (e.g.:
+ * {@code maniphest.query} timing out) does not affect others (e.g.:
+ * {@code conduit.ping}). While a method's circuit is open, its calls fail
+ * right away with a {@link CircuitOpenException}, instead of tying up a
+ * thread until they time out. When circuits open and close is decided by a
+ * {@link CircuitBreakerPolicy}.
+ * <p/>
+ * A call's outcome gets recorded once its response got closed, so slow
+ * responses count as slow calls even if their headers arrived in time. Calls
+ * that got cancelled do not get recorded, as they say nothing about the
+ * method's health. Calls that ran out of time before their deadline count as
+ * failed calls though, as timeouts are what a circuit has to catch.
+ */
+public class CircuitBreakerTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  /**
+   * The state of a method's circuit
+   */
+  public enum State {
+    /**
+     * Calls get through
+     */
+    CLOSED,
+
+    /**
+     * Calls fail fast
+     */
+    OPEN,
+
+    /**
+     * Trial calls get through to decide whether to close the circuit
+     */
+    HALF_OPEN
+  }
+
+  private final Transport transport;
+  private final CircuitBreakerPolicy policy;
+  private final ConcurrentMap<String, Circuit> circuits;
+  private final AtomicLong rejectedCalls;
+
+  public CircuitBreakerTransport(final Transport transport) {
+    this(transport, new CircuitBreakerPolicy());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   * @param policy
+   *          The policy deciding when circuits open and close
+   */
+  public CircuitBreakerTransport(final Transport transport,
+      final CircuitBreakerPolicy policy) {
+    this.transport = transport;
+    this.policy = policy;
+    circuits = new ConcurrentHashMap<String, Circuit>();
+    rejectedCalls = new AtomicLong();
+  }
+
+  /**
+   * Gets the state of a method's circuit
+   *
+   * @param method
+   *          The name of the method to get the circuit state for
+   * @return the state of the method's circuit
+   */
+  public State getState(final String method) {
+    final Circuit circuit = circuits.get(method);
+    return (circuit == null) ? State.CLOSED : circuit.getState();
+  }
+
+  /**
+   * Gets the number of calls that failed fast
+   *
+   * @return the number of calls that got rejected by open circuits so far
+   */
+  public long getRejectedCalls() {
+    return rejectedCalls.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    transport.close();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final Circuit circuit = acquire(request.getMethod());
+    final long start = System.nanoTime();
+    final TransportResponse response;
+    try {
+      response = transport.send(request);
+    } catch (final IOException e) {
+      recordFailure(circuit, request, e, start);
+      throw e;
+    } catch (final RuntimeException e) {
+      recordFailure(circuit, request, e, start);
+      throw e;
+    }
+    return new RecordingResponse(response, circuit, start);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final Circuit circuit;
+    try {
+      circuit = acquire(request.getMethod());
+    } catch (final CallRejectedException e) {
+      future.failed(e);
+      return future;
+    }
+    final long start = System.nanoTime();
+    final Future<TransportResponse> transportFuture;
+    try {
+      transportFuture = transport.sendAsync(request,
+          new FutureCallback<TransportResponse>() {
+            @Override
+            public void completed(final TransportResponse response) {
+              final TransportResponse recordingResponse = new RecordingResponse(
+                  response, circuit, start);
+              if (!future.completed(recordingResponse)) {
+                closeQuietly(recordingResponse);
+              }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+              recordFailure(circuit, request, e, start);
+              future.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+              circuit.release();
+              future.cancel();
+            }
+          });
+    } catch (final RuntimeException e) {
+      recordFailure(circuit, request, e, start);
+      throw e;
+    }
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return transportFuture.cancel(true);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Gets a method's circuit, and checks whether it lets a call through
+   *
+   * @param method
+   *          The name of the called method
+   * @return the method's circuit
+   * @throws CallRejectedException
+   *           if the circuit is open
+   */
+  private Circuit acquire(final String method) throws CallRejectedException {
+    Circuit circuit = circuits.get(method);
+    if (circuit == null) {
+      final Circuit newCircuit = new Circuit(method);
+      circuit = circuits.putIfAbsent(method, newCircuit);
+      if (circuit == null) {
+        circuit = newCircuit;
+      }
+    }
+    if (!circuit.tryAcquire()) {
+      rejectedCalls.incrementAndGet();
+      throw new CallRejectedException(new CircuitOpenException(method));
+    }
+    return circuit;
+  }
+
+  private boolean isFailure(final TransportResponse response) {
+    return response.getStatusCode() >= 500;
+  }
+
+  /**
+   * Accounts for a call that did not get a response
+   * <p/>
+   * Calls that got rejected further down, or got cancelled, give back their
+   * permit without getting recorded. All other failures, including runtime
+   * exceptions and calls whose deadline passed, get recorded, so trial calls
+   * of half-open circuits always get accounted for. Aborting a call at its
+   * deadline cancels it, so the deadline gets checked first.
+   *
+   * @param circuit
+   *          The circuit of the call's method
+   * @param request
+   *          The failed call's request
+   * @param e
+   *          The call's failure
+   * @param start
+   *          When the call got sent, as {@link System#nanoTime()}
+   */
+  private void recordFailure(final Circuit circuit,
+      final TransportRequest request, final Exception e, final long start) {
+    if (e instanceof CallRejectedException
+        || (request.isCancelled() && !request.isExpired())) {
+      circuit.release();
+    } else {
+      circuit.record(true, System.nanoTime() - start);
+    }
+  }
+
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * A response whose call gets recorded once the response got closed
+   */
+  private class RecordingResponse extends ClosingResponse {
+    private final Circuit circuit;
+    private final long start;
+
+    public RecordingResponse(final TransportResponse response,
+        final Circuit circuit, final long start) {
+      super(response);
+      this.circuit = circuit;
+      this.start = start;
+    }
+
+    @Override
+    protected void closed() {
+      circuit.record(isFailure(this), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * The outcomes of a method's recent calls, and the resulting state
+   */
+  private class Circuit {
+    private final String method;
+    private State state;
+    private long openedAt;
+    private int trialsStarted;
+
+    private boolean[] failed;
+    private boolean[] slow;
+    private int next;
+    private int size;
+    private int failedCount;
+    private int slowCount;
+
+    public Circuit(final String method) {
+      this.method = method;
+      state = State.CLOSED;
+      reset(policy.getWindowSize());
+    }
+
+    public synchronized State getState() {
+      return state;
+    }
+
+    /**
+     * Checks whether a call may go through, and accounts for it
+     *
+     * @return true, if the call may go through
+     */
+    public synchronized boolean tryAcquire() {
+      if (state == State.OPEN) {
+        if (System.nanoTime() - openedAt < TimeUnit.MILLISECONDS
+            .toNanos(policy.getOpenMillis())) {
+          return false;
+        }
+        log.debug("Circuit for " + method + " is half-open");
+        state = State.HALF_OPEN;
+        trialsStarted = 0;
+        reset(policy.getTrialCalls());
+      }
+      if (state == State.HALF_OPEN) {
+        if (trialsStarted >= policy.getTrialCalls()) {
+          return false;
+        }
+        trialsStarted++;
+      }
+      return true;
+    }
+
+    /**
+     * Gives back a call that went through, but did not complete
+     */
+    public synchronized void release() {
+      if (state == State.HALF_OPEN && trialsStarted > 0) {
+        trialsStarted--;
+      }
+    }
+
+    /**
+     * Records the outcome of a call, and updates the state accordingly
+     *
+     * @param callFailed
+     *          true, if the call failed
+     * @param durationNanos
+     *          the duration of the call in nanoseconds
+     */
+    public synchronized void record(final boolean callFailed,
+        final long durationNanos) {
+      if (state == State.OPEN) {
+        // Call started before the circuit opened.
+        return;
+      }
+      final boolean callSlow = durationNanos >= TimeUnit.MILLISECONDS
+          .toNanos(policy.getSlowCallMillis());
+      if (size == failed.length) {
+        failedCount -= failed[next] ? 1 : 0;
+        slowCount -= slow[next] ? 1 : 0;
+      } else {
+        size++;
+      }
+      failed[next] = callFailed;
+      slow[next] = callSlow;
+      failedCount += callFailed ? 1 : 0;
+      slowCount += callSlow ? 1 : 0;
+      next = (next + 1) % failed.length;
+
+      if (state == State.HALF_OPEN) {
+        if (size >= policy.getTrialCalls()) {
+          if (isTripped()) {
+            open();
+          } else {
+            log.debug("Closing circuit for " + method);
+            state = State.CLOSED;
+            reset(policy.getWindowSize());
+          }
+        }
+      } else if (size >= policy.getMinimumCalls() && isTripped()) {
+        open();
+      }
+    }
+
+    private boolean isTripped() {
+      return failedCount >= policy.getFailureRateThreshold() * size
+          || slowCount >= policy.getSlowCallRateThreshold() * size;
+    }
+
+    private void open() {
+      log.debug("Opening circuit for " + method + " (" + failedCount
+          + " failed and " + slowCount + " slow of " + size + " calls)");
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+    }
+
+    private void reset(final int windowSize) {
+      failed = new boolean[Math.max(1, windowSize)];
+      slow = new boolean[failed.length];
+      next = 0;
+      size = 0;
+      failedCount = 0;
+      slowCount = 0;
+    }
+  }
+}
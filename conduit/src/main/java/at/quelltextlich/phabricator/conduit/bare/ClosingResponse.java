@@ -0,0 +1,78 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Response that accounts for its call once it got closed
+ * <p/>
+ * Transports that stream responses keep the connection busy until the
+ * content has been read and the response got closed. So transports that
+ * limit or measure calls account for them when the response gets closed
+ * instead of when the response arrived. The accounting runs once, even if
+ * the response gets closed several times, and also if closing fails.
+ */
+abstract class ClosingResponse implements TransportResponse {
+  private final TransportResponse response;
+  private final AtomicBoolean closed;
+
+  /**
+   * @param response
+   *          The response to pass calls on to
+   */
+  public ClosingResponse(final TransportResponse response) {
+    this.response = response;
+    closed = new AtomicBoolean(false);
+  }
+
+  @Override
+  public int getStatusCode() {
+    return response.getStatusCode();
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return response.getContentEncoding();
+  }
+
+  @Override
+  public Charset getCharset() {
+    return response.getCharset();
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    return response.getContent();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      response.close();
+    } finally {
+      if (closed.compareAndSet(false, true)) {
+        closed();
+      }
+    }
+  }
+
+  /**
+   * Accounts for the call, once the response got closed
+   */
+  protected abstract void closed();
+}
@@ -0,0 +1,226 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+/**
+ * Settings for the adaptive limit of an {@link AdaptiveConcurrencyTransport}
+ * <p/>
+ * The limit follows AIMD (additive increase, multiplicative decrease). Each
+ * call that completes in time while the limit is in use raises the limit by
+ * about one per round trip. Calls that fail, get throttled, or take
+ * considerably longer than their method's baseline round trip, shrink the
+ * limit by a factor, at most once per round trip.
+ * <p/>
+ * A method's baseline drops to each faster round trip right away, and drifts
+ * up towards slower round trips by a fraction per call. So a single call that
+ * is unusually fast (E.g.: a {@code maniphest.query} with a limit of 1) does
+ * not make all later calls count as slow for good.
+ */
+public class ConcurrencyLimitPolicy {
+  // Settings may change while calls complete on other threads.
+  private volatile int initialLimit;
+  private volatile int minLimit;
+  private volatile int maxLimit;
+  private volatile double backoffRatio;
+  private volatile double latencyTolerance;
+  private volatile double baselineDecay;
+  private volatile int maxQueued;
+  private volatile long maxWaitMillis;
+
+  /**
+   * Creates settings with defaults suitable for a single Phabricator host
+   * <p/>
+   * Defaults are a limit starting at 20 calls that moves between 1 and 200
+   * calls. Calls that take more than twice as long as their method's baseline
+   * shrink the limit to 90 percent. Baselines drift up by 10 percent of the
+   * difference to each slower call. Up to 100 calls may wait for at most
+   * 30 seconds.
+   */
+  public ConcurrencyLimitPolicy() {
+    initialLimit = 20;
+    minLimit = 1;
+    maxLimit = 200;
+    backoffRatio = 0.9;
+    latencyTolerance = 2.0;
+    baselineDecay = 0.1;
+    maxQueued = 100;
+    maxWaitMillis = 30000;
+  }
+
+  /**
+   * Gets the limit to start with
+   *
+   * @return the initial number of concurrent calls
+   */
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  /**
+   * Sets the limit to start with
+   *
+   * @param initialLimit
+   *          the initial number of concurrent calls
+   */
+  public void setInitialLimit(final int initialLimit) {
+    this.initialLimit = initialLimit;
+  }
+
+  /**
+   * Gets the lowest limit
+   *
+   * @return the minimum number of concurrent calls
+   */
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  /**
+   * Sets the lowest limit
+   *
+   * @param minLimit
+   *          the minimum number of concurrent calls
+   */
+  public void setMinLimit(final int minLimit) {
+    this.minLimit = minLimit;
+  }
+
+  /**
+   * Gets the highest limit
+   *
+   * @return the maximum number of concurrent calls
+   */
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  /**
+   * Sets the highest limit
+   *
+   * @param maxLimit
+   *          the maximum number of concurrent calls
+   */
+  public void setMaxLimit(final int maxLimit) {
+    this.maxLimit = maxLimit;
+  }
+
+  /**
+   * Gets the factor the limit shrinks by on overload
+   *
+   * @return the backoff ratio between 0 and 1
+   */
+  public double getBackoffRatio() {
+    return backoffRatio;
+  }
+
+  /**
+   * Sets the factor the limit shrinks by on overload
+   *
+   * @param backoffRatio
+   *          the backoff ratio between 0 and 1
+   */
+  public void setBackoffRatio(final double backoffRatio) {
+    this.backoffRatio = backoffRatio;
+  }
+
+  /**
+   * Gets how much slower than its method's baseline a call may be
+   *
+   * @return the tolerated ratio of a call's round trip to the baseline
+   */
+  public double getLatencyTolerance() {
+    return latencyTolerance;
+  }
+
+  /**
+   * Sets how much slower than its method's baseline a call may be
+   * <p/>
+   * Round trips get compared per method, as a {@code maniphest.query} with
+   * many results takes naturally longer than a {@code conduit.ping}.
+   *
+   * @param latencyTolerance
+   *          the tolerated ratio of a call's round trip to the baseline
+   */
+  public void setLatencyTolerance(final double latencyTolerance) {
+    this.latencyTolerance = latencyTolerance;
+  }
+
+  /**
+   * Gets how fast baselines follow slower round trips
+   *
+   * @return the fraction of the difference to a slower round trip, that the
+   *         baseline moves by
+   */
+  public double getBaselineDecay() {
+    return baselineDecay;
+  }
+
+  /**
+   * Sets how fast baselines follow slower round trips
+   * <p/>
+   * Higher values let the limit recover faster from an unusually fast call,
+   * but also let the baseline get used to an overloaded server sooner.
+   *
+   * @param baselineDecay
+   *          the fraction of the difference to a slower round trip, that the
+   *          baseline moves by. 0 keeps the fastest round trip for good.
+   */
+  public void setBaselineDecay(final double baselineDecay) {
+    this.baselineDecay = baselineDecay;
+  }
+
+  /**
+   * Gets the number of calls that may wait for the limit
+   *
+   * @return the maximum number of waiting calls
+   */
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  /**
+   * Sets the number of calls that may wait for the limit
+   * <p/>
+   * Calls beyond that get rejected right away.
+   *
+   * @param maxQueued
+   *          the maximum number of waiting calls. 0 rejects calls over the
+   *          limit right away.
+   */
+  public void setMaxQueued(final int maxQueued) {
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Gets the time blocking calls may wait for the limit
+   *
+   * @return the maximum wait in milliseconds
+   */
+  public long getMaxWaitMillis() {
+    return maxWaitMillis;
+  }
+
+  /**
+   * Sets the time blocking calls may wait for the limit
+   * <p/>
+   * Blocking calls that waited that long get rejected. Non-blocking calls do
+   * not tie up a thread while waiting, and wait for as long as it takes.
+   *
+   * @param maxWaitMillis
+   *          the maximum wait in milliseconds
+   */
+  public void setMaxWaitMillis(final long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+  }
+}
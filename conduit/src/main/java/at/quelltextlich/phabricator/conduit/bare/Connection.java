@@ -11,61 +11,227 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
-
 package at.quelltextlich.phabricator.conduit.bare;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.quelltextlich.phabricator.conduit.CallCancelledException;
 import at.quelltextlich.phabricator.conduit.ConduitErrorException;
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+import at.quelltextlich.phabricator.conduit.ThrottledException;
 import at.quelltextlich.phabricator.conduit.raw.Conduit;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 /**
  * Abstracts the connection to Conduit API
+ * <p/>
+ * Calls get encoded, sent through a {@link Transport}, and their responses
+ * parsed. The default transport is an {@link ApacheTransport}, which pools
+ * HTTP connections, so a single instance can be shared across threads.
+ * Besides blocking calls through {@link #call(String, Map)}, calls can be run
+ * without blocking through {@link #callAsync(String, Map, FutureCallback)}.
+ * Once the instance is no longer needed, {@link #close()} it to release the
+ * transport. To spread calls over several web nodes, pass all of their base
+ * urls.
+ * <p/>
+ * Calls can be bounded by a timeout, and cancelled, through
+ * {@link CallOptions}. Options can be passed per call, or bound to all calls
+ * of a view on the connection through {@link #withCallOptions(CallOptions)}.
+ * <p/>
+ * This class is thread-safe. Settings in the {@link ConnectionConfig} should
+ * be done before passing it in.
  */
-public class Connection {
+public class Connection implements Closeable {
   private static final Logger log = LoggerFactory.getLogger(Conduit.class);
 
-  private final String apiUrlBase;
+  /**
+   * HTTP status code of responses to throttled calls
+   */
+  private static final int TOO_MANY_REQUESTS_STATUS_CODE = 429;
+
+  private final Transport transport;
   private final Gson gson;
+  private final ConnectionConfig config;
+  private final CallOptions callOptions;
 
-  private CloseableHttpClient client;
+  private final AtomicLong bytesReceived;
+  private final AtomicLong bytesDecoded;
 
   public Connection(final String baseUrl) {
-    apiUrlBase = baseUrl.replaceAll("/+$", "") + "/api/";
-    gson = new Gson();
-    client = null;
+    this(baseUrl, new ConnectionConfig());
+  }
+
+  public Connection(final String baseUrl, final ConnectionConfig config) {
+    this(new ApacheTransport(baseUrl, config), config);
+  }
+
+  public Connection(final List<String> baseUrls) {
+    this(baseUrls, new ConnectionConfig());
   }
 
   /**
-   * Gives a cached HttpClient
+   * Creates a connection that spreads calls over several web nodes
    * <p/>
-   * If no cached HttpClient exists, a new one is spawned.
+   * Each node gets an {@link ApacheTransport} with a pool of its own, and
+   * calls get spread over them by a {@link LoadBalancingTransport}.
    *
-   * @return the cached CloseableHttpClient
+   * @param baseUrls
+   *          The base urls of the web nodes of a Phabricator instance
+   * @param config
+   *          The connection's settings. Pooling settings apply per node.
+   */
+  public Connection(final List<String> baseUrls, final ConnectionConfig config) {
+    this(createLoadBalancingTransport(baseUrls, config), config);
+  }
+
+  public Connection(final Transport transport) {
+    this(transport, new ConnectionConfig());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing the connection
+   *          closes the transport.
+   * @param config
+   *          The connection's settings. Pooling settings only apply to the
+   *          transport, if the transport has been set up with them.
    */
-  private CloseableHttpClient getClient() {
-    if (client == null) {
-      log.trace("Creating new client connection");
-      client = HttpClients.createDefault();
+  public Connection(final Transport transport, final ConnectionConfig config) {
+    this.transport = transport;
+    gson = new Gson();
+    this.config = config;
+    callOptions = null;
+    bytesReceived = new AtomicLong();
+    bytesDecoded = new AtomicLong();
+  }
+
+  private static Transport createLoadBalancingTransport(
+      final List<String> baseUrls, final ConnectionConfig config) {
+    final List<Transport> endpoints = new ArrayList<Transport>(
+        baseUrls.size());
+    for (final String baseUrl : baseUrls) {
+      endpoints.add(new ApacheTransport(baseUrl, config));
     }
-    return client;
+    return new LoadBalancingTransport(endpoints);
+  }
+
+  /**
+   * Creates a view on a connection, that makes calls with other options
+   *
+   * @param connection
+   *          The connection to create the view on
+   * @param callOptions
+   *          The options for calls of the view
+   */
+  private Connection(final Connection connection,
+      final CallOptions callOptions) {
+    transport = connection.transport;
+    gson = connection.gson;
+    config = connection.config;
+    this.callOptions = callOptions;
+    bytesReceived = connection.bytesReceived;
+    bytesDecoded = connection.bytesDecoded;
+  }
+
+  /**
+   * Gets a view on this connection, that makes calls with the given options
+   * <p/>
+   * The view shares the transport and the byte counters with this
+   * connection. Closing the view closes the shared transport.
+   *
+   * @param callOptions
+   *          The options for calls of the view, that do not pass options of
+   *          their own. null makes calls without options.
+   * @return the view
+   */
+  public Connection withCallOptions(final CallOptions callOptions) {
+    return new Connection(this, callOptions);
+  }
+
+  /**
+   * Gets the options for calls that do not pass options of their own
+   *
+   * @return the connection's call options, or null if calls are made without
+   *         options
+   */
+  public CallOptions getCallOptions() {
+    return callOptions;
+  }
+
+  /**
+   * Gets the transport that calls are sent through
+   *
+   * @return the connection's transport
+   */
+  public Transport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Closes the connection and its transport
+   * <p/>
+   * Calls that are in progress while closing may fail. Calls after closing
+   * fail with a {@link ConduitException}.
+   */
+  @Override
+  public void close() throws IOException {
+    transport.close();
+  }
+
+  /**
+   * Gets the number of response body bytes received from the server
+   * <p/>
+   * For compressed responses, this is the number of compressed bytes. Comparing
+   * it against {@link #getBytesDecoded()} gives the bandwidth saved by
+   * compression.
+   *
+   * @return the number of received bytes across all calls so far
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Gets the number of response body bytes after decompressing them
+   * <p/>
+   * For uncompressed responses, this is the same as the number of received
+   * bytes.
+   *
+   * @return the number of decoded bytes across all calls so far
+   */
+  public long getBytesDecoded() {
+    return bytesDecoded.get();
   }
 
   /**
@@ -92,52 +258,539 @@ public class Connection {
    */
   public JsonElement call(final String method, final Map<String, Object> params)
       throws ConduitException {
-    final String methodUrl = apiUrlBase + method;
+    return call(method, params, JsonElement.class);
+  }
 
-    final HttpPost httppost = new HttpPost(methodUrl);
+  /**
+   * Calls a conduit method and binds the result to a class
+   * <p/>
+   * The response is parsed while it is read from the network, and the result
+   * is bound directly to {@code resultClass}. Neither the whole response nor
+   * an intermediate JSON tree is held in memory.
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @return The call's result, if there has been no error
+   * @throws ConduitException
+   *           if the call failed, or the response reports an error
+   */
+  public <T> T call(final String method, final Map<String, Object> params,
+      final Class<T> resultClass) throws ConduitException {
+    return call(method, params, resultClass, callOptions);
+  }
 
-    final String json = gson.toJson(params);
+  /**
+   * Calls a conduit method with options and binds the result to a class
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param options
+   *          The options for the call. May be null.
+   * @return The call's result, if there has been no error
+   * @throws DeadlineExceededException
+   *           if the call did not complete within the options' timeout
+   * @throws CallCancelledException
+   *           if the options got cancelled
+   * @throws ConduitException
+   *           if the call failed, or the response reports an error
+   */
+  public <T> T call(final String method, final Map<String, Object> params,
+      final Class<T> resultClass, final CallOptions options)
+      throws ConduitException {
+    final TransportRequest request = createRequest(method, params, options);
+    final Future<?> deadline = startCall(request, options);
+    try {
+      if (request.isCancelled()) {
+        throw aborted(request, null);
+      }
+      final TransportResponse response;
+      try {
+        response = transport.send(request);
+      } catch (final CallRejectedException e) {
+        throw e.getReason();
+      } catch (final IOException e) {
+        throw abortedOr(request, new ConduitException(
+            "Could not execute Phabricator API call", e));
+      }
+      try {
+        return parseResponse(method, response, resultClass);
+      } catch (final ConduitErrorException e) {
+        throw e;
+      } catch (final ConduitException e) {
+        throw abortedOr(request, e);
+      }
+    } finally {
+      endCall(request, options, deadline);
+    }
+  }
 
-    log.trace("Calling phabricator method " + method + " with the parameters "
-        + json);
-    httppost.setEntity(new StringEntity("params=" + json,
-        StandardCharsets.UTF_8));
+  /**
+   * Calls a conduit method without blocking the calling thread
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @return Future for the call's result. If the call fails, the future's
+   *         {@code get} throws an ExecutionException wrapping a
+   *         {@link ConduitException}.
+   */
+  public Future<JsonElement> callAsync(final String method,
+      final Map<String, Object> params) {
+    return callAsync(method, params, null);
+  }
 
-    CloseableHttpResponse response;
-    try {
-      response = getClient().execute(httppost);
-    } catch (final IOException e) {
-      throw new ConduitException("Could not execute Phabricator API call", e);
+  /**
+   * Calls a conduit method without blocking the calling thread
+   * <p/>
+   * The call is handed to the transport's {@link Transport#sendAsync}, so
+   * many calls can be in flight without tying up a thread each.
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @param callback
+   *          Callback to notify when the call completes, fails, or gets
+   *          cancelled. May be null. The callback is run on the transport's
+   *          I/O thread, unless a parse executor is set through
+   *          {@link ConnectionConfig#setParseExecutor}, so it should not
+   *          block.
+   * @return Future for the call's result. If the call fails, the future's
+   *         {@code get} throws an ExecutionException wrapping a
+   *         {@link ConduitException}. Cancelling the future aborts the HTTP
+   *         request.
+   */
+  public Future<JsonElement> callAsync(final String method,
+      final Map<String, Object> params,
+      final FutureCallback<JsonElement> callback) {
+    return callAsync(method, params, JsonElement.class, callback);
+  }
+
+  /**
+   * Calls a conduit method without blocking the calling thread and binds the
+   * result to a class
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param callback
+   *          Callback to notify when the call completes, fails, or gets
+   *          cancelled. May be null. The callback may be run on an I/O
+   *          thread, so it should not block.
+   * @return Future for the call's result. If the call fails, the future's
+   *         {@code get} throws an ExecutionException wrapping a
+   *         {@link ConduitException}. Cancelling the future aborts the call.
+   */
+  public <T> Future<T> callAsync(final String method,
+      final Map<String, Object> params, final Class<T> resultClass,
+      final FutureCallback<T> callback) {
+    return callAsync(method, params, resultClass, callOptions, callback);
+  }
+
+  /**
+   * Calls a conduit method with options without blocking the calling thread
+   * and binds the result to a class
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param options
+   *          The options for the call. May be null.
+   * @param callback
+   *          Callback to notify when the call completes, fails, or gets
+   *          cancelled. May be null. The callback may be run on an I/O
+   *          thread, so it should not block.
+   * @return Future for the call's result. If the call fails, the future's
+   *         {@code get} throws an ExecutionException wrapping a
+   *         {@link ConduitException}, which is a
+   *         {@link DeadlineExceededException} if the call timed out.
+   *         Cancelling the future, or the options, aborts the call.
+   */
+  public <T> Future<T> callAsync(final String method,
+      final Map<String, Object> params, final Class<T> resultClass,
+      final CallOptions options, final FutureCallback<T> callback) {
+    final CallFuture<T> future = new CallFuture<T>(callback);
+    final TransportRequest request = createRequest(method, params, options);
+    final AtomicReference<Future<TransportResponse>> transportFuture = new AtomicReference<Future<TransportResponse>>();
+    final Future<?> deadline = startCall(request, options);
+    request.addCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        // The future gets failed before aborting the transport, so it tells
+        // why the call got aborted.
+        if (request.isExpired()) {
+          future.failed(aborted(request, null));
+        } else {
+          future.cancel();
+        }
+        final Future<TransportResponse> currentFuture = transportFuture
+            .get();
+        if (currentFuture != null) {
+          currentFuture.cancel(true);
+        }
+        return true;
+      }
+    });
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        endCall(request, options, deadline);
+        final Future<TransportResponse> currentFuture = transportFuture
+            .get();
+        return currentFuture != null && currentFuture.cancel(true);
+      }
+    });
+    if (future.isDone()) {
+      endCall(request, options, deadline);
+      return future;
     }
-    try {
-      log.trace("Phabricator HTTP response status: " + response.getStatusLine());
-      final HttpEntity entity = response.getEntity();
-      String entityString;
+
+    final Future<TransportResponse> sentFuture = transport.sendAsync(request,
+        new FutureCallback<TransportResponse>() {
+          @Override
+          public void completed(final TransportResponse response) {
+            final Runnable parse = new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  future.completed(parseResponse(method, response,
+                      resultClass));
+                } catch (final ConduitErrorException e) {
+                  future.failed(e);
+                } catch (final ConduitException e) {
+                  future.failed(abortedOr(request, e));
+                } finally {
+                  endCall(request, options, deadline);
+                }
+              }
+            };
+            final Executor parseExecutor = config.getParseExecutor();
+            if (parseExecutor == null) {
+              parse.run();
+              return;
+            }
+            try {
+              parseExecutor.execute(parse);
+            } catch (final RejectedExecutionException e) {
+              try {
+                response.close();
+              } catch (final IOException closeException) {
+                log.debug("Could not close API response", closeException);
+              }
+              endCall(request, options, deadline);
+              future.failed(new ConduitException(
+                  "Could not hand the API response to the parse executor",
+                  e));
+            }
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            endCall(request, options, deadline);
+            if (e instanceof CallRejectedException) {
+              future.failed(((CallRejectedException) e).getReason());
+            } else {
+              future.failed(abortedOr(request, new ConduitException(
+                  "Could not execute Phabricator API call", e)));
+            }
+          }
+
+          @Override
+          public void cancelled() {
+            endCall(request, options, deadline);
+            future.cancel();
+          }
+        });
+    transportFuture.set(sentFuture);
+    if (future.isDone()) {
+      // The call got aborted while it got sent.
+      sentFuture.cancel(true);
+    }
+    return future;
+  }
+
+  /**
+   * Starts tracking a call's options and deadline
+   *
+   * @param request
+   *          The starting call
+   * @param options
+   *          The call's options. May be null.
+   * @return the task that aborts the call at its deadline, or null if the
+   *         call has no deadline
+   */
+  private Future<?> startCall(final TransportRequest request,
+      final CallOptions options) {
+    if (options == null) {
+      return null;
+    }
+    options.register(request);
+    if (!request.hasDeadline()) {
+      return null;
+    }
+    // The timer thread is shared across connections, and ends while no call
+    // has a deadline.
+    return SharedScheduler.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        log.debug("Aborting call of " + request.getMethod()
+            + " as its deadline passed");
+        request.cancel();
+      }
+    }, request.getRemainingNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stops tracking a call that is done
+   * <p/>
+   * This may get run several times for a single call.
+   */
+  private void endCall(final TransportRequest request,
+      final CallOptions options, final Future<?> deadline) {
+    if (deadline != null) {
+      deadline.cancel(false);
+    }
+    if (options != null) {
+      options.unregister(request);
+    }
+  }
+
+  /**
+   * Describes why a call got aborted
+   *
+   * @param request
+   *          The aborted call
+   * @param cause
+   *          The failure the abort caused. May be null.
+   * @return the exception to fail the call with
+   */
+  private ConduitException aborted(final TransportRequest request,
+      final Throwable cause) {
+    if (request.isExpired()) {
+      return new DeadlineExceededException(request.getMethod(),
+          request.getTimeoutMillis(), cause);
+    }
+    return new CallCancelledException(request.getMethod(), cause);
+  }
+
+  /**
+   * Describes a call's failure, with respect to aborts
+   *
+   * @param request
+   *          The failed call
+   * @param e
+   *          The call's failure
+   * @return e, if the call did not get aborted. Otherwise, an exception
+   *         describing why the call got aborted.
+   */
+  private ConduitException abortedOr(final TransportRequest request,
+      final ConduitException e) {
+    return request.isCancelled() ? aborted(request, e) : e;
+  }
+
+  /**
+   * Creates the transport request for a Conduit call
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          A map of parameters to pass to the call
+   * @param options
+   *          The options for the call. May be null.
+   * @return the request to send
+   */
+  private TransportRequest createRequest(final String method,
+      final Map<String, Object> params, final CallOptions options) {
+    final TransportRequest request = new TransportRequest(method, gson,
+        params, config.isCompressionEnabled());
+    if (options != null) {
+      request.setTimeoutMillis(options.getTimeoutMillis());
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("Calling phabricator method " + method
+          + " with the parameters " + request.getParamsJson());
+    }
+    return request;
+  }
+
+  /**
+   * Extracts the result from the response of a Conduit call
+   * <p/>
+   * The response's JSON is read as a stream, and the "result" gets bound to
+   * {@code resultClass} in the same pass. Afterwards, the response gets
+   * closed.
+   *
+   * @param method
+   *          The name of the called method
+   * @param response
+   *          The response to parse
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @return The call's result, if there has been no error
+   * @throws ConduitException
+   *           if the response could not be read, or reports an error. A
+   *           {@link ThrottledException}, if the server throttled the call.
+   */
+  private <T> T parseResponse(final String method,
+      final TransportResponse response, final Class<T> resultClass)
+      throws ConduitException {
+    log.trace("Phabricator response status: " + response.getStatusCode());
+    if (response.getStatusCode() == TOO_MANY_REQUESTS_STATUS_CODE) {
       try {
-        entityString = EntityUtils.toString(entity);
+        response.close();
       } catch (final IOException e) {
-        throw new ConduitException("Could not read the API response", e);
+        log.debug("Could not close API response", e);
       }
+      throw new ThrottledException(method);
+    }
+    Charset charset = response.getCharset();
+    if (charset == null) {
+      charset = StandardCharsets.UTF_8;
+    }
 
-      log.trace("Phabricator response " + entityString);
-      final CallResult callResult = gson.fromJson(entityString,
-          CallResult.class);
-      log.trace("callCapsule.result: " + callResult.getResult());
-      log.trace("callCapsule.error_code: " + callResult.getErrorCode());
-      log.trace("callCapsule.error_info: " + callResult.getErrorInfo());
-      if (callResult.getErrorCode() != null
-          || callResult.getErrorInfo() != null) {
-        throw new ConduitErrorException(method, callResult.getErrorCode(),
-            callResult.getErrorInfo());
+    T result = null;
+    String errorCode = null;
+    String errorInfo = null;
+    try (final JsonReader reader = new JsonReader(new InputStreamReader(
+        openContent(response), charset))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if ("result".equals(name)) {
+          result = gson.fromJson(reader, resultClass);
+        } else if ("error_code".equals(name)) {
+          errorCode = nextNullableString(reader);
+        } else if ("error_info".equals(name)) {
+          errorInfo = nextNullableString(reader);
+        } else {
+          reader.skipValue();
+        }
       }
-      return callResult.getResult();
+      reader.endObject();
+    } catch (final IOException e) {
+      throw new ConduitException("Could not read the API response", e);
+    } catch (final JsonParseException e) {
+      throw new ConduitException("Could not parse the API response", e);
+    } catch (final IllegalStateException e) {
+      // JsonReader signals unexpected tokens by IllegalStateExceptions.
+      throw new ConduitException("Could not parse the API response", e);
     } finally {
       try {
         response.close();
       } catch (final IOException e) {
-        throw new ConduitException("Could not close API response", e);
+        log.debug("Could not close API response", e);
       }
     }
+
+    log.trace("callCapsule.error_code: " + errorCode);
+    log.trace("callCapsule.error_info: " + errorInfo);
+    if (errorCode != null || errorInfo != null) {
+      throw new ConduitErrorException(method, errorCode, errorInfo);
+    }
+    return result;
+  }
+
+  /**
+   * Opens the content of a response, and decompresses it if needed
+   * <p/>
+   * Received and decoded bytes get counted while the content is read.
+   *
+   * @param response
+   *          The response to open
+   * @return stream of the response's decoded content
+   * @throws IOException
+   *           if the content could not be opened, or its encoding is not
+   *           supported
+   */
+  private InputStream openContent(final TransportResponse response)
+      throws IOException {
+    InputStream content = new CountingInputStream(response.getContent(),
+        bytesReceived);
+    final String contentEncoding = response.getContentEncoding();
+    if (contentEncoding != null) {
+      final String encoding = contentEncoding.trim()
+          .toLowerCase(Locale.ENGLISH);
+      if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+        content = new GZIPInputStream(content);
+      } else if ("deflate".equals(encoding)) {
+        content = openDeflate(content);
+      } else if (!"identity".equals(encoding)) {
+        content.close();
+        throw new IOException("Unsupported content encoding '" + encoding
+            + "'");
+      }
+    }
+    return new CountingInputStream(content, bytesDecoded);
+  }
+
+  /**
+   * Wraps a deflate encoded stream for decompression
+   * <p/>
+   * Although HTTP's deflate encoding is zlib wrapped, some servers send raw
+   * deflate data. The zlib header is checked to tell them apart.
+   *
+   * @param in
+   *          The deflate encoded stream
+   * @return stream of the decompressed data
+   * @throws IOException
+   *           if the start of the stream could not be read
+   */
+  private static InputStream openDeflate(final InputStream in)
+      throws IOException {
+    final PushbackInputStream pushbackIn = new PushbackInputStream(in, 2);
+    final int first = pushbackIn.read();
+    final int second = pushbackIn.read();
+    if (second >= 0) {
+      pushbackIn.unread(second);
+    }
+    if (first >= 0) {
+      pushbackIn.unread(first);
+    }
+    final boolean zlibWrapped = first >= 0 && second >= 0
+        && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+    final Inflater inflater = new Inflater(!zlibWrapped);
+    return new InflaterInputStream(pushbackIn, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // Inflaters that are passed in do not get ended by the stream.
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Reads a string value that may be JSON null
+   *
+   * @param reader
+   *          The reader to read the value from
+   * @return The read string, or null if the value is JSON null
+   */
+  private String nextNullableString(final JsonReader reader)
+      throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
   }
 
   /**
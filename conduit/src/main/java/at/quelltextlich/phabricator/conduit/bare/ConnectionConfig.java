@@ -0,0 +1,357 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Settings for the HTTP transport of a {@link Connection}
+ * <p/>
+ * Settings are read when the Connection spawns its HttpClient, so changing
+ * them after the first call has no effect on that Connection.
+ */
+public class ConnectionConfig {
+  private int maxTotal;
+  private int maxPerRoute;
+  private long idleTimeoutMillis;
+  private long keepAliveMillis;
+  private long timeToLiveMillis;
+  private int ioThreadCount;
+  private boolean compressionEnabled;
+  private int maxConcurrentStreams;
+  private int http2ConnectionCount;
+  private long connectTimeoutMillis;
+  private long socketTimeoutMillis;
+  private long connectionRequestTimeoutMillis;
+  private Executor parseExecutor;
+
+  /**
+   * Creates settings with defaults suitable for a single Phabricator host
+   * <p/>
+   * Defaults are 20 pooled connections (all of them usable for the single
+   * host), eviction of connections that have been idle for 30 seconds, and
+   * keep-alive of at most 60 seconds. Non-blocking calls use one I/O thread
+   * per available processor. Response compression is off. HTTP/2 transports
+   * use a single connection with up to 100 concurrent streams. Connecting
+   * times out after 10 seconds, waiting for data after 60 seconds, and
+   * waiting for a pooled connection after 30 seconds. Responses of
+   * non-blocking calls get parsed on the I/O thread that received them.
+   */
+  public ConnectionConfig() {
+    maxTotal = 20;
+    maxPerRoute = 20;
+    idleTimeoutMillis = 30000;
+    keepAliveMillis = 60000;
+    timeToLiveMillis = -1;
+    ioThreadCount = Runtime.getRuntime().availableProcessors();
+    compressionEnabled = false;
+    maxConcurrentStreams = 100;
+    http2ConnectionCount = 1;
+    connectTimeoutMillis = 10000;
+    socketTimeoutMillis = 60000;
+    connectionRequestTimeoutMillis = 30000;
+    parseExecutor = null;
+  }
+
+  /**
+   * Gets the maximum number of pooled connections
+   *
+   * @return the maximum number of pooled connections
+   */
+  public int getMaxTotal() {
+    return maxTotal;
+  }
+
+  /**
+   * Sets the maximum number of pooled connections
+   *
+   * @param maxTotal
+   *          the maximum number of pooled connections
+   */
+  public void setMaxTotal(final int maxTotal) {
+    this.maxTotal = maxTotal;
+  }
+
+  /**
+   * Gets the maximum number of pooled connections per route
+   *
+   * @return the maximum number of pooled connections per route
+   */
+  public int getMaxPerRoute() {
+    return maxPerRoute;
+  }
+
+  /**
+   * Sets the maximum number of pooled connections per route
+   * <p/>
+   * As a Connection talks to a single host, this is typically the same as
+   * {@link #getMaxTotal()}.
+   *
+   * @param maxPerRoute
+   *          the maximum number of pooled connections per route
+   */
+  public void setMaxPerRoute(final int maxPerRoute) {
+    this.maxPerRoute = maxPerRoute;
+  }
+
+  /**
+   * Gets the time after which idle pooled connections get evicted
+   *
+   * @return the idle time in milliseconds. Non-positive values mean idle
+   *         connections do not get evicted.
+   */
+  public long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  /**
+   * Sets the time after which idle pooled connections get evicted
+   *
+   * @param idleTimeoutMillis
+   *          the idle time in milliseconds. Non-positive values turn
+   *          eviction of idle connections off.
+   */
+  public void setIdleTimeoutMillis(final long idleTimeoutMillis) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Gets the maximum time to keep a connection alive between calls
+   *
+   * @return the maximum keep-alive in milliseconds. Non-positive values mean
+   *         that the server's keep-alive is used without capping it.
+   */
+  public long getKeepAliveMillis() {
+    return keepAliveMillis;
+  }
+
+  /**
+   * Sets the maximum time to keep a connection alive between calls
+   * <p/>
+   * If the server announces a shorter keep-alive, the server's value is
+   * used.
+   *
+   * @param keepAliveMillis
+   *          the maximum keep-alive in milliseconds. Non-positive values use
+   *          the server's keep-alive without capping it.
+   */
+  public void setKeepAliveMillis(final long keepAliveMillis) {
+    this.keepAliveMillis = keepAliveMillis;
+  }
+
+  /**
+   * Gets the total time to live of pooled connections
+   *
+   * @return the time to live in milliseconds. Non-positive values mean
+   *         connections live for as long as they are kept alive.
+   */
+  public long getTimeToLiveMillis() {
+    return timeToLiveMillis;
+  }
+
+  /**
+   * Sets the total time to live of pooled connections
+   *
+   * @param timeToLiveMillis
+   *          the time to live in milliseconds. Non-positive values let
+   *          connections live for as long as they are kept alive.
+   */
+  public void setTimeToLiveMillis(final long timeToLiveMillis) {
+    this.timeToLiveMillis = timeToLiveMillis;
+  }
+
+  /**
+   * Gets the number of I/O threads for non-blocking calls
+   *
+   * @return the number of I/O threads
+   */
+  public int getIoThreadCount() {
+    return ioThreadCount;
+  }
+
+  /**
+   * Sets the number of I/O threads for non-blocking calls
+   * <p/>
+   * Each I/O thread serves many in-flight calls, so a small number of threads
+   * suffices even for thousands of concurrent calls.
+   *
+   * @param ioThreadCount
+   *          the number of I/O threads
+   */
+  public void setIoThreadCount(final int ioThreadCount) {
+    this.ioThreadCount = ioThreadCount;
+  }
+
+  /**
+   * Checks whether compressed responses are requested
+   *
+   * @return true, if gzip or deflate compressed responses are requested
+   */
+  public boolean isCompressionEnabled() {
+    return compressionEnabled;
+  }
+
+  /**
+   * Sets whether compressed responses are requested
+   * <p/>
+   * If enabled, calls announce gzip and deflate support to the server, and
+   * compressed responses get decompressed while they are parsed. This trades
+   * CPU for bandwidth, which mostly pays off for large results on slow links.
+   *
+   * @param compressionEnabled
+   *          true, if compressed responses should be requested
+   */
+  public void setCompressionEnabled(final boolean compressionEnabled) {
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  /**
+   * Gets the maximum number of concurrent calls per HTTP/2 connection
+   *
+   * @return the maximum number of concurrent streams per connection
+   */
+  public int getMaxConcurrentStreams() {
+    return maxConcurrentStreams;
+  }
+
+  /**
+   * Sets the maximum number of concurrent calls per HTTP/2 connection
+   * <p/>
+   * Calls beyond this limit wait until a stream gets free. If the server
+   * announces a lower limit, the server's limit applies as well. Only
+   * {@link Http2Transport} uses this setting.
+   *
+   * @param maxConcurrentStreams
+   *          the maximum number of concurrent streams per connection
+   */
+  public void setMaxConcurrentStreams(final int maxConcurrentStreams) {
+    this.maxConcurrentStreams = maxConcurrentStreams;
+  }
+
+  /**
+   * Gets the number of HTTP/2 connections to multiplex calls over
+   *
+   * @return the number of HTTP/2 connections
+   */
+  public int getHttp2ConnectionCount() {
+    return http2ConnectionCount;
+  }
+
+  /**
+   * Sets the number of HTTP/2 connections to multiplex calls over
+   * <p/>
+   * A single connection typically suffices. More connections spread calls
+   * across load balancer backends, or lift the total number of concurrent
+   * calls beyond the server's per-connection stream limit. Only
+   * {@link Http2Transport} uses this setting.
+   *
+   * @param http2ConnectionCount
+   *          the number of HTTP/2 connections
+   */
+  public void setHttp2ConnectionCount(final int http2ConnectionCount) {
+    this.http2ConnectionCount = http2ConnectionCount;
+  }
+
+  /**
+   * Gets the time establishing a connection may take
+   *
+   * @return the connect timeout in milliseconds. Non-positive values mean no
+   *         timeout.
+   */
+  public long getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  /**
+   * Sets the time establishing a connection may take
+   *
+   * @param connectTimeoutMillis
+   *          the connect timeout in milliseconds. Non-positive values mean no
+   *          timeout.
+   */
+  public void setConnectTimeoutMillis(final long connectTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
+  /**
+   * Gets the time to wait for data from the server
+   *
+   * @return the socket timeout in milliseconds. Non-positive values mean no
+   *         timeout.
+   */
+  public long getSocketTimeoutMillis() {
+    return socketTimeoutMillis;
+  }
+
+  /**
+   * Sets the time to wait for data from the server
+   * <p/>
+   * This bounds the silence between two packets, not the call as a whole. To
+   * bound calls as a whole, use a timeout in {@link CallOptions}.
+   *
+   * @param socketTimeoutMillis
+   *          the socket timeout in milliseconds. Non-positive values mean no
+   *          timeout.
+   */
+  public void setSocketTimeoutMillis(final long socketTimeoutMillis) {
+    this.socketTimeoutMillis = socketTimeoutMillis;
+  }
+
+  /**
+   * Gets the time to wait for a pooled connection
+   *
+   * @return the timeout in milliseconds. Non-positive values mean no timeout.
+   */
+  public long getConnectionRequestTimeoutMillis() {
+    return connectionRequestTimeoutMillis;
+  }
+
+  /**
+   * Sets the time to wait for a pooled connection
+   * <p/>
+   * Calls wait for a pooled connection, if all of them are in use.
+   *
+   * @param connectionRequestTimeoutMillis
+   *          the timeout in milliseconds. Non-positive values mean no
+   *          timeout.
+   */
+  public void setConnectionRequestTimeoutMillis(
+      final long connectionRequestTimeoutMillis) {
+    this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+  }
+
+  /**
+   * Gets the executor that parses responses of non-blocking calls
+   *
+   * @return the executor, or null, if responses get parsed on the I/O thread
+   */
+  public Executor getParseExecutor() {
+    return parseExecutor;
+  }
+
+  /**
+   * Sets the executor that parses responses of non-blocking calls
+   * <p/>
+   * By default, responses get parsed on the I/O thread that received them,
+   * which keeps that thread from serving other calls meanwhile. With an
+   * executor, parsing large results does not hold up the I/O threads.
+   * Callbacks of non-blocking calls then run on the executor too.
+   *
+   * @param parseExecutor
+   *          the executor. null parses on the I/O thread.
+   */
+  public void setParseExecutor(final Executor parseExecutor) {
+    this.parseExecutor = parseExecutor;
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InputStream that adds the number of read bytes to a shared counter
+ */
+class CountingInputStream extends FilterInputStream {
+  private final AtomicLong counter;
+
+  public CountingInputStream(final InputStream in, final AtomicLong counter) {
+    super(in);
+    this.counter = counter;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int ret = super.read();
+    if (ret >= 0) {
+      counter.incrementAndGet();
+    }
+    return ret;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+    final int ret = super.read(b, off, len);
+    if (ret > 0) {
+      counter.addAndGet(ret);
+    }
+    return ret;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    final long ret = super.skip(n);
+    if (ret > 0) {
+      counter.addAndGet(ret);
+    }
+    return ret;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+}
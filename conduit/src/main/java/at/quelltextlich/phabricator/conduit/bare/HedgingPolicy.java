@@ -0,0 +1,215 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Settings for hedging calls in a {@link HedgingTransport}
+ * <p/>
+ * Only calls to read-only methods get hedged, as the server may run both
+ * copies of a hedged call. The hedge gets sent once the call took longer than
+ * a delay. The delay is either fixed, or follows a percentile of the method's
+ * recent round trips, so only the slowest calls get hedged.
+ * <p/>
+ * To keep hedges from piling up on an overloaded server, hedges are limited
+ * by a budget: each call earns a share of a hedge, and a hedge may only get
+ * sent if a whole hedge has been earned.
+ */
+public class HedgingPolicy {
+  // Read by every read-only call, while settings may change meanwhile.
+  private volatile long delayMillis;
+  private volatile double delayPercentile;
+  private volatile int windowSize;
+  private volatile int minimumCalls;
+  private volatile double budgetPercent;
+  private volatile int budgetBurst;
+  private final Set<String> readOnlyMethods;
+
+  /**
+   * Creates settings with defaults suitable for interactive use
+   * <p/>
+   * Defaults are hedging once a call took longer than 95 percent of the
+   * method's last 100 calls. Until 20 calls of a method completed, hedges
+   * get sent after 100 milliseconds. Hedges are limited to 10 percent of the
+   * calls, and at most 10 hedges may get sent in a row. The methods in
+   * {@link RetryPolicy#DEFAULT_IDEMPOTENT_METHODS} are treated as read-only.
+   */
+  public HedgingPolicy() {
+    delayMillis = 100;
+    delayPercentile = 95;
+    windowSize = 100;
+    minimumCalls = 20;
+    budgetPercent = 10;
+    budgetBurst = 10;
+    readOnlyMethods = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    readOnlyMethods.addAll(RetryPolicy.DEFAULT_IDEMPOTENT_METHODS);
+  }
+
+  /**
+   * Gets the fixed delay before a hedge gets sent
+   *
+   * @return the delay in milliseconds
+   */
+  public long getDelayMillis() {
+    return delayMillis;
+  }
+
+  /**
+   * Sets the fixed delay before a hedge gets sent
+   * <p/>
+   * This delay is used if no percentile is set, or if too few calls of the
+   * method completed to compute the percentile.
+   *
+   * @param delayMillis
+   *          the delay in milliseconds
+   */
+  public void setDelayMillis(final long delayMillis) {
+    this.delayMillis = delayMillis;
+  }
+
+  /**
+   * Gets the percentile of recent round trips to use as delay
+   *
+   * @return the percentile between 0 and 100. 0, if the fixed delay is used.
+   */
+  public double getDelayPercentile() {
+    return delayPercentile;
+  }
+
+  /**
+   * Sets the percentile of recent round trips to use as delay
+   * <p/>
+   * With a percentile of 95, hedges get sent for calls that take longer than
+   * 95 percent of the method's recent calls.
+   *
+   * @param delayPercentile
+   *          the percentile between 0 and 100. 0 uses the fixed delay.
+   */
+  public void setDelayPercentile(final double delayPercentile) {
+    this.delayPercentile = delayPercentile;
+  }
+
+  /**
+   * Gets the number of recent round trips the percentile is computed from
+   *
+   * @return the number of round trips per method
+   */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Sets the number of recent round trips the percentile is computed from
+   *
+   * @param windowSize
+   *          the number of round trips per method
+   */
+  public void setWindowSize(final int windowSize) {
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Gets the number of round trips needed to compute the percentile
+   *
+   * @return the minimum number of completed calls of a method
+   */
+  public int getMinimumCalls() {
+    return minimumCalls;
+  }
+
+  /**
+   * Sets the number of round trips needed to compute the percentile
+   *
+   * @param minimumCalls
+   *          the minimum number of completed calls of a method
+   */
+  public void setMinimumCalls(final int minimumCalls) {
+    this.minimumCalls = minimumCalls;
+  }
+
+  /**
+   * Gets the share of calls that may get hedged
+   *
+   * @return the budget in percent of the calls
+   */
+  public double getBudgetPercent() {
+    return budgetPercent;
+  }
+
+  /**
+   * Sets the share of calls that may get hedged
+   *
+   * @param budgetPercent
+   *          the budget in percent of the calls. 0 turns hedging off. 100
+   *          allows to hedge every call.
+   */
+  public void setBudgetPercent(final double budgetPercent) {
+    this.budgetPercent = budgetPercent;
+  }
+
+  /**
+   * Gets the number of hedges that may get sent in a row
+   *
+   * @return the maximum number of hedges the budget saves up
+   */
+  public int getBudgetBurst() {
+    return budgetBurst;
+  }
+
+  /**
+   * Sets the number of hedges that may get sent in a row
+   * <p/>
+   * Calls that do not need a hedge save up their share of the budget. This
+   * caps the savings, so a slow period after a quiet one cannot hedge more
+   * than that many calls in a row.
+   *
+   * @param budgetBurst
+   *          the maximum number of hedges the budget saves up
+   */
+  public void setBudgetBurst(final int budgetBurst) {
+    this.budgetBurst = budgetBurst;
+  }
+
+  /**
+   * Checks whether a method is treated as read-only
+   *
+   * @param method
+   *          The name of the method to check
+   * @return true, if calls to the method may get hedged
+   */
+  public boolean isReadOnly(final String method) {
+    return readOnlyMethods.contains(method);
+  }
+
+  /**
+   * Sets whether a method is treated as read-only
+   *
+   * @param method
+   *          The name of the method to set read-only for
+   * @param readOnly
+   *          true, if calls to the method may get hedged. false, if they may
+   *          not, as the server must not run them twice.
+   */
+  public void setReadOnly(final String method, final boolean readOnly) {
+    if (readOnly) {
+      readOnlyMethods.add(method);
+    } else {
+      readOnlyMethods.remove(method);
+    }
+  }
+}
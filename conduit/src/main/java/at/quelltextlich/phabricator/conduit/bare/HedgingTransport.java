@@ -0,0 +1,573 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that hedges slow calls to read-only methods
+ * <p/>
+ * If a call to a read-only method takes longer than a delay, a second,
+ * identical call (the hedge) gets sent. Whichever response arrives first is
+ * used, and the other call gets cancelled. This cuts the latency of calls
+ * that hit a slow web node, at the cost of some additional calls. Which
+ * methods get hedged, after which delay, and how many hedges may get sent, is
+ * decided by a {@link HedgingPolicy}.
+ * <p/>
+ * Calls to other methods pass through unchanged. Blocking calls to read-only
+ * methods stay blocking calls of the underlying transport, so responses that
+ * the underlying transport streams (E.g.: {@link ApacheTransport}) still get
+ * streamed. The original call runs on the calling thread, and only the hedge
+ * takes a thread of {@link CallExecutors#getSharedCallExecutor()}. If the
+ * hedge wins, the original call gets aborted, and the caller gets the hedge's
+ * response. Non-blocking calls get hedged with non-blocking calls.
+ */
+public class HedgingTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private final Transport transport;
+  private final HedgingPolicy policy;
+  private final ScheduledExecutorService scheduler;
+  private volatile boolean closed;
+  private final ConcurrentMap<String, LatencyWindow> latencies;
+
+  private final Object budgetLock;
+  private double budget;
+
+  private final AtomicLong calls;
+  private final AtomicLong hedgedCalls;
+  private final AtomicLong hedgeWins;
+  private final AtomicLong skippedHedges;
+
+  public HedgingTransport(final Transport transport) {
+    this(transport, new HedgingPolicy());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   * @param policy
+   *          The policy deciding which calls get hedged
+   */
+  public HedgingTransport(final Transport transport, final HedgingPolicy policy) {
+    this.transport = transport;
+    this.policy = policy;
+    scheduler = SharedScheduler.get();
+    closed = false;
+    latencies = new ConcurrentHashMap<String, LatencyWindow>();
+    budgetLock = new Object();
+    budget = 0;
+    calls = new AtomicLong();
+    hedgedCalls = new AtomicLong();
+    hedgeWins = new AtomicLong();
+    skippedHedges = new AtomicLong();
+  }
+
+  /**
+   * Gets the policy deciding which calls get hedged
+   *
+   * @return the transport's hedging policy
+   */
+  public HedgingPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Gets the number of calls to read-only methods
+   *
+   * @return the number of calls that could have been hedged so far
+   */
+  public long getCalls() {
+    return calls.get();
+  }
+
+  /**
+   * Gets the number of hedges that got sent
+   *
+   * @return the number of hedged calls so far
+   */
+  public long getHedgedCalls() {
+    return hedgedCalls.get();
+  }
+
+  /**
+   * Gets the number of hedges that answered before the original call
+   *
+   * @return the number of calls that the hedge sped up so far
+   */
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  /**
+   * Gets the number of hedges that did not get sent, as the budget was
+   * exhausted
+   *
+   * @return the number of skipped hedges so far
+   */
+  public long getSkippedHedges() {
+    return skippedHedges.get();
+  }
+
+  /**
+   * Gets the delay before calls of a method get hedged
+   *
+   * @param method
+   *          The name of the method to get the delay for
+   * @return the delay in milliseconds
+   */
+  public long getHedgeDelayMillis(final String method) {
+    return TimeUnit.NANOSECONDS.toMillis(getHedgeDelayNanos(method));
+  }
+
+  /**
+   * Closes the transport, and the transport it hedges
+   * <p/>
+   * Calls that wait for their hedge go on without one.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    transport.close();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    if (!policy.isReadOnly(request.getMethod())) {
+      return transport.send(request);
+    }
+
+    final HedgedCall call = hedge(request, null, true);
+    final Future<TransportResponse> future = call.future;
+    final Cancellable abort = new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return future.cancel(true);
+      }
+    };
+    request.addCancellable(abort);
+    try {
+      call.runOriginal();
+      return future.get();
+    } catch (final InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for response", e);
+    } catch (final CancellationException e) {
+      throw new IOException("Call has been cancelled", e);
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Could not send request", cause);
+    } finally {
+      request.removeCancellable(abort);
+    }
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    if (!policy.isReadOnly(request.getMethod())) {
+      return transport.sendAsync(request, callback);
+    }
+    return hedge(request, callback, false).future;
+  }
+
+  /**
+   * Sends a call to a read-only method, and hedges it if it is slow
+   *
+   * @param request
+   *          The call to send
+   * @param callback
+   *          The callback to pass the first response to
+   * @param blocking
+   *          true, if the call and its hedge get sent as blocking calls. The
+   *          original call then has to get run through
+   *          {@link HedgedCall#runOriginal()}. false, if they get sent as
+   *          non-blocking calls.
+   * @return the hedged call, whose future gets the call's first response
+   */
+  private HedgedCall hedge(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback, final boolean blocking) {
+    final String method = request.getMethod();
+    calls.incrementAndGet();
+    earnBudget();
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final HedgedCall call = new HedgedCall(request, future, blocking);
+    future.setCancellable(call);
+    call.attempt(false);
+    if (!future.isDone()) {
+      call.hedgeTask = scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          call.hedge();
+        }
+      }, getHedgeDelayNanos(method), TimeUnit.NANOSECONDS);
+      if (future.isDone()) {
+        call.cancel();
+      }
+    }
+    return call;
+  }
+
+  private long getHedgeDelayNanos(final String method) {
+    final long fixedDelay = TimeUnit.MILLISECONDS.toNanos(policy
+        .getDelayMillis());
+    final double percentile = policy.getDelayPercentile();
+    if (percentile <= 0) {
+      return fixedDelay;
+    }
+    final LatencyWindow window = latencies.get(method);
+    if (window == null) {
+      return fixedDelay;
+    }
+    final long delay = window.getPercentile(percentile,
+        policy.getMinimumCalls());
+    return (delay < 0) ? fixedDelay : delay;
+  }
+
+  private void recordLatency(final String method, final long roundTripNanos) {
+    LatencyWindow window = latencies.get(method);
+    if (window == null) {
+      final LatencyWindow newWindow = new LatencyWindow(
+          policy.getWindowSize());
+      window = latencies.putIfAbsent(method, newWindow);
+      if (window == null) {
+        window = newWindow;
+      }
+    }
+    window.record(roundTripNanos);
+  }
+
+  private void earnBudget() {
+    synchronized (budgetLock) {
+      budget = Math.min(policy.getBudgetBurst(), budget
+          + policy.getBudgetPercent() / 100);
+    }
+  }
+
+  private boolean spendBudget() {
+    synchronized (budgetLock) {
+      if (budget < 1) {
+        return false;
+      }
+      budget--;
+      return true;
+    }
+  }
+
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * The most recent round trips of a method
+   */
+  private static class LatencyWindow {
+    private final long[] roundTrips;
+    private int count;
+    private int next;
+
+    public LatencyWindow(final int size) {
+      roundTrips = new long[Math.max(1, size)];
+      count = 0;
+      next = 0;
+    }
+
+    public synchronized void record(final long roundTripNanos) {
+      roundTrips[next] = roundTripNanos;
+      next = (next + 1) % roundTrips.length;
+      if (count < roundTrips.length) {
+        count++;
+      }
+    }
+
+    /**
+     * Gets a percentile of the recorded round trips
+     *
+     * @return the percentile in nanoseconds, or -1 if fewer than
+     *         minimumCalls round trips have been recorded
+     */
+    public long getPercentile(final double percentile, final int minimumCalls) {
+      final long[] sorted;
+      synchronized (this) {
+        if (count == 0 || count < minimumCalls) {
+          return -1;
+        }
+        sorted = Arrays.copyOf(roundTrips, count);
+      }
+      Arrays.sort(sorted);
+      final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+  }
+
+  /**
+   * A copy of a call, that gets sent as blocking call
+   * <p/>
+   * Each copy gets a request of its own, so cancelling the copy aborts its
+   * blocking call, but not the other copy's.
+   */
+  private class BlockingAttempt implements Runnable {
+    private final TransportRequest attemptRequest;
+    private final CallFuture<TransportResponse> attemptFuture;
+
+    public BlockingAttempt(final TransportRequest request,
+        final FutureCallback<TransportResponse> attemptCallback) {
+      attemptRequest = request.copy();
+      attemptFuture = new CallFuture<TransportResponse>(attemptCallback);
+      attemptFuture.setCancellable(new Cancellable() {
+        @Override
+        public boolean cancel() {
+          attemptRequest.cancel();
+          return true;
+        }
+      });
+    }
+
+    @Override
+    public void run() {
+      if (attemptFuture.isDone()) {
+        return;
+      }
+      try {
+        final TransportResponse response = transport.send(attemptRequest);
+        if (!attemptFuture.completed(response)) {
+          closeQuietly(response);
+        }
+      } catch (final IOException e) {
+        attemptFuture.failed(e);
+      } catch (final RuntimeException e) {
+        attemptFuture.failed(e);
+      }
+    }
+  }
+
+  /**
+   * A call, and its hedge
+   */
+  private class HedgedCall implements Cancellable {
+    private final TransportRequest request;
+    private final CallFuture<TransportResponse> future;
+    private final boolean blocking;
+    private final List<Future<TransportResponse>> attempts;
+    private volatile Future<?> hedgeTask;
+    private volatile BlockingAttempt original;
+    private int pending;
+    private volatile Exception failure;
+    private final AtomicBoolean answered;
+    private final long start;
+
+    public HedgedCall(final TransportRequest request,
+        final CallFuture<TransportResponse> future, final boolean blocking) {
+      this.request = request;
+      this.future = future;
+      this.blocking = blocking;
+      attempts = new ArrayList<Future<TransportResponse>>(2);
+      pending = 0;
+      failure = null;
+      answered = new AtomicBoolean(false);
+      start = System.nanoTime();
+    }
+
+    /**
+     * Runs the original blocking call on the calling thread
+     * <p/>
+     * This returns once the original call got its response, or failed, or
+     * got aborted as the hedge won.
+     */
+    public void runOriginal() {
+      final BlockingAttempt currentOriginal = original;
+      if (currentOriginal != null) {
+        original = null;
+        currentOriginal.run();
+      }
+    }
+
+    /**
+     * Sends the hedge, if the call is still in flight, and the budget allows
+     */
+    public void hedge() {
+      synchronized (this) {
+        // Once the transport got closed, calls go on without a hedge.
+        if (future.isDone() || pending == 0 || closed) {
+          return;
+        }
+      }
+      if (!spendBudget()) {
+        skippedHedges.incrementAndGet();
+        return;
+      }
+      hedgedCalls.incrementAndGet();
+      log.debug("Hedging call of " + request.getMethod());
+      attempt(true);
+    }
+
+    /**
+     * Sends a copy of the call
+     * <p/>
+     * For blocking calls, the hedge gets sent on a thread of the shared
+     * executor, while the original call only gets prepared, and has to get
+     * run through {@link #runOriginal()}.
+     *
+     * @param isHedge
+     *          true, if the copy is the hedge. false, if it is the original
+     *          call.
+     */
+    public void attempt(final boolean isHedge) {
+      synchronized (this) {
+        pending++;
+      }
+      final FutureCallback<TransportResponse> attemptCallback = new FutureCallback<TransportResponse>() {
+        @Override
+        public void completed(final TransportResponse response) {
+          if (!answered.compareAndSet(false, true)) {
+            closeQuietly(response);
+            return;
+          }
+          // Account before handing out the response, so the caller sees
+          // up to date metrics. The round trip counts from the start of the
+          // original call, even if the hedge won. Otherwise, winning hedges
+          // would record their short round trips in place of the slow
+          // original's, and pull the hedge delay down further with each win.
+          recordLatency(request.getMethod(), System.nanoTime() - start);
+          if (isHedge) {
+            hedgeWins.incrementAndGet();
+          }
+          if (!future.completed(response)) {
+            closeQuietly(response);
+          }
+          cancel();
+        }
+
+        @Override
+        public void failed(final Exception e) {
+          if (lastOneOut(e)) {
+            future.failed(failure);
+          }
+        }
+
+        @Override
+        public void cancelled() {
+          if (lastOneOut(null)) {
+            if (failure == null) {
+              future.cancel();
+            } else {
+              future.failed(failure);
+            }
+          }
+        }
+      };
+      final BlockingAttempt blockingAttempt;
+      final Future<TransportResponse> attempt;
+      if (blocking) {
+        blockingAttempt = new BlockingAttempt(request, attemptCallback);
+        attempt = blockingAttempt.attemptFuture;
+      } else {
+        blockingAttempt = null;
+        attempt = transport.sendAsync(request, attemptCallback);
+      }
+      synchronized (this) {
+        attempts.add(attempt);
+      }
+      // If the call completed while this copy got sent, this copy is not
+      // needed anymore.
+      if (future.isDone()) {
+        attempt.cancel(true);
+      }
+      if (blockingAttempt != null) {
+        if (isHedge) {
+          try {
+            CallExecutors.getSharedCallExecutor().execute(blockingAttempt);
+          } catch (final RejectedExecutionException e) {
+            blockingAttempt.attemptFuture.failed(e);
+          }
+        } else {
+          original = blockingAttempt;
+        }
+      }
+    }
+
+    /**
+     * Accounts for a copy that did not answer
+     *
+     * @param e
+     *          The copy's failure, or null if it got cancelled
+     * @return true, if no other copy is in flight, and the call has to end.
+     */
+    private boolean lastOneOut(final Exception e) {
+      synchronized (this) {
+        pending--;
+        if (failure == null) {
+          failure = e;
+        }
+        if (pending > 0) {
+          return false;
+        }
+      }
+      // Hedges are no retries. With no copy in flight, the call fails right
+      // away instead of waiting for its hedge.
+      final Future<?> currentHedgeTask = hedgeTask;
+      if (currentHedgeTask != null) {
+        currentHedgeTask.cancel(false);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean cancel() {
+      final Future<?> currentHedgeTask = hedgeTask;
+      if (currentHedgeTask != null) {
+        currentHedgeTask.cancel(false);
+      }
+      final List<Future<TransportResponse>> currentAttempts;
+      synchronized (this) {
+        currentAttempts = new ArrayList<Future<TransportResponse>>(attempts);
+      }
+      for (final Future<TransportResponse> attempt : currentAttempts) {
+        attempt.cancel(true);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,552 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequests;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.async.MinimalH2AsyncClient;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that multiplexes calls over HTTP/2 connections
+ * <p/>
+ * Calls are sent as concurrent streams over a fixed number of HTTP/2
+ * connections (see {@link ConnectionConfig#getHttp2ConnectionCount()}). Each
+ * connection carries at most
+ * {@link ConnectionConfig#getMaxConcurrentStreams()} calls at a time. Calls
+ * beyond that wait in a queue until a stream gets free, so a burst of calls
+ * never opens additional connections.
+ * <p/>
+ * For {@code https} base urls, HTTP/2 gets negotiated through ALPN. For
+ * {@code http} base urls, HTTP/2 is spoken right away (prior knowledge), so
+ * the server has to support cleartext HTTP/2. There is no fallback to
+ * HTTP/1.1; use an {@link ApacheTransport} for servers without HTTP/2.
+ * <p/>
+ * Request and response bodies are buffered in memory, as HTTP/2 streams are
+ * served by the connection's I/O thread, which must not block on the caller.
+ */
+public class Http2Transport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private final String apiUrlBase;
+  private final ConnectionConfig config;
+  private final Queue<PendingCall> pendingCalls;
+  private final AtomicInteger activeStreams;
+
+  // Starting the lanes may take a while. Unlike waiting on a monitor, waiting
+  // on a Lock does not pin virtual threads to their carrier thread.
+  private final Lock clientLock;
+  private volatile List<Lane> lanes;
+  private volatile boolean closed;
+
+  public Http2Transport(final String baseUrl) {
+    this(baseUrl, new ConnectionConfig());
+  }
+
+  public Http2Transport(final String baseUrl, final ConnectionConfig config) {
+    apiUrlBase = baseUrl.replaceAll("/+$", "") + "/api/";
+    this.config = config;
+    pendingCalls = new ConcurrentLinkedQueue<PendingCall>();
+    activeStreams = new AtomicInteger();
+    clientLock = new ReentrantLock();
+    lanes = null;
+    closed = false;
+  }
+
+  /**
+   * Gets the number of calls that are currently sent as HTTP/2 streams
+   *
+   * @return the number of active streams across all connections
+   */
+  public int getActiveStreams() {
+    return activeStreams.get();
+  }
+
+  /**
+   * Gets the number of calls that wait for a free stream
+   *
+   * @return the number of queued calls
+   */
+  public int getPendingCalls() {
+    return pendingCalls.size();
+  }
+
+  /**
+   * Gives the cached, started lanes
+   * <p/>
+   * If no lanes exist yet, they get spawned and started. Concurrent callers
+   * get the same lanes.
+   *
+   * @return the cached lanes
+   * @throws IOException
+   *           if the transport has already been closed
+   */
+  private List<Lane> getLanes() throws IOException {
+    List<Lane> ret = lanes;
+    if (ret == null) {
+      clientLock.lock();
+      try {
+        if (closed) {
+          throw new IOException("Transport has already been closed");
+        }
+        ret = lanes;
+        if (ret == null) {
+          log.trace("Creating new HTTP/2 client connections");
+          ret = createLanes();
+          lanes = ret;
+        }
+      } finally {
+        clientLock.unlock();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Spawns and starts one lane per configured HTTP/2 connection
+   *
+   * @return the started lanes
+   */
+  private List<Lane> createLanes() {
+    final H2Config h2Config = H2Config.custom().setPushEnabled(false)
+        .setMaxConcurrentStreams(config.getMaxConcurrentStreams()).build();
+    // Each client holds a single connection per host, so each lane gets its
+    // own client. One I/O thread per connection suffices, as the connection
+    // is served sequentially anyways.
+    final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+        .setIoThreadCount(1).build();
+
+    final int count = Math.max(1, config.getHttp2ConnectionCount());
+    final List<Lane> ret = new ArrayList<Lane>(count);
+    for (int i = 0; i < count; i++) {
+      final MinimalH2AsyncClient client = HttpAsyncClients.createHttp2Minimal(
+          h2Config, ioReactorConfig);
+      client.start();
+      ret.add(new Lane(client, Math.max(1, config.getMaxConcurrentStreams())));
+    }
+    return ret;
+  }
+
+  /**
+   * Closes the transport and its HTTP/2 connections
+   * <p/>
+   * Queued calls fail right away. Calls that are in progress while closing
+   * may fail. Calls after closing fail with an IOException.
+   */
+  @Override
+  public void close() {
+    final List<Lane> closingLanes;
+    clientLock.lock();
+    try {
+      closed = true;
+      closingLanes = lanes;
+      lanes = null;
+    } finally {
+      clientLock.unlock();
+    }
+    PendingCall call;
+    while ((call = pendingCalls.poll()) != null) {
+      call.future.failed(new IOException("Transport has been closed"));
+    }
+    if (closingLanes != null) {
+      log.trace("Closing HTTP/2 client connections");
+      for (final Lane lane : closingLanes) {
+        lane.client.close(CloseMode.GRACEFUL);
+      }
+    }
+  }
+
+  /**
+   * Sends a call, and waits for its response
+   * <p/>
+   * This must not get called from the transport's own I/O threads (E.g.: from
+   * a callback of a non-blocking call, if no parse executor is set), as the
+   * response would have to get received by the very thread that waits for
+   * it.
+   *
+   * @throws IOException
+   *           if sending the call failed, or the calling thread is an I/O
+   *           thread of this transport
+   */
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    if (isIoThread()) {
+      throw new IOException("Blocking calls on an I/O thread of the HTTP/2 "
+          + "transport would deadlock. Use a non-blocking call, or set a "
+          + "parse executor");
+    }
+    final Future<TransportResponse> future = sendAsync(request, null);
+    final Cancellable abort = new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return future.cancel(true);
+      }
+    };
+    request.addCancellable(abort);
+    try {
+      return future.get();
+    } catch (final InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for response", e);
+    } catch (final CancellationException e) {
+      throw new IOException("Call has been cancelled", e);
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Could not send request", cause);
+    } finally {
+      request.removeCancellable(abort);
+    }
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final List<Lane> currentLanes;
+    final SimpleHttpRequest httpRequest;
+    try {
+      currentLanes = getLanes();
+      httpRequest = createRequest(request);
+    } catch (final IOException e) {
+      future.failed(e);
+      return future;
+    }
+
+    final PendingCall call = new PendingCall(httpRequest, future);
+    future.setCancellable(call);
+    pendingCalls.add(call);
+    if (future.isDone()) {
+      // The call got cancelled before it got queued, so cancelling missed it.
+      pendingCalls.remove(call);
+    }
+    dispatchPendingCalls(currentLanes);
+    return future;
+  }
+
+  /**
+   * Checks whether the calling thread is an I/O thread of this transport
+   *
+   * @return true, if the calling thread serves one of the lanes
+   */
+  private boolean isIoThread() {
+    final List<Lane> currentLanes = lanes;
+    if (currentLanes != null) {
+      final Thread current = Thread.currentThread();
+      for (final Lane lane : currentLanes) {
+        if (lane.ioThread == current) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends queued calls for as long as streams are free
+   * <p/>
+   * This gets run whenever a call gets queued and whenever a stream gets
+   * free, so no call stays queued while a stream is free.
+   *
+   * @param currentLanes
+   *          The lanes to send the calls over
+   */
+  private void dispatchPendingCalls(final List<Lane> currentLanes) {
+    while (!pendingCalls.isEmpty()) {
+      final Lane lane = acquireLane(currentLanes);
+      if (lane == null) {
+        // All streams are busy. The call that frees the next stream will
+        // pick up the queue.
+        return;
+      }
+      final PendingCall call = pendingCalls.poll();
+      if (call == null || call.future.isDone()) {
+        // Another thread took the call, or it got cancelled while queued.
+        lane.release();
+        continue;
+      }
+      dispatch(lane, call, currentLanes);
+    }
+  }
+
+  /**
+   * Reserves a stream on the lane with the most free streams
+   *
+   * @param currentLanes
+   *          The lanes to pick from
+   * @return the lane with the reserved stream, or null if all streams are
+   *         busy
+   */
+  private Lane acquireLane(final List<Lane> currentLanes) {
+    Lane best = null;
+    int bestPermits = 0;
+    for (final Lane lane : currentLanes) {
+      final int permits = lane.streams.availablePermits();
+      if (permits > bestPermits) {
+        best = lane;
+        bestPermits = permits;
+      }
+    }
+    if (best != null && best.streams.tryAcquire()) {
+      return best;
+    }
+    // Free streams got taken concurrently. Take whatever is left.
+    for (final Lane lane : currentLanes) {
+      if (lane.streams.tryAcquire()) {
+        return lane;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sends a call over a lane, on which a stream has been reserved
+   *
+   * @param lane
+   *          The lane to send the call over
+   * @param call
+   *          The call to send
+   * @param currentLanes
+   *          All lanes, to dispatch queued calls once the stream is free
+   */
+  private void dispatch(final Lane lane, final PendingCall call,
+      final List<Lane> currentLanes) {
+    activeStreams.incrementAndGet();
+    final org.apache.hc.core5.concurrent.FutureCallback<SimpleHttpResponse> streamCallback = new org.apache.hc.core5.concurrent.FutureCallback<SimpleHttpResponse>() {
+      @Override
+      public void completed(final SimpleHttpResponse response) {
+        lane.ioThread = Thread.currentThread();
+        releaseStream(lane, currentLanes);
+        call.future.completed(new Http2TransportResponse(response));
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        releaseStream(lane, currentLanes);
+        if (e instanceof IOException) {
+          call.future.failed(e);
+        } else {
+          call.future.failed(new IOException("Could not send request", e));
+        }
+      }
+
+      @Override
+      public void cancelled() {
+        releaseStream(lane, currentLanes);
+        call.future.cancel();
+      }
+    };
+    try {
+      call.setStreamFuture(lane.client.execute(call.httpRequest,
+          streamCallback));
+    } catch (final IllegalStateException e) {
+      // The client refuses calls once it got closed. This happens, if the
+      // transport got closed while the call was about to start.
+      releaseStream(lane, currentLanes);
+      call.future.failed(new IOException("Transport has been closed", e));
+    }
+  }
+
+  /**
+   * Frees a stream, and hands it to the next queued call
+   */
+  private void releaseStream(final Lane lane, final List<Lane> currentLanes) {
+    activeStreams.decrementAndGet();
+    lane.release();
+    dispatchPendingCalls(currentLanes);
+  }
+
+  /**
+   * Creates the HTTP request for a Conduit call
+   *
+   * @param request
+   *          The call to create the HTTP request for
+   * @return the request to send
+   * @throws IOException
+   *           if the body could not be encoded
+   */
+  private SimpleHttpRequest createRequest(final TransportRequest request)
+      throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    request.writeBody(body);
+
+    final SimpleHttpRequest httpRequest = SimpleHttpRequests.post(apiUrlBase
+        + request.getMethod());
+    httpRequest.setBody(body.toByteArray(),
+        ContentType.parse(TransportRequest.CONTENT_TYPE));
+    httpRequest.setConfig(RequestConfig
+        .custom()
+        .setConnectTimeout(
+            toTimeoutMillis(request, config.getConnectTimeoutMillis()),
+            TimeUnit.MILLISECONDS)
+        .setResponseTimeout(
+            toTimeoutMillis(request, config.getSocketTimeoutMillis()),
+            TimeUnit.MILLISECONDS).build());
+    if (request.isCompressionAccepted()) {
+      httpRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+    }
+    return httpRequest;
+  }
+
+  /**
+   * Caps a configured timeout by the call's deadline
+   *
+   * @param request
+   *          The call to cap the timeout for
+   * @param timeoutMillis
+   *          The configured timeout in milliseconds. Non-positive values mean
+   *          no timeout.
+   * @return the timeout in milliseconds, where 0 means no timeout
+   */
+  private static long toTimeoutMillis(final TransportRequest request,
+      final long timeoutMillis) {
+    return Math.max(0, request.capTimeoutMillis(timeoutMillis));
+  }
+
+  /**
+   * A single HTTP/2 connection, along with its free streams
+   */
+  private static class Lane {
+    private final MinimalH2AsyncClient client;
+    private final Semaphore streams;
+    // The thread that serves the lane's connection. It is known once the
+    // first response on the lane arrives, which is before the callbacks of
+    // responses run on it. Failures and cancellations do not tell, as they
+    // may get reported on the calling thread.
+    private volatile Thread ioThread;
+
+    public Lane(final MinimalH2AsyncClient client, final int maxStreams) {
+      this.client = client;
+      this.streams = new Semaphore(maxStreams);
+    }
+
+    public void release() {
+      streams.release();
+    }
+  }
+
+  /**
+   * A call that is queued for, or sent as, an HTTP/2 stream
+   */
+  private class PendingCall implements Cancellable {
+    private final SimpleHttpRequest httpRequest;
+    private final CallFuture<TransportResponse> future;
+    private volatile Future<SimpleHttpResponse> streamFuture;
+
+    public PendingCall(final SimpleHttpRequest httpRequest,
+        final CallFuture<TransportResponse> future) {
+      this.httpRequest = httpRequest;
+      this.future = future;
+    }
+
+    public void setStreamFuture(final Future<SimpleHttpResponse> streamFuture) {
+      this.streamFuture = streamFuture;
+      if (future.isCancelled()) {
+        // The call got cancelled while it was about to start.
+        streamFuture.cancel(true);
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      final Future<SimpleHttpResponse> current = streamFuture;
+      if (current != null) {
+        current.cancel(true);
+      }
+      // Queued calls leave the queue right away, so they neither get
+      // counted as pending, nor hold on to their request body.
+      pendingCalls.remove(this);
+      return true;
+    }
+  }
+
+  /**
+   * TransportResponse backed by a buffered HTTP/2 response
+   */
+  private static class Http2TransportResponse implements TransportResponse {
+    private final SimpleHttpResponse response;
+
+    public Http2TransportResponse(final SimpleHttpResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return response.getCode();
+    }
+
+    @Override
+    public String getContentEncoding() {
+      final Header header = response
+          .getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+      return (header == null) ? null : header.getValue();
+    }
+
+    @Override
+    public Charset getCharset() {
+      final ContentType contentType = response.getContentType();
+      return (contentType == null) ? null : contentType.getCharset();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      final byte[] body = response.getBodyBytes();
+      if (body == null) {
+        throw new IOException("Response has no content");
+      }
+      return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+/**
+ * Settings for spreading calls over endpoints in a
+ * {@link LoadBalancingTransport}
+ * <p/>
+ * Each call goes to the better of two randomly picked healthy endpoints. An
+ * endpoint is better, if its recent latency times its calls in flight is
+ * lower. The recent latency is an exponentially weighted moving average that
+ * follows latency spikes right away, and lets them fade out over the decay
+ * time.
+ * <p/>
+ * Endpoints whose calls fail in a row become unhealthy and get no calls.
+ * Every endpoint gets probed with {@code conduit.ping} periodically, and an
+ * unhealthy endpoint becomes healthy again once its probes pass in a row.
+ */
+public class LoadBalancingPolicy {
+  // Read by calling threads and the probe timer, so settings are volatile.
+  private volatile long decayMillis;
+  private volatile long probeIntervalMillis;
+  private volatile long probeTimeoutMillis;
+  private volatile int unhealthyThreshold;
+  private volatile int healthyThreshold;
+
+  /**
+   * Creates settings with defaults suitable for a handful of web nodes
+   * <p/>
+   * Defaults are a decay time of 10 seconds, probing every 5 seconds with a
+   * timeout of 2 seconds, dropping endpoints after 3 failures in a row, and
+   * taking them back after 2 passed probes in a row.
+   */
+  public LoadBalancingPolicy() {
+    decayMillis = 10000;
+    probeIntervalMillis = 5000;
+    probeTimeoutMillis = 2000;
+    unhealthyThreshold = 3;
+    healthyThreshold = 2;
+  }
+
+  /**
+   * Gets the time over which latency spikes fade out
+   *
+   * @return the decay time in milliseconds
+   */
+  public long getDecayMillis() {
+    return decayMillis;
+  }
+
+  /**
+   * Sets the time over which latency spikes fade out
+   * <p/>
+   * Shorter times let endpoints that got slow for a moment win back calls
+   * sooner. Longer times keep calls away from them for longer.
+   *
+   * @param decayMillis
+   *          the decay time in milliseconds
+   */
+  public void setDecayMillis(final long decayMillis) {
+    this.decayMillis = decayMillis;
+  }
+
+  /**
+   * Gets the time between probes of an endpoint
+   *
+   * @return the probe interval in milliseconds
+   */
+  public long getProbeIntervalMillis() {
+    return probeIntervalMillis;
+  }
+
+  /**
+   * Sets the time between probes of an endpoint
+   *
+   * @param probeIntervalMillis
+   *          the probe interval in milliseconds. Non-positive values turn
+   *          probing off, so unhealthy endpoints do not come back.
+   */
+  public void setProbeIntervalMillis(final long probeIntervalMillis) {
+    this.probeIntervalMillis = probeIntervalMillis;
+  }
+
+  /**
+   * Gets the time a probe may take before it counts as failed
+   *
+   * @return the probe timeout in milliseconds
+   */
+  public long getProbeTimeoutMillis() {
+    return probeTimeoutMillis;
+  }
+
+  /**
+   * Sets the time a probe may take before it counts as failed
+   *
+   * @param probeTimeoutMillis
+   *          the probe timeout in milliseconds
+   */
+  public void setProbeTimeoutMillis(final long probeTimeoutMillis) {
+    this.probeTimeoutMillis = probeTimeoutMillis;
+  }
+
+  /**
+   * Gets the number of failures in a row that make an endpoint unhealthy
+   *
+   * @return the number of failed calls or probes
+   */
+  public int getUnhealthyThreshold() {
+    return unhealthyThreshold;
+  }
+
+  /**
+   * Sets the number of failures in a row that make an endpoint unhealthy
+   * <p/>
+   * Both failed calls and failed probes count. Calls fail, if they could not
+   * be sent, or got answered with a status code of 500 or above.
+   *
+   * @param unhealthyThreshold
+   *          the number of failed calls or probes
+   */
+  public void setUnhealthyThreshold(final int unhealthyThreshold) {
+    this.unhealthyThreshold = unhealthyThreshold;
+  }
+
+  /**
+   * Gets the number of passed probes in a row that make an unhealthy
+   * endpoint healthy again
+   *
+   * @return the number of passed probes
+   */
+  public int getHealthyThreshold() {
+    return healthyThreshold;
+  }
+
+  /**
+   * Sets the number of passed probes in a row that make an unhealthy
+   * endpoint healthy again
+   *
+   * @param healthyThreshold
+   *          the number of passed probes
+   */
+  public void setHealthyThreshold(final int healthyThreshold) {
+    this.healthyThreshold = healthyThreshold;
+  }
+}
@@ -0,0 +1,624 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+import com.google.gson.Gson;
+
+/**
+ * Transport that spreads calls over several endpoints
+ * <p/>
+ * Each endpoint is a transport of its own, typically an
+ * {@link ApacheTransport} for one of several web nodes of the same
+ * Phabricator instance. Calls go to the better of two randomly picked
+ * healthy endpoints, which keeps load away from slow and busy endpoints
+ * without herding all calls onto a single one. Endpoints whose calls keep
+ * failing drop out, and come back once they pass {@code conduit.ping}
+ * probes. How endpoints get picked and probed is decided by a
+ * {@link LoadBalancingPolicy}.
+ * <p/>
+ * If no endpoint is healthy, calls get spread over all endpoints, as failing
+ * calls are no worse than rejecting them.
+ * <p/>
+ * A call stays in flight at its endpoint until its response got closed, and
+ * its round trip includes reading the response.
+ */
+public class LoadBalancingTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private static final String PROBE_METHOD = "conduit.ping";
+
+  private final List<Endpoint> endpoints;
+  private final LoadBalancingPolicy policy;
+  private final Gson gson;
+  private final ScheduledExecutorService scheduler;
+  private volatile Future<?> probeTask;
+  private volatile boolean closed;
+  private final AtomicLong panicCalls;
+
+  public LoadBalancingTransport(final List<? extends Transport> endpoints) {
+    this(endpoints, new LoadBalancingPolicy());
+  }
+
+  /**
+   * @param endpoints
+   *          The transports to spread calls over. Closing this transport
+   *          closes them as well.
+   * @param policy
+   *          The policy deciding how endpoints get picked and probed
+   */
+  public LoadBalancingTransport(final List<? extends Transport> endpoints,
+      final LoadBalancingPolicy policy) {
+    if (endpoints.isEmpty()) {
+      throw new IllegalArgumentException("No endpoints given");
+    }
+    final List<Endpoint> wrapped = new ArrayList<Endpoint>(endpoints.size());
+    for (final Transport transport : endpoints) {
+      wrapped.add(new Endpoint(wrapped.size(), transport));
+    }
+    this.endpoints = Collections.unmodifiableList(wrapped);
+    this.policy = policy;
+    gson = new Gson();
+    scheduler = SharedScheduler.get();
+    closed = false;
+    panicCalls = new AtomicLong();
+    scheduleProbes();
+  }
+
+  /**
+   * Gets the policy deciding how endpoints get picked and probed
+   *
+   * @return the transport's load balancing policy
+   */
+  public LoadBalancingPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Gets the number of endpoints
+   *
+   * @return the number of endpoints calls get spread over
+   */
+  public int getEndpointCount() {
+    return endpoints.size();
+  }
+
+  /**
+   * Checks whether an endpoint gets calls
+   *
+   * @param index
+   *          The index of the endpoint, in the order they have been given
+   * @return true, if the endpoint is healthy
+   */
+  public boolean isHealthy(final int index) {
+    return endpoints.get(index).isHealthy();
+  }
+
+  /**
+   * Gets an endpoint's recent latency
+   *
+   * @param index
+   *          The index of the endpoint, in the order they have been given
+   * @return the moving average of the endpoint's round trips in
+   *         milliseconds, or 0 if no call or probe completed yet
+   */
+  public long getLatencyMillis(final int index) {
+    return TimeUnit.NANOSECONDS.toMillis(endpoints.get(index)
+        .getLatencyNanos());
+  }
+
+  /**
+   * Gets the number of calls that went to an endpoint
+   *
+   * @param index
+   *          The index of the endpoint, in the order they have been given
+   * @return the number of calls to the endpoint so far, not counting probes
+   */
+  public long getCalls(final int index) {
+    return endpoints.get(index).getCalls();
+  }
+
+  /**
+   * Gets the number of calls in flight at an endpoint
+   *
+   * @param index
+   *          The index of the endpoint, in the order they have been given
+   * @return the number of calls to the endpoint, whose responses have not
+   *         been closed yet
+   */
+  public int getInFlight(final int index) {
+    return endpoints.get(index).getInFlight();
+  }
+
+  /**
+   * Gets the number of calls that got sent while no endpoint was healthy
+   *
+   * @return the number of calls that got spread over all endpoints so far
+   */
+  public long getPanicCalls() {
+    return panicCalls.get();
+  }
+
+  /**
+   * Closes the transport, and the endpoints it spreads calls over
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    final Future<?> currentProbeTask = probeTask;
+    if (currentProbeTask != null) {
+      currentProbeTask.cancel(false);
+    }
+    IOException failure = null;
+    for (final Endpoint endpoint : endpoints) {
+      try {
+        endpoint.transport.close();
+      } catch (final IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final Endpoint endpoint = choose();
+    endpoint.start();
+    final long start = System.nanoTime();
+    final TransportResponse response;
+    try {
+      response = endpoint.transport.send(request);
+    } catch (final CallRejectedException e) {
+      endpoint.release();
+      throw e;
+    } catch (final IOException e) {
+      if (isAborted(request)) {
+        endpoint.release();
+      } else {
+        endpoint.finish(true, System.nanoTime() - start);
+      }
+      throw e;
+    } catch (final RuntimeException e) {
+      endpoint.release();
+      throw e;
+    }
+    return new FinishingResponse(response, endpoint, start);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final Endpoint endpoint = choose();
+    endpoint.start();
+    final long start = System.nanoTime();
+    final Future<TransportResponse> transportFuture = endpoint.transport
+        .sendAsync(request, new FutureCallback<TransportResponse>() {
+          @Override
+          public void completed(final TransportResponse response) {
+            final TransportResponse finishingResponse = new FinishingResponse(
+                response, endpoint, start);
+            if (!future.completed(finishingResponse)) {
+              closeQuietly(finishingResponse);
+            }
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            if (e instanceof CallRejectedException || isAborted(request)) {
+              endpoint.release();
+            } else {
+              endpoint.finish(true, System.nanoTime() - start);
+            }
+            future.failed(e);
+          }
+
+          @Override
+          public void cancelled() {
+            endpoint.release();
+            future.cancel();
+          }
+        });
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return transportFuture.cancel(true);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Picks the endpoint for a call
+   * <p/>
+   * Of two random healthy endpoints, the one with the lower cost gets
+   * picked. If no endpoint is healthy, all endpoints are candidates.
+   *
+   * @return the endpoint to send the call to
+   */
+  private Endpoint choose() {
+    List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+    for (final Endpoint endpoint : endpoints) {
+      if (endpoint.isHealthy()) {
+        candidates.add(endpoint);
+      }
+    }
+    if (candidates.isEmpty()) {
+      panicCalls.incrementAndGet();
+      candidates = endpoints;
+    }
+    final int size = candidates.size();
+    if (size == 1) {
+      return candidates.get(0);
+    }
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    final Endpoint a = candidates.get(first);
+    final Endpoint b = candidates.get(second);
+    return (a.getCost() <= b.getCost()) ? a : b;
+  }
+
+  private boolean isFailure(final TransportResponse response) {
+    return response.getStatusCode() >= 500;
+  }
+
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * Checks whether a call failed because the client gave up on it
+   * <p/>
+   * Calls that got cancelled, or ran out of time before their deadline,
+   * say nothing about the endpoint's health. Otherwise hedging, or tight
+   * deadlines, would drive healthy endpoints out.
+   *
+   * @param request
+   *          The failed call's request
+   * @return true, if the call got cancelled, or its deadline passed
+   */
+  private boolean isAborted(final TransportRequest request) {
+    return request.isCancelled() || request.isExpired();
+  }
+
+  /**
+   * Probes all endpoints after the probe interval, and schedules the next
+   * probes
+   * <p/>
+   * Probes get sent asynchronously, so all endpoints get probed at the same
+   * time, and an endpoint that does not answer cannot hold up the probes of
+   * the others.
+   */
+  private void scheduleProbes() {
+    final long interval = policy.getProbeIntervalMillis();
+    // While probing is turned off, check back every second, so turning it
+    // on takes effect.
+    probeTask = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (closed) {
+          return;
+        }
+        if (interval > 0) {
+          for (final Endpoint endpoint : endpoints) {
+            probe(endpoint);
+          }
+        }
+        scheduleProbes();
+      }
+    }, (interval > 0) ? interval : 1000, TimeUnit.MILLISECONDS);
+    // If the transport got closed while the probes got scheduled, closing
+    // may have missed them.
+    if (closed) {
+      probeTask.cancel(false);
+    }
+  }
+
+  /**
+   * Sends a {@code conduit.ping} to an endpoint, and accounts for the result
+   * <p/>
+   * Probes that do not complete within the probe timeout get cancelled,
+   * even if the endpoint's transport does not honor request timeouts. While
+   * an endpoint's previous probe is still in flight, it does not get probed
+   * again.
+   *
+   * @param endpoint
+   *          The endpoint to probe
+   */
+  private void probe(final Endpoint endpoint) {
+    if (!endpoint.probing.compareAndSet(false, true)) {
+      return;
+    }
+    final long timeoutMillis = policy.getProbeTimeoutMillis();
+    final TransportRequest request = new TransportRequest(PROBE_METHOD, gson,
+        new HashMap<String, Object>(), false);
+    request.setTimeoutMillis(timeoutMillis);
+    final long start = System.nanoTime();
+    final Future<TransportResponse> future = endpoint.transport.sendAsync(
+        request, new FutureCallback<TransportResponse>() {
+          @Override
+          public void completed(final TransportResponse response) {
+            boolean passed;
+            try {
+              passed = drain(response);
+            } catch (final IOException e) {
+              log.trace("Probe of endpoint " + endpoint.index + " failed", e);
+              passed = false;
+            }
+            probed(passed);
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            log.trace("Probe of endpoint " + endpoint.index + " failed", e);
+            probed(false);
+          }
+
+          @Override
+          public void cancelled() {
+            log.trace("Probe of endpoint " + endpoint.index + " timed out");
+            probed(false);
+          }
+
+          private void probed(final boolean passed) {
+            endpoint.probed(passed, System.nanoTime() - start);
+            endpoint.probing.set(false);
+          }
+        });
+    if (timeoutMillis > 0 && !future.isDone()) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          request.cancel();
+          future.cancel(true);
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Reads a probe's response to its end, and closes it
+   *
+   * @param response
+   *          The probe's response
+   * @return true, if the probe passed
+   * @throws IOException
+   *           if reading the response fails
+   */
+  private boolean drain(final TransportResponse response) throws IOException {
+    try {
+      final int statusCode = response.getStatusCode();
+      final InputStream content = response.getContent();
+      try {
+        final byte[] buffer = new byte[1024];
+        while (content.read(buffer) >= 0) {
+          // Draining the content, so the connection can get reused.
+        }
+      } finally {
+        content.close();
+      }
+      return statusCode >= 200 && statusCode < 300;
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * A response, whose call stays in flight at its endpoint until it got
+   * closed
+   */
+  private class FinishingResponse extends ClosingResponse {
+    private final Endpoint endpoint;
+    private final long start;
+
+    public FinishingResponse(final TransportResponse response,
+        final Endpoint endpoint, final long start) {
+      super(response);
+      this.endpoint = endpoint;
+      this.start = start;
+    }
+
+    @Override
+    protected void closed() {
+      endpoint.finish(isFailure(this), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * An endpoint, with its load, latency, and health
+   */
+  private class Endpoint {
+    private final int index;
+    private final Transport transport;
+    private final AtomicInteger inFlight;
+    private final AtomicLong calls;
+    private final AtomicBoolean probing;
+    private volatile boolean healthy;
+
+    private long latencyNanos;
+    private long sampledAt;
+    private boolean sampled;
+    private int failures;
+    private int passedProbes;
+
+    public Endpoint(final int index, final Transport transport) {
+      this.index = index;
+      this.transport = transport;
+      inFlight = new AtomicInteger();
+      calls = new AtomicLong();
+      probing = new AtomicBoolean();
+      healthy = true;
+      latencyNanos = 0;
+      sampled = false;
+      failures = 0;
+      passedProbes = 0;
+    }
+
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    public long getCalls() {
+      return calls.get();
+    }
+
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    public synchronized long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    /**
+     * Gets the endpoint's cost for taking another call
+     * <p/>
+     * The cost is the recent latency times the calls in flight, including
+     * the new call. Endpoints without a latency yet are cheap, so they get
+     * tried soon.
+     *
+     * @return the cost
+     */
+    public double getCost() {
+      return (getLatencyNanos() + 1.0) * (inFlight.get() + 1);
+    }
+
+    /**
+     * Accounts for a call that got sent to the endpoint
+     */
+    public void start() {
+      calls.incrementAndGet();
+      inFlight.incrementAndGet();
+    }
+
+    /**
+     * Accounts for a call that got sent, but did not complete
+     */
+    public void release() {
+      inFlight.decrementAndGet();
+    }
+
+    /**
+     * Accounts for a completed call
+     *
+     * @param failed
+     *          true, if the call failed
+     * @param durationNanos
+     *          the duration of the call in nanoseconds
+     */
+    public synchronized void finish(final boolean failed,
+        final long durationNanos) {
+      inFlight.decrementAndGet();
+      if (failed) {
+        failed();
+      } else {
+        observe(durationNanos);
+        failures = 0;
+      }
+    }
+
+    /**
+     * Accounts for a probe
+     *
+     * @param passed
+     *          true, if the probe passed
+     * @param durationNanos
+     *          the duration of the probe in nanoseconds
+     */
+    public synchronized void probed(final boolean passed,
+        final long durationNanos) {
+      if (!passed) {
+        failed();
+        return;
+      }
+      observe(durationNanos);
+      failures = 0;
+      passedProbes++;
+      if (!healthy && passedProbes >= policy.getHealthyThreshold()) {
+        log.debug("Endpoint " + index + " is healthy again");
+        healthy = true;
+      }
+    }
+
+    private void failed() {
+      passedProbes = 0;
+      failures++;
+      if (healthy && failures >= policy.getUnhealthyThreshold()) {
+        log.debug("Endpoint " + index + " is unhealthy after " + failures
+            + " failures in a row");
+        healthy = false;
+      }
+    }
+
+    /**
+     * Adds a round trip to the moving average
+     * <p/>
+     * Round trips above the average replace it, so spikes count in full
+     * right away. Round trips below it pull it down by how much time passed
+     * since the last round trip, relative to the decay time.
+     *
+     * @param durationNanos
+     *          the duration of the round trip in nanoseconds
+     */
+    private void observe(final long durationNanos) {
+      final long now = System.nanoTime();
+      if (!sampled || durationNanos >= latencyNanos) {
+        latencyNanos = durationNanos;
+      } else {
+        final long decayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1,
+            policy.getDecayMillis()));
+        final double weight = Math.exp(-(double) (now - sampledAt)
+            / decayNanos);
+        latencyNanos = Math.round(latencyNanos * weight + durationNanos
+            * (1 - weight));
+      }
+      sampled = true;
+      sampledAt = now;
+    }
+  }
+}
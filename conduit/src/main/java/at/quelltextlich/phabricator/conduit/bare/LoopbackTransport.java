@@ -0,0 +1,133 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Transport that answers calls in memory, without any network
+ * <p/>
+ * Requests get fully encoded and handed to a {@link Responder}, whose answer
+ * is parsed just like a response from a server. This allows to test and
+ * benchmark everything but the network.
+ * <p/>
+ * Non-blocking calls are answered on the calling thread, before
+ * {@link #sendAsync(TransportRequest, FutureCallback)} returns.
+ */
+public class LoopbackTransport implements Transport {
+  private final Responder responder;
+  private volatile boolean closed;
+
+  public LoopbackTransport(final Responder responder) {
+    this.responder = responder;
+    closed = false;
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    if (closed) {
+      throw new IOException("Transport has already been closed");
+    }
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    request.writeBody(body);
+    final String response = responder.respond(request.getMethod(),
+        new String(body.toByteArray(), StandardCharsets.US_ASCII));
+    return new LoopbackTransportResponse(
+        response.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final TransportResponse response;
+    try {
+      response = send(request);
+    } catch (final IOException e) {
+      future.failed(e);
+      return future;
+    }
+    future.completed(response);
+    return future;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  /**
+   * Answers a single Conduit call
+   */
+  public interface Responder {
+    /**
+     * Answers a Conduit call
+     *
+     * @param method
+     *          The name of the called method
+     * @param body
+     *          The form-encoded request body, as it would be sent to a server
+     * @return The JSON response, including the "result", "error_code", and
+     *         "error_info" wrapper
+     * @throws IOException
+     *           to simulate a failing transport
+     */
+    public String respond(String method, String body) throws IOException;
+  }
+
+  /**
+   * TransportResponse for an in-memory JSON response
+   */
+  private static class LoopbackTransportResponse implements TransportResponse {
+    private final byte[] content;
+
+    public LoopbackTransportResponse(final byte[] content) {
+      this.content = content;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return 200;
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return null;
+    }
+
+    @Override
+    public Charset getCharset() {
+      return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
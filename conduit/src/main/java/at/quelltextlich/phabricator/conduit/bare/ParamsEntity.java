@@ -0,0 +1,153 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * HttpEntity for the form-encoded body of a {@link TransportRequest}
+ * <p/>
+ * Bodies of up to {@link #BUFFER_LIMIT} bytes get encoded upfront, and are
+ * sent with a Content-Length, as some servers and proxies (e.g.: PHP-FPM
+ * behind FastCGI) do not cope with chunked request bodies. Larger bodies are
+ * written straight to the connection. As their length is not known upfront,
+ * they are sent chunked.
+ * <p/>
+ * Telling the two apart costs larger bodies a second pass: their first
+ * {@link #BUFFER_LIMIT} bytes get serialized and encoded once to find out
+ * that they do not fit, and are thrown away. Sending then serializes the
+ * whole body again. So the extra work is bounded by {@link #BUFFER_LIMIT}
+ * bytes per body, no matter how large the body is. Continuing the first pass
+ * instead would need a thread per large body to suspend serialization.
+ */
+public class ParamsEntity extends AbstractHttpEntity {
+  /**
+   * Size in bytes up to which bodies get buffered, and sent with a
+   * Content-Length
+   */
+  public static final int BUFFER_LIMIT = 64 * 1024;
+
+  private final TransportRequest request;
+  private final byte[] buffered;
+
+  public ParamsEntity(final TransportRequest request) {
+    this.request = request;
+    setContentType(TransportRequest.CONTENT_TYPE);
+    buffered = buffer(request);
+    setChunked(buffered == null);
+  }
+
+  /**
+   * Encodes the request's body, if it is small enough
+   *
+   * @param request
+   *          The request to encode the body of
+   * @return the encoded body, or null, if the body is larger than
+   *         {@link #BUFFER_LIMIT}, or could not get encoded. Such bodies get
+   *         written when the request is sent.
+   */
+  private static byte[] buffer(final TransportRequest request) {
+    final LimitedByteArrayOutputStream out = new LimitedByteArrayOutputStream();
+    try {
+      request.writeBody(out);
+    } catch (final IOException e) {
+      // Either the limit got hit, or the parameters could not get
+      // serialized. For the latter, streaming will fail again, and report
+      // the error when sending the request.
+      return null;
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return buffered == null ? -1 : buffered.length;
+  }
+
+  /**
+   * Gets the body as stream
+   * <p/>
+   * HttpAsyncClient sends bodies by reading this stream. Large bodies get
+   * encoded while the stream is read (see
+   * {@link TransportRequest#openBody()}), so they do not get held in memory
+   * either.
+   */
+  @Override
+  public InputStream getContent() throws IOException {
+    if (buffered != null) {
+      return new ByteArrayInputStream(buffered);
+    }
+    return request.openBody();
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    if (buffered != null) {
+      out.write(buffered);
+    } else {
+      request.writeBody(out);
+    }
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * OutputStream that collects at most {@link #BUFFER_LIMIT} bytes, and
+   * fails on writing more
+   */
+  private static class LimitedByteArrayOutputStream extends OutputStream {
+    private final ByteArrayOutputStream buffer;
+
+    public LimitedByteArrayOutputStream() {
+      buffer = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      checkLimit(1);
+      buffer.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+      checkLimit(len);
+      buffer.write(b, off, len);
+    }
+
+    private void checkLimit(final int len) throws IOException {
+      if (buffer.size() + len > BUFFER_LIMIT) {
+        throw new IOException("Body exceeds " + BUFFER_LIMIT + " bytes");
+      }
+    }
+
+    public byte[] toByteArray() {
+      return buffer.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits the rate of calls
+ * <p/>
+ * The bucket refills at a steady rate, and holds at most a burst's worth of
+ * tokens. Each call takes a token. Callers that find the bucket empty reserve
+ * a future token and wait for it, so waiting callers are served in order at
+ * the steady rate, instead of racing for tokens.
+ * <p/>
+ * Tokens can be acquired blocking ({@link #acquire()}), failing fast
+ * ({@link #tryAcquire()}), or by reservation ({@link #reserve()}), which tells
+ * non-blocking callers how long to delay their call.
+ */
+public class RateLimiter {
+  private final double permitsPerSecond;
+  private final double burst;
+  private final double nanosPerPermit;
+
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Creates a limiter without bursts
+   *
+   * @param permitsPerSecond
+   *          the steady rate of calls per second
+   */
+  public RateLimiter(final double permitsPerSecond) {
+    this(permitsPerSecond, 1);
+  }
+
+  /**
+   * @param permitsPerSecond
+   *          the steady rate of calls per second
+   * @param burst
+   *          the number of calls that may go through at once after a quiet
+   *          period. Keep this low to stay evenly below a server's limit.
+   */
+  public RateLimiter(final double permitsPerSecond, final int burst) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive");
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = Math.max(1, burst);
+    nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    tokens = this.burst;
+    lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Gets the steady rate of calls
+   *
+   * @return the number of calls per second
+   */
+  public double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  /**
+   * Takes a token, and waits until it is available
+   *
+   * @throws InterruptedException
+   *           if the thread got interrupted while waiting. The token is
+   *           consumed nonetheless.
+   */
+  public void acquire() throws InterruptedException {
+    TimeUnit.NANOSECONDS.sleep(reserve());
+  }
+
+  /**
+   * Takes a token, if one is available right away
+   *
+   * @return true, if a token got taken
+   */
+  public synchronized boolean tryAcquire() {
+    refill();
+    if (tokens >= 1) {
+      tokens -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Takes a token, if one becomes available within a timeout
+   *
+   * @param timeout
+   *          The maximum time to wait for a token
+   * @param unit
+   *          The unit of {@code timeout}
+   * @return true, if a token got taken
+   * @throws InterruptedException
+   *           if the thread got interrupted while waiting. The token is
+   *           consumed nonetheless.
+   */
+  public boolean tryAcquire(final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    final long waitNanos;
+    synchronized (this) {
+      refill();
+      if (nanosUntilAvailable() > unit.toNanos(timeout)) {
+        return false;
+      }
+      waitNanos = take();
+    }
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+    return true;
+  }
+
+  /**
+   * Takes a token, which may become available only in the future
+   * <p/>
+   * The caller has to delay its call by the returned time. Reserving does
+   * not block, so it suits non-blocking calls.
+   *
+   * @return the time in nanoseconds until the token is available. 0, if it
+   *         is available right away.
+   */
+  public synchronized long reserve() {
+    refill();
+    return take();
+  }
+
+  /**
+   * Gives back a token that got taken, but not used
+   */
+  synchronized void refund() {
+    tokens = Math.min(burst, tokens + 1);
+  }
+
+  private void refill() {
+    final long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefill) / nanosPerPermit);
+    lastRefill = now;
+  }
+
+  private long nanosUntilAvailable() {
+    return (tokens >= 1) ? 0 : (long) Math.ceil((1 - tokens) * nanosPerPermit);
+  }
+
+  private long take() {
+    final long waitNanos = nanosUntilAvailable();
+    tokens -= 1;
+    return waitNanos;
+  }
+}
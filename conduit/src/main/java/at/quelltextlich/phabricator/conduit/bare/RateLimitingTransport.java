@@ -0,0 +1,410 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+import at.quelltextlich.phabricator.conduit.RateLimitedException;
+
+/**
+ * Transport that keeps calls below a rate limit
+ * <p/>
+ * Calls can be limited globally, and per method. A call has to pass both its
+ * method's {@link RateLimiter} and the global one. Blocking calls wait on the
+ * calling thread until the limit allows them. Non-blocking calls get delayed
+ * on a timer thread, without tying up a thread while waiting.
+ * <p/>
+ * In fail-fast mode, calls that would exceed the limit fail right away with
+ * a {@link RateLimitedException} instead of waiting.
+ * <p/>
+ * Calls that would have to wait past their deadline fail right away with a
+ * {@link DeadlineExceededException}. Calls that get cancelled while waiting
+ * stop waiting. Calls that give up give back the tokens they took.
+ */
+public class RateLimitingTransport implements Transport {
+  private final Transport transport;
+  private final ConcurrentMap<String, RateLimiter> methodLimiters;
+  private final ScheduledExecutorService scheduler;
+  private final Set<DelayedCall> delayed;
+  private volatile boolean closed;
+  private volatile RateLimiter globalLimiter;
+  private volatile boolean failFast;
+
+  private final AtomicLong delayedCalls;
+  private final AtomicLong delayNanos;
+  private final AtomicLong rejectedCalls;
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   */
+  public RateLimitingTransport(final Transport transport) {
+    this.transport = transport;
+    methodLimiters = new ConcurrentHashMap<String, RateLimiter>();
+    scheduler = SharedScheduler.get();
+    delayed = Collections
+        .newSetFromMap(new ConcurrentHashMap<DelayedCall, Boolean>());
+    closed = false;
+    globalLimiter = null;
+    failFast = false;
+    delayedCalls = new AtomicLong();
+    delayNanos = new AtomicLong();
+    rejectedCalls = new AtomicLong();
+  }
+
+  /**
+   * Gets the limiter for all calls
+   *
+   * @return the global limiter, or null if calls are only limited per method
+   */
+  public RateLimiter getGlobalLimiter() {
+    return globalLimiter;
+  }
+
+  /**
+   * Sets the limiter for all calls
+   *
+   * @param globalLimiter
+   *          the global limiter. null lifts the global limit.
+   */
+  public void setGlobalLimiter(final RateLimiter globalLimiter) {
+    this.globalLimiter = globalLimiter;
+  }
+
+  /**
+   * Gets the limiter for a method's calls
+   *
+   * @param method
+   *          The name of the method to get the limiter for
+   * @return the method's limiter, or null if the method has no own limit
+   */
+  public RateLimiter getMethodLimiter(final String method) {
+    return methodLimiters.get(method);
+  }
+
+  /**
+   * Sets the limiter for a method's calls
+   * <p/>
+   * Writing methods like {@code maniphest.update} are typically throttled
+   * harder by the server than reading methods, and may get a lower limit
+   * here.
+   *
+   * @param method
+   *          The name of the method to limit
+   * @param limiter
+   *          the method's limiter. null lifts the method's own limit.
+   */
+  public void setMethodLimiter(final String method, final RateLimiter limiter) {
+    if (limiter == null) {
+      methodLimiters.remove(method);
+    } else {
+      methodLimiters.put(method, limiter);
+    }
+  }
+
+  /**
+   * Checks whether calls over the limit fail right away
+   *
+   * @return true, if calls over the limit fail. false, if they wait.
+   */
+  public boolean isFailFast() {
+    return failFast;
+  }
+
+  /**
+   * Sets whether calls over the limit fail right away
+   *
+   * @param failFast
+   *          true, if calls over the limit should fail with a
+   *          {@link RateLimitedException}. false, if they should wait.
+   */
+  public void setFailFast(final boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  /**
+   * Gets the number of calls that had to wait for the limit
+   *
+   * @return the number of delayed calls so far
+   */
+  public long getDelayedCalls() {
+    return delayedCalls.get();
+  }
+
+  /**
+   * Gets the time calls waited for the limit
+   *
+   * @return the sum of all delays in milliseconds so far
+   */
+  public long getDelayMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(delayNanos.get());
+  }
+
+  /**
+   * Gets the number of calls that failed fast as they exceeded the limit
+   *
+   * @return the number of rejected calls so far
+   */
+  public long getRejectedCalls() {
+    return rejectedCalls.get();
+  }
+
+  /**
+   * Closes the transport, and the transport it limits
+   * <p/>
+   * Non-blocking calls that are still delayed fail.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (final DelayedCall call : delayed) {
+      call.abort();
+    }
+    transport.close();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final Reservation reservation = acquire(request);
+    if (reservation.waitNanos > 0) {
+      // Cancelling the call, or passing its deadline, ends the wait.
+      final CountDownLatch latch = new CountDownLatch(1);
+      final Cancellable abort = new Cancellable() {
+        @Override
+        public boolean cancel() {
+          latch.countDown();
+          return true;
+        }
+      };
+      request.addCancellable(abort);
+      try {
+        if (latch.await(reservation.waitNanos, TimeUnit.NANOSECONDS)) {
+          reservation.refund();
+          throw new IOException(
+              "Call got aborted while waiting for rate limit");
+        }
+      } catch (final InterruptedException e) {
+        reservation.refund();
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for rate limit", e);
+      } finally {
+        request.removeCancellable(abort);
+      }
+    }
+    return transport.send(request);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final Reservation reservation;
+    try {
+      reservation = acquire(request);
+    } catch (final CallRejectedException e) {
+      final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+          callback);
+      future.failed(e);
+      return future;
+    }
+    if (reservation.waitNanos <= 0) {
+      return transport.sendAsync(request, callback);
+    }
+
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final DelayedCall call = new DelayedCall(request, reservation, future);
+    future.setCancellable(call);
+    delayed.add(call);
+    // Closing the transport aborts the delayed calls. If it got closed before
+    // this call showed up, the call has to abort itself.
+    if (closed) {
+      call.abort();
+      return future;
+    }
+    // The call may already have started, if the delay was short. Then, the
+    // started call has to stay cancellable.
+    call.current.compareAndSet(null, scheduler.schedule(call,
+        reservation.waitNanos, TimeUnit.NANOSECONDS));
+    return future;
+  }
+
+  /**
+   * Takes tokens from the limiters that apply to a call
+   *
+   * @param request
+   *          The call to take tokens for
+   * @return the taken tokens, and the time to wait before the call may go
+   *         through
+   * @throws CallRejectedException
+   *           if failing fast, and the call would exceed the limit, or if the
+   *           call would have to wait past its deadline
+   */
+  private Reservation acquire(final TransportRequest request)
+      throws CallRejectedException {
+    final String method = request.getMethod();
+    final RateLimiter methodLimiter = methodLimiters.get(method);
+    final RateLimiter currentGlobalLimiter = globalLimiter;
+    if (failFast) {
+      if (methodLimiter != null && !methodLimiter.tryAcquire()) {
+        rejectedCalls.incrementAndGet();
+        throw new CallRejectedException(new RateLimitedException(method));
+      }
+      if (currentGlobalLimiter != null && !currentGlobalLimiter.tryAcquire()) {
+        if (methodLimiter != null) {
+          methodLimiter.refund();
+        }
+        rejectedCalls.incrementAndGet();
+        throw new CallRejectedException(new RateLimitedException(method));
+      }
+      return new Reservation(methodLimiter, currentGlobalLimiter, 0);
+    }
+
+    long waitNanos = 0;
+    if (methodLimiter != null) {
+      waitNanos = methodLimiter.reserve();
+    }
+    if (currentGlobalLimiter != null) {
+      waitNanos = Math.max(waitNanos, currentGlobalLimiter.reserve());
+    }
+    final Reservation reservation = new Reservation(methodLimiter,
+        currentGlobalLimiter, waitNanos);
+    if (waitNanos > 0) {
+      if (waitNanos >= request.getRemainingNanos()) {
+        reservation.refund();
+        throw new CallRejectedException(new DeadlineExceededException(method,
+            request.getTimeoutMillis(), null));
+      }
+      delayedCalls.incrementAndGet();
+      delayNanos.addAndGet(waitNanos);
+    }
+    return reservation;
+  }
+
+  /**
+   * Tokens that a call took from its limiters
+   */
+  private static class Reservation {
+    private final RateLimiter methodLimiter;
+    private final RateLimiter globalLimiter;
+    private final long waitNanos;
+
+    public Reservation(final RateLimiter methodLimiter,
+        final RateLimiter globalLimiter, final long waitNanos) {
+      this.methodLimiter = methodLimiter;
+      this.globalLimiter = globalLimiter;
+      this.waitNanos = waitNanos;
+    }
+
+    /**
+     * Gives back the tokens, as the call did not go through
+     */
+    public void refund() {
+      if (methodLimiter != null) {
+        methodLimiter.refund();
+      }
+      if (globalLimiter != null) {
+        globalLimiter.refund();
+      }
+    }
+  }
+
+  /**
+   * A non-blocking call that waits for the rate limit
+   */
+  private class DelayedCall implements Runnable, Cancellable {
+    private final TransportRequest request;
+    private final Reservation reservation;
+    private final CallFuture<TransportResponse> future;
+    private final AtomicReference<Future<?>> current;
+    private final AtomicBoolean started;
+
+    public DelayedCall(final TransportRequest request,
+        final Reservation reservation,
+        final CallFuture<TransportResponse> future) {
+      this.request = request;
+      this.reservation = reservation;
+      this.future = future;
+      current = new AtomicReference<Future<?>>();
+      started = new AtomicBoolean(false);
+    }
+
+    @Override
+    public void run() {
+      delayed.remove(this);
+      if (future.isDone() || !started.compareAndSet(false, true)) {
+        return;
+      }
+      final Future<TransportResponse> transportFuture = transport.sendAsync(
+          request,
+          new FutureCallback<TransportResponse>() {
+            @Override
+            public void completed(final TransportResponse response) {
+              future.completed(response);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+              future.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+              future.cancel();
+            }
+          });
+      current.set(transportFuture);
+      if (future.isCancelled()) {
+        transportFuture.cancel(true);
+      }
+    }
+
+    /**
+     * Fails the call, as the transport got closed while it was delayed
+     */
+    public void abort() {
+      cancel();
+      future.failed(new IOException("Transport has been closed"));
+    }
+
+    @Override
+    public boolean cancel() {
+      delayed.remove(this);
+      if (started.compareAndSet(false, true)) {
+        reservation.refund();
+      }
+      final Future<?> currentFuture = current.get();
+      if (currentFuture != null) {
+        currentFuture.cancel(true);
+      }
+      return true;
+    }
+  }
+}
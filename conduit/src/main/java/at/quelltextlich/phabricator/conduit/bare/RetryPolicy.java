@@ -0,0 +1,318 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Settings for retrying failed calls in a {@link RetryingTransport}
+ * <p/>
+ * Which failures get retried depends on the called method. Calls to
+ * idempotent methods (e.g.: {@code maniphest.query}) get retried on any
+ * transport failure, and on responses that signal an unavailable server.
+ * Calls to all other methods (e.g.: {@code maniphest.createtask}) only get
+ * retried if connecting to the server failed, as otherwise the server might
+ * already have run the call.
+ * <p/>
+ * Retries back off exponentially, and the backoff gets randomized (jitter),
+ * so clients that failed at the same time do not retry at the same time.
+ */
+public class RetryPolicy {
+  /**
+   * Methods that only read data, and are hence safe to retry
+   */
+  public static final Set<String> DEFAULT_IDEMPOTENT_METHODS = Collections
+      .unmodifiableSet(new HashSet<String>(Arrays.asList(
+          "almanac.querydevices", "almanac.queryservices",
+          "conduit.getcapabilities", "conduit.ping", "conduit.query",
+          "maniphest.gettasktransactions", "maniphest.info",
+          "maniphest.query", "maniphest.querystatuses", "phid.lookup",
+          "phid.query", "project.query", "user.query", "user.whoami")));
+
+  /**
+   * Name of the java.net.http failure to connect in time
+   * <p/>
+   * It is only available on Java 11 and newer, so it gets matched by name.
+   */
+  private static final String HTTP_CONNECT_TIMEOUT_EXCEPTION = "java.net.http.HttpConnectTimeoutException";
+
+  // The policy may get tuned while calls are in flight, and gets read on
+  // the threads that retry calls, so the settings are volatile.
+  private volatile int maxAttempts;
+  private volatile long initialBackoffMillis;
+  private volatile long maxBackoffMillis;
+  private volatile double backoffMultiplier;
+  private volatile double jitter;
+  private final Set<String> idempotentMethods;
+
+  /**
+   * Creates a policy with defaults suitable for batch jobs
+   * <p/>
+   * Defaults are at most 3 attempts per call, and a backoff starting at 100
+   * milliseconds that doubles with each retry up to 10 seconds. The backoff
+   * gets fully randomized. The methods in
+   * {@link #DEFAULT_IDEMPOTENT_METHODS} are treated as idempotent.
+   */
+  public RetryPolicy() {
+    maxAttempts = 3;
+    initialBackoffMillis = 100;
+    maxBackoffMillis = 10000;
+    backoffMultiplier = 2.0;
+    jitter = 1.0;
+    idempotentMethods = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    idempotentMethods.addAll(DEFAULT_IDEMPOTENT_METHODS);
+  }
+
+  /**
+   * Gets the maximum number of attempts per call
+   *
+   * @return the maximum number of attempts, including the first one
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Sets the maximum number of attempts per call
+   *
+   * @param maxAttempts
+   *          the maximum number of attempts, including the first one. 1 turns
+   *          retries off.
+   */
+  public void setMaxAttempts(final int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * Gets the backoff before the first retry
+   *
+   * @return the backoff in milliseconds, before applying jitter
+   */
+  public long getInitialBackoffMillis() {
+    return initialBackoffMillis;
+  }
+
+  /**
+   * Sets the backoff before the first retry
+   *
+   * @param initialBackoffMillis
+   *          the backoff in milliseconds, before applying jitter
+   */
+  public void setInitialBackoffMillis(final long initialBackoffMillis) {
+    this.initialBackoffMillis = initialBackoffMillis;
+  }
+
+  /**
+   * Gets the cap for the backoff between retries
+   *
+   * @return the maximum backoff in milliseconds, before applying jitter
+   */
+  public long getMaxBackoffMillis() {
+    return maxBackoffMillis;
+  }
+
+  /**
+   * Sets the cap for the backoff between retries
+   *
+   * @param maxBackoffMillis
+   *          the maximum backoff in milliseconds, before applying jitter
+   */
+  public void setMaxBackoffMillis(final long maxBackoffMillis) {
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Gets the factor the backoff grows by with each retry
+   *
+   * @return the backoff multiplier
+   */
+  public double getBackoffMultiplier() {
+    return backoffMultiplier;
+  }
+
+  /**
+   * Sets the factor the backoff grows by with each retry
+   *
+   * @param backoffMultiplier
+   *          the backoff multiplier. 1 gives a constant backoff.
+   */
+  public void setBackoffMultiplier(final double backoffMultiplier) {
+    this.backoffMultiplier = backoffMultiplier;
+  }
+
+  /**
+   * Gets the share of the backoff that gets randomized
+   *
+   * @return the jitter between 0 and 1
+   */
+  public double getJitter() {
+    return jitter;
+  }
+
+  /**
+   * Sets the share of the backoff that gets randomized
+   * <p/>
+   * With a jitter of 1, the backoff is picked uniformly between zero and the
+   * exponential backoff. With a jitter of 0.5, it is picked between half the
+   * exponential backoff and the full exponential backoff. A jitter of 0 turns
+   * randomization off.
+   *
+   * @param jitter
+   *          the jitter between 0 and 1
+   */
+  public void setJitter(final double jitter) {
+    this.jitter = jitter;
+  }
+
+  /**
+   * Checks whether a method is treated as idempotent
+   *
+   * @param method
+   *          The name of the method to check
+   * @return true, if calls to the method may get retried on any failure
+   */
+  public boolean isIdempotent(final String method) {
+    return idempotentMethods.contains(method);
+  }
+
+  /**
+   * Sets whether a method is treated as idempotent
+   *
+   * @param method
+   *          The name of the method to set idempotency for
+   * @param idempotent
+   *          true, if calls to the method may get retried on any failure.
+   *          false, if they may only get retried if connecting to the server
+   *          failed.
+   */
+  public void setIdempotent(final String method, final boolean idempotent) {
+    if (idempotent) {
+      idempotentMethods.add(method);
+    } else {
+      idempotentMethods.remove(method);
+    }
+  }
+
+  /**
+   * Checks whether a failed call should get retried
+   * <p/>
+   * Calls that got refused on purpose (see {@link CallRejectedException})
+   * never get retried.
+   *
+   * @param method
+   *          The name of the called method
+   * @param attempt
+   *          The number of the attempt that failed, starting at 1
+   * @param e
+   *          The failure of the attempt
+   * @return true, if the call should get retried
+   */
+  public boolean shouldRetry(final String method, final int attempt,
+      final IOException e) {
+    if (attempt >= maxAttempts || e instanceof CallRejectedException) {
+      return false;
+    }
+    return isIdempotent(method) || isConnectFailure(e);
+  }
+
+  /**
+   * Checks whether a call should get retried for the status of its response
+   * <p/>
+   * Only calls to idempotent methods get retried for their status, as the
+   * server might have run the call before its front end gave up.
+   *
+   * @param method
+   *          The name of the called method
+   * @param attempt
+   *          The number of the attempt that got the response, starting at 1
+   * @param statusCode
+   *          The HTTP status code of the response
+   * @return true, if the response should get dropped, and the call retried
+   */
+  public boolean shouldRetry(final String method, final int attempt,
+      final int statusCode) {
+    if (attempt >= maxAttempts) {
+      return false;
+    }
+    return isIdempotent(method)
+        && (statusCode == 502 || statusCode == 503 || statusCode == 504);
+  }
+
+  /**
+   * Computes the backoff before a retry
+   *
+   * @param attempt
+   *          The number of the attempt that failed, starting at 1
+   * @return the backoff in milliseconds, including jitter
+   */
+  public long getBackoffMillis(final int attempt) {
+    double backoff = initialBackoffMillis
+        * Math.pow(backoffMultiplier, attempt - 1);
+    if (maxBackoffMillis > 0) {
+      backoff = Math.min(backoff, maxBackoffMillis);
+    }
+    final double randomized = backoff
+        * (1 - jitter * ThreadLocalRandom.current().nextDouble());
+    return Math.max(0, Math.round(randomized));
+  }
+
+  /**
+   * Checks whether a failure happened while connecting to the server
+   * <p/>
+   * For such failures, the request has not reached the server, so even
+   * calls to methods that are not idempotent can safely get retried.
+   *
+   * @param e
+   *          The failure to check
+   * @return true, if the failure happened before the request was sent
+   */
+  public static boolean isConnectFailure(final IOException e) {
+    return e instanceof ConnectException
+        || e instanceof UnknownHostException
+        || e instanceof NoRouteToHostException
+        || e instanceof org.apache.http.conn.ConnectTimeoutException
+        || e instanceof org.apache.hc.client5.http.ConnectTimeoutException
+        || isInstanceOf(e, HTTP_CONNECT_TIMEOUT_EXCEPTION);
+  }
+
+  /**
+   * Checks whether an object is an instance of a class, that may not be
+   * available at runtime
+   *
+   * @param o
+   *          The object to check
+   * @param className
+   *          The fully qualified name of the class
+   * @return true, if the object's class or one of its superclasses has the
+   *         given name
+   */
+  private static boolean isInstanceOf(final Object o, final String className) {
+    for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+      if (c.getName().equals(className)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,403 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that retries failed calls of another transport
+ * <p/>
+ * Which calls get retried, and how long to back off before retrying, is
+ * decided by a {@link RetryPolicy}. Blocking calls back off on the calling
+ * thread. Non-blocking calls back off on a timer thread, so they do not tie up
+ * a thread while waiting.
+ * <p/>
+ * All attempts of a call share the call's deadline. Calls do not get retried,
+ * if the backoff would outlast the deadline, or if the call got cancelled.
+ * <p/>
+ * Retries and backoff get counted, so they can be monitored.
+ */
+public class RetryingTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private final Transport transport;
+  private final RetryPolicy policy;
+  private final ScheduledExecutorService scheduler;
+  private final Set<AsyncCall> backingOff;
+  private volatile boolean closed;
+
+  private final AtomicLong retries;
+  private final AtomicLong backoffMillis;
+  private final AtomicLong exhaustedCalls;
+  private final ConcurrentMap<String, AtomicLong> retriesByMethod;
+
+  public RetryingTransport(final Transport transport) {
+    this(transport, new RetryPolicy());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   * @param policy
+   *          The policy deciding which calls get retried
+   */
+  public RetryingTransport(final Transport transport, final RetryPolicy policy) {
+    this.transport = transport;
+    this.policy = policy;
+    scheduler = SharedScheduler.get();
+    backingOff = Collections
+        .newSetFromMap(new ConcurrentHashMap<AsyncCall, Boolean>());
+    closed = false;
+    retries = new AtomicLong();
+    backoffMillis = new AtomicLong();
+    exhaustedCalls = new AtomicLong();
+    retriesByMethod = new ConcurrentHashMap<String, AtomicLong>();
+  }
+
+  /**
+   * Gets the policy deciding which calls get retried
+   *
+   * @return the transport's retry policy
+   */
+  public RetryPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Gets the number of retries
+   *
+   * @return the number of retried attempts across all calls so far
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * Gets the number of retries for a method
+   *
+   * @param method
+   *          The name of the method to get the retries for
+   * @return the number of retried attempts for calls of the method so far
+   */
+  public long getRetries(final String method) {
+    final AtomicLong counter = retriesByMethod.get(method);
+    return (counter == null) ? 0 : counter.get();
+  }
+
+  /**
+   * Gets the time spent backing off before retries
+   *
+   * @return the sum of all backoffs in milliseconds so far
+   */
+  public long getBackoffMillis() {
+    return backoffMillis.get();
+  }
+
+  /**
+   * Gets the number of calls that failed despite retrying
+   *
+   * @return the number of calls that failed after at least one retry
+   */
+  public long getExhaustedCalls() {
+    return exhaustedCalls.get();
+  }
+
+  /**
+   * Closes the transport, and the transport it retries
+   * <p/>
+   * Calls that are backing off fail.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (final AsyncCall call : backingOff) {
+      call.abort();
+    }
+    transport.close();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final String method = request.getMethod();
+    int attempt = 1;
+    while (true) {
+      final TransportResponse response;
+      try {
+        response = transport.send(request);
+      } catch (final IOException e) {
+        final long backoff = policy.shouldRetry(method, attempt, e) ? backoff(
+            request, attempt, e.toString()) : -1;
+        if (backoff < 0) {
+          countExhausted(attempt);
+          throw e;
+        }
+        sleep(request, backoff);
+        attempt++;
+        continue;
+      }
+      if (policy.shouldRetry(method, attempt, response.getStatusCode())) {
+        final long backoff = backoff(request, attempt, "status "
+            + response.getStatusCode());
+        if (backoff >= 0) {
+          closeQuietly(response);
+          sleep(request, backoff);
+          attempt++;
+          continue;
+        }
+      }
+      return response;
+    }
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final AsyncCall call = new AsyncCall(request, future);
+    future.setCancellable(call);
+    call.attempt();
+    return future;
+  }
+
+  /**
+   * Counts a retry, and computes its backoff
+   *
+   * @param request
+   *          The call to retry
+   * @param attempt
+   *          The number of the attempt that failed
+   * @param reason
+   *          Description of the failure
+   * @return the backoff in milliseconds, or -1 if the call must not get
+   *         retried, as the transport got closed, the call got cancelled, or
+   *         the backoff would outlast the call's deadline
+   */
+  private long backoff(final TransportRequest request, final int attempt,
+      final String reason) {
+    final String method = request.getMethod();
+    final long backoff = policy.getBackoffMillis(attempt);
+    if (closed || request.isCancelled()) {
+      return -1;
+    }
+    if (TimeUnit.MILLISECONDS.toNanos(backoff) >= request.getRemainingNanos()) {
+      log.debug("Attempt " + attempt + " of " + method + " failed (" + reason
+          + "). Not retrying, as the deadline is too close");
+      return -1;
+    }
+    retries.incrementAndGet();
+    backoffMillis.addAndGet(backoff);
+    AtomicLong counter = retriesByMethod.get(method);
+    if (counter == null) {
+      final AtomicLong newCounter = new AtomicLong();
+      counter = retriesByMethod.putIfAbsent(method, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.incrementAndGet();
+    log.debug("Attempt " + attempt + " of " + method + " failed (" + reason
+        + "). Retrying in " + backoff + "ms");
+    return backoff;
+  }
+
+  private void countExhausted(final int attempt) {
+    if (attempt > 1) {
+      exhaustedCalls.incrementAndGet();
+    }
+  }
+
+  /**
+   * Backs off on the calling thread
+   * <p/>
+   * Cancelling the call, or passing its deadline, ends the backoff.
+   *
+   * @param request
+   *          The call that backs off
+   * @param millis
+   *          The backoff in milliseconds
+   * @throws IOException
+   *           if the call got aborted, or the thread got interrupted while
+   *           backing off
+   */
+  private void sleep(final TransportRequest request, final long millis)
+      throws IOException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Cancellable abort = new Cancellable() {
+      @Override
+      public boolean cancel() {
+        latch.countDown();
+        return true;
+      }
+    };
+    request.addCancellable(abort);
+    try {
+      if (latch.await(millis, TimeUnit.MILLISECONDS)) {
+        throw new IOException("Call got aborted while backing off");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while backing off", e);
+    } finally {
+      request.removeCancellable(abort);
+    }
+  }
+
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * The attempts of a single non-blocking call
+   */
+  private class AsyncCall implements Cancellable,
+      FutureCallback<TransportResponse> {
+    private final TransportRequest request;
+    private final CallFuture<TransportResponse> future;
+    private volatile int attempt;
+    private final AtomicReference<Future<?>> current;
+
+    public AsyncCall(final TransportRequest request,
+        final CallFuture<TransportResponse> future) {
+      this.request = request;
+      this.future = future;
+      attempt = 0;
+      current = new AtomicReference<Future<?>>();
+    }
+
+    /**
+     * Starts the next attempt
+     */
+    public void attempt() {
+      if (future.isDone()) {
+        return;
+      }
+      attempt++;
+      final Future<?> before = current.get();
+      final Future<TransportResponse> transportFuture = transport.sendAsync(
+          request, this);
+      // If the attempt failed right away, its retry is already scheduled, and
+      // has to stay cancellable.
+      current.compareAndSet(before, transportFuture);
+      if (future.isCancelled()) {
+        transportFuture.cancel(true);
+      }
+    }
+
+    /**
+     * Starts the next attempt after a backoff
+     *
+     * @param backoff
+     *          The backoff in milliseconds
+     */
+    private void retry(final long backoff) {
+      final Future<?> failed = current.get();
+      backingOff.add(this);
+      // Closing the transport aborts the calls that are backing off. If it
+      // got closed before this call showed up, the call has to abort itself.
+      if (closed) {
+        abort();
+        return;
+      }
+      // The next attempt may already have started, if the backoff was short.
+      // Then, the started attempt has to stay cancellable.
+      current.compareAndSet(failed, scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          backingOff.remove(AsyncCall.this);
+          attempt();
+        }
+      }, backoff, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Fails the call, as the transport got closed while it was backing off
+     */
+    public void abort() {
+      cancel();
+      future.failed(new IOException("Transport has been closed"));
+    }
+
+    @Override
+    public void completed(final TransportResponse response) {
+      if (!future.isDone()
+          && policy.shouldRetry(request.getMethod(), attempt,
+              response.getStatusCode())) {
+        final long backoff = backoff(request, attempt, "status "
+            + response.getStatusCode());
+        if (backoff >= 0) {
+          closeQuietly(response);
+          retry(backoff);
+          return;
+        }
+      }
+      if (!future.completed(response)) {
+        closeQuietly(response);
+      }
+    }
+
+    @Override
+    public void failed(final Exception e) {
+      final IOException ioe = (e instanceof IOException) ? (IOException) e
+          : new IOException("Could not send request", e);
+      final long backoff = (!future.isDone() && policy.shouldRetry(
+          request.getMethod(), attempt, ioe)) ? backoff(request, attempt,
+          ioe.toString()) : -1;
+      if (backoff >= 0) {
+        retry(backoff);
+      } else {
+        countExhausted(attempt);
+        future.failed(ioe);
+      }
+    }
+
+    @Override
+    public void cancelled() {
+      future.cancel();
+    }
+
+    @Override
+    public boolean cancel() {
+      backingOff.remove(this);
+      final Future<?> currentFuture = current.get();
+      if (currentFuture != null) {
+        currentFuture.cancel(true);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer that is shared by the whole library
+ * <p/>
+ * It runs the short, non-blocking tasks of connections and transports (E.g.:
+ * aborting calls at their deadline, or starting retries after their backoff).
+ * It gets created on first use, and is never shut down, so closing a
+ * transport does not shut it down either. Its single daemon thread ends after
+ * a minute of idling, so it neither keeps the JVM alive, nor lingers once
+ * all transports got closed. Cancelled tasks get removed right away.
+ */
+class SharedScheduler {
+  /**
+   * Gets the timer that is shared by the whole library
+   *
+   * @return the shared timer
+   */
+  public static ScheduledExecutorService get() {
+    return SchedulerHolder.SCHEDULER;
+  }
+
+  private static ScheduledExecutorService createScheduler() {
+    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+        1, new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "conduit-timer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.setRemoveOnCancelPolicy(true);
+    executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Holds the shared timer, so it gets created on first use
+   */
+  private static class SchedulerHolder {
+    private static final ScheduledExecutorService SCHEDULER = createScheduler();
+  }
+}
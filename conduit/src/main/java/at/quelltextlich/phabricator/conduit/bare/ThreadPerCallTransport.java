@@ -0,0 +1,136 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+
+/**
+ * Transport that runs each non-blocking call as a blocking call on a thread
+ * of its own
+ * <p/>
+ * By default, threads come from {@link CallExecutors#newCallExecutor()}. So
+ * on Java 21 and newer, each call runs on a virtual thread, and waiting for
+ * the server does not tie up a platform thread. This allows to send many
+ * concurrent calls through a blocking transport (e.g.: the pooled
+ * {@link ApacheTransport#send(TransportRequest)}), without a non-blocking
+ * client and its I/O reactor. Blocking calls run on the calling thread, as
+ * with the wrapped transport.
+ * <p/>
+ * Cancelling a call interrupts its thread. Virtual threads abort their
+ * socket I/O when interrupted. On platform threads, the call may run to its
+ * end, and its response gets dropped.
+ */
+public class ThreadPerCallTransport implements Transport {
+  private static final Logger log = LoggerFactory.getLogger(Conduit.class);
+
+  private final Transport transport;
+  private final ExecutorService executor;
+
+  public ThreadPerCallTransport(final Transport transport) {
+    this(transport, CallExecutors.newCallExecutor());
+  }
+
+  /**
+   * @param transport
+   *          The transport to send calls through. Closing this transport
+   *          closes it as well.
+   * @param executor
+   *          The executor to run calls on. Closing this transport shuts it
+   *          down.
+   */
+  public ThreadPerCallTransport(final Transport transport,
+      final ExecutorService executor) {
+    this.transport = transport;
+    this.executor = executor;
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    return transport.send(request);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final Future<?> task;
+    try {
+      task = executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          if (future.isDone()) {
+            return;
+          }
+          try {
+            final TransportResponse response = transport.send(request);
+            if (!future.completed(response)) {
+              closeQuietly(response);
+            }
+          } catch (final IOException e) {
+            future.failed(e);
+          } catch (final RuntimeException e) {
+            future.failed(e);
+          }
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      future.failed(new IOException("Transport has already been closed", e));
+      return future;
+    }
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return task.cancel(true);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Closes a response that nobody waits for anymore
+   *
+   * @param response
+   *          The response to close
+   */
+  private void closeQuietly(final TransportResponse response) {
+    try {
+      response.close();
+    } catch (final IOException e) {
+      log.debug("Could not close dropped response", e);
+    }
+  }
+
+  /**
+   * Closes the transport
+   * <p/>
+   * Calls that are still running get interrupted.
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    transport.close();
+  }
+}
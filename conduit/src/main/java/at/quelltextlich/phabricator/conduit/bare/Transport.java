@@ -0,0 +1,63 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Moves Conduit calls to the server and their responses back
+ * <p/>
+ * A transport only ships bytes. Encoding the parameters is up to the
+ * {@link TransportRequest}, and decompressing and parsing the response is up
+ * to the {@link Connection}. Transports have to be thread-safe.
+ * <p/>
+ * Implementations are {@link ApacheTransport} (the default),
+ * {@link Http2Transport}, {@code JavaNetHttpTransport} (on Java 11 and
+ * newer), and {@link LoopbackTransport} for calls that do not leave the JVM.
+ * <p/>
+ * Transports can be stacked to add behavior to another transport. E.g.:
+ * {@link RetryingTransport} retries failed calls. A
+ * {@link LoadBalancingTransport} spreads calls over several transports.
+ */
+public interface Transport extends Closeable {
+  /**
+   * Sends a call and waits for its response
+   *
+   * @param request
+   *          The call to send
+   * @return the response. The caller has to close it.
+   * @throws IOException
+   *           if the call could not be sent, or no response was received
+   */
+  public TransportResponse send(TransportRequest request) throws IOException;
+
+  /**
+   * Sends a call without blocking
+   *
+   * @param request
+   *          The call to send
+   * @param callback
+   *          Callback to notify once the response is available. May be null.
+   *          The callback may be run on an I/O thread, so it should not block.
+   * @return Future for the response. The receiver of the response has to
+   *         close it. If sending fails, the future fails with an IOException.
+   *         Cancelling the future aborts the call.
+   */
+  public Future<TransportResponse> sendAsync(TransportRequest request,
+      FutureCallback<TransportResponse> callback);
+}
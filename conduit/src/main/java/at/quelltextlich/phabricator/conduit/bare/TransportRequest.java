@@ -0,0 +1,501 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.Cancellable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A Conduit call, as handed to a {@link Transport}
+ * <p/>
+ * The request's body is {@code params=} followed by the url-encoded JSON of
+ * the parameters. The JSON gets serialized and url-encoded while it is
+ * written, or read through {@link #openBody()}, so neither the JSON nor the
+ * encoded body is held in memory.
+ * <p/>
+ * A request may carry a deadline, which is the same for all attempts of the
+ * call, and it may get cancelled while in flight. Transports that block
+ * register how to abort their work through
+ * {@link #addCancellable(Cancellable)}, so a cancelled call releases its
+ * connection right away.
+ */
+public class TransportRequest {
+  /**
+   * Content type of request bodies
+   */
+  public static final String CONTENT_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+
+  private static final byte[] PREFIX = "params="
+      .getBytes(StandardCharsets.US_ASCII);
+
+  private final String method;
+  private final Gson gson;
+  private final Map<String, Object> params;
+  private final boolean compressionAccepted;
+  private final List<Cancellable> cancellables;
+  private volatile long timeoutMillis;
+  private volatile long deadlineNanos;
+  private volatile boolean cancelled;
+
+  /**
+   * @param method
+   *          The name of the Conduit method to call
+   * @param gson
+   *          Gson to serialize the parameters with
+   * @param params
+   *          The parameters to pass to the call
+   * @param compressionAccepted
+   *          true, if the response may be gzip or deflate compressed
+   */
+  public TransportRequest(final String method, final Gson gson,
+      final Map<String, Object> params, final boolean compressionAccepted) {
+    this.method = method;
+    this.gson = gson;
+    this.params = params;
+    this.compressionAccepted = compressionAccepted;
+    cancellables = new ArrayList<Cancellable>(1);
+    timeoutMillis = 0;
+    deadlineNanos = 0;
+    cancelled = false;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public boolean isCompressionAccepted() {
+    return compressionAccepted;
+  }
+
+  /**
+   * Creates a separate attempt of the same call
+   * <p/>
+   * The copy has the same parameters and deadline, but can get cancelled on
+   * its own. Cancelling this request does not cancel the copy.
+   *
+   * @return the copy of the request
+   */
+  TransportRequest copy() {
+    final TransportRequest copy = new TransportRequest(method, gson, params,
+        compressionAccepted);
+    copy.timeoutMillis = timeoutMillis;
+    copy.deadlineNanos = deadlineNanos;
+    return copy;
+  }
+
+  /**
+   * Sets the time the call may take from now on
+   *
+   * @param timeoutMillis
+   *          the timeout in milliseconds. Non-positive values mean the call
+   *          does not time out.
+   */
+  void setTimeoutMillis(final long timeoutMillis) {
+    this.timeoutMillis = Math.max(0, timeoutMillis);
+    deadlineNanos = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+  }
+
+  /**
+   * Gets the time the call may take
+   *
+   * @return the timeout in milliseconds, or 0 if the call does not time out
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Checks whether the call has a deadline
+   *
+   * @return true, if the call times out
+   */
+  public boolean hasDeadline() {
+    return timeoutMillis > 0;
+  }
+
+  /**
+   * Gets the time that is left until the call's deadline
+   * <p/>
+   * The deadline is the same for all attempts of a call, so retries and
+   * waiting for limits use up the call's budget.
+   *
+   * @return the remaining time in nanoseconds. Non-positive, if the deadline
+   *         passed. {@link Long#MAX_VALUE}, if the call has no deadline.
+   */
+  public long getRemainingNanos() {
+    if (!hasDeadline()) {
+      return Long.MAX_VALUE;
+    }
+    return deadlineNanos - System.nanoTime();
+  }
+
+  /**
+   * Caps a timeout by the time that is left until the call's deadline
+   *
+   * @param timeoutMillis
+   *          The timeout to cap in milliseconds. Non-positive values mean no
+   *          timeout.
+   * @return the capped timeout in milliseconds, or the passed timeout if the
+   *         call has no deadline. Calls with a deadline get a timeout of at
+   *         least 1 millisecond.
+   */
+  public long capTimeoutMillis(final long timeoutMillis) {
+    if (!hasDeadline()) {
+      return timeoutMillis;
+    }
+    final long remainingMillis = Math.max(1,
+        TimeUnit.NANOSECONDS.toMillis(getRemainingNanos()));
+    if (timeoutMillis <= 0) {
+      return remainingMillis;
+    }
+    return Math.min(timeoutMillis, remainingMillis);
+  }
+
+  /**
+   * Checks whether the call's deadline passed
+   *
+   * @return true, if the call has a deadline, and it passed
+   */
+  public boolean isExpired() {
+    return getRemainingNanos() <= 0;
+  }
+
+  /**
+   * Checks whether the call has been cancelled
+   *
+   * @return true, if the call has been cancelled, or its deadline passed
+   *         and it got aborted
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Cancels the call, and aborts its work in flight
+   */
+  public void cancel() {
+    final List<Cancellable> currentCancellables;
+    synchronized (cancellables) {
+      cancelled = true;
+      currentCancellables = new ArrayList<Cancellable>(cancellables);
+    }
+    for (final Cancellable cancellable : currentCancellables) {
+      cancellable.cancel();
+    }
+  }
+
+  /**
+   * Registers work to abort, when the call gets cancelled
+   * <p/>
+   * If the call has already been cancelled, the work gets aborted right
+   * away.
+   *
+   * @param cancellable
+   *          the work to abort
+   */
+  public void addCancellable(final Cancellable cancellable) {
+    synchronized (cancellables) {
+      if (!cancelled) {
+        cancellables.add(cancellable);
+        return;
+      }
+    }
+    cancellable.cancel();
+  }
+
+  /**
+   * Unregisters work that completed
+   *
+   * @param cancellable
+   *          the work that completed
+   */
+  public void removeCancellable(final Cancellable cancellable) {
+    synchronized (cancellables) {
+      cancellables.remove(cancellable);
+    }
+  }
+
+  /**
+   * Writes the form-encoded request body
+   * <p/>
+   * The stream does not get closed. The body can be written any number of
+   * times.
+   *
+   * @param out
+   *          The stream to write the body to
+   * @throws IOException
+   *           if writing fails
+   */
+  public void writeBody(final OutputStream out) throws IOException {
+    out.write(PREFIX);
+    final FormEncodingOutputStream encodingOut = new FormEncodingOutputStream(
+        out);
+    final Writer writer = new OutputStreamWriter(encodingOut,
+        StandardCharsets.UTF_8);
+    try {
+      gson.toJson(params, writer);
+    } catch (final JsonIOException e) {
+      throw new IOException("Could not serialize parameters", e);
+    }
+    // Flushing instead of closing, as closing would close the passed stream.
+    writer.flush();
+  }
+
+  /**
+   * Opens the form-encoded request body for reading
+   * <p/>
+   * This suits consumers that pull the body (E.g.: HttpAsyncClient), where
+   * {@link #writeBody(OutputStream)} suits consumers that push it. The body
+   * gets serialized and url-encoded while it is read, one JSON value at a
+   * time. Only the parameters' JSON tree gets built upfront. It shares its
+   * strings with the parameters, so it does not copy their content.
+   * <p/>
+   * The body matches the one of {@link #writeBody(OutputStream)}, except for
+   * whitespace, if the Gson instance pretty-prints.
+   *
+   * @return the stream of the body
+   * @throws IOException
+   *           if the parameters could not get serialized
+   */
+  public InputStream openBody() throws IOException {
+    final JsonElement tree;
+    try {
+      tree = gson.toJsonTree(params);
+    } catch (final JsonIOException e) {
+      throw new IOException("Could not serialize parameters", e);
+    }
+    return new BodyInputStream(gson, tree);
+  }
+
+  /**
+   * Gets the JSON of the parameters for logging
+   *
+   * @return the JSON of the parameters
+   */
+  public String getParamsJson() {
+    return gson.toJson(params);
+  }
+
+  /**
+   * Form-encoded body, that gets serialized while it is read
+   * <p/>
+   * The JSON tree gets walked one value at a time. Gson writes keys and
+   * values, so they get escaped as in {@link Gson#toJson(Object)}.
+   */
+  private static class BodyInputStream extends InputStream {
+    private final Gson gson;
+    private final ByteArrayOutputStream pending;
+    private final Writer writer;
+    private final Deque<Frame> frames;
+    private JsonElement root;
+    private byte[] chunk;
+    private int position;
+    private boolean done;
+
+    public BodyInputStream(final Gson gson, final JsonElement root) {
+      this.gson = gson;
+      this.root = root;
+      pending = new ByteArrayOutputStream();
+      writer = new OutputStreamWriter(new FormEncodingOutputStream(pending),
+          StandardCharsets.UTF_8);
+      frames = new ArrayDeque<Frame>();
+      chunk = PREFIX;
+      position = 0;
+      done = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position >= chunk.length) {
+        if (done) {
+          return -1;
+        }
+        refill();
+      }
+      final int count = Math.min(len, chunk.length - position);
+      System.arraycopy(chunk, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    /**
+     * Encodes the next part of the body
+     */
+    private void refill() throws IOException {
+      pending.reset();
+      while (pending.size() == 0 && !done) {
+        step();
+        writer.flush();
+      }
+      chunk = pending.toByteArray();
+      position = 0;
+    }
+
+    /**
+     * Writes the next value, or closes the innermost object or array
+     */
+    private void step() throws IOException {
+      if (root != null) {
+        final JsonElement element = root;
+        root = null;
+        write(element);
+        return;
+      }
+      final Frame frame = frames.peek();
+      if (frame == null) {
+        done = true;
+        return;
+      }
+      if (!frame.elements.hasNext()) {
+        frames.pop();
+        writer.write(frame.members ? '}' : ']');
+        return;
+      }
+      if (!frame.first) {
+        writer.write(',');
+      }
+      frame.first = false;
+      if (frame.members) {
+        final Map.Entry<?, ?> member = (Map.Entry<?, ?>) frame.elements
+            .next();
+        writer.write(gson.toJson(new JsonPrimitive((String) member.getKey())));
+        writer.write(':');
+        write((JsonElement) member.getValue());
+      } else {
+        write((JsonElement) frame.elements.next());
+      }
+    }
+
+    /**
+     * Writes a value, or opens an object or array
+     */
+    private void write(final JsonElement element) throws IOException {
+      if (element.isJsonObject()) {
+        writer.write('{');
+        frames.push(new Frame(element.getAsJsonObject().entrySet()
+            .iterator(), true));
+      } else if (element.isJsonArray()) {
+        writer.write('[');
+        frames.push(new Frame(element.getAsJsonArray().iterator(), false));
+      } else {
+        writer.write(gson.toJson(element));
+      }
+    }
+
+    /**
+     * An object or array, whose values are being written
+     */
+    private static class Frame {
+      private final Iterator<?> elements;
+      private final boolean members;
+      private boolean first;
+
+      public Frame(final Iterator<?> elements, final boolean members) {
+        this.elements = elements;
+        this.members = members;
+        first = true;
+      }
+    }
+  }
+
+  /**
+   * Url-encodes bytes for application/x-www-form-urlencoded bodies
+   * <p/>
+   * Alphanumeric characters and {@code -._*} are passed on as is, spaces
+   * become {@code +}, and all other bytes get percent-encoded.
+   */
+  static class FormEncodingOutputStream extends FilterOutputStream {
+    private static final byte[] HEX = "0123456789ABCDEF"
+        .getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] buffer;
+    private int count;
+
+    public FormEncodingOutputStream(final OutputStream out) {
+      super(out);
+      buffer = new byte[8192];
+      count = 0;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (count > buffer.length - 3) {
+        flushBuffer();
+      }
+      if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+          || (b >= '0' && b <= '9') || b == '-' || b == '.' || b == '_'
+          || b == '*') {
+        buffer[count++] = (byte) b;
+      } else if (b == ' ') {
+        buffer[count++] = '+';
+      } else {
+        buffer[count++] = '%';
+        buffer[count++] = HEX[(b >> 4) & 0x0F];
+        buffer[count++] = HEX[b & 0x0F];
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+      for (int i = off; i < off + len; i++) {
+        write(b[i]);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushBuffer();
+      out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+      if (count > 0) {
+        out.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+  }
+}
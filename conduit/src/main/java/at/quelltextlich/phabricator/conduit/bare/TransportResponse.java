@@ -0,0 +1,61 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Raw response to a Conduit call, as received by a {@link Transport}
+ * <p/>
+ * The response has to be closed once its content has been read, so the
+ * transport can reuse or release the underlying connection.
+ */
+public interface TransportResponse extends Closeable {
+  /**
+   * Gets the response's status code
+   *
+   * @return the HTTP status code, or 200 for transports without status codes
+   */
+  public int getStatusCode();
+
+  /**
+   * Gets the encoding that the content has been compressed with
+   *
+   * @return the content encoding (e.g.: "gzip"), or null if the content is
+   *         not compressed
+   */
+  public String getContentEncoding();
+
+  /**
+   * Gets the charset of the content
+   *
+   * @return the content's charset, or null if the response did not specify
+   *         one
+   */
+  public Charset getCharset();
+
+  /**
+   * Gets the response's content as it has been received
+   * <p/>
+   * The content is not decompressed.
+   *
+   * @return stream of the content
+   * @throws IOException
+   *           if the content could not be opened
+   */
+  public InputStream getContent() throws IOException;
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+
+/**
+ * Authenticates calls with a Conduit API token
+ * <p/>
+ * Phabricator accepts API tokens (as generated in a user's settings) in the
+ * {@code __conduit__} parameter of each call. So, unlike
+ * {@link OnDemandSessionHandler}, no {@code conduit.connect} is needed,
+ * neither before the first call, nor after sessions expire.
+ * <p/>
+ * The {@code __conduit__} parameter is built once and shared by all calls.
+ * As it cannot be modified, the handler is thread-safe. Only the map gets
+ * reused though. Gson still serializes it along with the other parameters
+ * on each call.
+ */
+public class ApiTokenSessionHandler implements SessionHandler {
+  private final Map<String, Object> conduitParams;
+
+  /**
+   * @param apiToken
+   *          The API token to authenticate with (E.g.:
+   *          {@code api-abcdefghijklmnopqrstuvwxyz12})
+   */
+  public ApiTokenSessionHandler(final String apiToken) {
+    if (apiToken == null || apiToken.isEmpty()) {
+      throw new IllegalArgumentException("No API token given");
+    }
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("token", apiToken);
+    conduitParams = Collections.unmodifiableMap(params);
+  }
+
+  @Override
+  public void fillInSession(final Map<String, Object> params) {
+    params.put("__conduit__", conduitParams);
+  }
+
+  /**
+   * Fills in the token right away, as that never blocks
+   */
+  @Override
+  public void fillInSessionAsync(final Map<String, Object> params,
+      final FutureCallback<Void> callback) {
+    fillInSession(params);
+    callback.completed(null);
+  }
+
+  /**
+   * Does nothing, as API tokens do not expire like sessions
+   */
+  @Override
+  public void invalidateSession(final Map<String, Object> params) {
+  }
+
+  /**
+   * Does nothing, as failures other than rejected sessions do not affect
+   * the session
+   */
+  @Override
+  public void callFailed(final Map<String, Object> params,
+      final ConduitException e) {
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+import at.quelltextlich.phabricator.conduit.bare.ConnectionConfig;
+
+/**
+ * Non-blocking bindings for Phabricator's Conduit API, based on
+ * {@link CompletableFuture}s
+ * <p/>
+ * This allows to compose calls without blocking. E.g.: to fetch a task and
+ * its author at the same time, and go on once both are there, so the latency
+ * is that of the slowest call, instead of the sum of all calls.
+ * <p/>
+ * Calls run through the modules of a {@link Conduit}, and share its
+ * connection and session. The futures complete on the thread that parsed the
+ * call's response. That is an I/O thread of the connection, unless a parse
+ * executor is set through
+ * {@link ConnectionConfig#setParseExecutor(Executor)}. So dependent stages
+ * should not block, or should be run on an executor of their own through the
+ * {@code *Async} methods of {@link CompletableFuture}.
+ * <p/>
+ * Cancelling a future aborts its call. Like {@link Conduit}, this class is
+ * thread-safe.
+ */
+public class AsyncConduit {
+  public final AsyncConduitModule conduit;
+  public final AsyncManiphestModule maniphest;
+  public final AsyncPhidModule phid;
+  public final AsyncProjectModule project;
+  public final AsyncUserModule user;
+
+  /**
+   * Creates non-blocking bindings on top of a Conduit
+   *
+   * @param conduit
+   *          The Conduit to run calls through
+   */
+  public AsyncConduit(final Conduit conduit) {
+    this(new AsyncConduitModule(conduit.conduit), new AsyncManiphestModule(
+        conduit.maniphest), new AsyncPhidModule(conduit.phid),
+        new AsyncProjectModule(conduit.project), new AsyncUserModule(
+            conduit.user));
+  }
+
+  public AsyncConduit(final AsyncConduitModule conduitModule,
+      final AsyncManiphestModule maniphestModule,
+      final AsyncPhidModule phidModule,
+      final AsyncProjectModule projectModule,
+      final AsyncUserModule userModule) {
+    conduit = conduitModule;
+    maniphest = maniphestModule;
+    phid = phidModule;
+    project = projectModule;
+    user = userModule;
+  }
+
+  /**
+   * Gets a view on this AsyncConduit, whose calls use the given options
+   *
+   * @see Conduit#withCallOptions(CallOptions)
+   */
+  public AsyncConduit withCallOptions(final CallOptions options) {
+    return new AsyncConduit(conduit.withCallOptions(options),
+        maniphest.withCallOptions(options), phid.withCallOptions(options),
+        project.withCallOptions(options), user.withCallOptions(options));
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.concurrent.CompletableFuture;
+
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+
+/**
+ * CompletableFuture-based counterpart of {@link ConduitModule}
+ * <p/>
+ * See {@link AsyncConduit} on which threads the futures complete.
+ */
+public class AsyncConduitModule {
+  private final ConduitModule module;
+
+  public AsyncConduitModule(final ConduitModule module) {
+    this.module = module;
+  }
+
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @see ConduitModule#withCallOptions(CallOptions)
+   */
+  public AsyncConduitModule withCallOptions(final CallOptions options) {
+    return new AsyncConduitModule(module.withCallOptions(options));
+  }
+
+  /**
+   * Runs the API's 'conduit.ping' method without blocking
+   *
+   * @see ConduitModule#ping()
+   */
+  public CompletableFuture<ConduitModule.PingResult> ping() {
+    final CompletableCall<ConduitModule.PingResult> call = new CompletableCall<ConduitModule.PingResult>();
+    return call.boundTo(module.pingAsync(call));
+  }
+
+  /**
+   * Runs the API's 'conduit.connect' method without blocking
+   *
+   * @see ConduitModule#connect()
+   */
+  public CompletableFuture<ConduitModule.ConnectResult> connect() {
+    final CompletableCall<ConduitModule.ConnectResult> call = new CompletableCall<ConduitModule.ConnectResult>();
+    return call.boundTo(module.connectAsync(call));
+  }
+
+  /**
+   * Runs the API's 'conduit.getcapabilities' method without blocking
+   *
+   * @see ConduitModule#getCapabilities()
+   */
+  public CompletableFuture<ConduitModule.GetCapabilitiesResult> getCapabilities() {
+    final CompletableCall<ConduitModule.GetCapabilitiesResult> call = new CompletableCall<ConduitModule.GetCapabilitiesResult>();
+    return call.boundTo(module.getCapabilitiesAsync(call));
+  }
+
+  /**
+   * Runs the API's 'conduit.getcertificate' method without blocking
+   *
+   * @see ConduitModule#getCertificate(String, String)
+   */
+  public CompletableFuture<ConduitModule.GetCertificateResult> getCertificate(
+      final String token, final String host) {
+    final CompletableCall<ConduitModule.GetCertificateResult> call = new CompletableCall<ConduitModule.GetCertificateResult>();
+    return call.boundTo(module.getCertificateAsync(token, host, call));
+  }
+
+  /**
+   * Runs the API's 'conduit.query' method without blocking
+   *
+   * @see ConduitModule#query()
+   */
+  public CompletableFuture<ConduitModule.QueryResult> query() {
+    final CompletableCall<ConduitModule.QueryResult> call = new CompletableCall<ConduitModule.QueryResult>();
+    return call.boundTo(module.queryAsync(call));
+  }
+}
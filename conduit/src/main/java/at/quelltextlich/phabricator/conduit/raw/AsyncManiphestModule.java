@@ -0,0 +1,123 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+
+/**
+ * CompletableFuture-based counterpart of {@link ManiphestModule}
+ * <p/>
+ * See {@link AsyncConduit} on which threads the futures complete.
+ */
+public class AsyncManiphestModule {
+  private final ManiphestModule module;
+
+  public AsyncManiphestModule(final ManiphestModule module) {
+    this.module = module;
+  }
+
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @see ManiphestModule#withCallOptions(CallOptions)
+   */
+  public AsyncManiphestModule withCallOptions(final CallOptions options) {
+    return new AsyncManiphestModule(module.withCallOptions(options));
+  }
+
+  /**
+   * Runs the API's 'maniphest.createtask' method without blocking
+   *
+   * @see ManiphestModule#createTask(String, String, String, String, String, List, Integer, List, Map)
+   */
+  public CompletableFuture<ManiphestModule.CreateTaskResult> createTask(
+      final String title, final String description, final String ownerPhid,
+      final String viewPolicy, final String editPolicy,
+      final List<String> ccPhids, final Integer priority,
+      final List<String> projectPhids, final Map<String, String> auxiliary) {
+    final CompletableCall<ManiphestModule.CreateTaskResult> call = new CompletableCall<ManiphestModule.CreateTaskResult>();
+    return call.boundTo(module.createTaskAsync(title, description, ownerPhid,
+        viewPolicy, editPolicy, ccPhids, priority, projectPhids, auxiliary,
+        call));
+  }
+
+  /**
+   * Runs the API's 'maniphest.gettasktransactions' method without blocking
+   *
+   * @see ManiphestModule#getTaskTransactions(List)
+   */
+  public CompletableFuture<ManiphestModule.GetTaskTransactionsResult> getTaskTransactions(
+      final List<Integer> ids) {
+    final CompletableCall<ManiphestModule.GetTaskTransactionsResult> call = new CompletableCall<ManiphestModule.GetTaskTransactionsResult>();
+    return call.boundTo(module.getTaskTransactionsAsync(ids, call));
+  }
+
+  /**
+   * Runs the API's 'maniphest.info' method without blocking
+   *
+   * @see ManiphestModule#info(int)
+   */
+  public CompletableFuture<ManiphestModule.InfoResult> info(final int taskId) {
+    final CompletableCall<ManiphestModule.InfoResult> call = new CompletableCall<ManiphestModule.InfoResult>();
+    return call.boundTo(module.infoAsync(taskId, call));
+  }
+
+  /**
+   * Runs the API's 'maniphest.update' method without blocking
+   *
+   * @see ManiphestModule#update(Integer, String, String, String, String, String, String, List, Integer, List, Map, String, String)
+   */
+  public CompletableFuture<ManiphestModule.UpdateResult> update(
+      final Integer id, final String phid, final String title,
+      final String description, final String ownerPhid, final String viewPolicy,
+      final String editPolicy, final List<String> ccPhids,
+      final Integer priority, final List<String> projectPhids,
+      final Map<String, String> auxiliary, final String status,
+      final String comments) {
+    final CompletableCall<ManiphestModule.UpdateResult> call = new CompletableCall<ManiphestModule.UpdateResult>();
+    return call.boundTo(module.updateAsync(id, phid, title, description,
+        ownerPhid, viewPolicy, editPolicy, ccPhids, priority, projectPhids,
+        auxiliary, status, comments, call));
+  }
+
+  /**
+   * Runs the API's 'maniphest.query' method without blocking
+   *
+   * @see ManiphestModule#query(List, List, List, List, List, List, String, String, String, Integer, Integer)
+   */
+  public CompletableFuture<ManiphestModule.QueryResult> query(
+      final List<Integer> ids, final List<String> phids,
+      final List<String> ownerPhids, final List<String> authorPhids,
+      final List<String> projectPhids, final List<String> ccPhids,
+      final String fullText, final String status, final String order,
+      final Integer limit, final Integer offset) {
+    final CompletableCall<ManiphestModule.QueryResult> call = new CompletableCall<ManiphestModule.QueryResult>();
+    return call.boundTo(module.queryAsync(ids, phids, ownerPhids, authorPhids,
+        projectPhids, ccPhids, fullText, status, order, limit, offset, call));
+  }
+
+  /**
+   * Runs the API's 'maniphest.querystatuses' method without blocking
+   *
+   * @see ManiphestModule#queryStatuses()
+   */
+  public CompletableFuture<ManiphestModule.QueryStatusesResult> queryStatuses() {
+    final CompletableCall<ManiphestModule.QueryStatusesResult> call = new CompletableCall<ManiphestModule.QueryStatusesResult>();
+    return call.boundTo(module.queryStatusesAsync(call));
+  }
+}
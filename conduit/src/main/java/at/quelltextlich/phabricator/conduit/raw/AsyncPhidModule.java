@@ -0,0 +1,62 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.concurrent.CompletableFuture;
+
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+
+/**
+ * CompletableFuture-based counterpart of {@link PhidModule}
+ * <p/>
+ * See {@link AsyncConduit} on which threads the futures complete.
+ */
+public class AsyncPhidModule {
+  private final PhidModule module;
+
+  public AsyncPhidModule(final PhidModule module) {
+    this.module = module;
+  }
+
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @see PhidModule#withCallOptions(CallOptions)
+   */
+  public AsyncPhidModule withCallOptions(final CallOptions options) {
+    return new AsyncPhidModule(module.withCallOptions(options));
+  }
+
+  /**
+   * Runs the API's 'phid.lookup' method without blocking
+   *
+   * @see PhidModule#lookup(Iterable)
+   */
+  public CompletableFuture<PhidModule.LookupResult> lookup(
+      final Iterable<String> names) {
+    final CompletableCall<PhidModule.LookupResult> call = new CompletableCall<PhidModule.LookupResult>();
+    return call.boundTo(module.lookupAsync(names, call));
+  }
+
+  /**
+   * Runs the API's 'phid.query' method without blocking
+   *
+   * @see PhidModule#query(Iterable)
+   */
+  public CompletableFuture<PhidModule.QueryResult> query(
+      final Iterable<String> phids) {
+    final CompletableCall<PhidModule.QueryResult> call = new CompletableCall<PhidModule.QueryResult>();
+    return call.boundTo(module.queryAsync(phids, call));
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+
+/**
+ * CompletableFuture-based counterpart of {@link ProjectModule}
+ * <p/>
+ * See {@link AsyncConduit} on which threads the futures complete.
+ */
+public class AsyncProjectModule {
+  private final ProjectModule module;
+
+  public AsyncProjectModule(final ProjectModule module) {
+    this.module = module;
+  }
+
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @see ProjectModule#withCallOptions(CallOptions)
+   */
+  public AsyncProjectModule withCallOptions(final CallOptions options) {
+    return new AsyncProjectModule(module.withCallOptions(options));
+  }
+
+  /**
+   * Runs the API's 'project.create' method without blocking
+   *
+   * @see ProjectModule#create(String, List, String, String, List)
+   */
+  public CompletableFuture<ProjectModule.CreateResult> create(final String name,
+      final List<String> members, final String icon, final String color,
+      final List<String> tags) {
+    final CompletableCall<ProjectModule.CreateResult> call = new CompletableCall<ProjectModule.CreateResult>();
+    return call.boundTo(module.createAsync(name, members, icon, color, tags,
+        call));
+  }
+
+  /**
+   * Runs the API's 'project.query' method without blocking
+   *
+   * @see ProjectModule#query(List, List, List, List, List, List, String, List, Integer, Integer)
+   */
+  public CompletableFuture<ProjectModule.QueryResult> query(
+      final List<Integer> ids, final List<String> names,
+      final List<String> phids, final List<String> slugs,
+      final List<String> icons, final List<String> colors, final String status,
+      final List<String> members, final Integer limit, final Integer offset) {
+    final CompletableCall<ProjectModule.QueryResult> call = new CompletableCall<ProjectModule.QueryResult>();
+    return call.boundTo(module.queryAsync(ids, names, phids, slugs, icons,
+        colors, status, members, limit, offset, call));
+  }
+
+  /**
+   * Runs the API's 'project.query' method without blocking, paging by cursor
+   *
+   * @see ProjectModule#query(List, List, List, List, List, List, String, List, Integer, Integer, String, String)
+   */
+  public CompletableFuture<ProjectModule.QueryResult> query(
+      final List<Integer> ids, final List<String> names,
+      final List<String> phids, final List<String> slugs,
+      final List<String> icons, final List<String> colors, final String status,
+      final List<String> members, final Integer limit, final Integer offset,
+      final String before, final String after) {
+    final CompletableCall<ProjectModule.QueryResult> call = new CompletableCall<ProjectModule.QueryResult>();
+    return call.boundTo(module.queryAsync(ids, names, phids, slugs, icons,
+        colors, status, members, limit, offset, before, after, call));
+  }
+}
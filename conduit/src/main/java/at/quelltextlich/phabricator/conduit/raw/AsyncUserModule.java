@@ -0,0 +1,87 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+
+import com.google.gson.JsonElement;
+
+/**
+ * CompletableFuture-based counterpart of {@link UserModule}
+ * <p/>
+ * See {@link AsyncConduit} on which threads the futures complete.
+ */
+public class AsyncUserModule {
+  private final UserModule module;
+
+  public AsyncUserModule(final UserModule module) {
+    this.module = module;
+  }
+
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @see UserModule#withCallOptions(CallOptions)
+   */
+  public AsyncUserModule withCallOptions(final CallOptions options) {
+    return new AsyncUserModule(module.withCallOptions(options));
+  }
+
+  /**
+   * Runs the API's 'user.disable' method without blocking
+   *
+   * @see UserModule#disable(List)
+   */
+  public CompletableFuture<JsonElement> disable(final List<String> phids) {
+    final CompletableCall<JsonElement> call = new CompletableCall<JsonElement>();
+    return call.boundTo(module.disableAsync(phids, call));
+  }
+
+  /**
+   * Runs the API's 'user.enable' method without blocking
+   *
+   * @see UserModule#enable(List)
+   */
+  public CompletableFuture<JsonElement> enable(final List<String> phids) {
+    final CompletableCall<JsonElement> call = new CompletableCall<JsonElement>();
+    return call.boundTo(module.enableAsync(phids, call));
+  }
+
+  /**
+   * Runs the API's 'user.query' method without blocking
+   *
+   * @see UserModule#query(List, List, List, List, List, Integer, Integer)
+   */
+  public CompletableFuture<UserModule.QueryResult> query(
+      final List<String> usernames, final List<String> emails,
+      final List<String> realNames, final List<String> phids,
+      final List<Integer> ids, final Integer offset, final Integer limit) {
+    final CompletableCall<UserModule.QueryResult> call = new CompletableCall<UserModule.QueryResult>();
+    return call.boundTo(module.queryAsync(usernames, emails, realNames, phids,
+        ids, offset, limit, call));
+  }
+
+  /**
+   * Runs the API's 'user.whoami' method without blocking
+   *
+   * @see UserModule#whoAmI()
+   */
+  public CompletableFuture<UserModule.WhoAmIResult> whoAmI() {
+    final CompletableCall<UserModule.WhoAmIResult> call = new CompletableCall<UserModule.WhoAmIResult>();
+    return call.boundTo(module.whoAmIAsync(call));
+  }
+}
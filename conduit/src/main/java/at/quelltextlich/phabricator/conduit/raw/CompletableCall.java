@@ -0,0 +1,75 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * CompletableFuture of a non-blocking call
+ * <p/>
+ * The future gets passed as callback to the call, and completes along with
+ * it. Cancelling the future aborts the call.
+ */
+class CompletableCall<T> extends CompletableFuture<T> implements
+    FutureCallback<T> {
+  private final AtomicReference<Future<T>> call;
+
+  CompletableCall() {
+    call = new AtomicReference<Future<T>>();
+  }
+
+  /**
+   * Binds the future to the started call
+   *
+   * @param started
+   *          The future of the started call
+   * @return this future
+   */
+  CompletableCall<T> boundTo(final Future<T> started) {
+    call.set(started);
+    if (isCancelled()) {
+      started.cancel(true);
+    }
+    return this;
+  }
+
+  @Override
+  public boolean cancel(final boolean mayInterruptIfRunning) {
+    final boolean cancelled = super.cancel(mayInterruptIfRunning);
+    final Future<T> started = call.get();
+    if (cancelled && started != null) {
+      started.cancel(true);
+    }
+    return cancelled;
+  }
+
+  @Override
+  public void completed(final T result) {
+    complete(result);
+  }
+
+  @Override
+  public void failed(final Exception e) {
+    completeExceptionally(e);
+  }
+
+  @Override
+  public void cancelled() {
+    super.cancel(false);
+  }
+}
@@ -11,16 +11,20 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
-
 package at.quelltextlich.phabricator.conduit.raw;
 
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
+
 /**
  * Bindings for Phabricator's Conduit API
  * <p/>
  * To easily create instances from only connection strings, see the
  * {@link ConduitFactory#createConduit(String, String, String)} method.
  * <p/>
- * This class is not thread-safe.
+ * This class is thread-safe. A single instance, and the connection and
+ * session below it, can be shared by any number of threads. Sharing one
+ * instance is preferable to one instance per thread, as threads then share
+ * pooled HTTP connections and the session.
  */
 public class Conduit {
   public final ConduitModule conduit;
@@ -39,6 +43,23 @@ public class Conduit {
     user = userModule;
   }
 
+  /**
+   * Gets a view on this Conduit, whose calls use the given options
+   * <p/>
+   * E.g.: to bound all calls for a single request by a timeout, or to cancel
+   * them at once. Logging in for a session is not bound by the options.
+   *
+   * @param options
+   *          The options for the view's calls. null makes calls without
+   *          options.
+   * @return the view, which shares connection and session with this Conduit
+   */
+  public Conduit withCallOptions(final CallOptions options) {
+    return new Conduit(conduit.withCallOptions(options),
+        maniphest.withCallOptions(options), phid.withCallOptions(options),
+        project.withCallOptions(options), user.withCallOptions(options));
+  }
+
   /**
    * Gets the current ConduitModule
    *
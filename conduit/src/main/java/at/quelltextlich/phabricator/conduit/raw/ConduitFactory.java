@@ -13,19 +13,267 @@
 // limitations under the License.
 package at.quelltextlich.phabricator.conduit.raw;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
 public class ConduitFactory {
   public static Conduit createConduit(final String baseUrl,
       final String username, final String certificate) {
-    final Connection connection = new Connection(baseUrl);
+    return createConduit(new Connection(baseUrl), username, certificate);
+  }
 
+  /**
+   * Creates a Conduit on top of an existing Connection
+   * <p/>
+   * The Connection may be shared between several Conduits. Closing the
+   * Connection is up to the caller.
+   */
+  public static Conduit createConduit(final Connection connection,
+      final String username, final String certificate) {
     final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
 
     final ConduitModule conduitModule = new ConduitModule(connection,
         sessionHandler, username, certificate);
     sessionHandler.setConduitModule(conduitModule);
 
+    return createConduit(connection, sessionHandler, conduitModule);
+  }
+
+  /**
+   * Creates a Conduit that authenticates with an API token
+   * <p/>
+   * Calls carry the token, so no {@code conduit.connect} round trip is
+   * needed before the first call, or after sessions expire.
+   *
+   * @param baseUrl
+   *          The base url of the Phabricator instance
+   * @param apiToken
+   *          The API token to authenticate with
+   */
+  public static Conduit createConduitWithApiToken(final String baseUrl,
+      final String apiToken) {
+    return createConduitWithApiToken(new Connection(baseUrl), apiToken);
+  }
+
+  /**
+   * Creates a Conduit that authenticates with an API token on top of an
+   * existing Connection
+   * <p/>
+   * The Connection may be shared between several Conduits. Closing the
+   * Connection is up to the caller. As no user name and certificate are
+   * known, the Conduit's {@link ConduitModule#connect()} cannot open
+   * sessions.
+   *
+   * @see #createConduitWithApiToken(String, String)
+   */
+  public static Conduit createConduitWithApiToken(
+      final Connection connection, final String apiToken) {
+    final ApiTokenSessionHandler sessionHandler = new ApiTokenSessionHandler(
+        apiToken);
+
+    final ConduitModule conduitModule = new ConduitModule(connection,
+        sessionHandler, null, null);
+
+    return createConduit(connection, sessionHandler, conduitModule);
+  }
+
+  /**
+   * Creates a Conduit that spreads calls across several users
+   * <p/>
+   * Each user opens a session of their own. Calls take turns between the
+   * users' sessions, and users that get throttled or rejected sit out for a
+   * while. See {@link PooledSessionHandler}.
+   *
+   * @param baseUrl
+   *          The base url of the Phabricator instance
+   * @param certificates
+   *          The certificates to authenticate with, keyed by user name
+   */
+  public static Conduit createPooledConduit(final String baseUrl,
+      final Map<String, String> certificates) {
+    return createPooledConduit(new Connection(baseUrl), certificates);
+  }
+
+  /**
+   * Creates a Conduit that spreads calls across several users on top of an
+   * existing Connection
+   * <p/>
+   * The Connection may be shared between several Conduits. Closing the
+   * Connection is up to the caller. As the Conduit's {@link ConduitModule}
+   * has no user name and certificate of its own, its
+   * {@link ConduitModule#connect()} cannot open sessions.
+   *
+   * @see #createPooledConduit(String, Map)
+   */
+  public static Conduit createPooledConduit(final Connection connection,
+      final Map<String, String> certificates) {
+    final List<OnDemandSessionHandler> handlers = new ArrayList<OnDemandSessionHandler>();
+    for (final Map.Entry<String, String> entry : certificates.entrySet()) {
+      final OnDemandSessionHandler handler = new OnDemandSessionHandler();
+      handler.setConduitModule(new ConduitModule(connection, handler, entry
+          .getKey(), entry.getValue()));
+      handlers.add(handler);
+    }
+    final PooledSessionHandler sessionHandler = new PooledSessionHandler(
+        handlers);
+
+    final ConduitModule conduitModule = new ConduitModule(connection,
+        sessionHandler, null, null);
+
+    return createConduit(connection, sessionHandler, conduitModule);
+  }
+
+  /**
+   * Warms up a Conduit in the background, so its first calls are fast
+   * <p/>
+   * All steps run in parallel: {@code connections} concurrent
+   * {@code conduit.ping} calls open and handshake pooled HTTP connections,
+   * while {@code maniphest.querystatuses} opens the session, and
+   * {@code conduit.getcapabilities} gets fetched. Along the way, the classes
+   * and JSON bindings for calls get loaded.
+   * <p/>
+   * Short-lived programs should start the warm-up right after creating the
+   * Conduit, and do their own setup meanwhile. Calls may start before the
+   * warm-up is done. They then share the session that is being opened.
+   *
+   * @param conduit
+   *          The Conduit to warm up
+   * @param connections
+   *          The number of pooled HTTP connections to open. Connections
+   *          beyond the pool's limits do not get opened. 0 opens none
+   *          besides the ones for the other steps.
+   * @return the future of the prefetched results. It fails with the first
+   *         failing step's ConduitException.
+   */
+  public static Future<WarmUpResult> warmUp(final Conduit conduit,
+      final int connections) {
+    final ExecutorService executor = Executors
+        .newCachedThreadPool(new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "conduit-warm-up");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    final long start = System.nanoTime();
+    try {
+      // Pings wait for each other, so they overlap and each needs a
+      // connection of its own.
+      final int pingCount = Math.max(0, connections);
+      final CountDownLatch pingsReady = new CountDownLatch(pingCount);
+      final List<Future<?>> pings = new ArrayList<Future<?>>();
+      for (int i = 0; i < pingCount; i++) {
+        pings.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            pingsReady.countDown();
+            pingsReady.await();
+            conduit.conduit.ping();
+            return null;
+          }
+        }));
+      }
+      final Future<ManiphestModule.QueryStatusesResult> statuses = executor
+          .submit(new Callable<ManiphestModule.QueryStatusesResult>() {
+            @Override
+            public ManiphestModule.QueryStatusesResult call()
+                throws ConduitException {
+              return conduit.maniphest.queryStatuses();
+            }
+          });
+      final Future<ConduitModule.GetCapabilitiesResult> capabilities = executor
+          .submit(new Callable<ConduitModule.GetCapabilitiesResult>() {
+            @Override
+            public ConduitModule.GetCapabilitiesResult call()
+                throws ConduitException {
+              return conduit.conduit.getCapabilities();
+            }
+          });
+      return executor.submit(new Callable<WarmUpResult>() {
+        @Override
+        public WarmUpResult call() throws Exception {
+          for (final Future<?> ping : pings) {
+            await(ping);
+          }
+          return new WarmUpResult(await(capabilities), await(statuses),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+      });
+    } finally {
+      // Already submitted steps still run, and the threads end afterwards.
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Waits for a warm-up step
+   *
+   * @return the step's result
+   * @throws Exception
+   *           the step's failure
+   */
+  private static <T> T await(final Future<T> step) throws Exception {
+    try {
+      return step.get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Models the results prefetched while warming up a Conduit
+   */
+  public static class WarmUpResult {
+    private final ConduitModule.GetCapabilitiesResult capabilities;
+    private final ManiphestModule.QueryStatusesResult statuses;
+    private final long elapsedMillis;
+
+    public WarmUpResult(
+        final ConduitModule.GetCapabilitiesResult capabilities,
+        final ManiphestModule.QueryStatusesResult statuses,
+        final long elapsedMillis) {
+      this.capabilities = capabilities;
+      this.statuses = statuses;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public ConduitModule.GetCapabilitiesResult getCapabilities() {
+      return capabilities;
+    }
+
+    public ManiphestModule.QueryStatusesResult getStatuses() {
+      return statuses;
+    }
+
+    /**
+     * Gets the time the warm-up took
+     *
+     * @return the time in milliseconds
+     */
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  private static Conduit createConduit(final Connection connection,
+      final SessionHandler sessionHandler, final ConduitModule conduitModule) {
     final ManiphestModule maniphestModule = new ManiphestModule(connection,
         sessionHandler);
     final PhidModule phidModule = new PhidModule(connection, sessionHandler);
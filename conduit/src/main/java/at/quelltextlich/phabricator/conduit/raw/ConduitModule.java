@@ -19,14 +19,15 @@ import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
-import javax.xml.bind.DatatypeConverter;
+import org.apache.http.concurrent.FutureCallback;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallFuture;
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.annotations.SerializedName;
 
 /**
@@ -46,18 +47,45 @@ public class ConduitModule extends Module {
     this.certificate = certificate;
   }
 
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @param options
+   *          The options for the view's calls. null makes calls without
+   *          options.
+   * @return the view, which shares connection and session with this module
+   */
+  public ConduitModule withCallOptions(final CallOptions options) {
+    return new ConduitModule(connection.withCallOptions(options),
+        sessionHandler, username, certificate);
+  }
+
   /**
    * Runs the API's 'conduit.ping' method
    */
   public PingResult ping() throws ConduitException {
-    final JsonElement callResult = connection.call("conduit.ping");
-    final JsonObject callResultWrapper = new JsonObject();
-    callResultWrapper.add("hostname", callResult);
-    final PingResult result = gson
-        .fromJson(callResultWrapper, PingResult.class);
+    final String hostname = connection.call("conduit.ping",
+        new HashMap<String, Object>(), String.class);
+    final PingResult result = new PingResult(hostname);
     return result;
   }
 
+  /**
+   * Runs the API's 'conduit.ping' method without blocking
+   *
+   * @see #ping()
+   */
+  public Future<PingResult> pingAsync(
+      final FutureCallback<PingResult> callback) {
+    return callAsync("conduit.ping", new HashMap<String, Object>(),
+        String.class, new ResultConverter<String, PingResult>() {
+          @Override
+          public PingResult convert(final String callResult) {
+            return new PingResult(callResult);
+          }
+        }, callback);
+  }
+
   /**
    * Models the result for a call to conduit.ping
    * <p/>
@@ -116,6 +144,37 @@ public class ConduitModule extends Module {
    * Runs the API's 'conduit.connect' method
    */
   public ConnectResult connect() throws ConduitException {
+    final Map<String, Object> params = connectParams();
+
+    final ConnectResult result = connection.call("conduit.connect", params,
+        ConnectResult.class);
+    return result;
+  }
+
+  /**
+   * Runs the API's 'conduit.connect' method without blocking
+   *
+   * @see #connect()
+   */
+  public Future<ConnectResult> connectAsync(
+      final FutureCallback<ConnectResult> callback) {
+    final Map<String, Object> params;
+    try {
+      params = connectParams();
+    } catch (final ConduitException e) {
+      final CallFuture<ConnectResult> future = new CallFuture<ConnectResult>(
+          callback);
+      future.failed(e);
+      return future;
+    }
+    return callAsync("conduit.connect", params, ConnectResult.class, callback);
+  }
+
+  /**
+   * Computes the parameters for a 'conduit.connect' call, including a fresh
+   * authToken and its signature
+   */
+  private Map<String, Object> connectParams() throws ConduitException {
     final Map<String, Object> params = new HashMap<String, Object>();
     params.put("client", "at.quelltextlich.phabricator:phabricator-conduit");
     params.put("clientVersion", CONDUIT_VERSION);
@@ -150,15 +209,13 @@ public class ConduitModule extends Module {
       throw new ConduitException("Failed to convert authSignature input to "
           + "UTF-8 String", e);
     }
-    final String authSignatureUC = DatatypeConverter
-        .printHexBinary(authSignatureRaw);
-    final String authSignature = authSignatureUC.toLowerCase();
-    params.put("authSignature", authSignature);
-
-    final JsonElement callResult = connection.call("conduit.connect", params);
-
-    final ConnectResult result = gson.fromJson(callResult, ConnectResult.class);
-    return result;
+    final StringBuilder authSignature = new StringBuilder();
+    for (final byte b : authSignatureRaw) {
+      authSignature.append(Character.forDigit((b >> 4) & 0x0F, 16));
+      authSignature.append(Character.forDigit(b & 0x0F, 16));
+    }
+    params.put("authSignature", authSignature.toString());
+    return params;
   }
 
   /**
@@ -255,13 +312,22 @@ public class ConduitModule extends Module {
   public GetCapabilitiesResult getCapabilities() throws ConduitException {
     final Map<String, Object> params = new HashMap<String, Object>();
 
-    final JsonElement callResult = connection.call("conduit.getcapabilities",
-        params);
-    final GetCapabilitiesResult result = gson.fromJson(callResult,
-        GetCapabilitiesResult.class);
+    final GetCapabilitiesResult result = connection.call(
+        "conduit.getcapabilities", params, GetCapabilitiesResult.class);
     return result;
   }
 
+  /**
+   * Runs the API's 'conduit.getcapabilities' method without blocking
+   *
+   * @see #getCapabilities()
+   */
+  public Future<GetCapabilitiesResult> getCapabilitiesAsync(
+      final FutureCallback<GetCapabilitiesResult> callback) {
+    return callAsync("conduit.getcapabilities", new HashMap<String, Object>(),
+        GetCapabilitiesResult.class, callback);
+  }
+
   /**
    * Models the result for a call to conduit.getcapabilities
    * <p/>
@@ -306,14 +372,30 @@ public class ConduitModule extends Module {
    */
   public GetCertificateResult getCertificate(final String token,
       final String host) throws ConduitException {
+    final Map<String, Object> params = getCertificateParams(token, host);
+    final GetCertificateResult result = connection.call(
+        "conduit.getcertificate", params, GetCertificateResult.class);
+    return result;
+  }
+
+  /**
+   * Runs the API's 'conduit.getcertificate' method without blocking
+   *
+   * @see #getCertificate(String, String)
+   */
+  public Future<GetCertificateResult> getCertificateAsync(final String token,
+      final String host, final FutureCallback<GetCertificateResult> callback) {
+    return callAsync("conduit.getcertificate",
+        getCertificateParams(token, host), GetCertificateResult.class,
+        callback);
+  }
+
+  private Map<String, Object> getCertificateParams(final String token,
+      final String host) {
     final Map<String, Object> params = new HashMap<String, Object>();
     params.put("token", token);
     params.put("host", host);
-    final JsonElement callResult = connection.call("conduit.getcertificate",
-        params);
-    final GetCertificateResult result = gson.fromJson(callResult,
-        GetCertificateResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -397,10 +479,18 @@ public class ConduitModule extends Module {
    */
   public QueryResult query() throws ConduitException {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
-    final JsonElement callResult = connection.call("conduit.query", params);
-    final QueryResult result = gson.fromJson(callResult, QueryResult.class);
-    return result;
+    return callWithSession("conduit.query", params, QueryResult.class);
+  }
+
+  /**
+   * Runs the API's 'conduit.query' method without blocking
+   *
+   * @see #query()
+   */
+  public Future<QueryResult> queryAsync(
+      final FutureCallback<QueryResult> callback) {
+    return callAsyncWithSession("conduit.query", new HashMap<String, Object>(),
+        QueryResult.class, callback);
   }
 
   /**
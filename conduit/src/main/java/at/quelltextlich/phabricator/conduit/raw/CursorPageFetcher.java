@@ -0,0 +1,67 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fetches a page of a query that pages by cursor
+ *
+ * @param <T>
+ *          The type of the query's elements
+ */
+public interface CursorPageFetcher<T> {
+  /**
+   * Starts fetching a page
+   *
+   * @param after
+   *          The cursor of the previous page. null for the first page.
+   * @param limit
+   *          The maximum number of elements to fetch
+   * @return the future of the page
+   */
+  public CompletableFuture<Page<T>> fetch(String after, int limit);
+
+  /**
+   * A page of a query that pages by cursor
+   *
+   * @param <T>
+   *          The type of the query's elements
+   */
+  public static class Page<T> {
+    private final Collection<T> elements;
+    private final String after;
+
+    /**
+     * @param elements
+     *          The page's elements
+     * @param after
+     *          The cursor to fetch the next page with. null, if this is the
+     *          last page.
+     */
+    public Page(final Collection<T> elements, final String after) {
+      this.elements = elements;
+      this.after = after;
+    }
+
+    public Collection<T> getElements() {
+      return elements;
+    }
+
+    public String getAfter() {
+      return after;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import at.quelltextlich.phabricator.conduit.UncheckedConduitException;
+
+/**
+ * Iterates over the results of a query that pages by cursor, fetching the
+ * next page in the background
+ * <p/>
+ * Each page names the cursor of the next one, so pages get fetched one after
+ * the other. As soon as a page arrives, the next page gets fetched, while the
+ * elements of the arrived page get consumed. The query ends with the first
+ * page that has no cursor for a next page.
+ * <p/>
+ * Unlike offsets, cursors do not make the server skip over the elements of
+ * earlier pages. So fetching a page costs the same, no matter how far into
+ * the query it is. Also, elements that get created or changed while
+ * iterating do not shift elements into the next page again.
+ * <p/>
+ * Failed calls surface as {@link UncheckedConduitException} from
+ * {@link #hasNext()} and {@link #next()}. Closing the iterator aborts the
+ * call in flight. Iterators are meant to be consumed by a single thread.
+ *
+ * @param <T>
+ *          The type of the query's elements
+ */
+public class CursorQueryIterator<T> implements Iterator<T>, Closeable {
+  private final CursorPageFetcher<T> fetcher;
+  private final int pageSize;
+  private CompletableFuture<CursorPageFetcher.Page<T>> pendingPage;
+  private String pendingAfter;
+  private Iterator<T> page;
+  private boolean exhausted;
+
+  /**
+   * @param fetcher
+   *          Fetches the query's pages
+   * @param pageSize
+   *          The number of elements to fetch per call
+   */
+  public CursorQueryIterator(final CursorPageFetcher<T> fetcher,
+      final int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size has to be positive, but "
+          + "is " + pageSize);
+    }
+    this.fetcher = fetcher;
+    this.pageSize = pageSize;
+    pendingPage = null;
+    pendingAfter = null;
+    page = Collections.<T> emptyList().iterator();
+    exhausted = false;
+  }
+
+  /**
+   * Iterates over the projects found by a {@code project.query}
+   *
+   * @param pageSize
+   *          The number of projects to fetch per call
+   * @see ProjectModule#query(List, List, List, List, List, List, String, List, Integer, Integer, String, String)
+   */
+  public static CursorQueryIterator<ProjectModule.ProjectResult> projectQuery(
+      final ProjectModule module, final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members, final int pageSize) {
+    return new CursorQueryIterator<ProjectModule.ProjectResult>(
+        PageFetchers.projectCursorQuery(new AsyncProjectModule(module), ids,
+            names, phids, slugs, icons, colors, status, members), pageSize);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!page.hasNext()) {
+      if (exhausted) {
+        return false;
+      }
+      page = awaitPage().iterator();
+    }
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.next();
+  }
+
+  /**
+   * Gives a sequential stream over the remaining elements
+   * <p/>
+   * Closing the stream closes this iterator.
+   *
+   * @return the stream
+   */
+  public Stream<T> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED
+            | Spliterator.NONNULL), false).onClose(new Runnable() {
+      @Override
+      public void run() {
+        close();
+      }
+    });
+  }
+
+  /**
+   * Aborts the call in flight, and ends the iteration
+   * <p/>
+   * Elements of the current page can still be consumed.
+   */
+  @Override
+  public void close() {
+    exhausted = true;
+    if (pendingPage != null) {
+      pendingPage.cancel(true);
+      pendingPage = null;
+    }
+  }
+
+  /**
+   * Waits for the next page, and starts fetching the page after it
+   *
+   * @return the elements of the next page
+   */
+  private Iterable<T> awaitPage() {
+    if (pendingPage == null) {
+      pendingPage = fetcher.fetch(null, pageSize);
+    }
+    final CursorPageFetcher.Page<T> ret;
+    try {
+      ret = PageFetchers.await(pendingPage);
+    } catch (final UncheckedConduitException e) {
+      close();
+      throw e;
+    }
+    final String after = ret.getAfter();
+    // A cursor that does not move on would fetch the same page forever.
+    if (after == null || ret.getElements().isEmpty()
+        || after.equals(pendingAfter)) {
+      pendingPage = null;
+      exhausted = true;
+    } else {
+      pendingPage = fetcher.fetch(after, pageSize);
+      pendingAfter = after;
+    }
+    return ret.getElements();
+  }
+}
@@ -15,13 +15,17 @@ package at.quelltextlich.phabricator.conduit.raw;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
-import com.google.gson.JsonElement;
 import com.google.gson.annotations.SerializedName;
 
 /**
@@ -33,6 +37,19 @@ public class ManiphestModule extends Module {
     super(connection, sessionHandler);
   }
 
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @param options
+   *          The options for the view's calls. null makes calls without
+   *          options.
+   * @return the view, which shares connection and session with this module
+   */
+  public ManiphestModule withCallOptions(final CallOptions options) {
+    return new ManiphestModule(connection.withCallOptions(options),
+        sessionHandler);
+  }
+
   /**
    * Runs the API's 'maniphest.createtask' method
    */
@@ -42,8 +59,35 @@ public class ManiphestModule extends Module {
       final List<String> ccPhids, final Integer priority,
       final List<String> projectPhids, final Map<String, String> auxiliary)
       throws ConduitException {
+    final Map<String, Object> params = createTaskParams(title, description,
+        ownerPhid, viewPolicy, editPolicy, ccPhids, priority, projectPhids,
+        auxiliary);
+    return callWithSession("maniphest.createtask", params,
+        CreateTaskResult.class);
+  }
+
+  /**
+   * Runs the API's 'maniphest.createtask' method without blocking
+   *
+   * @see #createTask(String, String, String, String, String, List, Integer, List, Map)
+   */
+  public Future<CreateTaskResult> createTaskAsync(final String title,
+      final String description, final String ownerPhid, final String viewPolicy,
+      final String editPolicy, final List<String> ccPhids,
+      final Integer priority, final List<String> projectPhids,
+      final Map<String, String> auxiliary,
+      final FutureCallback<CreateTaskResult> callback) {
+    return callAsyncWithSession("maniphest.createtask", createTaskParams(title,
+        description, ownerPhid, viewPolicy, editPolicy, ccPhids, priority,
+        projectPhids, auxiliary), CreateTaskResult.class, callback);
+  }
+
+  private Map<String, Object> createTaskParams(final String title,
+      final String description, final String ownerPhid, final String viewPolicy,
+      final String editPolicy, final List<String> ccPhids,
+      final Integer priority, final List<String> projectPhids,
+      final Map<String, String> auxiliary) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("title", title);
     params.put("description", description);
     params.put("ownerPHID", ownerPhid);
@@ -53,12 +97,7 @@ public class ManiphestModule extends Module {
     params.put("priority", priority);
     params.put("projectPHIDs", projectPhids);
     params.put("auxiliary", auxiliary);
-
-    final JsonElement callResult = connection.call("maniphest.createtask",
-        params);
-    final CreateTaskResult result = gson.fromJson(callResult,
-        CreateTaskResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -117,15 +156,29 @@ public class ManiphestModule extends Module {
    */
   public GetTaskTransactionsResult getTaskTransactions(final List<Integer> ids)
       throws ConduitException {
+    final Map<String, Object> params = getTaskTransactionsParams(ids);
+    return callWithSession("maniphest.gettasktransactions", params,
+        GetTaskTransactionsResult.class);
+  }
+
+  /**
+   * Runs the API's 'maniphest.gettasktransactions' method without blocking
+   *
+   * @see #getTaskTransactions(List)
+   */
+  public Future<GetTaskTransactionsResult> getTaskTransactionsAsync(
+      final List<Integer> ids,
+      final FutureCallback<GetTaskTransactionsResult> callback) {
+    return callAsyncWithSession("maniphest.gettasktransactions",
+        getTaskTransactionsParams(ids), GetTaskTransactionsResult.class,
+        callback);
+  }
+
+  private Map<String, Object> getTaskTransactionsParams(
+      final List<Integer> ids) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("ids", ids);
-
-    final JsonElement callResult = connection.call(
-        "maniphest.gettasktransactions", params);
-    final GetTaskTransactionsResult result = gson.fromJson(callResult,
-        GetTaskTransactionsResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -368,13 +421,25 @@ public class ManiphestModule extends Module {
    * Runs the API's 'maniphest.Info' method
    */
   public InfoResult info(final int taskId) throws ConduitException {
+    final Map<String, Object> params = infoParams(taskId);
+    return callWithSession("maniphest.info", params, InfoResult.class);
+  }
+
+  /**
+   * Runs the API's 'maniphest.info' method without blocking
+   *
+   * @see #info(int)
+   */
+  public Future<InfoResult> infoAsync(final int taskId,
+      final FutureCallback<InfoResult> callback) {
+    return callAsyncWithSession("maniphest.info", infoParams(taskId),
+        InfoResult.class, callback);
+  }
+
+  private Map<String, Object> infoParams(final int taskId) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("task_id", taskId);
-
-    final JsonElement callResult = connection.call("maniphest.info", params);
-    final InfoResult result = gson.fromJson(callResult, InfoResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -436,8 +501,37 @@ public class ManiphestModule extends Module {
       final List<String> ccPhids, final Integer priority,
       final List<String> projectPhids, final Map<String, String> auxiliary,
       final String status, final String comments) throws ConduitException {
+    final Map<String, Object> params = updateParams(id, phid, title,
+        description, ownerPhid, viewPolicy, editPolicy, ccPhids, priority,
+        projectPhids, auxiliary, status, comments);
+    return callWithSession("maniphest.update", params, UpdateResult.class);
+  }
+
+  /**
+   * Runs the API's 'maniphest.update' method without blocking
+   *
+   * @see #update(Integer, String, String, String, String, String, String, List, Integer, List, Map, String, String)
+   */
+  public Future<UpdateResult> updateAsync(final Integer id, final String phid,
+      final String title, final String description, final String ownerPhid,
+      final String viewPolicy, final String editPolicy,
+      final List<String> ccPhids, final Integer priority,
+      final List<String> projectPhids, final Map<String, String> auxiliary,
+      final String status, final String comments,
+      final FutureCallback<UpdateResult> callback) {
+    return callAsyncWithSession("maniphest.update", updateParams(id, phid,
+        title, description, ownerPhid, viewPolicy, editPolicy, ccPhids,
+        priority, projectPhids, auxiliary, status, comments),
+        UpdateResult.class, callback);
+  }
+
+  private Map<String, Object> updateParams(final Integer id, final String phid,
+      final String title, final String description, final String ownerPhid,
+      final String viewPolicy, final String editPolicy,
+      final List<String> ccPhids, final Integer priority,
+      final List<String> projectPhids, final Map<String, String> auxiliary,
+      final String status, final String comments) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("id", id);
     params.put("phid", phid);
     params.put("title", title);
@@ -451,10 +545,7 @@ public class ManiphestModule extends Module {
     params.put("auxiliary", auxiliary);
     params.put("status", status);
     params.put("comments", comments);
-
-    final JsonElement callResult = connection.call("maniphest.update", params);
-    final UpdateResult result = gson.fromJson(callResult, UpdateResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -872,8 +963,34 @@ public class ManiphestModule extends Module {
       final List<String> projectPhids, final List<String> ccPhids,
       final String fullText, final String status, final String order,
       final Integer limit, final Integer offset) throws ConduitException {
+    final Map<String, Object> params = queryParams(ids, phids, ownerPhids,
+        authorPhids, projectPhids, ccPhids, fullText, status, order, limit,
+        offset);
+    return callWithSession("maniphest.query", params, QueryResult.class);
+  }
+
+  /**
+   * Runs the API's 'maniphest.query' method without blocking
+   *
+   * @see #query(List, List, List, List, List, List, String, String, String, Integer, Integer)
+   */
+  public Future<QueryResult> queryAsync(final List<Integer> ids,
+      final List<String> phids, final List<String> ownerPhids,
+      final List<String> authorPhids, final List<String> projectPhids,
+      final List<String> ccPhids, final String fullText, final String status,
+      final String order, final Integer limit, final Integer offset,
+      final FutureCallback<QueryResult> callback) {
+    return callAsyncWithSession("maniphest.query", queryParams(ids, phids,
+        ownerPhids, authorPhids, projectPhids, ccPhids, fullText, status, order,
+        limit, offset), QueryResult.class, callback);
+  }
+
+  private Map<String, Object> queryParams(final List<Integer> ids,
+      final List<String> phids, final List<String> ownerPhids,
+      final List<String> authorPhids, final List<String> projectPhids,
+      final List<String> ccPhids, final String fullText, final String status,
+      final String order, final Integer limit, final Integer offset) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("ids", ids);
     params.put("phids", phids);
     params.put("ownerPHIDs", ownerPhids);
@@ -885,10 +1002,7 @@ public class ManiphestModule extends Module {
     params.put("order", order);
     params.put("limit", limit);
     params.put("offset", offset);
-
-    final JsonElement callResult = connection.call("maniphest.query", params);
-    final QueryResult result = gson.fromJson(callResult, QueryResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -953,8 +1067,10 @@ public class ManiphestModule extends Module {
    *   [...]
    * }
    * </pre>
+   * <p/>
+   * Tasks are kept in the order the server sent them.
    */
-  public static class QueryResult extends HashMap<String, TaskResult> {
+  public static class QueryResult extends LinkedHashMap<String, TaskResult> {
     private static final long serialVersionUID = 1L;
   }
 
@@ -963,13 +1079,19 @@ public class ManiphestModule extends Module {
    */
   public QueryStatusesResult queryStatuses() throws ConduitException {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
-
-    final JsonElement callResult = connection.call("maniphest.querystatuses",
-        params);
-    final QueryStatusesResult result = gson.fromJson(callResult,
+    return callWithSession("maniphest.querystatuses", params,
         QueryStatusesResult.class);
-    return result;
+  }
+
+  /**
+   * Runs the API's 'maniphest.querystatuses' method without blocking
+   *
+   * @see #queryStatuses()
+   */
+  public Future<QueryStatusesResult> queryStatusesAsync(
+      final FutureCallback<QueryStatusesResult> callback) {
+    return callAsyncWithSession("maniphest.querystatuses",
+        new HashMap<String, Object>(), QueryStatusesResult.class, callback);
   }
 
   /**
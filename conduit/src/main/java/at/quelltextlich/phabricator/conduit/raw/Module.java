@@ -13,18 +13,370 @@
 // limitations under the License.
 package at.quelltextlich.phabricator.conduit.raw;
 
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallFuture;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 
+/**
+ * Base of the bindings for a group of Conduit API methods
+ * <p/>
+ * Modules hold no state of their own besides their connection and session
+ * handler, so they are thread-safe.
+ */
 public class Module {
-  protected Connection connection;
-  protected SessionHandler sessionHandler;
-  protected Gson gson;
+  /**
+   * Error code of calls whose session the server rejected
+   */
+  public static final String INVALID_SESSION_ERROR_CODE = "ERR-INVALID-SESSION";
+
+  /**
+   * Gson instance shared by all modules
+   * <p/>
+   * Gson is thread-safe, and caches its bindings per instance, so sharing it
+   * saves rebuilding them for each module.
+   */
+  private static final Gson SHARED_GSON = new Gson();
+
+  protected final Connection connection;
+  protected final SessionHandler sessionHandler;
+  protected final Gson gson;
 
   public Module(final Connection connection, final SessionHandler sessionHandler) {
     this.connection = connection;
     this.sessionHandler = sessionHandler;
-    gson = new Gson();
+    gson = SHARED_GSON;
+  }
+
+  /**
+   * Calls a Conduit method with session data
+   * <p/>
+   * If the server rejects the session, the session gets invalidated, and the
+   * call gets retried once with a fresh session. As the server rejects such
+   * calls before running them, this is safe for all methods.
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          The parameters to pass, without session data
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @return the call's result
+   * @throws ConduitException
+   *           if the call or filling in session data failed
+   */
+  protected <T> T callWithSession(final String method,
+      final Map<String, Object> params, final Class<T> resultClass)
+      throws ConduitException {
+    sessionHandler.fillInSession(params);
+    try {
+      return connection.call(method, params, resultClass);
+    } catch (final ConduitException e) {
+      renewRejectedSession(e, params);
+    }
+    try {
+      return connection.call(method, params, resultClass);
+    } catch (final ConduitException e) {
+      sessionHandler.callFailed(params, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Calls a Conduit method with session data, without binding its result
+   *
+   * @see #callWithSession(String, Map, Class)
+   */
+  protected JsonElement callWithSession(final String method,
+      final Map<String, Object> params) throws ConduitException {
+    sessionHandler.fillInSession(params);
+    try {
+      return connection.call(method, params);
+    } catch (final ConduitException e) {
+      renewRejectedSession(e, params);
+    }
+    try {
+      return connection.call(method, params);
+    } catch (final ConduitException e) {
+      sessionHandler.callFailed(params, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Calls a Conduit method with session data without blocking
+   * <p/>
+   * Session data gets filled in through
+   * {@link SessionHandler#fillInSessionAsync(Map, FutureCallback)}, and the
+   * call is sent once that completed. So neither the calling thread, nor the
+   * I/O thread that notices a rejected session, block on opening a session.
+   * <p/>
+   * If filling in session data fails, the returned future fails. If the
+   * server rejects the session, the call gets retried once with a fresh
+   * session, as in {@link #callWithSession(String, Map, Class)}.
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          The parameters to pass, without session data
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param callback
+   *          Callback to notify once the call is done. May be null.
+   * @return Future for the call's result
+   */
+  protected <T> Future<T> callAsyncWithSession(final String method,
+      final Map<String, Object> params, final Class<T> resultClass,
+      final FutureCallback<T> callback) {
+    final CallFuture<T> future = new CallFuture<T>(callback);
+    final AtomicReference<Future<T>> callFuture = new AtomicReference<Future<T>>();
+    // Cancelling while the session gets filled in does not abort filling
+    // it in, as the session may be shared with other calls. The call just
+    // does not get sent.
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        final Future<T> currentFuture = callFuture.get();
+        return currentFuture == null || currentFuture.cancel(true);
+      }
+    });
+    fillInSessionAndSend(method, params, resultClass, future, callFuture,
+        true);
+    return future;
+  }
+
+  /**
+   * Fills in session data without blocking, and sends the call once it is
+   * filled in
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          The parameters to pass, without session data
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param future
+   *          The future to complete with the call's result
+   * @param callFuture
+   *          Holds the future of the call that is in flight, so cancelling
+   *          {@code future} can abort it
+   * @param renewRejected
+   *          true, if the call should get retried once with a fresh session,
+   *          if the server rejects the session
+   */
+  private <T> void fillInSessionAndSend(final String method,
+      final Map<String, Object> params, final Class<T> resultClass,
+      final CallFuture<T> future,
+      final AtomicReference<Future<T>> callFuture,
+      final boolean renewRejected) {
+    sessionHandler.fillInSessionAsync(params, new FutureCallback<Void>() {
+      @Override
+      public void completed(final Void result) {
+        if (!future.isDone()) {
+          sendWithSession(method, params, resultClass, future, callFuture,
+              renewRejected);
+        }
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        future.failed(e);
+      }
+
+      @Override
+      public void cancelled() {
+        future.cancel();
+      }
+    });
+  }
+
+  /**
+   * Sends a non-blocking call, whose session got filled in
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          The parameters to pass, with session data
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param future
+   *          The future to complete with the call's result
+   * @param callFuture
+   *          Holds the future of the call that is in flight, so cancelling
+   *          {@code future} can abort it
+   * @param renewRejected
+   *          true, if the call should get retried once with a fresh session,
+   *          if the server rejects the session
+   */
+  private <T> void sendWithSession(final String method,
+      final Map<String, Object> params, final Class<T> resultClass,
+      final CallFuture<T> future,
+      final AtomicReference<Future<T>> callFuture,
+      final boolean renewRejected) {
+    final Future<T> previousFuture = callFuture.get();
+    final Future<T> sendFuture = callAsync(method, params, resultClass,
+        new FutureCallback<T>() {
+          @Override
+          public void completed(final T result) {
+            future.completed(result);
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            if (renewRejected && isSessionRejected(e) && !future.isDone()) {
+              sessionHandler.invalidateSession(params);
+              fillInSessionAndSend(method, params, resultClass, future,
+                  callFuture, false);
+              return;
+            }
+            reportFailure(e, params);
+            future.failed(e);
+          }
+
+          @Override
+          public void cancelled() {
+            future.cancel();
+          }
+        });
+    // If the call failed right away, its retry may already be in flight,
+    // and must not get replaced.
+    callFuture.compareAndSet(previousFuture, sendFuture);
+    if (future.isCancelled()) {
+      sendFuture.cancel(true);
+    }
+  }
+
+  /**
+   * Calls a Conduit method without blocking
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          The parameters to pass
+   * @param resultClass
+   *          The class to bind the call's result to
+   * @param callback
+   *          Callback to notify once the call is done. May be null.
+   * @return Future for the call's result
+   */
+  protected <T> Future<T> callAsync(final String method,
+      final Map<String, Object> params, final Class<T> resultClass,
+      final FutureCallback<T> callback) {
+    return connection.callAsync(method, params, resultClass, callback);
+  }
+
+  /**
+   * Calls a Conduit method without blocking
+   *
+   * @param method
+   *          The name of the method that should get called
+   * @param params
+   *          The parameters to pass
+   * @param callResultClass
+   *          The class to bind the call's result to before converting it
+   * @param converter
+   *          Converts the call's result to the result type
+   * @param callback
+   *          Callback to notify once the call is done. May be null.
+   * @return Future for the converted result
+   */
+  protected <S, T> Future<T> callAsync(final String method,
+      final Map<String, Object> params, final Class<S> callResultClass,
+      final ResultConverter<S, T> converter, final FutureCallback<T> callback) {
+    final CallFuture<T> future = new CallFuture<T>(callback);
+    final Future<S> callFuture = connection.callAsync(method, params,
+        callResultClass, new FutureCallback<S>() {
+          @Override
+          public void completed(final S callResult) {
+            final T result;
+            try {
+              result = converter.convert(callResult);
+            } catch (final JsonParseException e) {
+              future.failed(new ConduitException("Could not parse result of '"
+                  + method + "'", e));
+              return;
+            }
+            future.completed(result);
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            future.failed(e);
+          }
+
+          @Override
+          public void cancelled() {
+            future.cancel();
+          }
+        });
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return callFuture.cancel(true);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Replaces a session that the server rejected
+   *
+   * @param e
+   *          The call's failure
+   * @param params
+   *          The parameters that the rejected session got filled into. The
+   *          fresh session gets filled in.
+   * @throws ConduitException
+   *           {@code e}, if it is not a rejected session, or the failure to
+   *           fill in a fresh session. Other failures get reported to the
+   *           session handler before they get thrown.
+   */
+  private void renewRejectedSession(final ConduitException e,
+      final Map<String, Object> params) throws ConduitException {
+    if (!isSessionRejected(e)) {
+      sessionHandler.callFailed(params, e);
+      throw e;
+    }
+    sessionHandler.invalidateSession(params);
+    sessionHandler.fillInSession(params);
+  }
+
+  /**
+   * Tells the session handler about a failed non-blocking call
+   *
+   * @param e
+   *          The call's failure
+   * @param params
+   *          The parameters that the call's session got filled into
+   */
+  private void reportFailure(final Exception e,
+      final Map<String, Object> params) {
+    if (e instanceof ConduitException) {
+      sessionHandler.callFailed(params, (ConduitException) e);
+    }
+  }
+
+  private boolean isSessionRejected(final Exception e) {
+    return e instanceof ConduitErrorException
+        && INVALID_SESSION_ERROR_CODE.equals(((ConduitErrorException) e)
+            .getErrorCode());
+  }
+
+  /**
+   * Converts the result of a Conduit call to a module's result type
+   */
+  protected interface ResultConverter<S, T> {
+    public T convert(S callResult);
   }
 }
@@ -13,21 +13,43 @@
 // limitations under the License.
 package at.quelltextlich.phabricator.conduit.raw;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.http.concurrent.FutureCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
 
+/**
+ * Opens a session through {@code conduit.connect} once it is first needed
+ * <p/>
+ * The handler is thread-safe. If several threads need a session at once,
+ * only one of them opens it, while the others wait for it. Non-blocking
+ * calls do not wait, but continue once the session is open (see
+ * {@link #fillInSessionAsync(Map, FutureCallback)}). Sessions that the
+ * server rejected get dropped through {@link #invalidateSession(Map)}, so the
+ * next call opens a fresh one.
+ * <p/>
+ * Optionally, sessions get renewed in the background once they reached an
+ * age. Calls go on using the old session until the new one is open, so they
+ * do not wait for {@code conduit.connect}.
+ */
 public class OnDemandSessionHandler implements SessionHandler {
   private static final Logger log = LoggerFactory
       .getLogger(OnDemandSessionHandler.class);
 
-  private String sessionKey;
+  private final AtomicReference<Session> session;
+  private volatile long renewAfterMillis;
 
-  private ConduitModule conduitModule;
+  private volatile ConduitModule conduitModule;
 
   /**
    * Creates a new instance
@@ -38,33 +60,137 @@ public class OnDemandSessionHandler implements SessionHandler {
    */
   public OnDemandSessionHandler() {
     conduitModule = null;
-    resetSession();
+    session = new AtomicReference<Session>();
+    renewAfterMillis = 0;
   };
 
   @Override
   public void fillInSession(final Map<String, Object> params)
       throws ConduitException {
-    if (conduitModule == null) {
+    final ConduitModule module = conduitModule;
+    if (module == null) {
       throw new ConduitException("Trying to fill in session with "
           + "uninitialized ConduitModule in OnDemandSessionHandler. You "
           + "need to inject a ConduitModule before before calling "
           + "fillInSession.");
     }
-    if (sessionKey == null) {
-      log.debug("Trying to start new session");
-      final ConduitModule.ConnectResult connectResult = conduitModule.connect();
-      sessionKey = connectResult.getSessionKey();
+    putSessionKey(params, getSessionKey(module));
+  }
+
+  /**
+   * Adds session parameters to a Map of parameters without blocking
+   * <p/>
+   * If there is no active session, a new one is opened through a
+   * non-blocking {@code conduit.connect}. The callback then runs on the
+   * thread that receives its result.
+   */
+  @Override
+  public void fillInSessionAsync(final Map<String, Object> params,
+      final FutureCallback<Void> callback) {
+    final ConduitModule module = conduitModule;
+    if (module == null) {
+      callback.failed(new ConduitException("Trying to fill in session with "
+          + "uninitialized ConduitModule in OnDemandSessionHandler. You "
+          + "need to inject a ConduitModule before before calling "
+          + "fillInSessionAsync."));
+      return;
     }
+    Session current = session.get();
+    while (current == null) {
+      final Session opening = new Session();
+      if (session.compareAndSet(null, opening)) {
+        opening.openAsync(module);
+      }
+      current = session.get();
+    }
+    final Session filled = current;
+    filled.whenOpen(new FutureCallback<String>() {
+      @Override
+      public void completed(final String sessionKey) {
+        renewIfOld(filled, module);
+        putSessionKey(params, sessionKey);
+        callback.completed(null);
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        callback.failed(e);
+      }
+
+      @Override
+      public void cancelled() {
+        callback.cancelled();
+      }
+    });
+  }
+
+  /**
+   * Adds a session key as session parameter
+   *
+   * @param params
+   *          The Map to add the session parameter to
+   * @param sessionKey
+   *          The key of the session
+   */
+  private void putSessionKey(final Map<String, Object> params,
+      final String sessionKey) {
     final Map<String, Object> conduitParams = new HashMap<String, Object>();
     conduitParams.put("sessionKey", sessionKey);
     params.put("__conduit__", conduitParams);
   }
 
+  @Override
+  public void invalidateSession(final Map<String, Object> params) {
+    final Object conduitParams = params.get("__conduit__");
+    if (!(conduitParams instanceof Map<?, ?>)) {
+      return;
+    }
+    final Object sessionKey = ((Map<?, ?>) conduitParams).get("sessionKey");
+    final Session current = session.get();
+    if (current != null && current.isOpen()
+        && sessionKey != null && sessionKey.equals(current.sessionKey)
+        && session.compareAndSet(current, null)) {
+      log.debug("Dropped rejected session");
+    }
+  }
+
+  /**
+   * Does nothing, as failures other than rejected sessions do not affect
+   * the session
+   */
+  @Override
+  public void callFailed(final Map<String, Object> params,
+      final ConduitException e) {
+  }
+
+  /**
+   * Drops the current session, so the next call opens a fresh one
+   */
+  public void resetSession() {
+    session.set(null);
+  }
+
   /**
-   * Resets the current session data
+   * Gets the age at which sessions get renewed in the background
+   *
+   * @return the age in milliseconds, or 0 if sessions do not get renewed
+   */
+  public long getRenewAfterMillis() {
+    return renewAfterMillis;
+  }
+
+  /**
+   * Sets the age at which sessions get renewed in the background
+   * <p/>
+   * The first call that uses a session of that age starts a non-blocking
+   * {@code conduit.connect}. Set it below the server's session lifetime, so
+   * sessions get replaced before they expire.
+   *
+   * @param renewAfterMillis
+   *          the age in milliseconds. Non-positive values turn renewing off.
    */
-  private void resetSession() {
-    sessionKey = null;
+  public void setRenewAfterMillis(final long renewAfterMillis) {
+    this.renewAfterMillis = renewAfterMillis;
   }
 
   /**
@@ -76,4 +202,230 @@ public class OnDemandSessionHandler implements SessionHandler {
   public void setConduitModule(final ConduitModule conduitModule) {
     this.conduitModule = conduitModule;
   }
+
+  /**
+   * Gets the key of the current session, and opens a session if needed
+   *
+   * @param module
+   *          The module to open sessions through
+   * @return the session key
+   * @throws ConduitException
+   *           if opening the session failed
+   */
+  private String getSessionKey(final ConduitModule module)
+      throws ConduitException {
+    Session current = session.get();
+    while (current == null) {
+      final Session opening = new Session();
+      if (session.compareAndSet(null, opening)) {
+        opening.open(module);
+        return opening.sessionKey;
+      }
+      current = session.get();
+    }
+    final String sessionKey = current.await();
+    renewIfOld(current, module);
+    return sessionKey;
+  }
+
+  /**
+   * Starts renewing a session in the background, if it is old enough
+   *
+   * @param current
+   *          The session to check
+   * @param module
+   *          The module to open the new session through
+   */
+  private void renewIfOld(final Session current, final ConduitModule module) {
+    final long renewAfter = renewAfterMillis;
+    if (renewAfter <= 0
+        || System.nanoTime() - current.openedAt < TimeUnit.MILLISECONDS
+            .toNanos(renewAfter)) {
+      return;
+    }
+    if (!current.renewing.compareAndSet(false, true)) {
+      return;
+    }
+    log.debug("Renewing session");
+    module.connectAsync(new FutureCallback<ConduitModule.ConnectResult>() {
+      @Override
+      public void completed(final ConduitModule.ConnectResult result) {
+        final Session renewed = new Session();
+        renewed.opened(result.getSessionKey());
+        session.compareAndSet(current, renewed);
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        log.debug("Could not renew session", e);
+        current.renewing.set(false);
+      }
+
+      @Override
+      public void cancelled() {
+        current.renewing.set(false);
+      }
+    });
+  }
+
+  /**
+   * A session that is open, or being opened
+   */
+  private class Session {
+    private final CountDownLatch done;
+    private final AtomicBoolean renewing;
+    private final List<FutureCallback<String>> waiters;
+    private volatile String sessionKey;
+    private volatile ConduitException failure;
+    private volatile long openedAt;
+
+    public Session() {
+      done = new CountDownLatch(1);
+      renewing = new AtomicBoolean(false);
+      waiters = new ArrayList<FutureCallback<String>>();
+    }
+
+    /**
+     * Opens the session through {@code conduit.connect}
+     * <p/>
+     * If opening fails, the session gets dropped, so the next call tries
+     * again.
+     *
+     * @param module
+     *          The module to open the session through
+     * @throws ConduitException
+     *           if opening the session failed
+     */
+    public void open(final ConduitModule module) throws ConduitException {
+      log.debug("Trying to start new session");
+      try {
+        opened(module.connect().getSessionKey());
+      } catch (final ConduitException e) {
+        failed(e);
+        throw e;
+      } catch (final RuntimeException e) {
+        failed(new ConduitException("Could not start session", e));
+        throw e;
+      }
+    }
+
+    /**
+     * Opens the session through a non-blocking {@code conduit.connect}
+     * <p/>
+     * If opening fails, the session gets dropped, so the next call tries
+     * again.
+     *
+     * @param module
+     *          The module to open the session through
+     */
+    public void openAsync(final ConduitModule module) {
+      log.debug("Trying to start new session");
+      try {
+        module.connectAsync(new FutureCallback<ConduitModule.ConnectResult>() {
+          @Override
+          public void completed(final ConduitModule.ConnectResult result) {
+            opened(result.getSessionKey());
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            if (e instanceof ConduitException) {
+              Session.this.failed((ConduitException) e);
+            } else {
+              Session.this.failed(new ConduitException(
+                  "Could not start session", e));
+            }
+          }
+
+          @Override
+          public void cancelled() {
+            Session.this.failed(new ConduitException(
+                "Starting session got cancelled"));
+          }
+        });
+      } catch (final RuntimeException e) {
+        failed(new ConduitException("Could not start session", e));
+      }
+    }
+
+    public void opened(final String sessionKey) {
+      this.sessionKey = sessionKey;
+      openedAt = System.nanoTime();
+      done();
+    }
+
+    private void failed(final ConduitException e) {
+      failure = e;
+      session.compareAndSet(this, null);
+      done();
+    }
+
+    /**
+     * Marks the session as opened or failed, and notifies the waiters
+     */
+    private void done() {
+      final List<FutureCallback<String>> currentWaiters;
+      synchronized (waiters) {
+        done.countDown();
+        currentWaiters = new ArrayList<FutureCallback<String>>(waiters);
+        waiters.clear();
+      }
+      for (final FutureCallback<String> waiter : currentWaiters) {
+        notifyWaiter(waiter);
+      }
+    }
+
+    /**
+     * Notifies a callback once the session is open, without blocking
+     * <p/>
+     * If the session is open already, the callback runs right away.
+     * Otherwise, it runs on the thread that opens the session.
+     *
+     * @param callback
+     *          Callback to pass the session key to, or the failure to open
+     *          the session
+     */
+    public void whenOpen(final FutureCallback<String> callback) {
+      synchronized (waiters) {
+        if (done.getCount() > 0) {
+          waiters.add(callback);
+          return;
+        }
+      }
+      notifyWaiter(callback);
+    }
+
+    private void notifyWaiter(final FutureCallback<String> callback) {
+      if (failure != null) {
+        callback.failed(new ConduitException("Could not start session",
+            failure));
+      } else {
+        callback.completed(sessionKey);
+      }
+    }
+
+    public boolean isOpen() {
+      return done.getCount() == 0 && failure == null;
+    }
+
+    /**
+     * Waits until the session is open
+     *
+     * @return the session key
+     * @throws ConduitException
+     *           if opening the session failed
+     */
+    public String await() throws ConduitException {
+      try {
+        done.await();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ConduitException("Interrupted while waiting for session", e);
+      }
+      if (failure != null) {
+        throw new ConduitException("Could not start session", failure);
+      }
+      return sessionKey;
+    }
+  }
 }
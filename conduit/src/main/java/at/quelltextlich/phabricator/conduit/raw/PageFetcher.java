@@ -0,0 +1,37 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fetches a page of a query
+ *
+ * @param <T>
+ *          The type of the query's elements
+ */
+public interface PageFetcher<T> {
+  /**
+   * Starts fetching a page
+   *
+   * @param offset
+   *          The number of elements to skip
+   * @param limit
+   *          The maximum number of elements to fetch
+   * @return the future of the page's elements
+   */
+  public CompletableFuture<? extends Collection<T>> fetch(int offset,
+      int limit);
+}
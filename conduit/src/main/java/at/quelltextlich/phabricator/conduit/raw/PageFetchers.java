@@ -0,0 +1,205 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.UncheckedConduitException;
+
+/**
+ * {@link PageFetcher}s for the API's paged query methods
+ */
+class PageFetchers {
+  /**
+   * Fetches pages of a {@code maniphest.query}
+   * <p/>
+   * Tasks of a page are in the order the server sent them.
+   *
+   * @see ManiphestModule#query(List, List, List, List, List, List, String, String, String, Integer, Integer)
+   */
+  static PageFetcher<ManiphestModule.TaskResult> maniphestQuery(
+      final AsyncManiphestModule module, final List<Integer> ids,
+      final List<String> phids, final List<String> ownerPhids,
+      final List<String> authorPhids, final List<String> projectPhids,
+      final List<String> ccPhids, final String fullText, final String status,
+      final String order) {
+    return new PageFetcher<ManiphestModule.TaskResult>() {
+      @Override
+      public CompletableFuture<? extends Collection<ManiphestModule.TaskResult>> fetch(
+          final int offset, final int limit) {
+        return map(module.query(ids, phids, ownerPhids, authorPhids,
+            projectPhids, ccPhids, fullText, status, order, limit, offset),
+            new Function<ManiphestModule.QueryResult, Collection<ManiphestModule.TaskResult>>() {
+              @Override
+              public Collection<ManiphestModule.TaskResult> apply(
+                  final ManiphestModule.QueryResult result) {
+                return result.values();
+              }
+            });
+      }
+    };
+  }
+
+  /**
+   * Fetches pages of a {@code project.query}
+   *
+   * @see ProjectModule#query(List, List, List, List, List, List, String, List, Integer, Integer)
+   */
+  static PageFetcher<ProjectModule.ProjectResult> projectQuery(
+      final AsyncProjectModule module, final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members) {
+    return new PageFetcher<ProjectModule.ProjectResult>() {
+      @Override
+      public CompletableFuture<? extends Collection<ProjectModule.ProjectResult>> fetch(
+          final int offset, final int limit) {
+        return map(module.query(ids, names, phids, slugs, icons, colors,
+            status, members, limit, offset),
+            new Function<ProjectModule.QueryResult, Collection<ProjectModule.ProjectResult>>() {
+              @Override
+              public Collection<ProjectModule.ProjectResult> apply(
+                  final ProjectModule.QueryResult result) {
+                return result.getData().values();
+              }
+            });
+      }
+    };
+  }
+
+  /**
+   * Fetches pages of a {@code project.query} by cursor
+   *
+   * @see ProjectModule#query(List, List, List, List, List, List, String, List, Integer, Integer, String, String)
+   */
+  static CursorPageFetcher<ProjectModule.ProjectResult> projectCursorQuery(
+      final AsyncProjectModule module, final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members) {
+    return new CursorPageFetcher<ProjectModule.ProjectResult>() {
+      @Override
+      public CompletableFuture<CursorPageFetcher.Page<ProjectModule.ProjectResult>> fetch(
+          final String after, final int limit) {
+        return map(module.query(ids, names, phids, slugs, icons, colors,
+            status, members, limit, null, null, after),
+            new Function<ProjectModule.QueryResult, CursorPageFetcher.Page<ProjectModule.ProjectResult>>() {
+              @Override
+              public CursorPageFetcher.Page<ProjectModule.ProjectResult> apply(
+                  final ProjectModule.QueryResult result) {
+                final ProjectModule.Cursor cursor = result.getCursor();
+                return new CursorPageFetcher.Page<ProjectModule.ProjectResult>(
+                    result.getData().values(), (cursor == null) ? null
+                        : cursor.getAfter());
+              }
+            });
+      }
+    };
+  }
+
+  /**
+   * Fetches pages of a {@code user.query}
+   *
+   * @see UserModule#query(List, List, List, List, List, Integer, Integer)
+   */
+  static PageFetcher<UserModule.UserResult> userQuery(
+      final AsyncUserModule module, final List<String> usernames,
+      final List<String> emails, final List<String> realNames,
+      final List<String> phids, final List<Integer> ids) {
+    return new PageFetcher<UserModule.UserResult>() {
+      @Override
+      public CompletableFuture<? extends Collection<UserModule.UserResult>> fetch(
+          final int offset, final int limit) {
+        return module.query(usernames, emails, realNames, phids, ids, offset,
+            limit);
+      }
+    };
+  }
+
+  /**
+   * Maps the result of a call
+   * <p/>
+   * Unlike {@link CompletableFuture#thenApply(Function)}, cancelling the
+   * mapped future aborts the call.
+   *
+   * @param call
+   *          The future of the call
+   * @param function
+   *          Maps the call's result
+   * @return the future of the mapped result
+   */
+  private static <S, T> CompletableFuture<T> map(
+      final CompletableFuture<S> call, final Function<S, T> function) {
+    final CompletableFuture<T> ret = new CompletableFuture<T>() {
+      @Override
+      public boolean cancel(final boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+          call.cancel(true);
+        }
+        return cancelled;
+      }
+    };
+    call.whenComplete(new BiConsumer<S, Throwable>() {
+      @Override
+      public void accept(final S result, final Throwable e) {
+        if (e != null) {
+          ret.completeExceptionally(e);
+          return;
+        }
+        try {
+          ret.complete(function.apply(result));
+        } catch (final RuntimeException mappingException) {
+          ret.completeExceptionally(mappingException);
+        }
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Waits for a page
+   *
+   * @param page
+   *          The future of the page
+   * @return the page
+   * @throws UncheckedConduitException
+   *           if fetching the page failed, or waiting got interrupted
+   */
+  static <P> P await(final Future<P> page) {
+    try {
+      return page.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedConduitException(new ConduitException(
+          "Interrupted while waiting for page", e));
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof ConduitException) {
+        throw new UncheckedConduitException((ConduitException) cause);
+      }
+      throw new UncheckedConduitException(new ConduitException(
+          "Could not fetch page", cause));
+    }
+  }
+}
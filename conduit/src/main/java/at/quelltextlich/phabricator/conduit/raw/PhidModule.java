@@ -15,12 +15,14 @@ package at.quelltextlich.phabricator.conduit.raw;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
-import com.google.gson.JsonElement;
-
 /**
  * Module for Conduit methods starting in 'phid.'
  */
@@ -30,18 +32,42 @@ public class PhidModule extends Module {
     super(connection, sessionHandler);
   }
 
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @param options
+   *          The options for the view's calls. null makes calls without
+   *          options.
+   * @return the view, which shares connection and session with this module
+   */
+  public PhidModule withCallOptions(final CallOptions options) {
+    return new PhidModule(connection.withCallOptions(options), sessionHandler);
+  }
+
   /**
    * Runs the API's 'phid.lookup' method
    */
   public LookupResult lookup(final Iterable<String> names)
       throws ConduitException {
+    final Map<String, Object> params = lookupParams(names);
+    return callWithSession("phid.lookup", params, LookupResult.class);
+  }
+
+  /**
+   * Runs the API's 'phid.lookup' method without blocking
+   *
+   * @see #lookup(Iterable)
+   */
+  public Future<LookupResult> lookupAsync(final Iterable<String> names,
+      final FutureCallback<LookupResult> callback) {
+    return callAsyncWithSession("phid.lookup", lookupParams(names),
+        LookupResult.class, callback);
+  }
+
+  private Map<String, Object> lookupParams(final Iterable<String> names) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("names", names);
-
-    final JsonElement callResult = connection.call("phid.lookup", params);
-    final LookupResult result = gson.fromJson(callResult, LookupResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -221,13 +247,25 @@ public class PhidModule extends Module {
    */
   public QueryResult query(final Iterable<String> phids)
       throws ConduitException {
+    final Map<String, Object> params = queryParams(phids);
+    return callWithSession("phid.query", params, QueryResult.class);
+  }
+
+  /**
+   * Runs the API's 'phid.query' method without blocking
+   *
+   * @see #query(Iterable)
+   */
+  public Future<QueryResult> queryAsync(final Iterable<String> phids,
+      final FutureCallback<QueryResult> callback) {
+    return callAsyncWithSession("phid.query", queryParams(phids),
+        QueryResult.class, callback);
+  }
+
+  private Map<String, Object> queryParams(final Iterable<String> phids) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("phids", phids);
-
-    final JsonElement callResult = connection.call("phid.query", params);
-    final QueryResult result = gson.fromJson(callResult, QueryResult.class);
-    return result;
+    return params;
   }
 
   /**
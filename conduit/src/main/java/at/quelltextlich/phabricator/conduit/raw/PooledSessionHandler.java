@@ -0,0 +1,369 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.ThrottledException;
+
+/**
+ * Spreads calls across the sessions of several credentials
+ * <p/>
+ * Phabricator throttles calls per user, so a single user caps the throughput
+ * of a client. This handler holds one session handler per credential, and
+ * fills in their sessions round-robin.
+ * <p/>
+ * If a credential gets throttled, or fails to authenticate, it gets taken out
+ * of rotation for a cooldown, and calls go to the other credentials
+ * meanwhile. Only if all credentials are out of rotation, calls fail.
+ * <p/>
+ * The handler is thread-safe, if the pooled handlers are.
+ */
+public class PooledSessionHandler implements SessionHandler {
+  private static final Logger log = LoggerFactory
+      .getLogger(PooledSessionHandler.class);
+
+  /**
+   * Error codes of calls whose credentials got rejected
+   */
+  public static final Set<String> AUTH_ERROR_CODES = Collections
+      .unmodifiableSet(new HashSet<String>(Arrays.asList(
+          "ERR-INVALID-AUTH", "ERR-INVALID-USER", "ERR-INVALID-CERTIFICATE",
+          "ERR-NO-CERTIFICATE")));
+
+  private final List<Member> members;
+  private final AtomicInteger next;
+  private volatile long cooldownMillis;
+
+  /**
+   * Creates a pool of session handlers
+   * <p/>
+   * Each handler should hold the session of a different credential.
+   *
+   * @param handlers
+   *          The handlers to spread calls across
+   */
+  public PooledSessionHandler(final List<? extends SessionHandler> handlers) {
+    if (handlers.isEmpty()) {
+      throw new IllegalArgumentException("No session handlers to pool");
+    }
+    members = new ArrayList<Member>(handlers.size());
+    for (final SessionHandler handler : handlers) {
+      members.add(new Member(members.size(), handler));
+    }
+    next = new AtomicInteger();
+    cooldownMillis = 60000;
+  }
+
+  /**
+   * Gets the time credentials stay out of rotation after failing
+   *
+   * @return the cooldown in milliseconds
+   */
+  public long getCooldownMillis() {
+    return cooldownMillis;
+  }
+
+  /**
+   * Sets the time credentials stay out of rotation after failing
+   *
+   * @param cooldownMillis
+   *          the cooldown in milliseconds
+   */
+  public void setCooldownMillis(final long cooldownMillis) {
+    this.cooldownMillis = cooldownMillis;
+  }
+
+  @Override
+  public void fillInSession(final Map<String, Object> params)
+      throws ConduitException {
+    ConduitException lastFailure = null;
+    for (int attempt = 0; attempt < members.size(); attempt++) {
+      final Member member = pickMember();
+      if (member == null) {
+        break;
+      }
+      final Map<String, Object> memberParams = new HashMap<String, Object>();
+      try {
+        member.handler.fillInSession(memberParams);
+      } catch (final ConduitException e) {
+        if (!isCredentialFailure(e)) {
+          throw e;
+        }
+        takeOutOfRotation(member, e);
+        lastFailure = e;
+        continue;
+      }
+      putMemberParams(params, member, memberParams);
+      return;
+    }
+    throw new ConduitException("No credentials in rotation", lastFailure);
+  }
+
+  @Override
+  public void fillInSessionAsync(final Map<String, Object> params,
+      final FutureCallback<Void> callback) {
+    fillInSessionAsync(params, callback, 0, null);
+  }
+
+  /**
+   * Adds session parameters of the next handler in rotation without blocking
+   *
+   * @param params
+   *          The Map to add session paramaters to
+   * @param callback
+   *          Callback to notify once the session got filled in
+   * @param attempt
+   *          The number of handlers that failed to fill in their session so
+   *          far
+   * @param lastFailure
+   *          The failure of the last handler that failed, or null
+   */
+  private void fillInSessionAsync(final Map<String, Object> params,
+      final FutureCallback<Void> callback, final int attempt,
+      final ConduitException lastFailure) {
+    final Member member = (attempt < members.size()) ? pickMember() : null;
+    if (member == null) {
+      callback.failed(new ConduitException("No credentials in rotation",
+          lastFailure));
+      return;
+    }
+    final Map<String, Object> memberParams = new HashMap<String, Object>();
+    member.handler.fillInSessionAsync(memberParams,
+        new FutureCallback<Void>() {
+          @Override
+          public void completed(final Void result) {
+            putMemberParams(params, member, memberParams);
+            callback.completed(null);
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            if (!(e instanceof ConduitException) || !isCredentialFailure(e)) {
+              callback.failed(e);
+              return;
+            }
+            takeOutOfRotation(member, (ConduitException) e);
+            fillInSessionAsync(params, callback, attempt + 1,
+                (ConduitException) e);
+          }
+
+          @Override
+          public void cancelled() {
+            callback.cancelled();
+          }
+        });
+  }
+
+  @Override
+  public void invalidateSession(final Map<String, Object> params) {
+    final Member member = getMember(params);
+    if (member != null) {
+      member.handler.invalidateSession(params);
+    }
+  }
+
+  @Override
+  public void callFailed(final Map<String, Object> params,
+      final ConduitException e) {
+    final Member member = getMember(params);
+    if (member != null) {
+      if (isCredentialFailure(e)) {
+        takeOutOfRotation(member, e);
+      }
+      member.handler.callFailed(params, e);
+    }
+  }
+
+  /**
+   * Gets the number of pooled handlers
+   *
+   * @return the number of handlers
+   */
+  public int getMemberCount() {
+    return members.size();
+  }
+
+  /**
+   * Checks whether a pooled handler currently gets calls
+   *
+   * @param index
+   *          The index of the handler, in the order they got passed in
+   * @return true, if the handler is not cooling down
+   */
+  public boolean isInRotation(final int index) {
+    return members.get(index).isInRotation(System.nanoTime());
+  }
+
+  /**
+   * Gets the number of sessions a pooled handler filled in
+   *
+   * @param index
+   *          The index of the handler, in the order they got passed in
+   * @return the number of sessions so far
+   */
+  public long getCalls(final int index) {
+    return members.get(index).calls.get();
+  }
+
+  /**
+   * Picks the next handler in rotation
+   *
+   * @return the picked handler, or null, if all handlers are cooling down
+   */
+  private Member pickMember() {
+    final long now = System.nanoTime();
+    final int start = next.getAndIncrement();
+    for (int i = 0; i < members.size(); i++) {
+      final Member member = members.get(((start + i) & Integer.MAX_VALUE)
+          % members.size());
+      if (member.isInRotation(now)) {
+        return member;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds the session parameters that a pooled handler filled in
+   *
+   * @param params
+   *          The Map to add session paramaters to
+   * @param member
+   *          The handler that filled in the session
+   * @param memberParams
+   *          The session parameters the handler filled in
+   */
+  private void putMemberParams(final Map<String, Object> params,
+      final Member member, final Map<String, Object> memberParams) {
+    member.calls.incrementAndGet();
+    for (final Map.Entry<String, Object> entry : memberParams.entrySet()) {
+      Object value = entry.getValue();
+      if ("__conduit__".equals(entry.getKey()) && value instanceof Map<?, ?>) {
+        value = new MemberParams(member, (Map<?, ?>) value);
+      }
+      params.put(entry.getKey(), value);
+    }
+  }
+
+  /**
+   * Takes a handler out of rotation for the cooldown
+   *
+   * @param member
+   *          The handler to take out of rotation
+   * @param e
+   *          The failure that caused it
+   */
+  private void takeOutOfRotation(final Member member,
+      final ConduitException e) {
+    member.cooldownEnd.set(System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(cooldownMillis));
+    log.debug("Took credentials " + member.index + " out of rotation", e);
+  }
+
+  /**
+   * Gets the handler that filled in a call's session
+   *
+   * @param params
+   *          The parameters the session got filled into
+   * @return the handler, or null, if the session is not from this pool
+   */
+  private Member getMember(final Map<String, Object> params) {
+    final Object conduitParams = params.get("__conduit__");
+    if (conduitParams instanceof MemberParams) {
+      return ((MemberParams) conduitParams).member;
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether a failure is due to the credentials
+   * <p/>
+   * Causes get checked too, as session handlers may wrap the failure of
+   * opening a session.
+   *
+   * @param e
+   *          The failure to check
+   * @return true, if the credentials got throttled or rejected
+   */
+  private boolean isCredentialFailure(final Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ThrottledException) {
+        return true;
+      }
+      if (cause instanceof ConduitErrorException
+          && AUTH_ERROR_CODES.contains(((ConduitErrorException) cause)
+              .getErrorCode())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A pooled handler and its state
+   */
+  private static class Member {
+    private final int index;
+    private final SessionHandler handler;
+    private final AtomicLong calls;
+    private final AtomicLong cooldownEnd;
+
+    private Member(final int index, final SessionHandler handler) {
+      this.index = index;
+      this.handler = handler;
+      this.calls = new AtomicLong();
+      this.cooldownEnd = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    private boolean isInRotation(final long now) {
+      final long end = cooldownEnd.get();
+      return end == Long.MIN_VALUE || now - end >= 0;
+    }
+  }
+
+  /**
+   * Session data that remembers the handler that filled it in
+   * <p/>
+   * It gets sent like any other map, so the server does not see the pool.
+   */
+  private static class MemberParams extends HashMap<String, Object> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Member member;
+
+    private MemberParams(final Member member, final Map<?, ?> conduitParams) {
+      this.member = member;
+      for (final Map.Entry<?, ?> entry : conduitParams.entrySet()) {
+        put(String.valueOf(entry.getKey()), entry.getValue());
+      }
+    }
+  }
+}
@@ -16,11 +16,14 @@ package at.quelltextlich.phabricator.conduit.raw;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
-import com.google.gson.JsonElement;
 import com.google.gson.annotations.SerializedName;
 
 /**
@@ -32,23 +35,52 @@ public class ProjectModule extends Module {
     super(connection, sessionHandler);
   }
 
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @param options
+   *          The options for the view's calls. null makes calls without
+   *          options.
+   * @return the view, which shares connection and session with this module
+   */
+  public ProjectModule withCallOptions(final CallOptions options) {
+    return new ProjectModule(connection.withCallOptions(options),
+        sessionHandler);
+  }
+
   /**
    * Runs the API's 'project.create' method
    */
   public CreateResult create(final String name, final List<String> members,
       final String icon, final String color, final List<String> tags)
       throws ConduitException {
+    final Map<String, Object> params = createParams(name, members, icon, color,
+        tags);
+    return callWithSession("project.create", params, CreateResult.class);
+  }
+
+  /**
+   * Runs the API's 'project.create' method without blocking
+   *
+   * @see #create(String, List, String, String, List)
+   */
+  public Future<CreateResult> createAsync(final String name,
+      final List<String> members, final String icon, final String color,
+      final List<String> tags, final FutureCallback<CreateResult> callback) {
+    return callAsyncWithSession("project.create", createParams(name, members,
+        icon, color, tags), CreateResult.class, callback);
+  }
+
+  private Map<String, Object> createParams(final String name,
+      final List<String> members, final String icon, final String color,
+      final List<String> tags) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("name", name);
     params.put("members", members);
     params.put("icon", icon);
     params.put("color", color);
     params.put("tags", tags);
-
-    final JsonElement callResult = connection.call("project.create", params);
-    final CreateResult result = gson.fromJson(callResult, CreateResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -272,8 +304,72 @@ public class ProjectModule extends Module {
       final List<String> icons, final List<String> colors, final String status,
       final List<String> members, final Integer limit, final Integer offset)
       throws ConduitException {
+    return query(ids, names, phids, slugs, icons, colors, status, members,
+        limit, offset, null, null);
+  }
+
+  /**
+   * Runs the API's 'project.query' method, paging by cursor
+   * <p/>
+   * Unlike offsets, cursors do not make the server skip over the projects of
+   * earlier pages, so paging by cursor stays cheap on large instances. To get
+   * the next page, pass the {@code after} of the result's
+   * {@link QueryResult#getCursor() cursor}.
+   *
+   * @param before
+   *          Cursor to get the page before. null, if not paging backwards.
+   * @param after
+   *          Cursor to get the page after. null, to get the first page.
+   */
+  public QueryResult query(final List<Integer> ids, final List<String> names,
+      final List<String> phids, final List<String> slugs,
+      final List<String> icons, final List<String> colors, final String status,
+      final List<String> members, final Integer limit, final Integer offset,
+      final String before, final String after) throws ConduitException {
+    final Map<String, Object> params = queryParams(ids, names, phids, slugs,
+        icons, colors, status, members, limit, offset, before, after);
+    return callWithSession("project.query", params, QueryResult.class);
+  }
+
+  /**
+   * Runs the API's 'project.query' method without blocking
+   *
+   * @see #query(List, List, List, List, List, List, String, List, Integer, Integer)
+   */
+  public Future<QueryResult> queryAsync(final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members, final Integer limit, final Integer offset,
+      final FutureCallback<QueryResult> callback) {
+    return queryAsync(ids, names, phids, slugs, icons, colors, status,
+        members, limit, offset, null, null, callback);
+  }
+
+  /**
+   * Runs the API's 'project.query' method without blocking, paging by cursor
+   *
+   * @see #query(List, List, List, List, List, List, String, List, Integer, Integer, String, String)
+   */
+  public Future<QueryResult> queryAsync(final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members, final Integer limit, final Integer offset,
+      final String before, final String after,
+      final FutureCallback<QueryResult> callback) {
+    return callAsyncWithSession("project.query", queryParams(ids, names, phids,
+        slugs, icons, colors, status, members, limit, offset, before, after),
+        QueryResult.class, callback);
+  }
+
+  private Map<String, Object> queryParams(final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members, final Integer limit, final Integer offset,
+      final String before, final String after) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("ids", ids);
     params.put("names", names);
     params.put("phids", phids);
@@ -284,10 +380,9 @@ public class ProjectModule extends Module {
     params.put("members", members);
     params.put("limit", limit);
     params.put("offset", offset);
-
-    final JsonElement callResult = connection.call("project.query", params);
-    final QueryResult result = gson.fromJson(callResult, QueryResult.class);
-    return result;
+    params.put("before", before);
+    params.put("after", after);
+    return params;
   }
 
   /**
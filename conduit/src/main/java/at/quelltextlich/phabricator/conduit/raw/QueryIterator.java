@@ -0,0 +1,244 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import at.quelltextlich.phabricator.conduit.UncheckedConduitException;
+
+/**
+ * Iterates over the results of a paged query, fetching the next pages in the
+ * background
+ * <p/>
+ * While the elements of a page get consumed, the following pages are already
+ * in flight. The number of pages in flight caps both the concurrent calls
+ * and the pages held in memory. Pages get handed out in the order of their
+ * offsets, regardless of the order their calls complete in. The query ends
+ * with the first page that holds less elements than the page size.
+ * <p/>
+ * Pages get fetched by offset, as {@code maniphest.query} offers no cursor to
+ * page on. Offsets shift, if matching elements get created, changed, or
+ * deleted while iterating. Elements that move to later offsets (E.g.: as
+ * newer elements got created) may show up on two pages. Such duplicates get
+ * dropped by their key. Keys are remembered for the elements of the last
+ * pages in flight plus one, so elements that move further than that get
+ * handed out twice.
+ * <p/>
+ * Elements that move to earlier offsets (E.g.: as elements on earlier pages
+ * stopped matching the query) may get skipped. Queries whose matches change
+ * while iterating (E.g.: filtering on a status that gets updated) have to be
+ * repeated to be sure to get all elements. Methods that page by cursor do not
+ * have these problems, and can get iterated by a {@link CursorQueryIterator}.
+ * <p/>
+ * Failed calls surface as {@link UncheckedConduitException} from
+ * {@link #hasNext()} and {@link #next()}. Closing the iterator aborts the
+ * calls in flight. Iterators are meant to be consumed by a single thread.
+ *
+ * @param <T>
+ *          The type of the query's elements
+ */
+public class QueryIterator<T> implements Iterator<T>, Closeable {
+  private final PageFetcher<T> fetcher;
+  private final int pageSize;
+  private final int pagesInFlight;
+  private final Function<? super T, ?> keyFunction;
+  private final Queue<CompletableFuture<? extends Collection<T>>> pages;
+  private final Set<Object> seenKeys;
+  private Iterator<T> page;
+  private T next;
+  private int nextOffset;
+  private boolean exhausted;
+
+  /**
+   * @param fetcher
+   *          Fetches the query's pages
+   * @param pageSize
+   *          The number of elements to fetch per call
+   * @param pagesInFlight
+   *          The number of pages to fetch ahead. 1 fetches the next page only
+   *          once the current page has been consumed.
+   * @param keyFunction
+   *          Gives the key that identifies an element across pages (e.g.: its
+   *          PHID)
+   */
+  public QueryIterator(final PageFetcher<T> fetcher, final int pageSize,
+      final int pagesInFlight, final Function<? super T, ?> keyFunction) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size has to be positive, but "
+          + "is " + pageSize);
+    }
+    if (pagesInFlight <= 0) {
+      throw new IllegalArgumentException("Pages in flight have to be "
+          + "positive, but are " + pagesInFlight);
+    }
+    this.fetcher = fetcher;
+    this.pageSize = pageSize;
+    this.pagesInFlight = pagesInFlight;
+    this.keyFunction = keyFunction;
+    pages = new ArrayDeque<CompletableFuture<? extends Collection<T>>>();
+    seenKeys = Collections.newSetFromMap(new BoundedMap<Object, Boolean>(
+        (pagesInFlight + 1) * pageSize));
+    page = Collections.<T> emptyList().iterator();
+    next = null;
+    nextOffset = 0;
+    exhausted = false;
+  }
+
+  /**
+   * Iterates over the tasks found by a {@code maniphest.query}
+   * <p/>
+   * Tasks get identified by their PHID.
+   *
+   * @param pageSize
+   *          The number of tasks to fetch per call
+   * @param pagesInFlight
+   *          The number of pages to fetch ahead
+   * @see ManiphestModule#query(List, List, List, List, List, List, String, String, String, Integer, Integer)
+   */
+  public static QueryIterator<ManiphestModule.TaskResult> maniphestQuery(
+      final ManiphestModule module, final List<Integer> ids,
+      final List<String> phids, final List<String> ownerPhids,
+      final List<String> authorPhids, final List<String> projectPhids,
+      final List<String> ccPhids, final String fullText, final String status,
+      final String order, final int pageSize, final int pagesInFlight) {
+    return new QueryIterator<ManiphestModule.TaskResult>(
+        PageFetchers.maniphestQuery(new AsyncManiphestModule(module), ids,
+            phids, ownerPhids, authorPhids, projectPhids, ccPhids, fullText,
+            status, order), pageSize, pagesInFlight,
+        new Function<ManiphestModule.TaskResult, String>() {
+          @Override
+          public String apply(final ManiphestModule.TaskResult task) {
+            return task.getPhid();
+          }
+        });
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == null) {
+      if (page.hasNext()) {
+        final T element = page.next();
+        if (seenKeys.add(keyFunction.apply(element))) {
+          next = element;
+        }
+      } else if (exhausted) {
+        return false;
+      } else {
+        page = awaitPage().iterator();
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final T ret = next;
+    next = null;
+    return ret;
+  }
+
+  /**
+   * Gives a sequential stream over the remaining elements
+   * <p/>
+   * Closing the stream closes this iterator.
+   *
+   * @return the stream
+   */
+  public Stream<T> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED
+            | Spliterator.NONNULL), false).onClose(new Runnable() {
+      @Override
+      public void run() {
+        close();
+      }
+    });
+  }
+
+  /**
+   * Aborts the calls in flight, and ends the iteration
+   * <p/>
+   * Elements of the current page can still be consumed.
+   */
+  @Override
+  public void close() {
+    exhausted = true;
+    CompletableFuture<? extends Collection<T>> pending;
+    while ((pending = pages.poll()) != null) {
+      pending.cancel(true);
+    }
+  }
+
+  /**
+   * Fills up the pages in flight, and waits for the next page
+   *
+   * @return the elements of the next page
+   */
+  private Collection<T> awaitPage() {
+    while (pages.size() < pagesInFlight) {
+      pages.add(fetcher.fetch(nextOffset, pageSize));
+      nextOffset += pageSize;
+    }
+    final Collection<T> ret;
+    try {
+      ret = PageFetchers.await(pages.poll());
+    } catch (final UncheckedConduitException e) {
+      close();
+      throw e;
+    }
+    if (ret.size() < pageSize) {
+      // Pages past the end are empty, so the calls for them are not needed.
+      close();
+    }
+    return ret;
+  }
+
+  /**
+   * Map that drops its oldest entries, once it holds more than a given number
+   * of entries
+   */
+  private static class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    public BoundedMap(final int capacity) {
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+      return size() > capacity;
+    }
+  }
+}
@@ -15,8 +15,17 @@ package at.quelltextlich.phabricator.conduit.raw;
 
 import java.util.Map;
 
+import org.apache.http.concurrent.FutureCallback;
+
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallExecutors;
 
+/**
+ * Fills session data into the parameters of calls
+ * <p/>
+ * A handler is shared by all modules of a {@link Conduit}, so handlers have
+ * to be thread-safe.
+ */
 public interface SessionHandler {
   /**
    * Adds session parameters to a Map of parameters
@@ -30,4 +39,73 @@ public interface SessionHandler {
    */
   public void fillInSession(final Map<String, Object> params)
       throws ConduitException;
+
+  /**
+   * Adds session parameters to a Map of parameters without blocking
+   * <p/>
+   * This is used by non-blocking calls, whose callbacks run on I/O threads
+   * that must not wait for a {@code conduit.connect}.
+   * <p/>
+   * The default implementation runs {@link #fillInSession(Map)} on
+   * {@link CallExecutors#getSharedCallExecutor()}. Handlers that can fill in
+   * sessions without blocking should override this method.
+   *
+   * @param params
+   *          The Map to add session paramaters to
+   * @param callback
+   *          Callback to notify once the session got filled in, or filling
+   *          it in failed with a {@link ConduitException}
+   */
+  public default void fillInSessionAsync(final Map<String, Object> params,
+      final FutureCallback<Void> callback) {
+    CallExecutors.getSharedCallExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          fillInSession(params);
+        } catch (final ConduitException e) {
+          callback.failed(e);
+          return;
+        } catch (final RuntimeException e) {
+          callback.failed(new ConduitException("Could not fill in session",
+              e));
+          return;
+        }
+        callback.completed(null);
+      }
+    });
+  }
+
+  /**
+   * Drops the session that got filled into a Map of parameters
+   * <p/>
+   * This is called after the server rejected the session (E.g.: as it
+   * expired). If a newer session has been opened meanwhile, it is kept.
+   * <p/>
+   * The default implementation does nothing, so handlers that predate this
+   * method keep working, but also keep the rejected session.
+   *
+   * @param params
+   *          The Map that the rejected session got filled into
+   */
+  public default void invalidateSession(final Map<String, Object> params) {
+  }
+
+  /**
+   * Notes that a call with session data failed
+   * <p/>
+   * Handlers may use this to stop using credentials that got throttled or
+   * rejected. Rejected sessions get reported through
+   * {@link #invalidateSession(Map)} instead.
+   * <p/>
+   * The default implementation does nothing.
+   *
+   * @param params
+   *          The Map that the call's session got filled into
+   * @param e
+   *          The call's failure
+   */
+  public default void callFailed(final Map<String, Object> params,
+      final ConduitException e) {
+  }
 }
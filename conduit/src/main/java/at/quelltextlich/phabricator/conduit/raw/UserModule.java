@@ -17,8 +17,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallOptions;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
 import com.google.gson.JsonElement;
@@ -32,28 +36,68 @@ public class UserModule extends Module {
     super(connection, sessionHandler);
   }
 
+  /**
+   * Gets a view on this module, whose calls use the given options
+   *
+   * @param options
+   *          The options for the view's calls. null makes calls without
+   *          options.
+   * @return the view, which shares connection and session with this module
+   */
+  public UserModule withCallOptions(final CallOptions options) {
+    return new UserModule(connection.withCallOptions(options), sessionHandler);
+  }
+
   /**
    * Runs the API's 'user.disable' method
    */
   public void disable(final List<String> phids) throws ConduitException {
+    final Map<String, Object> params = disableParams(phids);
+    // 'user.disable' method does not yield data.
+    callWithSession("user.disable", params);
+  }
+
+  /**
+   * Runs the API's 'user.disable' method without blocking
+   *
+   * @see #disable(List)
+   */
+  public Future<JsonElement> disableAsync(final List<String> phids,
+      final FutureCallback<JsonElement> callback) {
+    return callAsyncWithSession("user.disable", disableParams(phids),
+        JsonElement.class, callback);
+  }
+
+  private Map<String, Object> disableParams(final List<String> phids) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("phids", phids);
-
-    // 'user.disable' method does not yield data.
-    connection.call("user.disable", params);
+    return params;
   }
 
   /**
    * Runs the API's 'user.enable' method
    */
   public void enable(final List<String> phids) throws ConduitException {
+    final Map<String, Object> params = enableParams(phids);
+    // 'user.enable' method does not yield data.
+    callWithSession("user.enable", params);
+  }
+
+  /**
+   * Runs the API's 'user.enable' method without blocking
+   *
+   * @see #enable(List)
+   */
+  public Future<JsonElement> enableAsync(final List<String> phids,
+      final FutureCallback<JsonElement> callback) {
+    return callAsyncWithSession("user.enable", enableParams(phids),
+        JsonElement.class, callback);
+  }
+
+  private Map<String, Object> enableParams(final List<String> phids) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("phids", phids);
-
-    // 'user.enable' method does not yield data.
-    connection.call("user.enable", params);
+    return params;
   }
 
   /**
@@ -63,8 +107,29 @@ public class UserModule extends Module {
       final List<String> emails, final List<String> realNames,
       final List<String> phids, final List<Integer> ids, final Integer offset,
       final Integer limit) throws ConduitException {
+    final Map<String, Object> params = queryParams(usernames, emails, realNames,
+        phids, ids, offset, limit);
+    return callWithSession("user.query", params, QueryResult.class);
+  }
+
+  /**
+   * Runs the API's 'user.query' method without blocking
+   *
+   * @see #query(List, List, List, List, List, Integer, Integer)
+   */
+  public Future<QueryResult> queryAsync(final List<String> usernames,
+      final List<String> emails, final List<String> realNames,
+      final List<String> phids, final List<Integer> ids, final Integer offset,
+      final Integer limit, final FutureCallback<QueryResult> callback) {
+    return callAsyncWithSession("user.query", queryParams(usernames, emails,
+        realNames, phids, ids, offset, limit), QueryResult.class, callback);
+  }
+
+  private Map<String, Object> queryParams(final List<String> usernames,
+      final List<String> emails, final List<String> realNames,
+      final List<String> phids, final List<Integer> ids, final Integer offset,
+      final Integer limit) {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
     params.put("usernames", usernames);
     params.put("emails", emails);
     params.put("realnames", realNames);
@@ -72,10 +137,7 @@ public class UserModule extends Module {
     params.put("ids", ids);
     params.put("offset", offset);
     params.put("limit", limit);
-
-    final JsonElement callResult = connection.call("user.query", params);
-    final QueryResult result = gson.fromJson(callResult, QueryResult.class);
-    return result;
+    return params;
   }
 
   /**
@@ -119,11 +181,18 @@ public class UserModule extends Module {
    */
   public WhoAmIResult whoAmI() throws ConduitException {
     final Map<String, Object> params = new HashMap<String, Object>();
-    sessionHandler.fillInSession(params);
+    return callWithSession("user.whoami", params, WhoAmIResult.class);
+  }
 
-    final JsonElement callResult = connection.call("user.whoami", params);
-    final WhoAmIResult result = gson.fromJson(callResult, WhoAmIResult.class);
-    return result;
+  /**
+   * Runs the API's 'user.whoami' method without blocking
+   *
+   * @see #whoAmI()
+   */
+  public Future<WhoAmIResult> whoAmIAsync(
+      final FutureCallback<WhoAmIResult> callback) {
+    return callAsyncWithSession("user.whoami", new HashMap<String, Object>(),
+        WhoAmIResult.class, callback);
   }
 
   /**
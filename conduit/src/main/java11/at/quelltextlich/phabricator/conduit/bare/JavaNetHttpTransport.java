@@ -0,0 +1,234 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Transport on top of Java 11's {@code java.net.http.HttpClient}
+ * <p/>
+ * The client prefers HTTP/2, and falls back to HTTP/1.1 if the server does
+ * not support it. Over HTTP/2, concurrent calls share a connection.
+ * <p/>
+ * This transport is only available on Java 11 and newer.
+ */
+public class JavaNetHttpTransport implements Transport {
+  private final String apiUrlBase;
+  private final HttpClient client;
+  private volatile boolean closed;
+
+  public JavaNetHttpTransport(final String baseUrl) {
+    this(baseUrl, HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+        .build());
+  }
+
+  /**
+   * @param baseUrl
+   *          The base url of the Phabricator instance
+   * @param client
+   *          The client to send calls with
+   */
+  public JavaNetHttpTransport(final String baseUrl, final HttpClient client) {
+    apiUrlBase = baseUrl.replaceAll("/+$", "") + "/api/";
+    this.client = client;
+    closed = false;
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final HttpResponse<InputStream> response;
+    try {
+      response = client.send(createRequest(request),
+          HttpResponse.BodyHandlers.ofInputStream());
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for response", e);
+    }
+    return new JavaNetHttpTransportResponse(response, response.body());
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * The response's content is received completely before the future
+   * completes, so reading it does not block.
+   */
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final HttpRequest httpRequest;
+    try {
+      httpRequest = createRequest(request);
+    } catch (final IOException e) {
+      future.failed(e);
+      return future;
+    }
+    final CompletableFuture<HttpResponse<byte[]>> responseFuture = client
+        .sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        return responseFuture.cancel(true);
+      }
+    });
+    responseFuture
+        .whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+          @Override
+          public void accept(final HttpResponse<byte[]> response,
+              final Throwable t) {
+            if (t == null) {
+              future.completed(new JavaNetHttpTransportResponse(response,
+                  new ByteArrayInputStream(response.body())));
+            } else {
+              final Throwable cause = (t instanceof CompletionException && t
+                  .getCause() != null) ? t.getCause() : t;
+              if (cause instanceof IOException) {
+                future.failed((IOException) cause);
+              } else {
+                future.failed(new IOException("Could not send request",
+                    cause));
+              }
+            }
+          }
+        });
+    return future;
+  }
+
+  /**
+   * Closes the transport
+   * <p/>
+   * The underlying HttpClient cannot be closed on Java 11. Its connections
+   * are released once the client gets garbage collected.
+   */
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  /**
+   * Creates the HTTP request for a Conduit call
+   * <p/>
+   * HttpClient's body publishers cannot write to a stream, so the body gets
+   * encoded into a single buffer.
+   *
+   * @param request
+   *          The call to create the HTTP request for
+   * @return the request to send
+   * @throws IOException
+   *           if the transport has been closed, or the body could not be
+   *           encoded
+   */
+  private HttpRequest createRequest(final TransportRequest request)
+      throws IOException {
+    if (closed) {
+      throw new IOException("Transport has already been closed");
+    }
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    request.writeBody(body);
+
+    final HttpRequest.Builder builder = HttpRequest
+        .newBuilder(URI.create(apiUrlBase + request.getMethod()))
+        .header("Content-Type", TransportRequest.CONTENT_TYPE)
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()));
+    if (request.isCompressionAccepted()) {
+      builder.header("Accept-Encoding", "gzip, deflate");
+    }
+    if (request.hasDeadline()) {
+      // Blocking sends cannot be aborted, so the deadline has to be enforced
+      // by the client.
+      builder.timeout(Duration.ofMillis(request.capTimeoutMillis(0)));
+    }
+    return builder.build();
+  }
+
+  /**
+   * TransportResponse backed by a java.net.http response
+   */
+  private static class JavaNetHttpTransportResponse implements
+      TransportResponse {
+    private final HttpResponse<?> response;
+    private final InputStream content;
+
+    public JavaNetHttpTransportResponse(final HttpResponse<?> response,
+        final InputStream content) {
+      this.response = response;
+      this.content = content;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return response.statusCode();
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return response.headers().firstValue("Content-Encoding").orElse(null);
+    }
+
+    @Override
+    public Charset getCharset() {
+      final String contentType = response.headers()
+          .firstValue("Content-Type").orElse(null);
+      if (contentType == null) {
+        return null;
+      }
+      for (final String parameter : contentType.split(";")) {
+        final String[] parts = parameter.trim().split("=", 2);
+        if (parts.length == 2
+            && "charset".equals(parts[0].trim().toLowerCase(Locale.ENGLISH))) {
+          try {
+            return Charset.forName(parts[1].trim().replace("\"", ""));
+          } catch (final IllegalCharsetNameException e) {
+            return null;
+          } catch (final UnsupportedCharsetException e) {
+            return null;
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+      content.close();
+    }
+  }
+}
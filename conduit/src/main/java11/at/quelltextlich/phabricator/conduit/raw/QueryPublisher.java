@@ -0,0 +1,273 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Publishes the results of a paged query, fetching pages only as fast as
+ * subscribers consume them
+ * <p/>
+ * Each subscription runs the query on its own, page by page. A page gets
+ * fetched once a subscriber requested more elements than the fetched pages
+ * held, so at most one page per subscription is held in memory. The query
+ * ends with the first page that holds less elements than the page size.
+ * <p/>
+ * Elements get emitted on the thread that requested them, or on the thread
+ * that completed a page's call. Cancelling a subscription aborts the call
+ * of the page that is being fetched.
+ * <p/>
+ * This class is only available on Java 11 and newer.
+ *
+ * @param <T>
+ *          The type of the query's elements
+ */
+public class QueryPublisher<T> implements Flow.Publisher<T> {
+  private final PageFetcher<T> fetcher;
+  private final int pageSize;
+
+  /**
+   * @param fetcher
+   *          Fetches the query's pages
+   * @param pageSize
+   *          The number of elements to fetch per page
+   */
+  public QueryPublisher(final PageFetcher<T> fetcher, final int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size has to be positive, but "
+          + "is " + pageSize);
+    }
+    this.fetcher = fetcher;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+    final PagingSubscription subscription = new PagingSubscription(
+        subscriber);
+    subscriber.onSubscribe(subscription);
+    subscription.drain();
+  }
+
+  /**
+   * Publishes the tasks found by a {@code maniphest.query}
+   *
+   * @param pageSize
+   *          The number of tasks to fetch per call
+   * @see ManiphestModule#query(List, List, List, List, List, List, String, String, String, Integer, Integer)
+   */
+  public static QueryPublisher<ManiphestModule.TaskResult> maniphestQuery(
+      final AsyncManiphestModule module, final List<Integer> ids,
+      final List<String> phids, final List<String> ownerPhids,
+      final List<String> authorPhids, final List<String> projectPhids,
+      final List<String> ccPhids, final String fullText, final String status,
+      final String order, final int pageSize) {
+    return new QueryPublisher<ManiphestModule.TaskResult>(
+        PageFetchers.maniphestQuery(module, ids, phids, ownerPhids,
+            authorPhids, projectPhids, ccPhids, fullText, status, order),
+        pageSize);
+  }
+
+  /**
+   * Publishes the projects found by a {@code project.query}
+   *
+   * @param pageSize
+   *          The number of projects to fetch per call
+   * @see ProjectModule#query(List, List, List, List, List, List, String, List, Integer, Integer)
+   */
+  public static QueryPublisher<ProjectModule.ProjectResult> projectQuery(
+      final AsyncProjectModule module, final List<Integer> ids,
+      final List<String> names, final List<String> phids,
+      final List<String> slugs, final List<String> icons,
+      final List<String> colors, final String status,
+      final List<String> members, final int pageSize) {
+    return new QueryPublisher<ProjectModule.ProjectResult>(
+        PageFetchers.projectQuery(module, ids, names, phids, slugs, icons,
+            colors, status, members), pageSize);
+  }
+
+  /**
+   * Publishes the users found by a {@code user.query}
+   *
+   * @param pageSize
+   *          The number of users to fetch per call
+   * @see UserModule#query(List, List, List, List, List, Integer, Integer)
+   */
+  public static QueryPublisher<UserModule.UserResult> userQuery(
+      final AsyncUserModule module, final List<String> usernames,
+      final List<String> emails, final List<String> realNames,
+      final List<String> phids, final List<Integer> ids, final int pageSize) {
+    return new QueryPublisher<UserModule.UserResult>(PageFetchers.userQuery(
+        module, usernames, emails, realNames, phids, ids), pageSize);
+  }
+
+  /**
+   * Subscription that fetches pages on demand
+   * <p/>
+   * All signals to the subscriber get sent from {@link #drain()}, which only
+   * runs on one thread at a time.
+   */
+  private class PagingSubscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final AtomicLong demand;
+    private final AtomicInteger drainers;
+    private final Queue<T> buffer;
+    private volatile CompletableFuture<? extends Collection<T>> pendingPage;
+    private volatile Collection<T> fetchedPage;
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+
+    // Only accessed while draining
+    private int offset;
+    private boolean fetching;
+    private boolean exhausted;
+    private boolean terminated;
+
+    private PagingSubscription(final Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+      demand = new AtomicLong();
+      drainers = new AtomicInteger();
+      buffer = new ArrayDeque<T>();
+      offset = 0;
+      fetching = false;
+      exhausted = false;
+      terminated = false;
+    }
+
+    @Override
+    public void request(final long n) {
+      if (n <= 0) {
+        failure = new IllegalArgumentException("Requested " + n
+            + " elements, but requests have to be positive");
+      } else {
+        long current;
+        do {
+          current = demand.get();
+        } while (current != Long.MAX_VALUE
+            && !demand.compareAndSet(current,
+                (current + n < 0) ? Long.MAX_VALUE : current + n));
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      final CompletableFuture<? extends Collection<T>> page = pendingPage;
+      if (page != null) {
+        page.cancel(true);
+      }
+      drain();
+    }
+
+    /**
+     * Emits what has been requested and fetched, and fetches the next page
+     * if needed
+     */
+    private void drain() {
+      if (drainers.getAndIncrement() != 0) {
+        // Another thread is draining, and will loop once more.
+        return;
+      }
+      do {
+        drainOnce();
+      } while (drainers.decrementAndGet() != 0);
+    }
+
+    private void drainOnce() {
+      if (terminated) {
+        return;
+      }
+      if (cancelled) {
+        terminate();
+        return;
+      }
+      final Collection<T> fetched = fetchedPage;
+      if (fetched != null) {
+        fetchedPage = null;
+        fetching = false;
+        buffer.addAll(fetched);
+        offset += fetched.size();
+        exhausted = fetched.size() < pageSize;
+      }
+      while (demand.get() > 0 && !buffer.isEmpty()) {
+        if (demand.get() != Long.MAX_VALUE) {
+          demand.decrementAndGet();
+        }
+        subscriber.onNext(buffer.poll());
+        if (cancelled) {
+          terminate();
+          return;
+        }
+      }
+      if (failure == null && buffer.isEmpty() && !fetching) {
+        if (exhausted) {
+          terminate();
+          subscriber.onComplete();
+          return;
+        }
+        if (demand.get() > 0) {
+          fetchPage();
+        }
+      }
+      if (failure != null) {
+        terminate();
+        subscriber.onError(failure);
+      }
+    }
+
+    private void terminate() {
+      terminated = true;
+      buffer.clear();
+    }
+
+    /**
+     * Starts fetching the next page
+     */
+    private void fetchPage() {
+      fetching = true;
+      final CompletableFuture<? extends Collection<T>> page;
+      try {
+        page = fetcher.fetch(offset, pageSize);
+      } catch (final RuntimeException e) {
+        failure = e;
+        return;
+      }
+      pendingPage = page;
+      page.whenComplete(new BiConsumer<Collection<T>, Throwable>() {
+        @Override
+        public void accept(final Collection<T> elements, final Throwable e) {
+          pendingPage = null;
+          if (e == null) {
+            fetchedPage = elements;
+          } else if (e instanceof CompletionException && e.getCause() != null) {
+            failure = e.getCause();
+          } else {
+            failure = e;
+          }
+          drain();
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for running blocking Conduit calls on threads of their own
+ * <p/>
+ * This is the Java 21 version of the class. Each call runs on a virtual thread
+ * of its own, so blocking calls only hold a carrier thread while they compute,
+ * not while they wait for the server.
+ */
+public class CallExecutors {
+  /**
+   * Checks whether calls run on virtual threads
+   *
+   * @return true, as {@link #newCallExecutor()} gives virtual threads.
+   */
+  public static boolean isVirtual() {
+    return true;
+  }
+
+  /**
+   * Gets the executor that is shared by the whole library
+   * <p/>
+   * It is meant for short blocking work that must not run on I/O threads
+   * (E.g.: opening a session). It gets created on first use, and is never
+   * shut down.
+   *
+   * @return the shared executor
+   */
+  public static ExecutorService getSharedCallExecutor() {
+    return SharedCallExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Creates an executor that runs each task on a virtual thread of its own
+   * <p/>
+   * Shutting the executor down is up to the caller.
+   *
+   * @return the created executor
+   */
+  public static ExecutorService newCallExecutor() {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+        .name("conduit-call-", 0).factory());
+  }
+
+  /**
+   * Holds the shared executor, so it gets created on first use
+   */
+  private static class SharedCallExecutorHolder {
+    private static final ExecutorService EXECUTOR = newCallExecutor();
+  }
+}
@@ -0,0 +1,372 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import at.quelltextlich.phabricator.conduit.ConcurrencyLimitException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+import at.quelltextlich.phabricator.conduit.ThrottledException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+
+public class AdaptiveConcurrencyTransportTest extends LoggingMockingTestCase {
+  private ConcurrencyLimitPolicy policy;
+  private GateResponder responder;
+  private AdaptiveConcurrencyTransport transport;
+  private Connection connection;
+  private ExecutorService executor;
+
+  public void testInitialLimit() {
+    assertEquals("Limit does not match", 4, transport.getLimit());
+    assertEquals("In-flight calls do not match", 0, transport.getInFlight());
+  }
+
+  public void testLimitGrowsWhileInUse() throws Exception {
+    policy.setLatencyTolerance(1000);
+    policy.setInitialLimit(2);
+    final AdaptiveConcurrencyTransport smallTransport = new AdaptiveConcurrencyTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection smallConnection = new Connection(smallTransport);
+    try {
+      for (int i = 0; i < 5; i++) {
+        smallConnection.call("conduit.ping");
+      }
+    } finally {
+      smallConnection.close();
+    }
+
+    assertEquals("Limit does not match", 3, smallTransport.getLimit());
+  }
+
+  public void testLimitShrinksOnFailures() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 3; i++) {
+      try {
+        connection.call("maniphest.query");
+        fail("no exception got thrown");
+      } catch (final ConduitException e) {
+      }
+    }
+
+    assertEquals("Limit does not match", 2, transport.getLimit());
+  }
+
+  public void testLimitShrinksOnSlowCalls() throws Exception {
+    connection.call("maniphest.query");
+    connection.call("maniphest.query");
+    responder.delayMillis = 50;
+    for (int i = 0; i < 3; i++) {
+      connection.call("maniphest.query");
+    }
+
+    assertEquals("Limit does not match", 2, transport.getLimit());
+  }
+
+  public void testConcurrentFailuresShrinkLimitOnce() throws Exception {
+    responder.failing = true;
+    responder.blocked = new CountDownLatch(1);
+    final Future<JsonElement>[] blockedCalls = startBlockingCalls(4);
+    waitForInFlight(4);
+
+    responder.blocked.countDown();
+    for (final Future<JsonElement> future : blockedCalls) {
+      try {
+        future.get();
+        fail("no exception got thrown");
+      } catch (final ExecutionException e) {
+      }
+    }
+
+    assertEquals("Limit does not match", 3, transport.getLimit());
+  }
+
+  public void testThrottledCallsShrinkLimit() throws Exception {
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(429, -1);
+        exchange.close();
+      }
+    });
+    final AdaptiveConcurrencyTransport throttledTransport = new AdaptiveConcurrencyTransport(
+        new ApacheTransport(server.getBaseUrl()), policy);
+    final Connection throttledConnection = new Connection(throttledTransport);
+    try {
+      for (int i = 0; i < 3; i++) {
+        try {
+          throttledConnection.call("maniphest.query");
+          fail("no exception got thrown");
+        } catch (final ThrottledException e) {
+        }
+      }
+    } finally {
+      throttledConnection.close();
+      server.stop();
+    }
+
+    assertEquals("Limit does not match", 2, throttledTransport.getLimit());
+  }
+
+  public void testLimitRecoversAfterFastOutlier() throws Exception {
+    // A single call that is much faster than the method's usual calls
+    connection.call("maniphest.query");
+    responder.delayMillis = 10;
+    for (int i = 0; i < 30; i++) {
+      connection.call("maniphest.query");
+    }
+
+    // Sequential calls only use a limit of up to 2, so the limit cannot grow
+    // further. But it has to climb back from the minimum of 1.
+    final int limit = transport.getLimit();
+    assertTrue("Limit did not recover, but is " + limit, limit >= 2);
+  }
+
+  public void testOpenResponseStaysInFlight() throws Exception {
+    final TransportResponse response = transport.send(newRequest());
+    assertEquals("In-flight calls do not match", 1, transport.getInFlight());
+
+    response.close();
+
+    assertEquals("In-flight calls do not match", 0, transport.getInFlight());
+  }
+
+  public void testCancelledCallsDoNotShrinkLimit() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 3; i++) {
+      final TransportRequest request = newRequest();
+      request.cancel();
+      try {
+        transport.send(request);
+        fail("no exception got thrown");
+      } catch (final IOException e) {
+      }
+    }
+
+    assertEquals("Limit does not match", 4, transport.getLimit());
+    assertEquals("In-flight calls do not match", 0, transport.getInFlight());
+  }
+
+  public void testRejectWhenQueueFull() throws Exception {
+    policy.setMaxQueued(0);
+    responder.blocked = new CountDownLatch(1);
+    final Future<JsonElement>[] blockedCalls = startBlockingCalls(4);
+    waitForInFlight(4);
+
+    try {
+      connection.call("maniphest.query");
+      fail("no exception got thrown");
+    } catch (final ConcurrencyLimitException e) {
+      assertEquals("Method does not match", "maniphest.query", e.getMethod());
+    }
+    assertEquals("Number of rejected calls does not match", 1,
+        transport.getRejectedCalls());
+
+    responder.blocked.countDown();
+    for (final Future<JsonElement> future : blockedCalls) {
+      future.get();
+    }
+  }
+
+  public void testQueuedCallGoesThrough() throws Exception {
+    responder.blocked = new CountDownLatch(1);
+    final Future<JsonElement>[] blockedCalls = startBlockingCalls(4);
+    waitForInFlight(4);
+
+    final Future<JsonElement> queued = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+    assertEquals("Number of queued calls does not match", 1,
+        transport.getQueued());
+    assertFalse("Queued call is done", queued.isDone());
+
+    responder.blocked.countDown();
+    for (final Future<JsonElement> future : blockedCalls) {
+      future.get();
+    }
+    assertEquals("Result does not match", new JsonPrimitive("foo"),
+        queued.get(1, TimeUnit.SECONDS));
+    assertEquals("Number of queued calls does not match", 0,
+        transport.getQueued());
+  }
+
+  public void testCancelQueuedCall() throws Exception {
+    responder.blocked = new CountDownLatch(1);
+    final Future<JsonElement>[] blockedCalls = startBlockingCalls(4);
+    waitForInFlight(4);
+
+    final Future<JsonElement> queued = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+    assertTrue("Cancelling failed", queued.cancel(true));
+    assertEquals("Number of queued calls does not match", 0,
+        transport.getQueued());
+
+    responder.blocked.countDown();
+    for (final Future<JsonElement> future : blockedCalls) {
+      future.get();
+    }
+    assertEquals("In-flight calls do not match", 0, transport.getInFlight());
+  }
+
+  public void testBlockingCallWaitTimeout() throws Exception {
+    policy.setMaxWaitMillis(50);
+    responder.blocked = new CountDownLatch(1);
+    final Future<JsonElement>[] blockedCalls = startBlockingCalls(4);
+    waitForInFlight(4);
+
+    try {
+      connection.call("maniphest.query");
+      fail("no exception got thrown");
+    } catch (final ConcurrencyLimitException e) {
+    }
+    assertEquals("Number of queued calls does not match", 0,
+        transport.getQueued());
+
+    responder.blocked.countDown();
+    for (final Future<JsonElement> future : blockedCalls) {
+      future.get();
+    }
+  }
+
+  public void testBlockingCallWaitEndsAtDeadline() throws Exception {
+    responder.blocked = new CountDownLatch(1);
+    final Future<JsonElement>[] blockedCalls = startBlockingCalls(4);
+    waitForInFlight(4);
+    final CallOptions options = new CallOptions();
+    options.setTimeoutMillis(50);
+
+    final long start = System.nanoTime();
+    try {
+      connection.call("maniphest.query", new HashMap<String, Object>(),
+          JsonElement.class, options);
+      fail("no exception got thrown");
+    } catch (final DeadlineExceededException e) {
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 5000);
+    assertEquals("Number of queued calls does not match", 0,
+        transport.getQueued());
+
+    responder.blocked.countDown();
+    for (final Future<JsonElement> future : blockedCalls) {
+      future.get();
+    }
+  }
+
+  public void testCallAsyncFailureReleases() throws Exception {
+    responder.failing = true;
+    final Future<JsonElement> future = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+    try {
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+    }
+
+    assertEquals("In-flight calls do not match", 0, transport.getInFlight());
+  }
+
+  private TransportRequest newRequest() {
+    return new TransportRequest("maniphest.query", new Gson(),
+        new HashMap<String, Object>(), false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Future<JsonElement>[] startBlockingCalls(final int count) {
+    final Future<JsonElement>[] ret = new Future[count];
+    for (int i = 0; i < count; i++) {
+      ret[i] = executor.submit(new Callable<JsonElement>() {
+        @Override
+        public JsonElement call() throws Exception {
+          return connection.call("maniphest.query");
+        }
+      });
+    }
+    return ret;
+  }
+
+  private void waitForInFlight(final int expected) throws Exception {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.getInFlight() < expected
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("In-flight calls do not match", expected,
+        transport.getInFlight());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    policy = new ConcurrencyLimitPolicy();
+    policy.setInitialLimit(4);
+    responder = new GateResponder();
+    transport = new AdaptiveConcurrencyTransport(new LoopbackTransport(
+        responder), policy);
+    connection = new Connection(transport);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    connection.close();
+    super.tearDown();
+  }
+
+  /**
+   * Answers calls once a gate opens, or fails them
+   */
+  private static class GateResponder implements LoopbackTransport.Responder {
+    private volatile CountDownLatch blocked;
+    private volatile boolean failing;
+    private volatile long delayMillis;
+
+    @Override
+    public String respond(final String method, final String body)
+        throws IOException {
+      try {
+        if (blocked != null) {
+          blocked.await();
+        }
+        if (delayMillis > 0) {
+          Thread.sleep(delayMillis);
+        }
+      } catch (final InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (failing) {
+        throw new IOException("injected");
+      }
+      return "{\"result\":\"foo\"}";
+    }
+  }
+}
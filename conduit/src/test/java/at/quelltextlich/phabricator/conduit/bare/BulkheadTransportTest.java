@@ -0,0 +1,285 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import at.quelltextlich.phabricator.conduit.BulkheadFullException;
+import at.quelltextlich.phabricator.conduit.CallCancelledException;
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+public class BulkheadTransportTest extends LoggingMockingTestCase {
+  private static final String BACKFILL = "maniphest.gettasktransactions";
+
+  private BulkheadPolicy policy;
+  private DelayingTransport delayingTransport;
+  private BulkheadTransport transport;
+  private Connection connection;
+
+  public void testDefaultBulkheadIsModule() {
+    assertEquals("Bulkhead does not match", "maniphest",
+        policy.getBulkhead("maniphest.gettasktransactions"));
+    assertEquals("Bulkhead does not match", "phid",
+        policy.getBulkhead("phid.query"));
+    assertEquals("Bulkhead does not match", "foo", policy.getBulkhead("foo"));
+  }
+
+  public void testSlowModuleDoesNotStarveOthers() throws Exception {
+    delayingTransport.addDelayMillis(2000);
+    delayingTransport.addDelayMillis(2000);
+    final Future<JsonElement> first = callAsync(BACKFILL);
+    final Future<JsonElement> second = callAsync(BACKFILL);
+    waitForCalls(2);
+    assertEquals("In flight calls do not match", 2,
+        transport.getInFlight("maniphest"));
+
+    try {
+      connection.call("maniphest.info");
+      fail("no exception got thrown");
+    } catch (final BulkheadFullException e) {
+      assertEquals("Bulkhead does not match", "maniphest", e.getBulkhead());
+      assertEquals("Method does not match", "maniphest.info", e.getMethod());
+    }
+    final long start = System.nanoTime();
+    final JsonElement result = connection.call("phid.query");
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 1000);
+    assertEquals("Rejected calls do not match", 1,
+        transport.getRejectedCalls());
+    assertEquals("Rejected calls do not match", 1,
+        transport.getRejectedCalls("maniphest"));
+    assertEquals("Rejected calls do not match", 0,
+        transport.getRejectedCalls("phid"));
+    first.cancel(true);
+    second.cancel(true);
+  }
+
+  public void testQueuedCallGoesThroughOnRelease() throws Exception {
+    policy.setMaxConcurrentCalls(1);
+    policy.setMaxQueued(1);
+    delayingTransport.addDelayMillis(200);
+    final Future<JsonElement> first = callAsync("maniphest.info");
+
+    final JsonElement result = connection.call("maniphest.info");
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertEquals("Result does not match", new JsonPrimitive("foo"),
+        first.get(5, TimeUnit.SECONDS));
+    assertEquals("Queued calls do not match", 0,
+        transport.getQueued("maniphest"));
+    assertEquals("In flight calls do not match", 0,
+        transport.getInFlight("maniphest"));
+    assertEquals("Rejected calls do not match", 0,
+        transport.getRejectedCalls());
+  }
+
+  public void testQueuedAsyncCallGoesThroughOnRelease() throws Exception {
+    policy.setMaxConcurrentCalls(1);
+    policy.setMaxQueued(1);
+    delayingTransport.addDelayMillis(200);
+    callAsync("maniphest.info");
+    final Future<JsonElement> queued = callAsync("maniphest.info");
+    assertEquals("Queued calls do not match", 1,
+        transport.getQueued("maniphest"));
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"),
+        queued.get(5, TimeUnit.SECONDS));
+  }
+
+  public void testBlockingWaitTimesOut() throws Exception {
+    policy.setMaxConcurrentCalls(1);
+    policy.setMaxQueued(1);
+    policy.setMaxWaitMillis(50);
+    delayingTransport.addDelayMillis(2000);
+    final Future<JsonElement> first = callAsync("maniphest.info");
+
+    try {
+      connection.call("maniphest.info");
+      fail("no exception got thrown");
+    } catch (final BulkheadFullException e) {
+    }
+
+    assertEquals("Queued calls do not match", 0,
+        transport.getQueued("maniphest"));
+    assertEquals("Rejected calls do not match", 1,
+        transport.getRejectedCalls("maniphest"));
+    first.cancel(true);
+  }
+
+  public void testOpenResponseStaysInFlight() throws Exception {
+    policy.setMaxConcurrentCalls(1);
+    policy.setMaxQueued(1);
+    policy.setMaxWaitMillis(50);
+    final TransportResponse response = transport.send(newRequest());
+    assertEquals("In flight calls do not match", 1,
+        transport.getInFlight("maniphest"));
+
+    try {
+      transport.send(newRequest());
+      fail("no exception got thrown");
+    } catch (final CallRejectedException e) {
+      assertTrue("Cause is no BulkheadFullException",
+          e.getCause() instanceof BulkheadFullException);
+    }
+    response.close();
+
+    assertEquals("In flight calls do not match", 0,
+        transport.getInFlight("maniphest"));
+    transport.send(newRequest()).close();
+  }
+
+  public void testMethodGroup() throws Exception {
+    policy.setBulkhead("maniphest.gettasktransactions", "backfill");
+    policy.setMaxConcurrentCalls("backfill", 1);
+    policy.setMaxQueued("backfill", 0);
+    delayingTransport.addDelayMillis(2000);
+    final Future<JsonElement> backfill = callAsync(BACKFILL);
+    waitForCalls(1);
+
+    try {
+      connection.call(BACKFILL);
+      fail("no exception got thrown");
+    } catch (final BulkheadFullException e) {
+      assertEquals("Bulkhead does not match", "backfill", e.getBulkhead());
+    }
+    assertEquals("Result does not match", new JsonPrimitive("foo"),
+        connection.call("maniphest.info"));
+
+    assertEquals("Rejected calls do not match", 1,
+        transport.getRejectedCalls("backfill"));
+    assertEquals("Rejected calls do not match", 0,
+        transport.getRejectedCalls("maniphest"));
+    backfill.cancel(true);
+  }
+
+  public void testCancelWhileWaiting() throws Exception {
+    policy.setMaxConcurrentCalls(1);
+    policy.setMaxQueued(1);
+    delayingTransport.addDelayMillis(2000);
+    final Future<JsonElement> first = callAsync("maniphest.info");
+    final CallOptions options = new CallOptions();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<JsonElement> waiting = executor
+          .submit(new Callable<JsonElement>() {
+            @Override
+            public JsonElement call() throws Exception {
+              return connection.call("maniphest.info",
+                  new HashMap<String, Object>(), JsonElement.class, options);
+            }
+          });
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (transport.getQueued("maniphest") == 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      options.cancel();
+
+      try {
+        waiting.get(5, TimeUnit.SECONDS);
+        fail("no exception got thrown");
+      } catch (final ExecutionException e) {
+        assertTrue("Cause is no CallCancelledException",
+            e.getCause() instanceof CallCancelledException);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals("Queued calls do not match", 0,
+        transport.getQueued("maniphest"));
+    assertEquals("Rejected calls do not match", 0,
+        transport.getRejectedCalls());
+    first.cancel(true);
+  }
+
+  public void testAsyncCancelWhileWaiting() throws Exception {
+    policy.setMaxConcurrentCalls(1);
+    policy.setMaxQueued(1);
+    delayingTransport.addDelayMillis(200);
+    final Future<JsonElement> first = callAsync("maniphest.info");
+    final Future<JsonElement> queued = callAsync("maniphest.info");
+
+    assertTrue("Cancelling failed", queued.cancel(true));
+    assertEquals("Queued calls do not match", 0,
+        transport.getQueued("maniphest"));
+    first.get(5, TimeUnit.SECONDS);
+
+    assertEquals("Number of sent calls does not match", 1,
+        delayingTransport.getCalls());
+    assertEquals("In flight calls do not match", 0,
+        transport.getInFlight("maniphest"));
+  }
+
+  /**
+   * Waits until calls reached the transport, so they took their delays
+   */
+  private void waitForCalls(final int expected) throws Exception {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (delayingTransport.getCalls() < expected
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Number of sent calls does not match", expected,
+        delayingTransport.getCalls());
+  }
+
+  private TransportRequest newRequest() {
+    return new TransportRequest("maniphest.info", new Gson(),
+        new HashMap<String, Object>(), false);
+  }
+
+  private Future<JsonElement> callAsync(final String method) {
+    return connection.callAsync(method, new HashMap<String, Object>());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    policy = new BulkheadPolicy();
+    policy.setMaxConcurrentCalls(2);
+    policy.setMaxQueued(0);
+    delayingTransport = new DelayingTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            return "{\"result\":\"foo\"}";
+          }
+        });
+    transport = new BulkheadTransport(delayingTransport, policy);
+    connection = new Connection(transport);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
@@ -0,0 +1,300 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import at.quelltextlich.phabricator.conduit.CircuitOpenException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+public class CircuitBreakerTransportTest extends LoggingMockingTestCase {
+  private CircuitBreakerPolicy policy;
+  private ToggleResponder responder;
+  private CircuitBreakerTransport transport;
+  private Connection connection;
+
+  public void testOpensOnFailures() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+    assertEquals("State does not match", CircuitBreakerTransport.State.OPEN,
+        transport.getState("maniphest.query"));
+
+    try {
+      connection.call("maniphest.query");
+      fail("no exception got thrown");
+    } catch (final CircuitOpenException e) {
+      assertEquals("Method does not match", "maniphest.query", e.getMethod());
+    }
+    assertEquals("Number of sent calls does not match", 4,
+        responder.calls.get());
+    assertEquals("Number of rejected calls does not match", 1,
+        transport.getRejectedCalls());
+  }
+
+  public void testCircuitsArePerMethod() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+    responder.failing = false;
+
+    connection.call("conduit.ping");
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.CLOSED,
+        transport.getState("conduit.ping"));
+  }
+
+  public void testStaysClosedBelowThreshold() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      responder.failing = (i % 4 == 0);
+      try {
+        connection.call("maniphest.query");
+      } catch (final CircuitOpenException e) {
+        fail("Circuit opened");
+      } catch (final ConduitException e) {
+      }
+    }
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.CLOSED,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testOpensOnSlowCalls() throws Exception {
+    policy.setSlowCallMillis(20);
+    policy.setSlowCallRateThreshold(0.5);
+    responder.delayMillis = 30;
+    for (int i = 0; i < 4; i++) {
+      connection.call("maniphest.query");
+    }
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.OPEN,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testOpensOnSlowResponses() throws Exception {
+    policy.setSlowCallMillis(20);
+    policy.setSlowCallRateThreshold(0.5);
+    for (int i = 0; i < 4; i++) {
+      final TransportResponse response = transport.send(newRequest());
+      Thread.sleep(30);
+      response.close();
+    }
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.OPEN,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testCancelledCallsNotRecorded() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      final TransportRequest request = newRequest();
+      request.cancel();
+      try {
+        transport.send(request);
+        fail("no exception got thrown");
+      } catch (final IOException e) {
+      }
+    }
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.CLOSED,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testExpiredCallsRecorded() throws Exception {
+    responder.failing = true;
+    responder.delayMillis = 30;
+    for (int i = 0; i < 4; i++) {
+      final TransportRequest request = newRequest();
+      request.setTimeoutMillis(10);
+      // Aborting calls at their deadline cancels them too
+      request.cancel();
+      try {
+        transport.send(request);
+        fail("no exception got thrown");
+      } catch (final IOException e) {
+      }
+    }
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.OPEN,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testRuntimeExceptionsOfTrialsRecorded() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+    responder.failing = false;
+    responder.runtimeFailing = true;
+    Thread.sleep(80);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        transport.send(newRequest());
+        fail("no exception got thrown");
+      } catch (final IllegalStateException e) {
+      }
+    }
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.OPEN,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testClosesAfterSuccessfulTrials() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+    responder.failing = false;
+    Thread.sleep(80);
+
+    connection.call("maniphest.query");
+    assertEquals("State does not match",
+        CircuitBreakerTransport.State.HALF_OPEN,
+        transport.getState("maniphest.query"));
+    connection.call("maniphest.query");
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.CLOSED,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testReopensAfterFailedTrials() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+    Thread.sleep(80);
+
+    callAndExpectFailure("maniphest.query");
+    callAndExpectFailure("maniphest.query");
+
+    assertEquals("State does not match", CircuitBreakerTransport.State.OPEN,
+        transport.getState("maniphest.query"));
+  }
+
+  public void testCallAsyncFailsFast() throws Exception {
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+
+    final Future<JsonElement> future = connection.callAsync(
+        "maniphest.query", new HashMap<String, Object>());
+    try {
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is no CircuitOpenException",
+          e.getCause() instanceof CircuitOpenException);
+    }
+    assertEquals("Number of sent calls does not match", 4,
+        responder.calls.get());
+  }
+
+  public void testOpenCircuitIsNotRetried() throws Exception {
+    final RetryPolicy retryPolicy = new RetryPolicy();
+    retryPolicy.setInitialBackoffMillis(1);
+    final Connection retryingConnection = new Connection(
+        new RetryingTransport(transport, retryPolicy));
+    responder.failing = true;
+    for (int i = 0; i < 4; i++) {
+      callAndExpectFailure("maniphest.query");
+    }
+
+    try {
+      retryingConnection.call("maniphest.query");
+      fail("no exception got thrown");
+    } catch (final CircuitOpenException e) {
+    } finally {
+      retryingConnection.close();
+    }
+    assertEquals("Number of rejected calls does not match", 1,
+        transport.getRejectedCalls());
+  }
+
+  private void callAndExpectFailure(final String method) {
+    try {
+      connection.call(method);
+      fail("no exception got thrown");
+    } catch (final CircuitOpenException e) {
+      fail("Circuit is open");
+    } catch (final ConduitException e) {
+    }
+  }
+
+  private TransportRequest newRequest() {
+    return new TransportRequest("maniphest.query", new Gson(),
+        new HashMap<String, Object>(), false);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    policy = new CircuitBreakerPolicy();
+    policy.setWindowSize(4);
+    policy.setMinimumCalls(4);
+    policy.setOpenMillis(50);
+    policy.setTrialCalls(2);
+    responder = new ToggleResponder();
+    transport = new CircuitBreakerTransport(new LoopbackTransport(responder),
+        policy);
+    connection = new Connection(transport);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+
+  /**
+   * Answers calls after a delay, or fails them
+   */
+  private static class ToggleResponder implements LoopbackTransport.Responder {
+    private volatile boolean failing;
+    private volatile boolean runtimeFailing;
+    private volatile long delayMillis;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public String respond(final String method, final String body)
+        throws IOException {
+      calls.incrementAndGet();
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (failing) {
+        throw new IOException("injected");
+      }
+      if (runtimeFailing) {
+        throw new IllegalStateException("injected");
+      }
+      return "{\"result\":\"foo\"}";
+    }
+  }
+}
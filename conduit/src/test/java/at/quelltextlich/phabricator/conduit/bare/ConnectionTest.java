@@ -0,0 +1,836 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.CallCancelledException;
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+import at.quelltextlich.phabricator.conduit.ThrottledException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+
+public class ConnectionTest extends LoggingMockingTestCase {
+  private StubServer server;
+
+  public void testCallPass() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final JsonElement result = connection.call("conduit.ping");
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallErrorCode() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"result\":null,"
+            + "\"error_code\":\"ERR-FOO\",\"error_info\":\"bar\"}");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      assertEquals("Error code does not match", "ERR-FOO", e.getErrorCode());
+      assertEquals("Error info does not match", "bar", e.getErrorInfo());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallThrottled() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(429, -1);
+        exchange.close();
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ThrottledException e) {
+      assertEquals("Method does not match", "conduit.ping", e.getMethod());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallEncodesParams() throws Exception {
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Map<String, Object> params = new HashMap<String, Object>();
+      params.put("description", "a&b=c+d %e\u00e4");
+      connection.call("maniphest.createtask", params);
+    } finally {
+      connection.close();
+    }
+
+    final String body = server.getRequestBodies().get(0);
+    assertTrue("Body does not start with 'params='",
+        body.startsWith("params="));
+    final String json = URLDecoder.decode(body.substring(7), "UTF-8");
+    final JsonObject decoded = new Gson().fromJson(json, JsonObject.class);
+    assertEquals("Description does not match", "a&b=c+d %e\u00e4", decoded
+        .get("description").getAsString());
+  }
+
+  public void testCallAsyncEncodesParams() throws Exception {
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Map<String, Object> params = new HashMap<String, Object>();
+      params.put("description", "a&b=c");
+      connection.callAsync("maniphest.createtask", params).get();
+    } finally {
+      connection.close();
+    }
+
+    final String body = server.getRequestBodies().get(0);
+    final String json = URLDecoder.decode(body.substring(7), "UTF-8");
+    final JsonObject decoded = new Gson().fromJson(json, JsonObject.class);
+    assertEquals("Description does not match", "a&b=c",
+        decoded.get("description").getAsString());
+  }
+
+  public void testCallTypedResult() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"error_code\":null,"
+            + "\"result\":{\"name\":\"foo\",\"ids\":[1,2],"
+            + "\"unknown\":{\"nested\":[true]}},"
+            + "\"error_info\":null,\"extra\":[1,{\"a\":null}]}");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final TypedResult result = connection.call("foo.bar",
+          new HashMap<String, Object>(), TypedResult.class);
+
+      assertEquals("Name does not match", "foo", result.name);
+      assertEquals("Ids do not match", Arrays.asList(1, 2), result.ids);
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallErrorCodeBeforeResult() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"error_code\":\"ERR-FOO\","
+            + "\"error_info\":null,\"result\":null}");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      assertEquals("Error code does not match", "ERR-FOO", e.getErrorCode());
+      assertNull("Error info is set", e.getErrorInfo());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallNoJson() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "<html>Internal Server Error</html>");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      fail("Broken response got reported as Conduit error");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallTruncatedJson() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"result\":{\"name\":\"fo");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      connection.call("foo.bar", new HashMap<String, Object>(),
+          TypedResult.class);
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncTypedResult() throws Exception {
+    server.setResponder(StubServer
+        .resultResponder("{\"name\":\"foo\",\"ids\":[3]}"));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Future<TypedResult> future = connection.callAsync("foo.bar",
+          new HashMap<String, Object>(), TypedResult.class, null);
+
+      final TypedResult result = future.get();
+      assertEquals("Name does not match", "foo", result.name);
+      assertEquals("Ids do not match", Arrays.asList(3), result.ids);
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncParsedOnParseExecutor() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+    final ExecutorService parseExecutor = Executors
+        .newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            return new Thread(r, "parser");
+          }
+        });
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setParseExecutor(parseExecutor);
+    final AtomicReference<String> callbackThread = new AtomicReference<String>();
+    final CountDownLatch callbackRan = new CountDownLatch(1);
+
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>(), new FutureCallback<JsonElement>() {
+            @Override
+            public void completed(final JsonElement result) {
+              callbackThread.set(Thread.currentThread().getName());
+              callbackRan.countDown();
+            }
+
+            @Override
+            public void failed(final Exception e) {
+            }
+
+            @Override
+            public void cancelled() {
+            }
+          });
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"),
+          future.get());
+      assertTrue("Callback did not run",
+          callbackRan.await(5, TimeUnit.SECONDS));
+      assertEquals("Callback thread does not match", "parser",
+          callbackThread.get());
+    } finally {
+      connection.close();
+      parseExecutor.shutdown();
+    }
+  }
+
+  public void testCallAsyncParseExecutorRejecting() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+    final ExecutorService parseExecutor = Executors.newSingleThreadExecutor();
+    parseExecutor.shutdown();
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setParseExecutor(parseExecutor);
+
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      connection.callAsync("conduit.ping", new HashMap<String, Object>())
+          .get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Message does not match: " + e.getCause().getMessage(), e
+          .getCause().getMessage().contains("parse executor"));
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallNoCompressionByDefault() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      connection.call("conduit.ping");
+    } finally {
+      connection.close();
+    }
+
+    assertNull("Accept-Encoding got sent", server.getRequestHeaders().get(0)
+        .getFirst("Accept-Encoding"));
+    assertEquals("Received and decoded bytes differ",
+        connection.getBytesReceived(), connection.getBytesDecoded());
+  }
+
+  public void testCallGzip() throws Exception {
+    final String result = repeatedResult();
+    server.setResponder(new CompressingResponder("{\"result\":" + result
+        + "}", "gzip"));
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setCompressionEnabled(true);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final JsonElement callResult = connection.call("maniphest.query");
+
+      assertEquals("Result does not match", new Gson().fromJson(result,
+          JsonElement.class), callResult);
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Accept-Encoding does not match", "gzip, deflate", server
+        .getRequestHeaders().get(0).getFirst("Accept-Encoding"));
+    assertTrue("Compressed response was not smaller",
+        connection.getBytesReceived() < connection.getBytesDecoded() / 10);
+    assertEquals("Decoded bytes do not match",
+        ("{\"result\":" + result + "}").length(),
+        connection.getBytesDecoded());
+  }
+
+  public void testCallDeflate() throws Exception {
+    final String result = repeatedResult();
+    server.setResponder(new CompressingResponder("{\"result\":" + result
+        + "}", "deflate"));
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setCompressionEnabled(true);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final JsonElement callResult = connection.call("maniphest.query");
+
+      assertEquals("Result does not match", new Gson().fromJson(result,
+          JsonElement.class), callResult);
+    } finally {
+      connection.close();
+    }
+
+    assertTrue("Compressed response was not smaller",
+        connection.getBytesReceived() < connection.getBytesDecoded() / 10);
+  }
+
+  public void testCallAsyncGzip() throws Exception {
+    final String result = repeatedResult();
+    server.setResponder(new CompressingResponder("{\"result\":" + result
+        + "}", "gzip"));
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setCompressionEnabled(true);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final JsonElement callResult = connection.callAsync("maniphest.query",
+          new HashMap<String, Object>()).get();
+
+      assertEquals("Result does not match", new Gson().fromJson(result,
+          JsonElement.class), callResult);
+    } finally {
+      connection.close();
+    }
+
+    assertTrue("Compressed response was not smaller",
+        connection.getBytesReceived() < connection.getBytesDecoded() / 10);
+  }
+
+  public void testCallUnsupportedEncoding() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Encoding", "br");
+        StubServer.respond(exchange, "{\"result\":null}");
+      }
+    });
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setCompressionEnabled(true);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testConcurrentCallsSharePool() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxTotal(2);
+    config.setMaxPerRoute(2);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+      for (int i = 0; i < 40; i++) {
+        futures.add(executor.submit(new Callable<JsonElement>() {
+          @Override
+          public JsonElement call() throws Exception {
+            return connection.call("conduit.ping");
+          }
+        }));
+      }
+      for (final Future<JsonElement> future : futures) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            future.get());
+      }
+    } finally {
+      executor.shutdownNow();
+      connection.close();
+    }
+
+    assertEquals("Not all calls reached the server", 40, server
+        .getRequestBodies().size());
+    assertTrue("Calls used more TCP connections than pooled: "
+        + server.getRemoteAddresses(),
+        server.getRemoteAddresses().size() <= 2);
+  }
+
+  public void testCallAsyncPass() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"),
+          future.get());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncErrorCode() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"result\":null,"
+            + "\"error_code\":\"ERR-FOO\",\"error_info\":\"bar\"}");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is no ConduitErrorException",
+          e.getCause() instanceof ConduitErrorException);
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncManyInFlight() throws Exception {
+    final CountDownLatch allArrived = new CountDownLatch(50);
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        // Hold back all responses until all calls reached the server, so all
+        // calls are in flight at the same time.
+        allArrived.countDown();
+        try {
+          allArrived.await();
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+        StubServer.respond(exchange, "{\"result\":\"foo\"}");
+      }
+    });
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxTotal(50);
+    config.setMaxPerRoute(50);
+    config.setIoThreadCount(1);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+      for (int i = 0; i < 50; i++) {
+        futures.add(connection.callAsync("conduit.ping",
+            new HashMap<String, Object>()));
+      }
+      for (final Future<JsonElement> future : futures) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            future.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncCancel() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        try {
+          release.await();
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+        StubServer.respond(exchange, "{\"result\":\"foo\"}");
+      }
+    });
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+      assertTrue("Future could not get cancelled", future.cancel(true));
+      assertTrue("Future is not cancelled", future.isCancelled());
+    } finally {
+      release.countDown();
+      connection.close();
+    }
+  }
+
+  public void testCallTimeoutAbortsRequest() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    server.setResponder(blockingResponder(release));
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxTotal(1);
+    config.setMaxPerRoute(1);
+    config.setConnectionRequestTimeoutMillis(1000);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final CallOptions options = new CallOptions();
+      options.setTimeoutMillis(200);
+      final long start = System.nanoTime();
+      try {
+        connection.call("conduit.ping", new HashMap<String, Object>(),
+            JsonElement.class, options);
+        fail("no exception got thrown");
+      } catch (final DeadlineExceededException e) {
+        assertEquals("Method does not match", "conduit.ping", e.getMethod());
+        assertEquals("Timeout does not match", 200, e.getTimeoutMillis());
+      }
+      final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - start);
+      assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 2000);
+
+      // The aborted call has to release its pooled connection.
+      release.countDown();
+      server.setResponder(StubServer.resultResponder("\"foo\""));
+      assertEquals("Result does not match", new JsonPrimitive("foo"),
+          connection.call("conduit.ping"));
+    } finally {
+      release.countDown();
+      connection.close();
+    }
+  }
+
+  public void testCallWithinTimeout() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final CallOptions options = new CallOptions();
+      options.setTimeout(10, TimeUnit.SECONDS);
+      final JsonElement result = connection.call("conduit.ping",
+          new HashMap<String, Object>(), JsonElement.class, options);
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncTimeout() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    server.setResponder(blockingResponder(release));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final CallOptions options = new CallOptions();
+      options.setTimeoutMillis(200);
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>(), JsonElement.class, options, null);
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("no exception got thrown");
+      } catch (final ExecutionException e) {
+        assertTrue("Cause is no DeadlineExceededException",
+            e.getCause() instanceof DeadlineExceededException);
+      }
+    } finally {
+      release.countDown();
+      connection.close();
+    }
+  }
+
+  public void testCancelOptionsAbortsBlockingCall() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    server.setResponder(blockingResponder(release));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final CallOptions options = new CallOptions();
+      final Future<JsonElement> future = executor
+          .submit(new Callable<JsonElement>() {
+            @Override
+            public JsonElement call() throws Exception {
+              return connection.call("conduit.ping",
+                  new HashMap<String, Object>(), JsonElement.class, options);
+            }
+          });
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (server.getRequestBodies().isEmpty()
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      options.cancel();
+
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("no exception got thrown");
+      } catch (final ExecutionException e) {
+        assertTrue("Cause is no CallCancelledException",
+            e.getCause() instanceof CallCancelledException);
+      }
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+      connection.close();
+    }
+  }
+
+  public void testCallWithCancelledOptions() throws Exception {
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final CallOptions options = new CallOptions();
+      options.cancel();
+      try {
+        connection.withCallOptions(options).call("conduit.ping");
+        fail("no exception got thrown");
+      } catch (final CallCancelledException e) {
+      }
+    } finally {
+      connection.close();
+    }
+
+    assertTrue("Cancelled call reached the server", server
+        .getRequestBodies().isEmpty());
+  }
+
+  public void testWithCallOptions() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    server.setResponder(blockingResponder(release));
+
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final CallOptions options = new CallOptions();
+      options.setTimeoutMillis(200);
+      final Connection view = connection.withCallOptions(options);
+      assertSame("Options do not match", options, view.getCallOptions());
+      assertNull("Connection got options", connection.getCallOptions());
+      try {
+        view.call("conduit.ping");
+        fail("no exception got thrown");
+      } catch (final DeadlineExceededException e) {
+      }
+    } finally {
+      release.countDown();
+      connection.close();
+    }
+  }
+
+  public void testCallSpreadOverBaseUrls() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+    final StubServer otherServer = new StubServer();
+    otherServer.setResponder(StubServer.resultResponder("\"foo\""));
+    final List<String> baseUrls = new ArrayList<String>();
+    baseUrls.add(server.getBaseUrl());
+    baseUrls.add(otherServer.getBaseUrl());
+
+    final Connection connection = new Connection(baseUrls);
+    try {
+      for (int i = 0; i < 20; i++) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            connection.call("conduit.ping"));
+      }
+    } finally {
+      connection.close();
+      otherServer.stop();
+    }
+
+    assertFalse("First server got no calls", server.getRequestBodies()
+        .isEmpty());
+    assertFalse("Second server got no calls", otherServer.getRequestBodies()
+        .isEmpty());
+  }
+
+  public void testCallAfterClose() throws Exception {
+    final Connection connection = new Connection(server.getBaseUrl());
+    connection.call("conduit.ping");
+    connection.close();
+
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    }
+  }
+
+  public void testCloseWithoutCall() throws Exception {
+    final Connection connection = new Connection(server.getBaseUrl());
+    connection.close();
+    connection.close();
+
+    assertTrue("Closing an unused connection caused requests", server
+        .getRequestBodies().isEmpty());
+  }
+
+  /**
+   * Answers calls only once a latch got released
+   */
+  private StubServer.Responder blockingResponder(final CountDownLatch release) {
+    return new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        try {
+          release.await();
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+        StubServer.respond(exchange, "{\"result\":\"foo\"}");
+      }
+    };
+  }
+
+  private String repeatedResult() {
+    final StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < 1000; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"id\":\"").append(i).append("\",\"status\":\"open\"}");
+    }
+    return sb.append(']').toString();
+  }
+
+  /**
+   * Answers calls with a fixed body, compressed by the given encoding
+   */
+  private static class CompressingResponder implements StubServer.Responder {
+    private final String response;
+    private final String encoding;
+
+    public CompressingResponder(final String response, final String encoding) {
+      this.response = response;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public void respond(final String method, final String body,
+        final HttpExchange exchange) throws IOException {
+      final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      final OutputStream out;
+      if ("gzip".equals(encoding)) {
+        out = new GZIPOutputStream(buffer);
+      } else {
+        out = new DeflaterOutputStream(buffer);
+      }
+      out.write(response.getBytes(StandardCharsets.UTF_8));
+      out.close();
+      exchange.getResponseHeaders().set("Content-Encoding", encoding);
+      StubServer.respond(exchange, buffer.toByteArray());
+    }
+  }
+
+  static class TypedResult {
+    String name;
+    List<Integer> ids;
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    server = new StubServer();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+}
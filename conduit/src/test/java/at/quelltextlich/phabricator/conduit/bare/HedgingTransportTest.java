@@ -0,0 +1,330 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+public class HedgingTransportTest extends LoggingMockingTestCase {
+  private HedgingPolicy policy;
+  private DelayingTransport delayingTransport;
+  private HedgingTransport transport;
+  private Connection connection;
+  private volatile boolean failing;
+
+  public void testFastCallNotHedged() throws Exception {
+    final JsonElement result = connection.call("phid.query");
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    Thread.sleep(100);
+    assertEquals("Number of sent calls does not match", 1,
+        delayingTransport.getCalls());
+    assertEquals("Number of hedged calls does not match", 0,
+        transport.getHedgedCalls());
+  }
+
+  public void testHedgeWinsOverSlowCall() throws Exception {
+    delayingTransport.addDelayMillis(2000);
+    delayingTransport.addDelayMillis(0);
+
+    final long start = System.nanoTime();
+    final JsonElement result = connection.call("maniphest.info");
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 1000);
+    assertEquals("Number of sent calls does not match", 2,
+        delayingTransport.getCalls());
+    assertEquals("Number of hedged calls does not match", 1,
+        transport.getHedgedCalls());
+    assertEquals("Number of hedge wins does not match", 1,
+        transport.getHedgeWins());
+    waitForCancelledCalls(1);
+  }
+
+  public void testOriginalWinsOverSlowHedge() throws Exception {
+    delayingTransport.addDelayMillis(100);
+    delayingTransport.addDelayMillis(2000);
+
+    final JsonElement result = connection.call("maniphest.info");
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertEquals("Number of hedged calls does not match", 1,
+        transport.getHedgedCalls());
+    assertEquals("Number of hedge wins does not match", 0,
+        transport.getHedgeWins());
+    waitForCancelledCalls(1);
+  }
+
+  public void testBlockingCallHedgedWithBlockingCalls() throws Exception {
+    final AtomicInteger asyncCalls = new AtomicInteger();
+    final HedgingTransport blockingTransport = new HedgingTransport(
+        new Transport() {
+          @Override
+          public TransportResponse send(final TransportRequest request)
+              throws IOException {
+            return delayingTransport.send(request);
+          }
+
+          @Override
+          public Future<TransportResponse> sendAsync(
+              final TransportRequest request,
+              final FutureCallback<TransportResponse> callback) {
+            asyncCalls.incrementAndGet();
+            return delayingTransport.sendAsync(request, callback);
+          }
+
+          @Override
+          public void close() {
+            delayingTransport.close();
+          }
+        }, policy);
+    delayingTransport.addDelayMillis(2000);
+    delayingTransport.addDelayMillis(0);
+
+    final JsonElement result;
+    final Connection blockingConnection = new Connection(blockingTransport);
+    try {
+      result = blockingConnection.call("maniphest.info");
+    } finally {
+      blockingConnection.close();
+    }
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertEquals("Number of hedge wins does not match", 1,
+        blockingTransport.getHedgeWins());
+    assertEquals("Number of non-blocking calls does not match", 0,
+        asyncCalls.get());
+    waitForCancelledCalls(1);
+  }
+
+  public void testBlockingOriginalRunsOnCallingThread() throws Exception {
+    final AtomicReference<Thread> sendingThread = new AtomicReference<Thread>();
+    final HedgingTransport blockingTransport = new HedgingTransport(
+        new Transport() {
+          @Override
+          public TransportResponse send(final TransportRequest request)
+              throws IOException {
+            sendingThread.set(Thread.currentThread());
+            return delayingTransport.send(request);
+          }
+
+          @Override
+          public Future<TransportResponse> sendAsync(
+              final TransportRequest request,
+              final FutureCallback<TransportResponse> callback) {
+            return delayingTransport.sendAsync(request, callback);
+          }
+
+          @Override
+          public void close() {
+            delayingTransport.close();
+          }
+        }, policy);
+
+    final Connection blockingConnection = new Connection(blockingTransport);
+    try {
+      blockingConnection.call("maniphest.info");
+    } finally {
+      blockingConnection.close();
+    }
+
+    assertSame("Original call did not run on the calling thread",
+        Thread.currentThread(), sendingThread.get());
+  }
+
+  public void testWritingMethodNotHedged() throws Exception {
+    delayingTransport.setDefaultDelayMillis(100);
+
+    connection.call("maniphest.update");
+
+    assertEquals("Number of sent calls does not match", 1,
+        delayingTransport.getCalls());
+    assertEquals("Number of calls does not match", 0, transport.getCalls());
+  }
+
+  public void testReadOnlyOverride() throws Exception {
+    policy.setReadOnly("phid.query", false);
+    policy.setReadOnly("differential.query", true);
+    delayingTransport.setDefaultDelayMillis(100);
+
+    connection.call("phid.query");
+    connection.call("differential.query");
+
+    assertEquals("Number of sent calls does not match", 3,
+        delayingTransport.getCalls());
+    assertEquals("Number of hedged calls does not match", 1,
+        transport.getHedgedCalls());
+  }
+
+  public void testBudgetCapsHedges() throws Exception {
+    policy.setBudgetPercent(50);
+    delayingTransport.setDefaultDelayMillis(100);
+
+    for (int i = 0; i < 4; i++) {
+      connection.call("phid.query");
+    }
+
+    assertEquals("Number of hedged calls does not match", 2,
+        transport.getHedgedCalls());
+    assertEquals("Number of skipped hedges does not match", 2,
+        transport.getSkippedHedges());
+  }
+
+  public void testDelayFollowsPercentile() throws Exception {
+    policy.setDelayMillis(1000);
+    policy.setDelayPercentile(95);
+    policy.setMinimumCalls(5);
+
+    assertEquals("Delay does not match", 1000,
+        transport.getHedgeDelayMillis("phid.query"));
+    for (int i = 0; i < 5; i++) {
+      connection.call("phid.query");
+    }
+
+    final long delay = transport.getHedgeDelayMillis("phid.query");
+    assertTrue("Delay is " + delay + "ms", delay < 1000);
+    assertEquals("Delay does not match", 1000,
+        transport.getHedgeDelayMillis("maniphest.info"));
+  }
+
+  public void testWinningHedgesDoNotShrinkDelay() throws Exception {
+    policy.setDelayMillis(50);
+    policy.setDelayPercentile(95);
+    policy.setMinimumCalls(3);
+
+    long previousDelay = transport.getHedgeDelayMillis("maniphest.info");
+    for (int i = 0; i < 8; i++) {
+      delayingTransport.addDelayMillis(2000);
+      delayingTransport.addDelayMillis(0);
+      connection.call("maniphest.info");
+
+      final long delay = transport.getHedgeDelayMillis("maniphest.info");
+      assertTrue("Delay shrank from " + previousDelay + "ms to " + delay
+          + "ms", delay >= previousDelay);
+      previousDelay = delay;
+    }
+    assertEquals("Number of hedge wins does not match", 8,
+        transport.getHedgeWins());
+  }
+
+  public void testFailureNotWaitingForHedge() throws Exception {
+    policy.setDelayMillis(1000);
+    failing = true;
+
+    final long start = System.nanoTime();
+    try {
+      connection.call("phid.query");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 500);
+    assertEquals("Number of sent calls does not match", 1,
+        delayingTransport.getCalls());
+  }
+
+  public void testBothFail() throws Exception {
+    delayingTransport.setDefaultDelayMillis(100);
+    failing = true;
+
+    final Future<JsonElement> future = connection.callAsync("phid.query",
+        new HashMap<String, Object>());
+    try {
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+    }
+
+    assertEquals("Number of sent calls does not match", 2,
+        delayingTransport.getCalls());
+  }
+
+  public void testCancelCancelsBoth() throws Exception {
+    delayingTransport.setDefaultDelayMillis(2000);
+
+    final Future<JsonElement> future = connection.callAsync("phid.query",
+        new HashMap<String, Object>());
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.getHedgedCalls() == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue("Cancelling failed", future.cancel(true));
+
+    waitForCancelledCalls(2);
+  }
+
+  /**
+   * Waits for the losing calls to get cancelled
+   * <p/>
+   * Losers get cancelled after the winner's response has been handed out, so
+   * the cancellation may lag behind the result.
+   */
+  private void waitForCancelledCalls(final int expected) throws Exception {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (delayingTransport.getCancelledCalls() < expected
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Number of cancelled calls does not match", expected,
+        delayingTransport.getCancelledCalls());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    failing = false;
+    policy = new HedgingPolicy();
+    policy.setDelayMillis(20);
+    policy.setDelayPercentile(0);
+    policy.setBudgetPercent(100);
+    delayingTransport = new DelayingTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            if (failing) {
+              throw new IOException("injected");
+            }
+            return "{\"result\":\"foo\"}";
+          }
+        });
+    transport = new HedgingTransport(delayingTransport, policy);
+    connection = new Connection(transport);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
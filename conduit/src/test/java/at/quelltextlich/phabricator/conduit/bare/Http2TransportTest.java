@@ -0,0 +1,274 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+import at.quelltextlich.phabricator.conduit.raw.ConduitFactory;
+import at.quelltextlich.phabricator.conduit.raw.UserModule;
+import at.quelltextlich.phabricator.conduit.testutil.Http2StubServer;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class Http2TransportTest extends LoggingMockingTestCase {
+  private Http2StubServer server;
+
+  public void testCallPass() throws Exception {
+    server.setResult("\"foo\"");
+
+    final Connection connection = new Connection(new Http2Transport(
+        server.getBaseUrl()));
+    try {
+      final Map<String, Object> params = new HashMap<String, Object>();
+      params.put("description", "a&b=c");
+
+      final JsonElement result = connection.call("maniphest.createtask",
+          params);
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+    }
+
+    final String body = server.getRequestBodies().get(0);
+    final String json = URLDecoder.decode(body.substring(7), "UTF-8");
+    final JsonObject decoded = new Gson().fromJson(json, JsonObject.class);
+    assertEquals("Description does not match", "a&b=c",
+        decoded.get("description").getAsString());
+  }
+
+  public void testCallAsyncMultiplexed() throws Exception {
+    server.setResult("\"foo\"");
+    server.setDelayMillis(100);
+
+    final Connection connection = new Connection(new Http2Transport(
+        server.getBaseUrl()));
+    try {
+      final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+      for (int i = 0; i < 20; i++) {
+        futures.add(connection.callAsync("conduit.ping",
+            new HashMap<String, Object>()));
+      }
+
+      for (final Future<JsonElement> future : futures) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            future.get());
+      }
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Calls did not share a connection", 1, server
+        .getRemoteAddresses().size());
+    assertTrue("Calls were not sent concurrently",
+        server.getMaxInFlight() > 1);
+  }
+
+  public void testMaxConcurrentStreams() throws Exception {
+    server.setDelayMillis(50);
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxConcurrentStreams(3);
+    config.setHttp2ConnectionCount(2);
+    final Http2Transport transport = new Http2Transport(server.getBaseUrl(),
+        config);
+    final Connection connection = new Connection(transport, config);
+    try {
+      final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+      for (int i = 0; i < 30; i++) {
+        futures.add(connection.callAsync("conduit.ping",
+            new HashMap<String, Object>()));
+      }
+      assertTrue("Too many active streams", transport.getActiveStreams() <= 6);
+      assertTrue("No calls got queued", transport.getPendingCalls() > 0);
+
+      for (final Future<JsonElement> future : futures) {
+        future.get();
+      }
+      assertEquals("Streams did not get freed", 0,
+          transport.getActiveStreams());
+      assertEquals("Calls are still queued", 0, transport.getPendingCalls());
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of connections does not match", 2, server
+        .getRemoteAddresses().size());
+    assertTrue("Too many calls in flight: " + server.getMaxInFlight(),
+        server.getMaxInFlight() <= 6);
+    assertEquals("Number of answered calls does not match", 30, server
+        .getRequestBodies().size());
+  }
+
+  public void testCancelQueuedCall() throws Exception {
+    server.setDelayMillis(100);
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxConcurrentStreams(1);
+    final Http2Transport transport = new Http2Transport(server.getBaseUrl(),
+        config);
+    final Connection connection = new Connection(transport, config);
+    try {
+      final Future<JsonElement> first = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+      final Future<JsonElement> second = connection.callAsync(
+          "conduit.ping", new HashMap<String, Object>());
+      final Future<JsonElement> third = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+
+      assertTrue("Cancelling failed", second.cancel(true));
+      assertEquals("Number of queued calls does not match", 1,
+          transport.getPendingCalls());
+
+      first.get();
+      third.get();
+      assertTrue("Second call is not cancelled", second.isCancelled());
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of sent calls does not match", 2, server
+        .getRequestBodies().size());
+  }
+
+  public void testCallAfterClose() throws Exception {
+    final Connection connection = new Connection(new Http2Transport(
+        server.getBaseUrl()));
+    connection.close();
+
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    }
+  }
+
+  public void testBlockingCallOnIoThreadFails() throws Exception {
+    final Connection connection = new Connection(new Http2Transport(
+        server.getBaseUrl()));
+    final AtomicReference<ConduitException> failure = new AtomicReference<ConduitException>();
+    final CountDownLatch done = new CountDownLatch(1);
+    try {
+      connection.callAsync("conduit.ping", new HashMap<String, Object>(),
+          new FutureCallback<JsonElement>() {
+            @Override
+            public void completed(final JsonElement result) {
+              try {
+                connection.call("conduit.ping");
+              } catch (final ConduitException e) {
+                failure.set(e);
+              }
+              done.countDown();
+            }
+
+            @Override
+            public void failed(final Exception e) {
+              done.countDown();
+            }
+
+            @Override
+            public void cancelled() {
+              done.countDown();
+            }
+          }).get();
+
+      assertTrue("Blocking call did not return",
+          done.await(10, TimeUnit.SECONDS));
+      assertNotNull("Blocking call on I/O thread did not fail", failure.get());
+
+      assertEquals("Blocking call off the I/O thread does not work",
+          JsonNull.INSTANCE, connection.call("conduit.ping"));
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testSessionRejectedOnIoThread() throws Exception {
+    final AtomicInteger connects = new AtomicInteger();
+    final AtomicInteger whoAmIs = new AtomicInteger();
+    server.setResponder(new Http2StubServer.Responder() {
+      @Override
+      public String respond(final String method, final String body) {
+        if ("conduit.connect".equals(method)) {
+          return "{\"result\":{\"connectionID\":1,\"sessionKey\":\"session"
+              + connects.incrementAndGet() + "\",\"userPHID\":\"PHID-foo\"}"
+              + ",\"error_code\":null,\"error_info\":null}";
+        }
+        if (whoAmIs.incrementAndGet() == 1) {
+          return "{\"result\":null,\"error_code\":\"ERR-INVALID-SESSION\","
+              + "\"error_info\":\"Session expired\"}";
+        }
+        return "{\"result\":{\"userName\":\"foo\"},\"error_code\":null,"
+            + "\"error_info\":null}";
+      }
+    });
+
+    // A single connection has a single I/O thread, which receives the
+    // rejection, and has to receive the fresh session too.
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setHttp2ConnectionCount(1);
+    final Connection connection = new Connection(new Http2Transport(
+        server.getBaseUrl(), config), config);
+    try {
+      final Conduit conduit = ConduitFactory.createConduit(connection, "foo",
+          "bar");
+
+      final UserModule.WhoAmIResult result = conduit.getUserModule()
+          .whoAmIAsync(null).get(10, TimeUnit.SECONDS);
+
+      assertEquals("User name does not match", "foo", result.getUserName());
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of opened sessions does not match", 2,
+        connects.get());
+    assertEquals("Number of calls does not match", 2, whoAmIs.get());
+    final List<String> bodies = server.getRequestBodies();
+    final String retry = URLDecoder.decode(
+        bodies.get(bodies.size() - 1).substring(7), "UTF-8");
+    assertTrue("Retry does not use fresh session: " + retry,
+        retry.contains("session2"));
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    server = new Http2StubServer();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+}
@@ -0,0 +1,403 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+
+public class LoadBalancingTransportTest extends LoggingMockingTestCase {
+  private LoadBalancingPolicy policy;
+  private List<NodeResponder> responders;
+  private List<Transport> endpoints;
+
+  public void testCallsSpreadOverEndpoints() throws Exception {
+    final LoadBalancingTransport transport = createTransport(3);
+    final Connection connection = new Connection(transport);
+    try {
+      for (int i = 0; i < 60; i++) {
+        connection.call("conduit.ping");
+      }
+    } finally {
+      connection.close();
+    }
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue("Endpoint " + i + " got no calls", transport.getCalls(i) > 0);
+      assertEquals("Calls do not match", transport.getCalls(i),
+          responders.get(i).calls.get());
+    }
+  }
+
+  public void testSlowEndpointAvoided() throws Exception {
+    final DelayingTransport slow = new DelayingTransport(new NodeResponder());
+    slow.setDefaultDelayMillis(50);
+    final DelayingTransport fast = new DelayingTransport(new NodeResponder());
+    final List<Transport> endpoints = new ArrayList<Transport>();
+    endpoints.add(slow);
+    endpoints.add(fast);
+    final LoadBalancingTransport transport = new LoadBalancingTransport(
+        endpoints, policy);
+    final Connection connection = new Connection(transport);
+    try {
+      for (int i = 0; i < 40; i++) {
+        connection.call("conduit.ping");
+      }
+    } finally {
+      connection.close();
+    }
+
+    assertTrue("Slow endpoint got " + slow.getCalls() + " calls",
+        slow.getCalls() <= 2);
+    assertTrue("Latency is " + transport.getLatencyMillis(0) + "ms",
+        transport.getLatencyMillis(0) >= 50);
+  }
+
+  public void testFailingEndpointDropsOut() throws Exception {
+    final LoadBalancingTransport transport = createTransport(2);
+    responders.get(0).failing = true;
+    final Connection connection = new Connection(transport);
+    try {
+      for (int i = 0; i < 40; i++) {
+        try {
+          connection.call("conduit.ping");
+        } catch (final ConduitException e) {
+        }
+      }
+    } finally {
+      connection.close();
+    }
+
+    assertFalse("Failing endpoint is healthy", transport.isHealthy(0));
+    assertTrue("Endpoint is not healthy", transport.isHealthy(1));
+    assertEquals("Calls to failing endpoint do not match", 3,
+        transport.getCalls(0));
+  }
+
+  public void testServerErrorCountsAsFailure() throws Exception {
+    policy.setUnhealthyThreshold(1);
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange)
+          throws IOException {
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+      }
+    });
+    final List<Transport> endpoints = new ArrayList<Transport>();
+    endpoints.add(new ApacheTransport(server.getBaseUrl()));
+    final LoadBalancingTransport transport = new LoadBalancingTransport(
+        endpoints, policy);
+    final Connection connection = new Connection(transport);
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+      server.stop();
+    }
+
+    assertFalse("Endpoint is healthy", transport.isHealthy(0));
+  }
+
+  public void testEndpointComesBackAfterProbes() throws Exception {
+    policy.setProbeIntervalMillis(20);
+    final LoadBalancingTransport transport = createTransport(2);
+    final NodeResponder node = responders.get(0);
+    node.failing = true;
+    try {
+      waitForHealth(transport, 0, false);
+      node.failing = false;
+      waitForHealth(transport, 0, true);
+    } finally {
+      transport.close();
+    }
+
+    assertTrue("Probe calls do not match", node.calls.get() >= 5);
+    assertEquals("Probes got counted as calls", 0, transport.getCalls(0));
+  }
+
+  public void testProbesUsePing() throws Exception {
+    policy.setProbeIntervalMillis(20);
+    final LoadBalancingTransport transport = createTransport(1);
+    try {
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (responders.get(0).calls.get() == 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+    } finally {
+      transport.close();
+    }
+
+    assertEquals("Probed method does not match", "conduit.ping",
+        responders.get(0).lastMethod);
+  }
+
+  public void testProbesTimeOutIndependently() throws Exception {
+    policy.setProbeIntervalMillis(20);
+    policy.setProbeTimeoutMillis(100);
+    policy.setUnhealthyThreshold(1);
+    for (int i = 0; i < 2; i++) {
+      final DelayingTransport hanging = new DelayingTransport(
+          new NodeResponder());
+      hanging.setDefaultDelayMillis(60000);
+      endpoints.add(hanging);
+    }
+    final LoadBalancingTransport transport = new LoadBalancingTransport(
+        endpoints, policy);
+    try {
+      waitForHealth(transport, 0, false);
+      waitForHealth(transport, 1, false);
+    } finally {
+      transport.close();
+    }
+  }
+
+  public void testCancelledCallDoesNotCountAsFailure() throws Exception {
+    policy.setUnhealthyThreshold(1);
+    final DelayingTransport slow = new DelayingTransport(new NodeResponder());
+    slow.setDefaultDelayMillis(60000);
+    endpoints.add(slow);
+    final LoadBalancingTransport transport = new LoadBalancingTransport(
+        endpoints, policy);
+    final TransportRequest request = new TransportRequest("conduit.ping",
+        null, new HashMap<String, Object>(), false);
+    final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    final Thread caller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          transport.send(request);
+        } catch (final IOException e) {
+          failure.set(e);
+        }
+      }
+    };
+    try {
+      caller.start();
+      waitForCalls(slow, 1);
+      request.cancel();
+      caller.join(5000);
+    } finally {
+      transport.close();
+    }
+
+    assertNotNull("Call did not fail", failure.get());
+    assertTrue("Endpoint is unhealthy", transport.isHealthy(0));
+  }
+
+  public void testCancelledAsyncCallDoesNotCountAsFailure() throws Exception {
+    policy.setUnhealthyThreshold(1);
+    final DelayingTransport slow = new DelayingTransport(new NodeResponder());
+    slow.setDefaultDelayMillis(60000);
+    endpoints.add(slow);
+    final LoadBalancingTransport transport = new LoadBalancingTransport(
+        endpoints, policy);
+    final TransportRequest request = new TransportRequest("conduit.ping",
+        null, new HashMap<String, Object>(), false);
+    try {
+      final Future<TransportResponse> future = transport.sendAsync(request,
+          null);
+      waitForCalls(slow, 1);
+      request.cancel();
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("no exception got thrown");
+      } catch (final ExecutionException e) {
+      }
+    } finally {
+      transport.close();
+    }
+
+    assertTrue("Endpoint is unhealthy", transport.isHealthy(0));
+  }
+
+  public void testOpenResponseStaysInFlight() throws Exception {
+    final LoadBalancingTransport transport = createTransport(1);
+    try {
+      final TransportResponse response = transport.send(new TransportRequest(
+          "conduit.ping", new Gson(), new HashMap<String, Object>(), false));
+      assertEquals("In-flight calls do not match", 1,
+          transport.getInFlight(0));
+
+      response.close();
+      assertEquals("In-flight calls do not match", 0,
+          transport.getInFlight(0));
+    } finally {
+      transport.close();
+    }
+  }
+
+  public void testRuntimeExceptionReleases() throws Exception {
+    endpoints.add(new LoopbackTransport(new LoopbackTransport.Responder() {
+      @Override
+      public String respond(final String method, final String body) {
+        throw new IllegalStateException("injected");
+      }
+    }));
+    final LoadBalancingTransport transport = new LoadBalancingTransport(
+        endpoints, policy);
+    try {
+      transport.send(new TransportRequest("conduit.ping", new Gson(),
+          new HashMap<String, Object>(), false));
+      fail("no exception got thrown");
+    } catch (final IllegalStateException e) {
+    } finally {
+      transport.close();
+    }
+
+    assertEquals("In-flight calls do not match", 0, transport.getInFlight(0));
+  }
+
+  public void testAllUnhealthyStillSends() throws Exception {
+    policy.setUnhealthyThreshold(1);
+    final LoadBalancingTransport transport = createTransport(2);
+    responders.get(0).failing = true;
+    responders.get(1).failing = true;
+    final Connection connection = new Connection(transport);
+    try {
+      for (int i = 0; i < 10; i++) {
+        try {
+          connection.call("conduit.ping");
+        } catch (final ConduitException e) {
+        }
+      }
+    } finally {
+      connection.close();
+    }
+
+    assertFalse("Endpoint is healthy", transport.isHealthy(0));
+    assertFalse("Endpoint is healthy", transport.isHealthy(1));
+    assertEquals("Calls do not match", 10,
+        transport.getCalls(0) + transport.getCalls(1));
+    assertTrue("No panic calls", transport.getPanicCalls() >= 8);
+  }
+
+  public void testCallAsync() throws Exception {
+    final LoadBalancingTransport transport = createTransport(2);
+    final Connection connection = new Connection(transport);
+    try {
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"),
+          future.get());
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Calls do not match", 1,
+        transport.getCalls(0) + transport.getCalls(1));
+  }
+
+  public void testCloseClosesEndpoints() throws Exception {
+    final LoadBalancingTransport transport = createTransport(2);
+    transport.close();
+
+    for (final Transport endpoint : endpoints) {
+      try {
+        endpoint.send(new TransportRequest("conduit.ping", null,
+            new HashMap<String, Object>(), false));
+        fail("no exception got thrown");
+      } catch (final IOException e) {
+      }
+    }
+  }
+
+  public void testNoEndpoints() {
+    try {
+      new LoadBalancingTransport(new ArrayList<Transport>());
+      fail("no exception got thrown");
+    } catch (final IllegalArgumentException e) {
+    }
+  }
+
+  private LoadBalancingTransport createTransport(final int count) {
+    for (int i = 0; i < count; i++) {
+      final NodeResponder responder = new NodeResponder();
+      responders.add(responder);
+      endpoints.add(new LoopbackTransport(responder));
+    }
+    return new LoadBalancingTransport(endpoints, policy);
+  }
+
+  private void waitForCalls(final DelayingTransport transport,
+      final int calls) throws Exception {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.getCalls() < calls
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Calls do not match", calls, transport.getCalls());
+  }
+
+  private void waitForHealth(final LoadBalancingTransport transport,
+      final int index, final boolean healthy) throws Exception {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.isHealthy(index) != healthy
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Health does not match", healthy, transport.isHealthy(index));
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    policy = new LoadBalancingPolicy();
+    policy.setProbeIntervalMillis(0);
+    responders = new ArrayList<NodeResponder>();
+    endpoints = new ArrayList<Transport>();
+  }
+
+  /**
+   * Answers calls with "foo", unless told to fail
+   */
+  private static class NodeResponder implements LoopbackTransport.Responder {
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile boolean failing = false;
+    private volatile String lastMethod;
+
+    @Override
+    public String respond(final String method, final String body)
+        throws IOException {
+      calls.incrementAndGet();
+      lastMethod = method;
+      if (failing) {
+        throw new IOException("injected");
+      }
+      return "{\"result\":\"foo\"}";
+    }
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class LoopbackTransportTest extends LoggingMockingTestCase {
+  public void testCallPass() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new EchoResponder()));
+    try {
+      final Map<String, Object> params = new HashMap<String, Object>();
+      params.put("foo", "b&r");
+
+      final JsonElement result = connection.call("foo.bar", params);
+
+      final JsonObject expected = new JsonObject();
+      expected.addProperty("method", "foo.bar");
+      expected.addProperty("foo", "b&r");
+      assertEquals("Result does not match", expected, result);
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallErrorCode() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body) {
+            return "{\"result\":null,\"error_code\":\"ERR-FOO\","
+                + "\"error_info\":\"bar\"}";
+          }
+        }));
+    try {
+      connection.call("foo.bar");
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      assertEquals("Error code does not match", "ERR-FOO", e.getErrorCode());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallResponderFail() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            throw new IOException("injected");
+          }
+        }));
+    try {
+      connection.call("foo.bar");
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      fail("Transport failure got reported as Conduit error");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncPass() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new EchoResponder()));
+    try {
+      final Future<JsonElement> future = connection.callAsync("foo.bar",
+          new HashMap<String, Object>());
+
+      assertTrue("Future is not done", future.isDone());
+      assertEquals("Method does not match", new JsonPrimitive("foo.bar"),
+          future.get().getAsJsonObject().get("method"));
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncAfterClose() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new EchoResponder()));
+    connection.close();
+
+    final Future<JsonElement> future = connection.callAsync("foo.bar",
+        new HashMap<String, Object>());
+    try {
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is no ConduitException",
+          e.getCause() instanceof ConduitException);
+    }
+  }
+
+  /**
+   * Answers calls with their decoded parameters, and the called method
+   */
+  private static class EchoResponder implements LoopbackTransport.Responder {
+    @Override
+    public String respond(final String method, final String body)
+        throws IOException {
+      final String json = URLDecoder.decode(body.substring(7), "UTF-8");
+      final JsonObject result = new Gson().fromJson(json, JsonObject.class);
+      result.addProperty("method", method);
+      final JsonObject response = new JsonObject();
+      response.add("result", result);
+      return response.toString();
+    }
+  }
+}
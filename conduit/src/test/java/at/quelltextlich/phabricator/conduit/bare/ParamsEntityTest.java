@@ -0,0 +1,113 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.util.EntityUtils;
+
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+
+public class ParamsEntityTest extends LoggingMockingTestCase {
+  public void testGetContentMatchesWriteTo() throws Exception {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", "b\u00e4r baz");
+
+    final ParamsEntity entity = new ParamsEntity(new TransportRequest(
+        "foo.bar", new Gson(), params, false));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals("Content does not match",
+        new String(out.toByteArray(), StandardCharsets.US_ASCII),
+        EntityUtils.toString(entity));
+  }
+
+  public void testContentType() throws Exception {
+    final ParamsEntity entity = new ParamsEntity(new TransportRequest(
+        "foo.bar", new Gson(), new HashMap<String, Object>(), false));
+
+    assertEquals("Content type does not match",
+        "application/x-www-form-urlencoded; charset=UTF-8", entity
+            .getContentType().getValue());
+    assertTrue("Entity is not repeatable", entity.isRepeatable());
+  }
+
+  public void testSmallBodyHasContentLength() throws Exception {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", "bar");
+
+    final ParamsEntity entity = new ParamsEntity(new TransportRequest(
+        "foo.bar", new Gson(), params, false));
+
+    assertFalse("Small body is chunked", entity.isChunked());
+    assertEquals("Content length does not match",
+        "params=%7B%22foo%22%3A%22bar%22%7D".length(),
+        entity.getContentLength());
+    assertEquals("Content does not match",
+        "params=%7B%22foo%22%3A%22bar%22%7D", EntityUtils.toString(entity));
+  }
+
+  public void testLargeBodyIsChunked() throws Exception {
+    final StringBuilder value = new StringBuilder();
+    for (int i = 0; i < ParamsEntity.BUFFER_LIMIT; i++) {
+      value.append('x');
+    }
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", value.toString());
+
+    final ParamsEntity entity = new ParamsEntity(new TransportRequest(
+        "foo.bar", new Gson(), params, false));
+
+    assertTrue("Large body is not chunked", entity.isChunked());
+    assertEquals("Content length is known", -1, entity.getContentLength());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals("Content does not match", "params=%7B%22foo%22%3A%22"
+        + value + "%22%7D",
+        new String(out.toByteArray(), StandardCharsets.US_ASCII));
+  }
+
+  public void testLargeBodyGetContentMatchesWriteTo() throws Exception {
+    final List<Object> values = new ArrayList<Object>();
+    for (int i = 0; i < ParamsEntity.BUFFER_LIMIT / 8; i++) {
+      final Map<String, Object> value = new HashMap<String, Object>();
+      value.put("id", i);
+      value.put("name", "b\u00e4r <" + i + ">");
+      values.add(value);
+    }
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", values);
+    params.put("bar", new ArrayList<Object>());
+    params.put("baz", null);
+
+    final ParamsEntity entity = new ParamsEntity(new TransportRequest(
+        "foo.bar", new Gson(), params, false));
+    assertTrue("Large body is not chunked", entity.isChunked());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals("Content does not match",
+        new String(out.toByteArray(), StandardCharsets.US_ASCII),
+        EntityUtils.toString(entity));
+  }
+}
@@ -0,0 +1,246 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import at.quelltextlich.phabricator.conduit.CallCancelledException;
+import at.quelltextlich.phabricator.conduit.DeadlineExceededException;
+import at.quelltextlich.phabricator.conduit.RateLimitedException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.JsonElement;
+
+public class RateLimitingTransportTest extends LoggingMockingTestCase {
+  private RateLimitingTransport transport;
+  private Connection connection;
+
+  public void testRateLimiterTryAcquire() {
+    final RateLimiter limiter = new RateLimiter(10, 2);
+
+    assertTrue("First acquire failed", limiter.tryAcquire());
+    assertTrue("Second acquire failed", limiter.tryAcquire());
+    assertFalse("Third acquire succeeded", limiter.tryAcquire());
+  }
+
+  public void testRateLimiterTryAcquireTimeout() throws Exception {
+    final RateLimiter limiter = new RateLimiter(20);
+    limiter.tryAcquire();
+
+    assertFalse("Acquire succeeded despite short timeout",
+        limiter.tryAcquire(1, TimeUnit.MILLISECONDS));
+    assertTrue("Acquire failed despite long timeout",
+        limiter.tryAcquire(200, TimeUnit.MILLISECONDS));
+  }
+
+  public void testRateLimiterReserve() {
+    final RateLimiter limiter = new RateLimiter(10);
+
+    assertEquals("First reservation has to wait", 0, limiter.reserve());
+    final long second = limiter.reserve();
+    final long third = limiter.reserve();
+    assertTrue("Second reservation waits " + second + "ns", second > 0
+        && second <= TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue("Third reservation does not wait longer", third > second);
+  }
+
+  public void testBlockingCallsWait() throws Exception {
+    transport.setGlobalLimiter(new RateLimiter(20));
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      connection.call("maniphest.update");
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertTrue("Calls took only " + elapsedMillis + "ms", elapsedMillis >= 150);
+    assertEquals("Number of delayed calls does not match", 4,
+        transport.getDelayedCalls());
+  }
+
+  public void testBlockingCallFailsPastDeadline() throws Exception {
+    final RateLimiter limiter = new RateLimiter(1);
+    transport.setGlobalLimiter(limiter);
+    connection.call("conduit.ping");
+    final CallOptions options = new CallOptions();
+    options.setTimeoutMillis(100);
+
+    final long start = System.nanoTime();
+    try {
+      connection.call("conduit.ping", new HashMap<String, Object>(),
+          JsonElement.class, options);
+      fail("no exception got thrown");
+    } catch (final DeadlineExceededException e) {
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 100);
+    assertEquals("Number of delayed calls does not match", 0,
+        transport.getDelayedCalls());
+    final long waitNanos = limiter.reserve();
+    assertTrue("Token did not get refunded (wait " + waitNanos + "ns)",
+        waitNanos <= TimeUnit.SECONDS.toNanos(1));
+  }
+
+  public void testBlockingCallCancelledWhileWaiting() throws Exception {
+    transport.setGlobalLimiter(new RateLimiter(0.1));
+    connection.call("conduit.ping");
+    final CallOptions options = new CallOptions();
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (final InterruptedException e) {
+        }
+        options.cancel();
+      }
+    }.start();
+
+    final long start = System.nanoTime();
+    try {
+      connection.call("conduit.ping", new HashMap<String, Object>(),
+          JsonElement.class, options);
+      fail("no exception got thrown");
+    } catch (final CallCancelledException e) {
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 5000);
+  }
+
+  public void testMethodLimit() throws Exception {
+    transport.setMethodLimiter("maniphest.update", new RateLimiter(1));
+    transport.setFailFast(true);
+
+    connection.call("maniphest.update");
+    connection.call("maniphest.query");
+    connection.call("maniphest.query");
+    try {
+      connection.call("maniphest.update");
+      fail("no exception got thrown");
+    } catch (final RateLimitedException e) {
+      assertEquals("Method does not match", "maniphest.update", e.getMethod());
+    }
+    assertEquals("Number of rejected calls does not match", 1,
+        transport.getRejectedCalls());
+  }
+
+  public void testFailFastRefundsMethodToken() throws Exception {
+    final RateLimiter methodLimiter = new RateLimiter(1);
+    transport.setMethodLimiter("maniphest.update", methodLimiter);
+    transport.setGlobalLimiter(new RateLimiter(1));
+    transport.setFailFast(true);
+
+    connection.call("maniphest.query");
+    try {
+      connection.call("maniphest.update");
+      fail("no exception got thrown");
+    } catch (final RateLimitedException e) {
+    }
+
+    assertTrue("Method token got lost", methodLimiter.tryAcquire());
+  }
+
+  public void testCallAsyncDelayed() throws Exception {
+    transport.setGlobalLimiter(new RateLimiter(20));
+
+    final long start = System.nanoTime();
+    final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(connection.callAsync("maniphest.update",
+          new HashMap<String, Object>()));
+    }
+    final long submitMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+    for (final Future<JsonElement> future : futures) {
+      future.get();
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertTrue("Submitting blocked for " + submitMillis + "ms",
+        submitMillis < 100);
+    assertTrue("Calls took only " + elapsedMillis + "ms", elapsedMillis >= 150);
+  }
+
+  public void testCallAsyncCancelDelayed() throws Exception {
+    transport.setGlobalLimiter(new RateLimiter(1));
+    connection.call("conduit.ping");
+
+    final Future<JsonElement> future = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+
+    assertTrue("Cancelling failed", future.cancel(true));
+    assertTrue("Future is not cancelled", future.isCancelled());
+  }
+
+  public void testCloseFailsDelayedCalls() throws Exception {
+    transport.setGlobalLimiter(new RateLimiter(0.1));
+    connection.call("conduit.ping");
+    final Future<JsonElement> future = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+
+    connection.close();
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+    }
+  }
+
+  public void testCallAsyncFailFast() throws Exception {
+    transport.setGlobalLimiter(new RateLimiter(1));
+    transport.setFailFast(true);
+    connection.call("conduit.ping");
+
+    final Future<JsonElement> future = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+    try {
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is no RateLimitedException",
+          e.getCause() instanceof RateLimitedException);
+    }
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    transport = new RateLimitingTransport(new LoopbackTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body) {
+            return "{\"result\":\"foo\"}";
+          }
+        }));
+    connection = new Connection(transport);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
@@ -0,0 +1,337 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import at.quelltextlich.phabricator.conduit.CallCancelledException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+
+public class RetryingTransportTest extends LoggingMockingTestCase {
+  private RetryPolicy policy;
+
+  public void testIdempotentRetriedOnAnyFailure() throws Exception {
+    final FailingResponder responder = new FailingResponder(2,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    try {
+      final JsonElement result = connection.call("maniphest.query");
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of attempts does not match", 3, responder.calls.get());
+    assertEquals("Number of retries does not match", 2, transport.getRetries());
+    assertEquals("Number of method retries does not match", 2,
+        transport.getRetries("maniphest.query"));
+    assertEquals("Backoff does not match", 30, transport.getBackoffMillis());
+    assertEquals("Exhausted calls do not match", 0,
+        transport.getExhaustedCalls());
+  }
+
+  public void testIdempotentRetriesExhausted() throws Exception {
+    final FailingResponder responder = new FailingResponder(5,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    try {
+      connection.call("phid.query");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of attempts does not match", 3, responder.calls.get());
+    assertEquals("Exhausted calls do not match", 1,
+        transport.getExhaustedCalls());
+  }
+
+  public void testRetriesStopAtDeadline() throws Exception {
+    policy.setMaxAttempts(10);
+    policy.setInitialBackoffMillis(200);
+    policy.setBackoffMultiplier(2);
+    final FailingResponder responder = new FailingResponder(10,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    final CallOptions options = new CallOptions();
+    options.setTimeoutMillis(300);
+    final long start = System.nanoTime();
+    try {
+      connection.call("maniphest.query", new HashMap<String, Object>(),
+          JsonElement.class, options);
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertEquals("Number of attempts does not match", 2, responder.calls.get());
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 300);
+  }
+
+  public void testCancelEndsBackoff() throws Exception {
+    policy.setInitialBackoffMillis(10000);
+    final FailingResponder responder = new FailingResponder(10,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    final CallOptions options = new CallOptions();
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (final InterruptedException e) {
+        }
+        options.cancel();
+      }
+    }.start();
+    final long start = System.nanoTime();
+    try {
+      connection.call("maniphest.query", new HashMap<String, Object>(),
+          JsonElement.class, options);
+      fail("no exception got thrown");
+    } catch (final CallCancelledException e) {
+    } finally {
+      connection.close();
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertEquals("Number of attempts does not match", 1, responder.calls.get());
+    assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 5000);
+  }
+
+  public void testNonIdempotentNotRetriedAfterSending() throws Exception {
+    final FailingResponder responder = new FailingResponder(1,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    try {
+      connection.call("maniphest.createtask");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of attempts does not match", 1, responder.calls.get());
+    assertEquals("Number of retries does not match", 0, transport.getRetries());
+  }
+
+  public void testNonIdempotentRetriedOnConnectFailure() throws Exception {
+    final FailingResponder responder = new FailingResponder(1,
+        new ConnectException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    try {
+      final JsonElement result = connection.call("maniphest.createtask");
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of attempts does not match", 2, responder.calls.get());
+    assertEquals("Number of method retries does not match", 1,
+        transport.getRetries("maniphest.createtask"));
+  }
+
+  public void testSetIdempotent() throws Exception {
+    policy.setIdempotent("maniphest.update", true);
+    policy.setIdempotent("maniphest.query", false);
+
+    assertTrue("maniphest.update is not idempotent",
+        policy.isIdempotent("maniphest.update"));
+    assertFalse("maniphest.query is idempotent",
+        policy.isIdempotent("maniphest.query"));
+    assertFalse("project.create is idempotent",
+        policy.isIdempotent("project.create"));
+  }
+
+  public void testCallAsyncRetried() throws Exception {
+    final FailingResponder responder = new FailingResponder(2,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Connection connection = new Connection(transport);
+    try {
+      final Future<JsonElement> future = connection.callAsync("user.query",
+          new HashMap<String, Object>());
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"),
+          future.get());
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of attempts does not match", 3, responder.calls.get());
+    assertEquals("Number of retries does not match", 2, transport.getRetries());
+  }
+
+  public void testCallAsyncNonIdempotentFails() throws Exception {
+    final FailingResponder responder = new FailingResponder(1,
+        new IOException("injected"));
+    final Connection connection = new Connection(new RetryingTransport(
+        new LoopbackTransport(responder), policy));
+    try {
+      final Future<JsonElement> future = connection.callAsync(
+          "project.create", new HashMap<String, Object>());
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is no ConduitException",
+          e.getCause() instanceof ConduitException);
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of attempts does not match", 1, responder.calls.get());
+  }
+
+  public void testRetryOnUnavailableStatus() throws Exception {
+    final StubServer server = new StubServer();
+    final AtomicInteger calls = new AtomicInteger();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        if (calls.incrementAndGet() == 1) {
+          exchange.sendResponseHeaders(503, -1);
+        } else {
+          StubServer.respond(exchange, "{\"result\":\"foo\"}");
+        }
+      }
+    });
+
+    final Connection connection = new Connection(new RetryingTransport(
+        new ApacheTransport(server.getBaseUrl()), policy));
+    try {
+      final JsonElement result = connection.call("conduit.ping");
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+      server.stop();
+    }
+
+    assertEquals("Number of attempts does not match", 2, calls.get());
+  }
+
+  public void testCloseFailsCallsBackingOff() throws Exception {
+    policy.setInitialBackoffMillis(60000);
+    policy.setMaxBackoffMillis(60000);
+    final FailingResponder responder = new FailingResponder(5,
+        new IOException("injected"));
+    final RetryingTransport transport = new RetryingTransport(
+        new LoopbackTransport(responder), policy);
+    final Future<TransportResponse> future = transport.sendAsync(
+        new TransportRequest("maniphest.query", new Gson(),
+            new HashMap<String, Object>(), false), null);
+    assertEquals("Number of retries does not match", 1,
+        transport.getRetries());
+
+    transport.close();
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertEquals("Message does not match", "Transport has been closed", e
+          .getCause().getMessage());
+    }
+    assertEquals("Number of attempts does not match", 1, responder.calls.get());
+  }
+
+  public void testBackoffGrowsExponentially() {
+    policy.setInitialBackoffMillis(100);
+    policy.setMaxBackoffMillis(350);
+
+    assertEquals("First backoff does not match", 100,
+        policy.getBackoffMillis(1));
+    assertEquals("Second backoff does not match", 200,
+        policy.getBackoffMillis(2));
+    assertEquals("Third backoff does not match", 350,
+        policy.getBackoffMillis(3));
+  }
+
+  public void testBackoffJitter() {
+    policy.setInitialBackoffMillis(100);
+    policy.setJitter(0.5);
+
+    for (int i = 0; i < 100; i++) {
+      final long backoff = policy.getBackoffMillis(1);
+      assertTrue("Backoff " + backoff + " is out of range", backoff >= 50
+          && backoff <= 100);
+    }
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    policy = new RetryPolicy();
+    policy.setInitialBackoffMillis(10);
+    policy.setJitter(0);
+  }
+
+  /**
+   * Fails the first calls, and answers all later calls with "foo"
+   */
+  private static class FailingResponder implements LoopbackTransport.Responder {
+    private final int failures;
+    private final IOException failure;
+    private final AtomicInteger calls;
+
+    public FailingResponder(final int failures, final IOException failure) {
+      this.failures = failures;
+      this.failure = failure;
+      this.calls = new AtomicInteger();
+    }
+
+    @Override
+    public String respond(final String method, final String body)
+        throws IOException {
+      if (calls.incrementAndGet() <= failures) {
+        throw failure;
+      }
+      return "{\"result\":\"foo\"}";
+    }
+  }
+}
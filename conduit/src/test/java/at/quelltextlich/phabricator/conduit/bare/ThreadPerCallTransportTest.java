@@ -0,0 +1,149 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+public class ThreadPerCallTransportTest extends LoggingMockingTestCase {
+  private volatile Thread respondingThread;
+  private volatile CountDownLatch interrupted;
+  private volatile boolean blocking;
+  private Connection connection;
+
+  public void testCallRunsOnCallingThread() throws Exception {
+    final JsonElement result = connection.call("conduit.ping");
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertSame("Responding thread does not match", Thread.currentThread(),
+        respondingThread);
+  }
+
+  public void testCallAsyncRunsOnThreadOfItsOwn() throws Exception {
+    final JsonElement result = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>()).get(5, TimeUnit.SECONDS);
+
+    assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    assertNotNull("No thread responded", respondingThread);
+    assertNotSame("Responding thread does not match", Thread.currentThread(),
+        respondingThread);
+  }
+
+  public void testCallAsyncOverlap() throws Exception {
+    final DelayingTransport delayingTransport = new DelayingTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body) {
+            return "{\"result\":\"foo\"}";
+          }
+        });
+    delayingTransport.setDefaultDelayMillis(500);
+    // The DelayingTransport's blocking calls wait on the calling thread, so
+    // they only overlap if each runs on a thread of its own.
+    final Connection delayingConnection = new Connection(
+        new ThreadPerCallTransport(delayingTransport));
+    try {
+      final long start = System.nanoTime();
+      final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+      for (int i = 0; i < 20; i++) {
+        futures.add(delayingConnection.callAsync("conduit.ping",
+            new HashMap<String, Object>()));
+      }
+      for (final Future<JsonElement> future : futures) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            future.get(5, TimeUnit.SECONDS));
+      }
+      final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - start);
+
+      assertTrue("Calls took " + elapsedMillis + "ms", elapsedMillis < 2500);
+      assertEquals("Number of sent calls does not match", 20,
+          delayingTransport.getCalls());
+    } finally {
+      delayingConnection.close();
+    }
+  }
+
+  public void testCancelInterruptsCall() throws Exception {
+    blocking = true;
+
+    final Future<JsonElement> future = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (respondingThread == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue("Cancelling failed", future.cancel(true));
+
+    assertTrue("Call did not get interrupted",
+        interrupted.await(5, TimeUnit.SECONDS));
+    assertTrue("Future is not cancelled", future.isCancelled());
+  }
+
+  public void testCallAsyncAfterClose() throws Exception {
+    connection.close();
+
+    final Future<JsonElement> future = connection.callAsync("conduit.ping",
+        new HashMap<String, Object>());
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+    }
+    assertNull("A thread responded", respondingThread);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    respondingThread = null;
+    interrupted = new CountDownLatch(1);
+    blocking = false;
+    connection = new Connection(new ThreadPerCallTransport(
+        new LoopbackTransport(new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            respondingThread = Thread.currentThread();
+            if (blocking) {
+              try {
+                Thread.sleep(10000);
+              } catch (final InterruptedException e) {
+                interrupted.countDown();
+                throw new IOException("Interrupted while responding", e);
+              }
+            }
+            return "{\"result\":\"foo\"}";
+          }
+        })));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+
+public class TransportRequestTest extends LoggingMockingTestCase {
+  public void testWriteBodySimple() throws Exception {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", "bar");
+
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), params, false);
+
+    assertEquals("Body does not match",
+        "params=%7B%22foo%22%3A%22bar%22%7D", writeToString(request));
+  }
+
+  public void testWriteBodySpecialCharacters() throws Exception {
+    final String value = "a&b=c+d %e?f#g\u00e4\u20ac\ud83d\ude00";
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", value);
+
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), params, false);
+    final String body = writeToString(request);
+
+    assertTrue("Body does not start with 'params='",
+        body.startsWith("params="));
+    final String encoded = body.substring("params=".length());
+    assertTrue("Body contains unencoded characters: " + encoded,
+        encoded.matches("[A-Za-z0-9.*_%+-]*"));
+    final String json = URLDecoder.decode(encoded, "UTF-8");
+    final Map<?, ?> decoded = new Gson().fromJson(json, Map.class);
+    assertEquals("Value does not match", value, decoded.get("foo"));
+  }
+
+  public void testWriteBodySpace() throws Exception {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("f", " ");
+
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), params, false);
+
+    assertEquals("Body does not match", "params=%7B%22f%22%3A%22+%22%7D",
+        writeToString(request));
+  }
+
+  public void testWriteBodyLarge() throws Exception {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      sb.append("PHID-TASK-").append(i).append(' ');
+    }
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("description", sb.toString());
+
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), params, false);
+    final String body = writeToString(request);
+
+    final String json = URLDecoder.decode(body.substring(7), "UTF-8");
+    final Map<?, ?> decoded = new Gson().fromJson(json, Map.class);
+    assertEquals("Value does not match", sb.toString(),
+        decoded.get("description"));
+  }
+
+  public void testWriteBodyRepeatable() throws Exception {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", "bar");
+
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), params, false);
+
+    assertEquals("Bodies do not match", writeToString(request),
+        writeToString(request));
+  }
+  public void testOpenBodyMatchesWriteBody() throws Exception {
+    final Map<String, Object> nested = new HashMap<String, Object>();
+    nested.put("a&b", Arrays.asList(1, 2.5, "<\u00e4\ud83d\ude00>", null));
+    nested.put("empty", new HashMap<String, Object>());
+    nested.put("skipped", null);
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("foo", nested);
+    params.put("bar", true);
+
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), params, false);
+
+    assertEquals("Bodies do not match", writeToString(request),
+        openToString(request));
+  }
+
+  public void testOpenBodyEmpty() throws Exception {
+    final TransportRequest request = new TransportRequest("foo.bar",
+        new Gson(), new HashMap<String, Object>(), false);
+
+    assertEquals("Body does not match", "params=%7B%7D",
+        openToString(request));
+  }
+
+  private String writeToString(final TransportRequest request)
+      throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    request.writeBody(out);
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  private String openToString(final TransportRequest request)
+      throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final InputStream in = request.openBody();
+    final byte[] buffer = new byte[3];
+    int count;
+    while ((count = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, count);
+    }
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import at.quelltextlich.phabricator.conduit.ConduitException;
+
+public class ApiTokenSessionHandlerTest extends SessionTestCase {
+  public void testFillInSession() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+
+    final SessionHandler sessionHandler = new ApiTokenSessionHandler(
+        "api-foo");
+    sessionHandler.fillInSession(params);
+
+    final Map<?, ?> conduitParams = (Map<?, ?>) params.get("__conduit__");
+    assertEquals("Token does not match", "api-foo", conduitParams.get("token"));
+    assertFalse("Session key got filled in",
+        conduitParams.containsKey("sessionKey"));
+  }
+
+  public void testFillInSessionReusesParams() throws ConduitException {
+    final Map<String, Object> params1 = new HashMap<String, Object>();
+    final Map<String, Object> params2 = new HashMap<String, Object>();
+
+    final SessionHandler sessionHandler = new ApiTokenSessionHandler(
+        "api-foo");
+    sessionHandler.fillInSession(params1);
+    sessionHandler.invalidateSession(params1);
+    sessionHandler.fillInSession(params2);
+
+    assertSame("Session parameters got rebuilt", params1.get("__conduit__"),
+        params2.get("__conduit__"));
+  }
+
+  public void testNoToken() {
+    try {
+      new ApiTokenSessionHandler("");
+      fail("no exception got thrown");
+    } catch (final IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.bare.Connection;
+import at.quelltextlich.phabricator.conduit.bare.LoopbackTransport;
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+public class AsyncConduitTest extends LoggingMockingTestCase {
+  private DelayingTransport transport;
+  private Connection connection;
+  private AsyncConduit conduit;
+
+  public void testInfo() throws Exception {
+    final ManiphestModule.InfoResult result = conduit.maniphest.info(42)
+        .get();
+
+    assertEquals("Task id does not match", 42, result.getId());
+  }
+
+  public void testCallsRunInParallel() throws Exception {
+    transport.setDefaultDelayMillis(300);
+
+    final long start = System.nanoTime();
+    final CompletableFuture<ManiphestModule.InfoResult> info = conduit.maniphest
+        .info(42);
+    final CompletableFuture<PhidModule.QueryResult> phids = conduit.phid
+        .query(Arrays.asList("PHID-TASK-1"));
+    final CompletableFuture<UserModule.QueryResult> users = conduit.user
+        .query(null, null, null, Arrays.asList("PHID-USER-1"), null, null,
+            null);
+    CompletableFuture.allOf(info, phids, users).get();
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertEquals("Task id does not match", 42, info.get().getId());
+    assertTrue("Calls took " + elapsedMillis + "ms", elapsedMillis < 800);
+    assertEquals("Number of calls does not match", 3, transport.getCalls());
+  }
+
+  public void testComposition() throws Exception {
+    final CompletableFuture<UserModule.WhoAmIResult> whoAmI = conduit.maniphest
+        .info(42)
+        .thenCompose(
+            new Function<ManiphestModule.InfoResult, CompletableFuture<UserModule.WhoAmIResult>>() {
+              @Override
+              public CompletableFuture<UserModule.WhoAmIResult> apply(
+                  final ManiphestModule.InfoResult info) {
+                return conduit.user.whoAmI();
+              }
+            });
+    final String userName = whoAmI.get().getUserName();
+
+    assertEquals("User name does not match", "userBar", userName);
+    assertEquals("Number of calls does not match", 2, transport.getCalls());
+  }
+
+  public void testFailure() throws Exception {
+    try {
+      conduit.maniphest.info(-1).get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is not a ConduitErrorException",
+          e.getCause() instanceof ConduitErrorException);
+    }
+  }
+
+  public void testCancelAbortsCall() throws Exception {
+    transport.setDefaultDelayMillis(2000);
+
+    final CompletableFuture<ManiphestModule.InfoResult> future = conduit.maniphest
+        .info(42);
+    while (transport.getCalls() == 0) {
+      Thread.sleep(5);
+    }
+    assertTrue("Cancelling failed", future.cancel(true));
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.getCancelledCalls() == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Number of cancelled calls does not match", 1,
+        transport.getCancelledCalls());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    transport = new DelayingTransport(new LoopbackTransport.Responder() {
+      @Override
+      public String respond(final String method, final String body)
+          throws IOException {
+        if (URLDecoder.decode(body, "UTF-8").contains("\"task_id\":-1")) {
+          return "{\"result\":null,\"error_code\":\"ERR-BAD-TASK\","
+              + "\"error_info\":null}";
+        } else if ("maniphest.info".equals(method)) {
+          return "{\"result\":{\"id\":42}}";
+        } else if ("user.whoami".equals(method)) {
+          return "{\"result\":{\"userName\":\"userBar\"}}";
+        } else if ("user.query".equals(method)) {
+          return "{\"result\":[]}";
+        }
+        return "{\"result\":{}}";
+      }
+    });
+    connection = new Connection(transport);
+    conduit = new AsyncConduit(ConduitFactory.createConduitWithApiToken(
+        connection, "api-foo"));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
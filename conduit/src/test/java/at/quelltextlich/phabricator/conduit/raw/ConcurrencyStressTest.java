@@ -0,0 +1,258 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import at.quelltextlich.phabricator.conduit.bare.Connection;
+import at.quelltextlich.phabricator.conduit.bare.ConnectionConfig;
+import at.quelltextlich.phabricator.conduit.bare.LoopbackTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Hammers a single shared Conduit from a pool of worker threads
+ * <p/>
+ * Each call's result has to match its own request, and all threads have to
+ * share a single session.
+ */
+public class ConcurrencyStressTest extends LoggingMockingTestCase {
+  private static final int THREADS = 64;
+
+  private ServerStub serverStub;
+
+  public void testSharedConduitInMemory() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            return serverStub.respond(method, body);
+          }
+        }));
+    try {
+      final Conduit conduit = ConduitFactory.createConduit(connection,
+          "userBar", "certBaz");
+
+      runWorkers(conduit, 200);
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of sessions does not match", 1,
+        serverStub.getConnects());
+  }
+
+  public void testSharedConduitOverHttp() throws Exception {
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, serverStub.respond(method, body));
+      }
+    });
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxTotal(THREADS);
+    config.setMaxPerRoute(THREADS);
+    final Connection connection = new Connection(server.getBaseUrl(), config);
+    try {
+      final Conduit conduit = ConduitFactory.createConduit(connection,
+          "userBar", "certBaz");
+
+      runWorkers(conduit, 20);
+    } finally {
+      connection.close();
+      server.stop();
+    }
+
+    assertEquals("Number of sessions does not match", 1,
+        serverStub.getConnects());
+  }
+
+  public void testSessionExpiringUnderLoad() throws Exception {
+    final Connection connection = new Connection(new LoopbackTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            return serverStub.respond(method, body);
+          }
+        }));
+    serverStub.expireSessionAfterCalls(THREADS * 50);
+    try {
+      final Conduit conduit = ConduitFactory.createConduit(connection,
+          "userBar", "certBaz");
+
+      runWorkers(conduit, 200);
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of sessions does not match", 2,
+        serverStub.getConnects());
+  }
+
+  /**
+   * Runs calls of all kinds on a shared Conduit from all worker threads
+   *
+   * @param conduit
+   *          The Conduit to share
+   * @param iterations
+   *          The number of iterations per thread
+   */
+  private void runWorkers(final Conduit conduit, final int iterations)
+      throws Exception {
+    final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+    final CountDownLatch started = new CountDownLatch(THREADS);
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            started.countDown();
+            started.await();
+            for (int i = 0; i < iterations; i++) {
+              try {
+                runIteration(conduit, thread * iterations + i);
+              } catch (final Throwable e) {
+                failures.add(e);
+              }
+            }
+            return null;
+          }
+        });
+      }
+      executor.shutdown();
+      assertTrue("Workers did not finish in time",
+          executor.awaitTermination(60, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (!failures.isEmpty()) {
+      final AssertionError error = new AssertionError(failures.size()
+          + " calls failed. First failure: " + failures.peek());
+      error.initCause(failures.peek());
+      throw error;
+    }
+  }
+
+  private void runIteration(final Conduit conduit, final int taskId)
+      throws Exception {
+    final ManiphestModule.InfoResult info;
+    switch (taskId % 4) {
+    case 0:
+      final Future<ManiphestModule.InfoResult> future = conduit.maniphest
+          .infoAsync(taskId, null);
+      info = future.get();
+      break;
+    case 1:
+      assertEquals("User name does not match", "userBar", conduit.user
+          .whoAmI().getUserName());
+      info = conduit.maniphest.info(taskId);
+      break;
+    default:
+      info = conduit.maniphest.info(taskId);
+    }
+    assertEquals("Task id does not match", taskId, info.getId());
+    assertEquals("Title does not match", "T" + taskId, info.getTitle());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    serverStub = new ServerStub();
+  }
+
+  /**
+   * Answers calls like a server with sessions would
+   */
+  private static class ServerStub {
+    private final Gson gson = new Gson();
+    private final AtomicInteger connects = new AtomicInteger();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Set<String> expiredSessions = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile int expireAfterCalls = -1;
+
+    public int getConnects() {
+      return connects.get();
+    }
+
+    /**
+     * Lets the first session expire once that many calls came in
+     */
+    public void expireSessionAfterCalls(final int calls) {
+      expireAfterCalls = calls;
+    }
+
+    public String respond(final String method, final String body)
+        throws IOException {
+      final JsonObject params = gson.fromJson(
+          URLDecoder.decode(body.substring(7), "UTF-8"), JsonObject.class);
+      final JsonObject result = new JsonObject();
+      if ("conduit.connect".equals(method)) {
+        result.addProperty("sessionKey", "key" + connects.incrementAndGet());
+        return respond(result);
+      }
+
+      final String sessionKey = params.getAsJsonObject("__conduit__")
+          .get("sessionKey").getAsString();
+      if (calls.incrementAndGet() == expireAfterCalls) {
+        expiredSessions.add("key1");
+      }
+      if (expiredSessions.contains(sessionKey)) {
+        return "{\"result\":null,\"error_code\":\"ERR-INVALID-SESSION\","
+            + "\"error_info\":\"Session key is invalid.\"}";
+      }
+
+      if ("user.whoami".equals(method)) {
+        result.addProperty("userName", "userBar");
+      } else if ("maniphest.info".equals(method)) {
+        final int taskId = params.get("task_id").getAsInt();
+        result.addProperty("id", taskId);
+        result.addProperty("title", "T" + taskId);
+      } else {
+        throw new IOException("Unexpected method " + method);
+      }
+      return respond(result);
+    }
+
+    private String respond(final JsonObject result) {
+      final JsonObject response = new JsonObject();
+      response.add("result", result);
+      return response.toString();
+    }
+  }
+}
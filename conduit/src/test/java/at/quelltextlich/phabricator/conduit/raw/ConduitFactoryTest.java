@@ -13,7 +13,24 @@
 // limitations under the License.
 package at.quelltextlich.phabricator.conduit.raw;
 
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.bare.Connection;
 import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.sun.net.httpserver.HttpExchange;
 
 public class ConduitFactoryTest extends LoggingMockingTestCase {
   public void testCreateConduit() {
@@ -26,4 +43,197 @@ public class ConduitFactoryTest extends LoggingMockingTestCase {
     assertNotNull("project module not initialized", conduit.project);
     assertNotNull("user module not initialized", conduit.user);
   }
+
+  public void testCreateConduitWithApiToken() throws Exception {
+    final StubServer server = new StubServer();
+    server.setResponder(StubServer.resultResponder("{\"phid\":"
+        + "\"PHID-USER-1\",\"userName\":\"userBar\"}"));
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Conduit conduit = ConduitFactory.createConduitWithApiToken(
+          connection, "api-foo");
+
+      final UserModule.WhoAmIResult result = conduit.user.whoAmI();
+
+      assertEquals("User name does not match", "userBar",
+          result.getUserName());
+    } finally {
+      connection.close();
+      server.stop();
+    }
+
+    final List<String> bodies = server.getRequestBodies();
+    assertEquals("Number of calls does not match", 1, bodies.size());
+    final String body = URLDecoder.decode(bodies.get(0), "UTF-8");
+    assertTrue("Token is missing in " + body,
+        body.contains("\"__conduit__\":{\"token\":\"api-foo\"}"));
+  }
+
+  public void testCreatePooledConduit() throws Exception {
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        final String decoded = URLDecoder.decode(body, "UTF-8");
+        String result = "{\"userName\":\"userBar\"}";
+        if ("conduit.connect".equals(method)) {
+          final String user = decoded.contains("\"userA\"") ? "userA"
+              : "userB";
+          result = "{\"sessionKey\":\"key-" + user + "\"}";
+        }
+        StubServer.respond(exchange, "{\"result\":" + result + "}");
+      }
+    });
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Map<String, String> certificates = new LinkedHashMap<String, String>();
+      certificates.put("userA", "certA");
+      certificates.put("userB", "certB");
+      final Conduit conduit = ConduitFactory.createPooledConduit(connection,
+          certificates);
+
+      conduit.user.whoAmI();
+      conduit.user.whoAmI();
+    } finally {
+      connection.close();
+      server.stop();
+    }
+
+    final List<String> bodies = server.getRequestBodies();
+    assertEquals("Number of calls does not match", 4, bodies.size());
+    final String firstCall = URLDecoder.decode(bodies.get(1), "UTF-8");
+    assertTrue("Session of userA is missing in " + firstCall,
+        firstCall.contains("\"sessionKey\":\"key-userA\""));
+    final String secondCall = URLDecoder.decode(bodies.get(3), "UTF-8");
+    assertTrue("Session of userB is missing in " + secondCall,
+        secondCall.contains("\"sessionKey\":\"key-userB\""));
+  }
+
+  public void testFirstAsyncCallDoesNotWaitForSession() throws Exception {
+    final CountDownLatch connectReleased = new CountDownLatch(1);
+    final AtomicBoolean connectAnswered = new AtomicBoolean(false);
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        String result = "{\"userName\":\"userBar\"}";
+        if ("conduit.connect".equals(method)) {
+          try {
+            connectReleased.await(10, TimeUnit.SECONDS);
+          } catch (final InterruptedException e) {
+            throw new IOException(e);
+          }
+          connectAnswered.set(true);
+          result = "{\"sessionKey\":\"keyFoo\"}";
+        }
+        StubServer.respond(exchange, "{\"result\":" + result + "}");
+      }
+    });
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Conduit conduit = ConduitFactory.createConduit(connection,
+          "userBar", "certBaz");
+
+      final Future<UserModule.WhoAmIResult> future = conduit.user
+          .whoAmIAsync(null);
+
+      assertFalse("Call waited for the session", connectAnswered.get());
+      assertFalse("Call completed before session got opened",
+          future.isDone());
+      connectReleased.countDown();
+      assertEquals("User name does not match", "userBar",
+          future.get(10, TimeUnit.SECONDS).getUserName());
+    } finally {
+      connectReleased.countDown();
+      connection.close();
+      server.stop();
+    }
+
+    final List<String> bodies = server.getRequestBodies();
+    assertEquals("Number of calls does not match", 2, bodies.size());
+    final String call = URLDecoder.decode(bodies.get(1), "UTF-8");
+    assertTrue("Session is missing in " + call,
+        call.contains("\"sessionKey\":\"keyFoo\""));
+  }
+
+  public void testWarmUp() throws Exception {
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        String result = "null";
+        if ("conduit.ping".equals(method)) {
+          try {
+            // Keeping the pings in flight together, so each needs a
+            // connection of its own.
+            Thread.sleep(100);
+          } catch (final InterruptedException e) {
+            throw new IOException(e);
+          }
+          result = "\"hostFoo\"";
+        } else if ("conduit.connect".equals(method)) {
+          result = "{\"sessionKey\":\"keyFoo\"}";
+        } else if ("conduit.getcapabilities".equals(method)) {
+          result = "{\"output\":[\"json\"]}";
+        } else if ("maniphest.querystatuses".equals(method)) {
+          result = "{\"defaultStatus\":\"open\"}";
+        }
+        StubServer.respond(exchange, "{\"result\":" + result + "}");
+      }
+    });
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Conduit conduit = ConduitFactory.createConduit(connection,
+          "userBar", "certBaz");
+
+      final ConduitFactory.WarmUpResult result = ConduitFactory.warmUp(
+          conduit, 3).get();
+
+      assertEquals("Capabilities do not match", Arrays.asList("json"),
+          result.getCapabilities().get("output"));
+      assertEquals("Default status does not match", "open", result
+          .getStatuses().getDefaultStatus());
+    } finally {
+      connection.close();
+      server.stop();
+    }
+
+    assertEquals("Number of calls does not match", 6, server
+        .getRequestBodies().size());
+    assertTrue("Pings shared connections",
+        server.getRemoteAddresses().size() >= 3);
+  }
+
+  public void testWarmUpFailure() throws Exception {
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        if ("conduit.getcapabilities".equals(method)) {
+          StubServer.respond(exchange, "{\"result\":null,"
+              + "\"error_code\":\"ERR-FOO\",\"error_info\":null}");
+        } else {
+          StubServer.respond(exchange, "{\"result\":\"foo\"}");
+        }
+      }
+    });
+    final Connection connection = new Connection(server.getBaseUrl());
+    try {
+      final Conduit conduit = ConduitFactory.createConduitWithApiToken(
+          connection, "api-foo");
+
+      ConduitFactory.warmUp(conduit, 1).get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is not a ConduitErrorException",
+          e.getCause() instanceof ConduitErrorException);
+    } finally {
+      connection.close();
+      server.stop();
+    }
+  }
 }
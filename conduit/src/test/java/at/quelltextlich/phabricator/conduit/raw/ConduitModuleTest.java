@@ -20,6 +20,7 @@ import static org.easymock.EasyMock.expect;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.easymock.Capture;
 
@@ -31,8 +32,9 @@ import com.google.gson.JsonPrimitive;
 
 public class ConduitModuleTest extends ModuleTestCase {
   public void testPingPass() throws Exception {
-    expect(connection.call("conduit.ping")).andReturn(new JsonPrimitive("foo"))
-        .once();
+    expect(
+        connection.call(eq("conduit.ping"), anyParams(), anyResultClass()))
+        .andAnswer(parsed(new JsonPrimitive("foo"))).once();
 
     replayMocks();
 
@@ -45,10 +47,28 @@ public class ConduitModuleTest extends ModuleTestCase {
     assertEquals("Hostname does not match", expected, result);
   }
 
+  public void testPingAsyncPass() throws Exception {
+    final Capture<Map<String, Object>> paramsCapture = createCapture();
+
+    expectCallAsync("conduit.ping", paramsCapture, new JsonPrimitive("foo"));
+
+    replayMocks();
+
+    final ConduitModule module = getModule();
+
+    final Future<ConduitModule.PingResult> future = module.pingAsync(null);
+
+    final ConduitModule.PingResult expected = new ConduitModule.PingResult(
+        "foo");
+    assertEquals("Hostname does not match", expected, future.get());
+  }
+
   public void testPingConnectionFail() throws Exception {
     final ConduitException conduitException = new ConduitException();
 
-    expect(connection.call("conduit.ping")).andThrow(conduitException).once();
+    expect(
+        connection.call(eq("conduit.ping"), anyParams(), anyResultClass()))
+        .andThrow(conduitException).once();
 
     replayMocks();
 
@@ -70,8 +90,9 @@ public class ConduitModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("conduit.connect"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("conduit.connect"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -91,8 +112,9 @@ public class ConduitModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("conduit.connect"), capture(paramsCapture)))
-        .andThrow(conduitException).once();
+    expect(
+        connection.call(eq("conduit.connect"), capture(paramsCapture),
+            anyResultClass())).andThrow(conduitException).once();
 
     replayMocks();
 
@@ -123,8 +145,8 @@ public class ConduitModuleTest extends ModuleTestCase {
     ret.add("input", inputs);
 
     expect(
-        connection.call(eq("conduit.getcapabilities"), capture(paramsCapture)))
-        .andReturn(ret).once();
+        connection.call(eq("conduit.getcapabilities"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -145,8 +167,8 @@ public class ConduitModuleTest extends ModuleTestCase {
     ret.addProperty("certificate", "certBar");
 
     expect(
-        connection.call(eq("conduit.getcertificate"), capture(paramsCapture)))
-        .andReturn(ret).once();
+        connection.call(eq("conduit.getcertificate"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -183,8 +205,9 @@ public class ConduitModuleTest extends ModuleTestCase {
     retBar.addProperty("return", "return bar");
     ret.add("bar", retBar);
 
-    expect(connection.call(eq("conduit.query"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("conduit.query"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -0,0 +1,233 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.UncheckedConduitException;
+import at.quelltextlich.phabricator.conduit.bare.Connection;
+import at.quelltextlich.phabricator.conduit.bare.LoopbackTransport;
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class CursorQueryIteratorTest extends LoggingMockingTestCase {
+  private volatile int projectCount;
+  private volatile boolean stuck;
+  private volatile boolean failing;
+  private List<String> requestedAfters;
+  private DelayingTransport transport;
+  private Connection connection;
+  private Conduit conduit;
+
+  public void testAllProjectsInOrder() {
+    final List<Integer> ids = collectIds(projectQuery(10));
+
+    assertEquals("Ids do not match", expectedIds(25, 1), ids);
+    assertEquals("Requested cursors do not match",
+        Arrays.asList(null, "16", "6"), requestedAfters);
+  }
+
+  public void testSizeMultipleOfPageSize() {
+    projectCount = 20;
+
+    final List<Integer> ids = collectIds(projectQuery(10));
+
+    assertEquals("Ids do not match", expectedIds(20, 1), ids);
+    assertEquals("Requested cursors do not match",
+        Arrays.asList(null, "11"), requestedAfters);
+  }
+
+  public void testNoProjects() {
+    projectCount = 0;
+
+    final CursorQueryIterator<ProjectModule.ProjectResult> iterator = projectQuery(10);
+
+    assertFalse("Iterator has projects", iterator.hasNext());
+    assertEquals("Number of calls does not match", 1, transport.getCalls());
+  }
+
+  public void testNextPageFetchedAhead() throws Exception {
+    final CursorQueryIterator<ProjectModule.ProjectResult> iterator = projectQuery(10);
+
+    assertEquals("Id does not match", 25, iterator.next().getId());
+
+    // The second page gets fetched while the first one still has projects.
+    // The transport counts calls before the responder records their cursor,
+    // so waiting for the recorded cursors.
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (requestedAfters.size() < 2
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Number of calls does not match", 2, transport.getCalls());
+    assertEquals("Requested cursors do not match", Arrays.asList(null, "16"),
+        requestedAfters);
+  }
+
+  public void testCloseCancelsPageInFlight() throws Exception {
+    transport.addDelayMillis(0);
+    transport.addDelayMillis(5000);
+    final CursorQueryIterator<ProjectModule.ProjectResult> iterator = projectQuery(10);
+
+    assertEquals("Id does not match", 25, iterator.next().getId());
+    iterator.close();
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.getCancelledCalls() < 1
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Number of cancelled calls does not match", 1,
+        transport.getCancelledCalls());
+  }
+
+  public void testCursorNotMovingOn() {
+    stuck = true;
+
+    final List<Integer> ids = collectIds(projectQuery(10));
+
+    assertEquals("Number of projects does not match", 20, ids.size());
+    assertEquals("Number of calls does not match", 2, transport.getCalls());
+  }
+
+  public void testFailedCall() {
+    failing = true;
+
+    final CursorQueryIterator<ProjectModule.ProjectResult> iterator = projectQuery(10);
+    try {
+      iterator.hasNext();
+      fail("no exception got thrown");
+    } catch (final UncheckedConduitException e) {
+      assertTrue("Cause is not a ConduitErrorException",
+          e.getCause() instanceof ConduitErrorException);
+    }
+    assertFalse("Iterator has projects after failure", iterator.hasNext());
+  }
+
+  public void testStream() {
+    final Stream<ProjectModule.ProjectResult> stream = projectQuery(10)
+        .stream();
+    try {
+      final List<Integer> ids = stream.map(
+          new Function<ProjectModule.ProjectResult, Integer>() {
+            @Override
+            public Integer apply(final ProjectModule.ProjectResult project) {
+              return project.getId();
+            }
+          }).collect(Collectors.<Integer> toList());
+
+      assertEquals("Ids do not match", expectedIds(25, 1), ids);
+    } finally {
+      stream.close();
+    }
+  }
+
+  private CursorQueryIterator<ProjectModule.ProjectResult> projectQuery(
+      final int pageSize) {
+    return CursorQueryIterator.projectQuery(conduit.project, null, null,
+        null, null, null, null, null, null, pageSize);
+  }
+
+  private List<Integer> collectIds(
+      final CursorQueryIterator<ProjectModule.ProjectResult> iterator) {
+    final List<Integer> ret = new ArrayList<Integer>();
+    while (iterator.hasNext()) {
+      ret.add(iterator.next().getId());
+    }
+    return ret;
+  }
+
+  private List<Integer> expectedIds(final int from, final int to) {
+    final List<Integer> ret = new ArrayList<Integer>();
+    for (int id = from; id >= to; id--) {
+      ret.add(id);
+    }
+    return ret;
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    projectCount = 25;
+    stuck = false;
+    failing = false;
+    requestedAfters = new CopyOnWriteArrayList<String>();
+    // Serves projects newest first. The cursor of a page is the id of its
+    // last project, and the next page starts below it.
+    transport = new DelayingTransport(new LoopbackTransport.Responder() {
+      @Override
+      public String respond(final String method, final String body)
+          throws IOException {
+        if (failing) {
+          return "{\"result\":null,\"error_code\":\"ERR-FOO\","
+              + "\"error_info\":null}";
+        }
+        final JsonObject params = new Gson().fromJson(
+            URLDecoder.decode(body.substring(7), "UTF-8"), JsonObject.class);
+        final JsonElement afterParam = params.get("after");
+        final String after = (afterParam == null || afterParam
+            .isJsonNull()) ? null : afterParam.getAsString();
+        requestedAfters.add(after);
+        if (params.has("offset") && !params.get("offset").isJsonNull()) {
+          throw new IOException("Offset got sent");
+        }
+        final int limit = params.get("limit").getAsInt();
+        final int start = (after == null || stuck) ? projectCount : Integer
+            .parseInt(after) - 1;
+        final JsonObject data = new JsonObject();
+        int id = start;
+        for (; id > start - limit && id > 0; id--) {
+          final JsonObject project = new JsonObject();
+          project.addProperty("id", id);
+          project.addProperty("phid", "PHID-PROJ-" + id);
+          data.add("PHID-PROJ-" + id, project);
+        }
+        final JsonObject cursor = new JsonObject();
+        cursor.addProperty("limit", limit);
+        if (id > 0) {
+          cursor.addProperty("after", String.valueOf(id + 1));
+        } else {
+          cursor.add("after", null);
+        }
+        cursor.add("before", null);
+        final JsonObject result = new JsonObject();
+        result.add("data", data);
+        result.add("slugMap", new JsonObject());
+        result.add("cursor", cursor);
+        return "{\"result\":" + result + "}";
+      }
+    });
+    connection = new Connection(transport);
+    conduit = ConduitFactory.createConduitWithApiToken(connection, "api-foo");
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.easymock.Capture;
 
@@ -62,8 +64,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("maniphest.createtask"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("maniphest.createtask"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -167,7 +170,8 @@ public class ManiphestModuleTest extends ModuleTestCase {
 
     expect(
         connection.call(eq("maniphest.gettasktransactions"),
-            capture(paramsCapture))).andReturn(ret).once();
+            capture(paramsCapture), anyResultClass()))
+        .andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -228,8 +232,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
     ret.addProperty("dateModified", "1436304469");
     ret.add("dependsOnTaskPHIDs", new JsonArray());
 
-    expect(connection.call(eq("maniphest.info"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("maniphest.info"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -253,6 +258,51 @@ public class ManiphestModuleTest extends ModuleTestCase {
     assertEquals("Results do not match", expected, result);
   }
 
+  public void testInfoAsyncPass() throws Exception {
+    final Capture<Map<String, Object>> paramsCapture = createCapture();
+
+    final JsonObject ret = new JsonObject();
+    ret.addProperty("id", 42);
+    ret.addProperty("phid", "PHID-TASK-btorxi3333rmlvrqdzr7");
+    ret.addProperty("title", "qchris-test-task");
+
+    expectCallAsync("maniphest.info", paramsCapture, ret);
+
+    replayMocks();
+
+    final ManiphestModule module = getModule();
+    final Future<ManiphestModule.InfoResult> future = module.infoAsync(42,
+        null);
+
+    final Map<String, Object> params = paramsCapture.getValue();
+    assertEquals("TaskResult id is not set", 42, params.get("task_id"));
+    assertHasSessionKey(params);
+
+    final ManiphestModule.InfoResult result = future.get();
+    assertEquals("Id does not match", 42, result.getId());
+    assertEquals("Phid does not match", "PHID-TASK-btorxi3333rmlvrqdzr7",
+        result.getPhid());
+    assertEquals("Title does not match", "qchris-test-task", result.getTitle());
+  }
+
+  public void testInfoAsyncFailSession() throws Exception {
+    final ConduitException conduitException = new ConduitException();
+
+    sessionHandler.failNextFillingIn(conduitException);
+
+    replayMocks();
+
+    final ManiphestModule module = getModule();
+    final Future<ManiphestModule.InfoResult> future = module.infoAsync(42,
+        null);
+    try {
+      future.get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertSame(conduitException, e.getCause());
+    }
+  }
+
   public void testInfoFailSession() throws Exception {
     final ConduitException conduitException = new ConduitException();
 
@@ -276,8 +326,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
     retRelevant.add("id", new JsonPrimitive(42));
 
     final ConduitException conduitException = new ConduitException();
-    expect(connection.call(eq("maniphest.info"), capture(paramsCapture)))
-        .andThrow(conduitException).once();
+    expect(
+        connection.call(eq("maniphest.info"), capture(paramsCapture),
+            anyResultClass())).andThrow(conduitException).once();
 
     replayMocks();
 
@@ -326,8 +377,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("maniphest.update"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("maniphest.update"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -417,8 +469,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("maniphest.update"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("maniphest.update"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -503,8 +556,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("maniphest.update"), capture(paramsCapture)))
-        .andThrow(conduitException).once();
+    expect(
+        connection.call(eq("maniphest.update"), capture(paramsCapture),
+            anyResultClass())).andThrow(conduitException).once();
 
     replayMocks();
 
@@ -587,8 +641,9 @@ public class ManiphestModuleTest extends ModuleTestCase {
     retTask.add("dependsOnTaskPHIDs", new JsonArray());
     ret.add("PHID-TASK-btorxi3333rmlvrqdzr8", retTask);
 
-    expect(connection.call(eq("maniphest.query"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("maniphest.query"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -661,6 +716,22 @@ public class ManiphestModuleTest extends ModuleTestCase {
     assertEquals("Results do not match", expected, result);
   }
 
+  public void testQueryEmpty() throws Exception {
+    // PHP encodes empty results as empty arrays instead of empty objects.
+    expect(
+        connection.call(eq("maniphest.query"), anyParams(),
+            anyResultClass())).andAnswer(parsed(new JsonArray())).once();
+
+    replayMocks();
+
+    final ManiphestModule module = getModule();
+    final ManiphestModule.QueryResult result = module.query(null, null, null,
+        null, null, null, null, null, null, 10, 20);
+
+    assertEquals("Results do not match", new ManiphestModule.QueryResult(),
+        result);
+  }
+
   public void testQueryStatusesPass() throws Exception {
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
@@ -690,8 +761,8 @@ public class ManiphestModuleTest extends ModuleTestCase {
     ret.add("statusMap", statusMap);
 
     expect(
-        connection.call(eq("maniphest.querystatuses"), capture(paramsCapture)))
-        .andReturn(ret).once();
+        connection.call(eq("maniphest.querystatuses"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -13,12 +13,27 @@
 // limitations under the License.
 package at.quelltextlich.phabricator.conduit.raw;
 
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.easymock.Capture;
+import org.easymock.IAnswer;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.bare.CallFuture;
 import at.quelltextlich.phabricator.conduit.bare.Connection;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
 public abstract class ModuleTestCase extends SessionTestCase {
   public Connection connection;
   public SessionHandlerStub sessionHandler;
@@ -35,12 +50,110 @@ public abstract class ModuleTestCase extends SessionTestCase {
     assertHasSessionKey(sessionHandler.sessionKey, params);
   }
 
+  /**
+   * Matches any result class passed to a typed call on the connection
+   */
+  static <T> Class<T> anyResultClass() {
+    anyObject();
+    return null;
+  }
+
+  /**
+   * Matches any parameters passed to a call on the connection
+   */
+  static Map<String, Object> anyParams() {
+    anyObject();
+    return null;
+  }
+
+  /**
+   * Answers a typed call on the connection by binding a JSON result
+   * <p/>
+   * The result gets bound to the class that the module passed to the call,
+   * just like the connection would bind the response's result.
+   *
+   * @param ret
+   *          The call's JSON result
+   */
+  static IAnswer<Object> parsed(final JsonElement ret) {
+    return new IAnswer<Object>() {
+      @Override
+      public Object answer() throws Throwable {
+        final Class<?> resultClass = (Class<?>) getCurrentArguments()[2];
+        return new Gson().fromJson(ret, resultClass);
+      }
+    };
+  }
+
+  /**
+   * Expects a non-blocking call on the connection that completes right away
+   *
+   * @param method
+   *          The expected Conduit method
+   * @param paramsCapture
+   *          Capture for the call's parameters
+   * @param ret
+   *          The call's JSON result
+   */
+  void expectCallAsync(final String method,
+      final Capture<Map<String, Object>> paramsCapture, final JsonElement ret) {
+    final Capture<FutureCallback<Object>> callbackCapture = createCapture();
+    expect(
+        connection.callAsync(eq(method), capture(paramsCapture),
+            ModuleTestCase.<Object> anyResultClass(), capture(callbackCapture)))
+        .andAnswer(new IAnswer<Future<Object>>() {
+          @Override
+          public Future<Object> answer() throws Throwable {
+            final Class<?> resultClass = (Class<?>) getCurrentArguments()[2];
+            final CallFuture<Object> future = new CallFuture<Object>(
+                callbackCapture.getValue());
+            future.completed(new Gson().fromJson(ret, resultClass));
+            return future;
+          }
+        }).once();
+  }
+
+  /**
+   * Expects a non-blocking call on the connection that fails right away
+   *
+   * @param method
+   *          The expected Conduit method
+   * @param failure
+   *          The call's failure
+   */
+  void expectCallAsyncFailure(final String method,
+      final ConduitException failure) {
+    final Capture<FutureCallback<Object>> callbackCapture = createCapture();
+    expect(
+        connection.callAsync(eq(method), anyParams(),
+            ModuleTestCase.<Object> anyResultClass(), capture(callbackCapture)))
+        .andAnswer(new IAnswer<Future<Object>>() {
+          @Override
+          public Future<Object> answer() throws Throwable {
+            final CallFuture<Object> future = new CallFuture<Object>(
+                callbackCapture.getValue());
+            future.failed(failure);
+            return future;
+          }
+        }).once();
+  }
+
   protected abstract Module getModule();
 
   class SessionHandlerStub implements SessionHandler {
     private final String sessionKey = "sessionKeyFoo";
 
     private ConduitException nextException = null;
+    private int invalidations = 0;
+    private int failedCalls = 0;
+
+    public int getInvalidations() {
+      return invalidations;
+    }
+
+    public int getFailedCalls() {
+      return failedCalls;
+    }
 
     public void failNextFillingIn(final ConduitException e) {
       nextException = e;
@@ -68,5 +181,34 @@ public abstract class ModuleTestCase extends SessionTestCase {
         throw nextException;
       }
     }
+
+    /**
+     * Fills in the session right away, so non-blocking calls get sent before
+     * they return
+     */
+    @Override
+    public void fillInSessionAsync(final Map<String, Object> params,
+        final FutureCallback<Void> callback) {
+      try {
+        fillInSession(params);
+      } catch (final ConduitException e) {
+        callback.failed(e);
+        return;
+      }
+      callback.completed(null);
+    }
+
+    @Override
+    public void invalidateSession(final Map<String, Object> params) {
+      assertHasSessionKey(params);
+      invalidations++;
+    }
+
+    @Override
+    public void callFailed(final Map<String, Object> params,
+        final ConduitException e) {
+      assertHasSessionKey(params);
+      failedCalls++;
+    }
   }
 }
\ No newline at end of file
@@ -13,10 +13,22 @@
 // limitations under the License.
 package at.quelltextlich.phabricator.conduit.raw;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expect;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.easymock.Capture;
+import org.easymock.IAnswer;
 
 import at.quelltextlich.phabricator.conduit.ConduitException;
 
@@ -78,4 +90,288 @@ public class OnDemandSessionHandlerTest extends SessionTestCase {
 
     assertLogMessageContains("Trying to start new session");
   }
+
+  public void testFillInSessionConcurrentlyConnectsOnce() throws Exception {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    expect(conduitModule.connect()).andAnswer(
+        new IAnswer<ConduitModule.ConnectResult>() {
+          @Override
+          public ConduitModule.ConnectResult answer() throws Throwable {
+            Thread.sleep(100);
+            return new ConduitModule.ConnectResult(1, "sessionKeyFoo",
+                "userBar");
+          }
+        }).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final int threads = 16;
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Map<String, Object>>> futures = new ArrayList<Future<Map<String, Object>>>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<Map<String, Object>>() {
+          @Override
+          public Map<String, Object> call() throws Exception {
+            final Map<String, Object> params = new HashMap<String, Object>();
+            start.await();
+            sessionHandler.fillInSession(params);
+            return params;
+          }
+        }));
+      }
+      start.countDown();
+
+      for (final Future<Map<String, Object>> future : futures) {
+        assertHasSessionKey("sessionKeyFoo", future.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testInvalidateSession() throws ConduitException {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(1, "sessionKeyFoo", "userBar")).once();
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(2, "sessionKeyBar", "userBar")).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final Map<String, Object> params = new HashMap<String, Object>();
+    sessionHandler.fillInSession(params);
+    assertHasSessionKey("sessionKeyFoo", params);
+
+    sessionHandler.invalidateSession(params);
+    sessionHandler.fillInSession(params);
+    assertHasSessionKey("sessionKeyBar", params);
+
+    assertLogMessageContains("Dropped rejected session");
+    assertLogMessageContains("Trying to start new session");
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testInvalidateSessionWithoutSessionKey()
+      throws ConduitException {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(1, null, "userBar")).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final Map<String, Object> params = new HashMap<String, Object>();
+    sessionHandler.fillInSession(params);
+    sessionHandler.invalidateSession(params);
+
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testInvalidateStaleSessionKeepsNewSession()
+      throws ConduitException {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(1, "sessionKeyFoo", "userBar")).once();
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(2, "sessionKeyBar", "userBar")).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final Map<String, Object> params1 = new HashMap<String, Object>();
+    final Map<String, Object> params2 = new HashMap<String, Object>();
+    sessionHandler.fillInSession(params1);
+    sessionHandler.fillInSession(params2);
+
+    // Both calls got their session rejected, but only the first one drops
+    // it.
+    sessionHandler.invalidateSession(params1);
+    sessionHandler.fillInSession(params1);
+    sessionHandler.invalidateSession(params2);
+    sessionHandler.fillInSession(params2);
+
+    assertHasSessionKey("sessionKeyBar", params1);
+    assertHasSessionKey("sessionKeyBar", params2);
+
+    assertLogMessageContains("Dropped rejected session");
+    assertLogMessageContains("Trying to start new session");
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testFailedConnectRetried() throws ConduitException {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    expect(conduitModule.connect()).andThrow(new ConduitException("injected"))
+        .once();
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(1, "sessionKeyFoo", "userBar")).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final Map<String, Object> params = new HashMap<String, Object>();
+    try {
+      sessionHandler.fillInSession(params);
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    }
+    sessionHandler.fillInSession(params);
+
+    assertHasSessionKey("sessionKeyFoo", params);
+    assertLogMessageContains("Trying to start new session");
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testRenewSession() throws Exception {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    expect(conduitModule.connect()).andReturn(
+        new ConduitModule.ConnectResult(1, "sessionKeyFoo", "userBar")).once();
+    final Capture<FutureCallback<ConduitModule.ConnectResult>> callbackCapture = createCapture();
+    expect(conduitModule.connectAsync(capture(callbackCapture))).andReturn(
+        null).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+    sessionHandler.setRenewAfterMillis(10);
+
+    final Map<String, Object> params = new HashMap<String, Object>();
+    sessionHandler.fillInSession(params);
+    Thread.sleep(20);
+
+    // The old session stays in use while the new one gets opened.
+    sessionHandler.fillInSession(params);
+    assertHasSessionKey("sessionKeyFoo", params);
+    sessionHandler.fillInSession(params);
+    assertHasSessionKey("sessionKeyFoo", params);
+
+    callbackCapture.getValue().completed(
+        new ConduitModule.ConnectResult(2, "sessionKeyBar", "userBar"));
+    sessionHandler.fillInSession(params);
+    assertHasSessionKey("sessionKeyBar", params);
+
+    assertLogMessageContains("Renewing session");
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testFillInSessionAsyncWaitsForConnect() throws Exception {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    final Capture<FutureCallback<ConduitModule.ConnectResult>> callbackCapture = createCapture();
+    expect(conduitModule.connectAsync(capture(callbackCapture))).andReturn(
+        null).once();
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final Map<String, Object> params1 = new HashMap<String, Object>();
+    final Map<String, Object> params2 = new HashMap<String, Object>();
+    final List<String> events = new ArrayList<String>();
+    sessionHandler.fillInSessionAsync(params1, new RecordingCallback(events,
+        "first"));
+    sessionHandler.fillInSessionAsync(params2, new RecordingCallback(events,
+        "second"));
+
+    assertTrue("Callbacks ran before session got opened", events.isEmpty());
+
+    callbackCapture.getValue().completed(
+        new ConduitModule.ConnectResult(1, "sessionKeyFoo", "userBar"));
+
+    assertEquals("Callbacks do not match", 2, events.size());
+    assertTrue("First callback did not complete",
+        events.contains("first completed"));
+    assertTrue("Second callback did not complete",
+        events.contains("second completed"));
+    assertHasSessionKey("sessionKeyFoo", params1);
+    assertHasSessionKey("sessionKeyFoo", params2);
+
+    // The open session gets filled in right away.
+    final Map<String, Object> params3 = new HashMap<String, Object>();
+    sessionHandler.fillInSessionAsync(params3, new RecordingCallback(events,
+        "third"));
+    assertTrue("Third callback did not complete",
+        events.contains("third completed"));
+    assertHasSessionKey("sessionKeyFoo", params3);
+
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  public void testFillInSessionAsyncConnectFailed() throws Exception {
+    final ConduitModule conduitModule = createMock(ConduitModule.class);
+    final Capture<FutureCallback<ConduitModule.ConnectResult>> callbackCapture = createCapture();
+    expect(conduitModule.connectAsync(capture(callbackCapture))).andReturn(
+        null).times(2);
+
+    replayMocks();
+
+    final OnDemandSessionHandler sessionHandler = new OnDemandSessionHandler();
+    sessionHandler.setConduitModule(conduitModule);
+
+    final List<String> events = new ArrayList<String>();
+    sessionHandler.fillInSessionAsync(new HashMap<String, Object>(),
+        new RecordingCallback(events, "first"));
+    callbackCapture.getValue().failed(new ConduitException("injected"));
+
+    assertEquals("Callbacks do not match", 1, events.size());
+    assertEquals("First callback did not fail", "first failed", events.get(0));
+
+    // The failed session got dropped, so the next call opens a fresh one.
+    final Map<String, Object> params = new HashMap<String, Object>();
+    sessionHandler.fillInSessionAsync(params, new RecordingCallback(events,
+        "second"));
+    callbackCapture.getValue().completed(
+        new ConduitModule.ConnectResult(1, "sessionKeyFoo", "userBar"));
+
+    assertEquals("Second callback did not complete", "second completed",
+        events.get(1));
+    assertHasSessionKey("sessionKeyFoo", params);
+
+    assertLogMessageContains("Trying to start new session");
+    assertLogMessageContains("Trying to start new session");
+  }
+
+  /**
+   * Records the outcome of filling in a session
+   */
+  private static class RecordingCallback implements FutureCallback<Void> {
+    private final List<String> events;
+    private final String name;
+
+    public RecordingCallback(final List<String> events, final String name) {
+      this.events = events;
+      this.name = name;
+    }
+
+    @Override
+    public void completed(final Void result) {
+      events.add(name + " completed");
+    }
+
+    @Override
+    public void failed(final Exception e) {
+      events.add(name + " failed");
+    }
+
+    @Override
+    public void cancelled() {
+      events.add(name + " cancelled");
+    }
+  }
 }
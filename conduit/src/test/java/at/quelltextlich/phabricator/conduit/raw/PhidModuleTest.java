@@ -52,8 +52,9 @@ public class PhidModuleTest extends ModuleTestCase {
     ret.add("T84", retT84);
     ret.add("T85", retT85);
 
-    expect(connection.call(eq("phid.lookup"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("phid.lookup"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -106,8 +107,9 @@ public class PhidModuleTest extends ModuleTestCase {
     ret.add("PHID-TASK-bto8xi3333rmlvrqdzr7", retT84);
     ret.add("PHID-TASK-jpnuseiiujvw6f7vvnfp", retT85);
 
-    expect(connection.call(eq("phid.lookup"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("phid.lookup"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -0,0 +1,251 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.ThrottledException;
+
+import com.google.gson.Gson;
+
+public class PooledSessionHandlerTest extends SessionTestCase {
+  private MemberStub member0;
+  private MemberStub member1;
+  private MemberStub member2;
+  private PooledSessionHandler pool;
+
+  public void testRoundRobin() throws ConduitException {
+    final List<String> sessionKeys = new ArrayList<String>();
+    for (int i = 0; i < 6; i++) {
+      sessionKeys.add(fillInSessionKey());
+    }
+
+    assertEquals("Session keys do not match", Arrays.asList("key0", "key1",
+        "key2", "key0", "key1", "key2"), sessionKeys);
+    assertEquals("Calls of member 0 do not match", 2, pool.getCalls(0));
+    assertEquals("Calls of member 1 do not match", 2, pool.getCalls(1));
+  }
+
+  public void testSessionSentAsPlainMap() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+
+    assertEquals("Serialized parameters do not match",
+        "{\"__conduit__\":{\"sessionKey\":\"key0\"}}",
+        new Gson().toJson(params));
+  }
+
+  public void testThrottledMemberOutOfRotation() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+    pool.callFailed(params, new ThrottledException("user.whoami"));
+
+    assertLogMessageContains("out of rotation");
+    assertFalse("Member 0 still in rotation", pool.isInRotation(0));
+    assertTrue("Member 1 not in rotation", pool.isInRotation(1));
+    assertEquals("Failures of member 0 do not match", 1, member0.failures);
+    for (int i = 0; i < 4; i++) {
+      assertFalse("Member 0 got picked", "key0".equals(fillInSessionKey()));
+    }
+  }
+
+  public void testAuthErrorOutOfRotation() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+    pool.callFailed(params, new ConduitErrorException("user.whoami",
+        "ERR-INVALID-USER", null));
+
+    assertLogMessageContains("out of rotation");
+    assertFalse("Member 0 still in rotation", pool.isInRotation(0));
+  }
+
+  public void testOtherErrorKeepsRotation() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+    pool.callFailed(params, new ConduitErrorException("user.whoami",
+        "ERR-CONDUIT-CORE", null));
+
+    assertTrue("Member 0 not in rotation", pool.isInRotation(0));
+    assertEquals("Failures of member 0 do not match", 1, member0.failures);
+  }
+
+  public void testFailedConnectSkipsMember() throws ConduitException {
+    member0.failure = new ConduitException("Could not start session",
+        new ConduitErrorException("conduit.connect",
+            "ERR-INVALID-CERTIFICATE", null));
+
+    assertEquals("Session key does not match", "key1", fillInSessionKey());
+
+    assertLogMessageContains("out of rotation");
+    assertFalse("Member 0 still in rotation", pool.isInRotation(0));
+    assertEquals("Calls of member 0 do not match", 0, pool.getCalls(0));
+  }
+
+  public void testFillInSessionAsyncSkipsFailedMember() throws Exception {
+    member0.failure = new ConduitException("Could not start session",
+        new ConduitErrorException("conduit.connect",
+            "ERR-INVALID-CERTIFICATE", null));
+
+    final Map<String, Object> params = new HashMap<String, Object>();
+    final BasicFuture<Void> future = new BasicFuture<Void>(null);
+    pool.fillInSessionAsync(params, new FutureCallback<Void>() {
+      @Override
+      public void completed(final Void result) {
+        future.completed(result);
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        future.failed(e);
+      }
+
+      @Override
+      public void cancelled() {
+        future.cancel();
+      }
+    });
+    future.get(10, TimeUnit.SECONDS);
+
+    assertHasSessionKey("key1", params);
+    assertLogMessageContains("out of rotation");
+    assertFalse("Member 0 still in rotation", pool.isInRotation(0));
+    assertEquals("Calls of member 1 do not match", 1, pool.getCalls(1));
+  }
+
+  public void testOtherConnectFailureThrown() {
+    final ConduitException failure = new ConduitException("foo");
+    member0.failure = failure;
+
+    try {
+      fillInSessionKey();
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+      assertSame("Exception does not match", failure, e);
+    }
+    assertTrue("Member 0 not in rotation", pool.isInRotation(0));
+  }
+
+  public void testNoMemberInRotation() throws ConduitException {
+    for (int i = 0; i < 3; i++) {
+      final Map<String, Object> params = new HashMap<String, Object>();
+      pool.fillInSession(params);
+      pool.callFailed(params, new ThrottledException("user.whoami"));
+      assertLogMessageContains("out of rotation");
+    }
+
+    try {
+      fillInSessionKey();
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+      assertTrue("Message does not match: " + e.getMessage(), e
+          .getMessage().contains("No credentials in rotation"));
+    }
+  }
+
+  public void testMemberBackAfterCooldown() throws Exception {
+    pool.setCooldownMillis(50);
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+    pool.callFailed(params, new ThrottledException("user.whoami"));
+    assertLogMessageContains("out of rotation");
+
+    Thread.sleep(100);
+
+    assertTrue("Member 0 not back in rotation", pool.isInRotation(0));
+  }
+
+  public void testInvalidateSessionReachesMember() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+    pool.fillInSession(new HashMap<String, Object>());
+
+    pool.invalidateSession(params);
+
+    assertEquals("Invalidations of member 0 do not match", 1,
+        member0.invalidations);
+    assertEquals("Invalidations of member 1 do not match", 0,
+        member1.invalidations);
+  }
+
+  public void testNoMembers() {
+    try {
+      new PooledSessionHandler(new ArrayList<SessionHandler>());
+      fail("no exception got thrown");
+    } catch (final IllegalArgumentException e) {
+    }
+  }
+
+  private String fillInSessionKey() throws ConduitException {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    pool.fillInSession(params);
+    return (String) ((Map<?, ?>) params.get("__conduit__")).get("sessionKey");
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    member0 = new MemberStub("key0");
+    member1 = new MemberStub("key1");
+    member2 = new MemberStub("key2");
+    pool = new PooledSessionHandler(Arrays.asList(member0, member1, member2));
+  }
+
+  /**
+   * Session handler with a fixed session key, that counts notifications
+   */
+  private class MemberStub implements SessionHandler {
+    private final String sessionKey;
+    private ConduitException failure;
+    private int invalidations;
+    private int failures;
+
+    private MemberStub(final String sessionKey) {
+      this.sessionKey = sessionKey;
+    }
+
+    @Override
+    public void fillInSession(final Map<String, Object> params)
+        throws ConduitException {
+      if (failure != null) {
+        throw failure;
+      }
+      final Map<String, Object> conduitParams = new HashMap<String, Object>();
+      conduitParams.put("sessionKey", sessionKey);
+      params.put("__conduit__", conduitParams);
+    }
+
+    @Override
+    public void invalidateSession(final Map<String, Object> params) {
+      assertHasSessionKey(sessionKey, params);
+      invalidations++;
+    }
+
+    @Override
+    public void callFailed(final Map<String, Object> params,
+        final ConduitException e) {
+      assertHasSessionKey(sessionKey, params);
+      failures++;
+    }
+  }
+}
@@ -49,8 +49,9 @@ public class ProjectModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("project.create"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("project.create"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -130,8 +131,9 @@ public class ProjectModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("project.query"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("project.query"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -191,6 +193,41 @@ public class ProjectModuleTest extends ModuleTestCase {
     assertEquals("Results do not match", expected, result);
   }
 
+  public void testQueryByCursor() throws Exception {
+    final JsonObject cursor = new JsonObject();
+    cursor.addProperty("limit", 3);
+    cursor.add("after", null);
+    cursor.add("before", null);
+    final JsonObject ret = new JsonObject();
+    ret.add("data", new JsonArray());
+    ret.add("slugMap", new JsonArray());
+    ret.add("cursor", cursor);
+
+    final Capture<Map<String, Object>> paramsCapture = createCapture();
+
+    expect(
+        connection.call(eq("project.query"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
+
+    replayMocks();
+
+    final ProjectModule module = getModule();
+    final ProjectModule.QueryResult result = module.query(null, null, null,
+        null, null, null, null, null, 3, null, null, "18");
+
+    final Map<String, Object> params = paramsCapture.getValue();
+    assertHasSessionKey(params);
+    assertEquals("'limit' does not match in params", 3, params.get("limit"));
+    assertNull("'offset' is set in params", params.get("offset"));
+    assertNull("'before' is set in params", params.get("before"));
+    assertEquals("'after' does not match in params", "18",
+        params.get("after"));
+
+    assertTrue("Data is not empty", result.getData().isEmpty());
+    assertEquals("Cursor does not match", new ProjectModule.Cursor(3, null,
+        null), result.getCursor());
+  }
+
   @Override
   protected ProjectModule getModule() {
     return new ProjectModule(connection, sessionHandler);
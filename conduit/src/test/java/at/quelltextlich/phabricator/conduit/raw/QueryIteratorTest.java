@@ -0,0 +1,235 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.UncheckedConduitException;
+import at.quelltextlich.phabricator.conduit.bare.Connection;
+import at.quelltextlich.phabricator.conduit.bare.LoopbackTransport;
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+public class QueryIteratorTest extends LoggingMockingTestCase {
+  private volatile int newestId;
+  private volatile int createdOnFirstCall;
+  private volatile boolean failing;
+  private volatile long laterPagesDelayMillis;
+  private AtomicInteger calls;
+  private DelayingTransport transport;
+  private Connection connection;
+  private Conduit conduit;
+
+  public void testAllTasksInOrder() {
+    final List<Integer> ids = collectIds(maniphestQuery(10, 2));
+
+    assertEquals("Ids do not match", expectedIds(24, 0), ids);
+    assertTrue("Number of calls is " + calls.get(), calls.get() <= 4);
+  }
+
+  public void testSizeMultipleOfPageSize() {
+    newestId = 19;
+
+    final List<Integer> ids = collectIds(maniphestQuery(10, 1));
+
+    assertEquals("Ids do not match", expectedIds(19, 0), ids);
+    assertEquals("Number of calls does not match", 3, calls.get());
+  }
+
+  public void testNoTasks() {
+    newestId = -1;
+
+    final QueryIterator<ManiphestModule.TaskResult> iterator = maniphestQuery(
+        10, 3);
+
+    assertFalse("Iterator has tasks", iterator.hasNext());
+  }
+
+  public void testShiftedTaskNotDuplicated() {
+    // A task gets created after the first page, so the second page starts
+    // with the last task of the first page again.
+    createdOnFirstCall = 1;
+
+    final List<Integer> ids = collectIds(maniphestQuery(10, 1));
+
+    assertEquals("Ids do not match", expectedIds(24, 0), ids);
+  }
+
+  public void testPagesFetchedAhead() {
+    transport.setDefaultDelayMillis(300);
+    newestId = 29;
+
+    final long start = System.nanoTime();
+    final List<Integer> ids = collectIds(maniphestQuery(10, 4));
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+        .nanoTime() - start);
+
+    assertEquals("Ids do not match", expectedIds(29, 0), ids);
+    // Fetching the 4 pages one after the other would take 1200ms.
+    assertTrue("Query took " + elapsedMillis + "ms", elapsedMillis < 900);
+  }
+
+  public void testCloseCancelsPagesInFlight() throws Exception {
+    // Delaying by offset, as the calls may reach the transport in any order.
+    laterPagesDelayMillis = 5000;
+    final QueryIterator<ManiphestModule.TaskResult> iterator = maniphestQuery(
+        10, 3);
+
+    assertEquals("Id does not match", 24, iterator.next().getId());
+    iterator.close();
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (transport.getCancelledCalls() < 2
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Number of cancelled calls does not match", 2,
+        transport.getCancelledCalls());
+  }
+
+  public void testFailedCall() {
+    failing = true;
+
+    final QueryIterator<ManiphestModule.TaskResult> iterator = maniphestQuery(
+        10, 2);
+    try {
+      iterator.hasNext();
+      fail("no exception got thrown");
+    } catch (final UncheckedConduitException e) {
+      assertTrue("Cause is not a ConduitErrorException",
+          e.getCause() instanceof ConduitErrorException);
+    }
+    assertFalse("Iterator has tasks after failure", iterator.hasNext());
+  }
+
+  public void testStream() {
+    final Stream<ManiphestModule.TaskResult> stream = maniphestQuery(10, 2)
+        .stream();
+    try {
+      final List<Integer> ids = stream.map(
+          new Function<ManiphestModule.TaskResult, Integer>() {
+            @Override
+            public Integer apply(final ManiphestModule.TaskResult task) {
+              return task.getId();
+            }
+          }).collect(Collectors.<Integer> toList());
+
+      assertEquals("Ids do not match", expectedIds(24, 0), ids);
+    } finally {
+      stream.close();
+    }
+  }
+
+  public void testInvalidPagesInFlight() {
+    try {
+      maniphestQuery(10, 0);
+      fail("no exception got thrown");
+    } catch (final IllegalArgumentException e) {
+    }
+  }
+
+  private QueryIterator<ManiphestModule.TaskResult> maniphestQuery(
+      final int pageSize, final int pagesInFlight) {
+    return QueryIterator.maniphestQuery(conduit.maniphest, null, null, null,
+        null, null, null, null, null, "order-created", pageSize,
+        pagesInFlight);
+  }
+
+  private List<Integer> collectIds(
+      final QueryIterator<ManiphestModule.TaskResult> iterator) {
+    final List<Integer> ret = new ArrayList<Integer>();
+    while (iterator.hasNext()) {
+      ret.add(iterator.next().getId());
+    }
+    return ret;
+  }
+
+  private List<Integer> expectedIds(final int from, final int to) {
+    final List<Integer> ret = new ArrayList<Integer>();
+    for (int id = from; id >= to; id--) {
+      ret.add(id);
+    }
+    return ret;
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    newestId = 24;
+    createdOnFirstCall = 0;
+    failing = false;
+    laterPagesDelayMillis = 0;
+    calls = new AtomicInteger();
+    // Serves tasks newest first, as for "order-created". Ids count down from
+    // the newest task to 0.
+    transport = new DelayingTransport(new LoopbackTransport.Responder() {
+      @Override
+      public String respond(final String method, final String body)
+          throws IOException {
+        final int newest = newestId;
+        if (calls.incrementAndGet() == 1) {
+          newestId += createdOnFirstCall;
+        }
+        if (failing) {
+          return "{\"result\":null,\"error_code\":\"ERR-FOO\","
+              + "\"error_info\":null}";
+        }
+        final JsonObject params = new Gson().fromJson(
+            URLDecoder.decode(body.substring(7), "UTF-8"), JsonObject.class);
+        final int offset = params.get("offset").getAsInt();
+        final int limit = params.get("limit").getAsInt();
+        if (offset > 0 && laterPagesDelayMillis > 0) {
+          try {
+            Thread.sleep(laterPagesDelayMillis);
+          } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while delaying page", e);
+          }
+        }
+        final JsonObject tasks = new JsonObject();
+        for (int id = newest - offset; id > newest - offset - limit
+            && id >= 0; id--) {
+          final JsonObject task = new JsonObject();
+          task.addProperty("id", id);
+          task.addProperty("phid", "PHID-TASK-" + id);
+          tasks.add("PHID-TASK-" + id, task);
+        }
+        if (tasks.entrySet().isEmpty()) {
+          // PHP encodes empty results as empty arrays.
+          return "{\"result\":[]}";
+        }
+        return "{\"result\":" + tasks + "}";
+      }
+    });
+    connection = new Connection(transport);
+    conduit = ConduitFactory.createConduitWithApiToken(connection, "api-foo");
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+}
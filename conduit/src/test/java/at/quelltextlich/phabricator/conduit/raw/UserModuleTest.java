@@ -19,9 +19,12 @@ import static org.easymock.EasyMock.expect;
 
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.easymock.Capture;
 
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+
 import com.google.gson.JsonArray;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
@@ -98,8 +101,9 @@ public class UserModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("user.query"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("user.query"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -152,8 +156,9 @@ public class UserModuleTest extends ModuleTestCase {
 
     final Capture<Map<String, Object>> paramsCapture = createCapture();
 
-    expect(connection.call(eq("user.whoami"), capture(paramsCapture)))
-        .andReturn(ret).once();
+    expect(
+        connection.call(eq("user.whoami"), capture(paramsCapture),
+            anyResultClass())).andAnswer(parsed(ret)).once();
 
     replayMocks();
 
@@ -171,6 +176,96 @@ public class UserModuleTest extends ModuleTestCase {
     assertEquals("Results do not match", expected, result);
   }
 
+  public void testWhoAmIRetriedOnInvalidSession() throws Exception {
+    final JsonObject ret = new JsonObject();
+    ret.addProperty("userName", "qchris");
+
+    expect(
+        connection.call(eq("user.whoami"), anyParams(),
+            anyResultClass())).andThrow(
+        new ConduitErrorException("user.whoami", "ERR-INVALID-SESSION",
+            "Session key is not present.")).once();
+    expect(
+        connection.call(eq("user.whoami"), anyParams(),
+            anyResultClass())).andAnswer(parsed(ret)).once();
+
+    replayMocks();
+
+    final UserModule module = getModule();
+    final UserModule.WhoAmIResult result = module.whoAmI();
+
+    assertEquals("User name does not match", "qchris", result.getUserName());
+    assertEquals("Invalidations do not match", 1,
+        sessionHandler.getInvalidations());
+    assertEquals("Failed calls do not match", 0,
+        sessionHandler.getFailedCalls());
+  }
+
+  public void testWhoAmIOtherErrorNotRetried() throws Exception {
+    expect(
+        connection.call(eq("user.whoami"), anyParams(),
+            anyResultClass())).andThrow(
+        new ConduitErrorException("user.whoami", "ERR-CONDUIT-CORE", "foo"))
+        .once();
+
+    replayMocks();
+
+    final UserModule module = getModule();
+    try {
+      module.whoAmI();
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      assertEquals("Error code does not match", "ERR-CONDUIT-CORE",
+          e.getErrorCode());
+    }
+
+    assertEquals("Invalidations do not match", 0,
+        sessionHandler.getInvalidations());
+    assertEquals("Failed calls do not match", 1,
+        sessionHandler.getFailedCalls());
+  }
+
+  public void testWhoAmIAsyncFailureReported() throws Exception {
+    expectCallAsyncFailure("user.whoami", new ConduitErrorException(
+        "user.whoami", "ERR-CONDUIT-CORE", null));
+
+    replayMocks();
+
+    final UserModule module = getModule();
+    try {
+      module.whoAmIAsync(null).get();
+      fail("no exception got thrown");
+    } catch (final ExecutionException e) {
+      assertTrue("Cause is not a ConduitErrorException",
+          e.getCause() instanceof ConduitErrorException);
+    }
+
+    assertEquals("Invalidations do not match", 0,
+        sessionHandler.getInvalidations());
+    assertEquals("Failed calls do not match", 1,
+        sessionHandler.getFailedCalls());
+  }
+
+  public void testWhoAmIAsyncRetriedOnInvalidSession() throws Exception {
+    final JsonObject ret = new JsonObject();
+    ret.addProperty("userName", "qchris");
+    final Capture<Map<String, Object>> paramsCapture = createCapture();
+
+    expectCallAsyncFailure("user.whoami", new ConduitErrorException(
+        "user.whoami", "ERR-INVALID-SESSION", null));
+    expectCallAsync("user.whoami", paramsCapture, ret);
+
+    replayMocks();
+
+    final UserModule module = getModule();
+    final UserModule.WhoAmIResult result = module.whoAmIAsync(null).get();
+
+    assertEquals("User name does not match", "qchris", result.getUserName());
+    assertHasSessionKey(paramsCapture.getValue());
+    assertEquals("Invalidations do not match", 1,
+        sessionHandler.getInvalidations());
+  }
+
   @Override
   protected UserModule getModule() {
     return new UserModule(connection, sessionHandler);
@@ -0,0 +1,163 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.testutil;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+
+import at.quelltextlich.phabricator.conduit.bare.CallFuture;
+import at.quelltextlich.phabricator.conduit.bare.LoopbackTransport;
+import at.quelltextlich.phabricator.conduit.bare.Transport;
+import at.quelltextlich.phabricator.conduit.bare.TransportRequest;
+import at.quelltextlich.phabricator.conduit.bare.TransportResponse;
+
+/**
+ * Transport that answers calls in memory after a delay, on threads of its own
+ * <p/>
+ * Unlike {@link LoopbackTransport}, non-blocking calls stay in flight while
+ * they are delayed, so they can overlap, race, and get cancelled. Delays can
+ * be scripted per call, in the order calls come in.
+ */
+public class DelayingTransport implements Transport {
+  private final LoopbackTransport transport;
+  private final ExecutorService executor;
+  private final Queue<Long> scriptedDelays;
+  private volatile long defaultDelayMillis;
+  private final AtomicInteger calls;
+  private final AtomicInteger cancelledCalls;
+
+  public DelayingTransport(final LoopbackTransport.Responder responder) {
+    transport = new LoopbackTransport(responder);
+    executor = Executors.newCachedThreadPool();
+    scriptedDelays = new ConcurrentLinkedQueue<Long>();
+    defaultDelayMillis = 0;
+    calls = new AtomicInteger();
+    cancelledCalls = new AtomicInteger();
+  }
+
+  /**
+   * Sets the delay for calls without a scripted delay
+   *
+   * @param delayMillis
+   *          the delay in milliseconds
+   */
+  public void setDefaultDelayMillis(final long delayMillis) {
+    defaultDelayMillis = delayMillis;
+  }
+
+  /**
+   * Scripts the delay of the next call that has no scripted delay yet
+   *
+   * @param delayMillis
+   *          the delay in milliseconds
+   */
+  public void addDelayMillis(final long delayMillis) {
+    scriptedDelays.add(delayMillis);
+  }
+
+  /**
+   * Gets the number of calls that came in
+   *
+   * @return the number of calls so far
+   */
+  public int getCalls() {
+    return calls.get();
+  }
+
+  /**
+   * Gets the number of calls that got cancelled while in flight
+   *
+   * @return the number of cancelled calls so far
+   */
+  public int getCancelledCalls() {
+    return cancelledCalls.get();
+  }
+
+  @Override
+  public TransportResponse send(final TransportRequest request)
+      throws IOException {
+    final Long scriptedDelay = scriptedDelays.poll();
+    final long delayMillis = (scriptedDelay == null) ? defaultDelayMillis
+        : scriptedDelay;
+    // Counting the call only after picking its delay, so once a call got
+    // counted, later calls cannot take its delay.
+    calls.incrementAndGet();
+    if (delayMillis > 0) {
+      // Aborting the call interrupts the delay, as aborting a real request
+      // closes its socket.
+      final Thread thread = Thread.currentThread();
+      final Cancellable abort = new Cancellable() {
+        @Override
+        public boolean cancel() {
+          cancelledCalls.incrementAndGet();
+          thread.interrupt();
+          return true;
+        }
+      };
+      request.addCancellable(abort);
+      try {
+        Thread.sleep(delayMillis);
+      } catch (final InterruptedException e) {
+        throw new IOException("Interrupted while delaying call", e);
+      } finally {
+        request.removeCancellable(abort);
+        Thread.interrupted();
+      }
+    }
+    return transport.send(request);
+  }
+
+  @Override
+  public Future<TransportResponse> sendAsync(final TransportRequest request,
+      final FutureCallback<TransportResponse> callback) {
+    final CallFuture<TransportResponse> future = new CallFuture<TransportResponse>(
+        callback);
+    final Future<?> task = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        try {
+          future.completed(send(request));
+        } catch (final IOException e) {
+          future.failed(e);
+        }
+        return null;
+      }
+    });
+    future.setCancellable(new Cancellable() {
+      @Override
+      public boolean cancel() {
+        if (task.cancel(true)) {
+          cancelledCalls.incrementAndGet();
+        }
+        return true;
+      }
+    });
+    return future;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    transport.close();
+  }
+}
@@ -0,0 +1,218 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.testutil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+
+/**
+ * Minimal local cleartext HTTP/2 server that answers Conduit API calls
+ * <p/>
+ * Every call is answered with the same result, or by a {@link Responder},
+ * after a configurable delay. The delay keeps calls in flight, so the server
+ * can record how many calls overlapped, and over how many connections they
+ * came in.
+ */
+public class Http2StubServer {
+  private final HttpAsyncServer server;
+  private final ScheduledExecutorService executor;
+  private final int port;
+  private final List<String> requestBodies;
+  private final Set<SocketAddress> remoteAddresses;
+  private final AtomicInteger inFlight;
+  private final AtomicInteger maxInFlight;
+  private volatile String resultJson;
+  private volatile Responder responder;
+  private volatile long delayMillis;
+
+  public Http2StubServer() throws Exception {
+    requestBodies = new CopyOnWriteArrayList<String>();
+    remoteAddresses = Collections
+        .newSetFromMap(new ConcurrentHashMap<SocketAddress, Boolean>());
+    inFlight = new AtomicInteger();
+    maxInFlight = new AtomicInteger();
+    resultJson = "null";
+    responder = null;
+    delayMillis = 0;
+    executor = Executors.newSingleThreadScheduledExecutor();
+
+    server = H2ServerBootstrap.bootstrap()
+        .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+        .setH2Config(H2Config.custom().setMaxConcurrentStreams(1000).build())
+        .setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(1)
+            .build())
+        .register("*", new StubHandler()).create();
+    server.start();
+    final ListenerEndpoint endpoint = server.listen(
+        new InetSocketAddress("127.0.0.1", 0)).get();
+    port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+  }
+
+  /**
+   * Gets the base url to pass to a transport
+   */
+  public String getBaseUrl() {
+    return "http://127.0.0.1:" + port + "/";
+  }
+
+  /**
+   * Sets the result that calls get answered with
+   *
+   * @param resultJson
+   *          JSON of the result to return
+   */
+  public void setResult(final String resultJson) {
+    this.resultJson = resultJson;
+  }
+
+  /**
+   * Sets the Responder that answers calls instead of the result
+   *
+   * @param responder
+   *          The Responder to use. null answers calls with the result.
+   */
+  public void setResponder(final Responder responder) {
+    this.responder = responder;
+  }
+
+  /**
+   * Sets the time to wait before answering a call
+   */
+  public void setDelayMillis(final long delayMillis) {
+    this.delayMillis = delayMillis;
+  }
+
+  public List<String> getRequestBodies() {
+    return requestBodies;
+  }
+
+  /**
+   * Gets the distinct client addresses that requests came from
+   * <p/>
+   * Each address stands for one TCP connection.
+   */
+  public Set<SocketAddress> getRemoteAddresses() {
+    return remoteAddresses;
+  }
+
+  /**
+   * Gets the highest number of calls that were in flight at the same time
+   */
+  public int getMaxInFlight() {
+    return maxInFlight.get();
+  }
+
+  public void stop() {
+    server.close(CloseMode.IMMEDIATE);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Records incoming calls, and answers them after the configured delay
+   */
+  private class StubHandler implements
+      AsyncServerRequestHandler<Message<HttpRequest, String>> {
+    @Override
+    public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(
+        final HttpRequest request, final EntityDetails entityDetails,
+        final HttpContext context) {
+      return new BasicRequestConsumer<String>(new StringAsyncEntityConsumer());
+    }
+
+    @Override
+    public void handle(final Message<HttpRequest, String> request,
+        final ResponseTrigger responseTrigger, final HttpContext context) {
+      remoteAddresses.add(HttpCoreContext.adapt(context).getEndpointDetails()
+          .getRemoteAddress());
+      requestBodies.add(request.getBody());
+      final int current = inFlight.incrementAndGet();
+      int max;
+      do {
+        max = maxInFlight.get();
+      } while (current > max && !maxInFlight.compareAndSet(max, current));
+
+      final Responder currentResponder = responder;
+      final String body;
+      if (currentResponder != null) {
+        body = currentResponder.respond(request.getHead().getPath()
+            .replaceFirst("^/api/", ""), request.getBody());
+      } else {
+        body = "{\"result\":" + resultJson
+            + ",\"error_code\":null,\"error_info\":null}";
+      }
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          inFlight.decrementAndGet();
+          try {
+            responseTrigger.submitResponse(
+                AsyncResponseBuilder.create(200)
+                    .setEntity(body, ContentType.APPLICATION_JSON).build(),
+                context);
+          } catch (final HttpException e) {
+            throw new RuntimeException(e);
+          } catch (final IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Answers calls to the server
+   */
+  public interface Responder {
+    /**
+     * Computes the answer to a call
+     *
+     * @param method
+     *          The name of the called Conduit method
+     * @param body
+     *          The request's body
+     * @return the response's body
+     */
+    public String respond(String method, String body);
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.testutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local HTTP server that answers Conduit API calls
+ * <p/>
+ * Each request to {@code /api/METHOD} is answered by the configured
+ * {@link Responder}. Request bodies and the client addresses that requests
+ * came from are recorded for later inspection.
+ */
+public class StubServer {
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final List<String> requestBodies;
+  private final List<Headers> requestHeaders;
+  private final Set<InetSocketAddress> remoteAddresses;
+  private volatile Responder responder;
+
+  public StubServer() throws IOException {
+    requestBodies = new CopyOnWriteArrayList<String>();
+    requestHeaders = new CopyOnWriteArrayList<Headers>();
+    remoteAddresses = Collections
+        .newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+    responder = resultResponder("null");
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/api/", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        try {
+          remoteAddresses.add(exchange.getRemoteAddress());
+          requestHeaders.add(exchange.getRequestHeaders());
+          final String body = readFully(exchange.getRequestBody());
+          requestBodies.add(body);
+          final String path = exchange.getRequestURI().getPath();
+          final String method = path.substring(path.lastIndexOf('/') + 1);
+          responder.respond(method, body, exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Gets the base url to pass to a Connection
+   */
+  public String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  public void setResponder(final Responder responder) {
+    this.responder = responder;
+  }
+
+  public List<String> getRequestBodies() {
+    return requestBodies;
+  }
+
+  public List<Headers> getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  /**
+   * Gets the distinct client addresses that requests came from
+   * <p/>
+   * Each address stands for one TCP connection.
+   */
+  public Set<InetSocketAddress> getRemoteAddresses() {
+    return remoteAddresses;
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Sends a plain 200 response with the given body
+   */
+  public static void respond(final HttpExchange exchange, final String body)
+      throws IOException {
+    respond(exchange, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Sends a plain 200 response with the given body
+   */
+  public static void respond(final HttpExchange exchange, final byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  /**
+   * Creates a Responder that answers every call with the given result
+   *
+   * @param resultJson
+   *          JSON of the result to return
+   */
+  public static Responder resultResponder(final String resultJson) {
+    return new Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"result\":" + resultJson
+            + ",\"error_code\":null,\"error_info\":null}");
+      }
+    };
+  }
+
+  private static String readFully(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Answers a single Conduit call
+   */
+  public interface Responder {
+    public void respond(String method, String body, HttpExchange exchange)
+        throws IOException;
+  }
+}
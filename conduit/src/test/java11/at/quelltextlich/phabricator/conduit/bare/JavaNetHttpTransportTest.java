@@ -0,0 +1,149 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.ConduitException;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+
+public class JavaNetHttpTransportTest extends LoggingMockingTestCase {
+  private StubServer server;
+
+  public void testCallPass() throws Exception {
+    server.setResponder(StubServer.resultResponder("\"foo\""));
+
+    final Connection connection = new Connection(new JavaNetHttpTransport(
+        server.getBaseUrl()));
+    try {
+      final Map<String, Object> params = new HashMap<String, Object>();
+      params.put("description", "a&b=c");
+
+      final JsonElement result = connection.call("maniphest.createtask",
+          params);
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+    } finally {
+      connection.close();
+    }
+
+    final String body = server.getRequestBodies().get(0);
+    final String json = URLDecoder.decode(body.substring(7), "UTF-8");
+    final JsonObject decoded = new Gson().fromJson(json, JsonObject.class);
+    assertEquals("Description does not match", "a&b=c",
+        decoded.get("description").getAsString());
+  }
+
+  public void testCallErrorCode() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        StubServer.respond(exchange, "{\"result\":null,"
+            + "\"error_code\":\"ERR-FOO\",\"error_info\":\"bar\"}");
+      }
+    });
+
+    final Connection connection = new Connection(new JavaNetHttpTransport(
+        server.getBaseUrl()));
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitErrorException e) {
+      assertEquals("Error code does not match", "ERR-FOO", e.getErrorCode());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCallAsyncGzip() throws Exception {
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(buffer);
+        out.write("{\"result\":\"foo\"}".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        StubServer.respond(exchange, buffer.toByteArray());
+      }
+    });
+
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setCompressionEnabled(true);
+    final Connection connection = new Connection(new JavaNetHttpTransport(
+        server.getBaseUrl()), config);
+    try {
+      final Future<JsonElement> future = connection.callAsync("conduit.ping",
+          new HashMap<String, Object>());
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"),
+          future.get());
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Accept-Encoding does not match", "gzip, deflate", server
+        .getRequestHeaders().get(0).getFirst("Accept-Encoding"));
+  }
+
+  public void testCallAfterClose() throws Exception {
+    final Connection connection = new Connection(new JavaNetHttpTransport(
+        server.getBaseUrl()));
+    connection.close();
+
+    try {
+      connection.call("conduit.ping");
+      fail("no exception got thrown");
+    } catch (final ConduitException e) {
+    }
+  }
+
+  public void testConnectTimeoutIsConnectFailure() {
+    assertTrue("Connect timeout is no connect failure",
+        RetryPolicy.isConnectFailure(new HttpConnectTimeoutException("foo")));
+    assertFalse("Response timeout is a connect failure",
+        RetryPolicy.isConnectFailure(new HttpTimeoutException("foo")));
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    server = new StubServer();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+}
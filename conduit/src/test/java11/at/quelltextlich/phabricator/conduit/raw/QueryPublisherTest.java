@@ -0,0 +1,244 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.raw;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import at.quelltextlich.phabricator.conduit.ConduitErrorException;
+import at.quelltextlich.phabricator.conduit.bare.Connection;
+import at.quelltextlich.phabricator.conduit.bare.LoopbackTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class QueryPublisherTest extends LoggingMockingTestCase {
+  private volatile int elementCount;
+  private volatile boolean failing;
+  private AtomicInteger calls;
+  private Connection connection;
+  private AsyncConduit conduit;
+
+  public void testAllTasks() {
+    final RecordingSubscriber<ManiphestModule.TaskResult> subscriber = new RecordingSubscriber<ManiphestModule.TaskResult>();
+
+    maniphestQuery(10).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+
+    assertTrue("Publisher did not complete", subscriber.completed);
+    assertEquals("Number of tasks does not match", 25,
+        subscriber.elements.size());
+    final Set<Integer> ids = new HashSet<Integer>();
+    for (final ManiphestModule.TaskResult task : subscriber.elements) {
+      ids.add(task.getId());
+    }
+    assertEquals("Number of distinct tasks does not match", 25, ids.size());
+    assertEquals("Number of calls does not match", 3, calls.get());
+  }
+
+  public void testPagesFetchedOnDemand() {
+    final RecordingSubscriber<ManiphestModule.TaskResult> subscriber = new RecordingSubscriber<ManiphestModule.TaskResult>();
+
+    maniphestQuery(10).subscribe(subscriber);
+    assertEquals("Calls without demand do not match", 0, calls.get());
+
+    subscriber.subscription.request(1);
+    assertEquals("Number of tasks does not match", 1,
+        subscriber.elements.size());
+    assertEquals("Number of calls does not match", 1, calls.get());
+
+    subscriber.subscription.request(9);
+    assertEquals("Number of tasks does not match", 10,
+        subscriber.elements.size());
+    assertEquals("Number of calls does not match", 1, calls.get());
+
+    subscriber.subscription.request(1);
+    assertEquals("Number of tasks does not match", 11,
+        subscriber.elements.size());
+    assertEquals("Number of calls does not match", 2, calls.get());
+    assertFalse("Publisher completed", subscriber.completed);
+  }
+
+  public void testFullLastPage() {
+    elementCount = 20;
+    final RecordingSubscriber<ManiphestModule.TaskResult> subscriber = new RecordingSubscriber<ManiphestModule.TaskResult>();
+
+    maniphestQuery(10).subscribe(subscriber);
+    subscriber.subscription.request(100);
+
+    assertTrue("Publisher did not complete", subscriber.completed);
+    assertEquals("Number of tasks does not match", 20,
+        subscriber.elements.size());
+    assertEquals("Number of calls does not match", 3, calls.get());
+  }
+
+  public void testFailure() {
+    failing = true;
+    final RecordingSubscriber<ManiphestModule.TaskResult> subscriber = new RecordingSubscriber<ManiphestModule.TaskResult>();
+
+    maniphestQuery(10).subscribe(subscriber);
+    subscriber.subscription.request(1);
+
+    assertTrue("Failure is not a ConduitErrorException",
+        subscriber.failure instanceof ConduitErrorException);
+    assertFalse("Publisher completed", subscriber.completed);
+  }
+
+  public void testCancel() {
+    final RecordingSubscriber<ManiphestModule.TaskResult> subscriber = new RecordingSubscriber<ManiphestModule.TaskResult>();
+
+    maniphestQuery(10).subscribe(subscriber);
+    subscriber.subscription.request(10);
+    subscriber.subscription.cancel();
+    subscriber.subscription.request(10);
+
+    assertEquals("Number of tasks does not match", 10,
+        subscriber.elements.size());
+    assertEquals("Number of calls does not match", 1, calls.get());
+    assertFalse("Publisher completed", subscriber.completed);
+  }
+
+  public void testNonPositiveRequest() {
+    final RecordingSubscriber<ManiphestModule.TaskResult> subscriber = new RecordingSubscriber<ManiphestModule.TaskResult>();
+
+    maniphestQuery(10).subscribe(subscriber);
+    subscriber.subscription.request(0);
+
+    assertTrue("Failure is not an IllegalArgumentException",
+        subscriber.failure instanceof IllegalArgumentException);
+  }
+
+  public void testAllUsers() {
+    final RecordingSubscriber<UserModule.UserResult> subscriber = new RecordingSubscriber<UserModule.UserResult>();
+
+    QueryPublisher.userQuery(conduit.user, null, null, null, null, null, 10)
+        .subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+
+    assertTrue("Publisher did not complete", subscriber.completed);
+    assertEquals("Number of users does not match", 25,
+        subscriber.elements.size());
+  }
+
+  public void testAllProjects() {
+    final RecordingSubscriber<ProjectModule.ProjectResult> subscriber = new RecordingSubscriber<ProjectModule.ProjectResult>();
+
+    QueryPublisher.projectQuery(conduit.project, null, null, null, null,
+        null, null, null, null, 10).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+
+    assertTrue("Publisher did not complete", subscriber.completed);
+    assertEquals("Number of projects does not match", 25,
+        subscriber.elements.size());
+  }
+
+  private QueryPublisher<ManiphestModule.TaskResult> maniphestQuery(
+      final int pageSize) {
+    return QueryPublisher.maniphestQuery(conduit.maniphest, null, null, null,
+        null, null, null, null, null, null, pageSize);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    elementCount = 25;
+    failing = false;
+    calls = new AtomicInteger();
+    connection = new Connection(new LoopbackTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body)
+              throws IOException {
+            calls.incrementAndGet();
+            if (failing) {
+              return "{\"result\":null,\"error_code\":\"ERR-FOO\","
+                  + "\"error_info\":null}";
+            }
+            final JsonObject params = new Gson().fromJson(
+                URLDecoder.decode(body.substring(7), "UTF-8"),
+                JsonObject.class);
+            final int offset = params.has("offset") ? params.get("offset")
+                .getAsInt() : 0;
+            final int limit = params.get("limit").getAsInt();
+            final JsonObject tasks = new JsonObject();
+            final JsonArray users = new JsonArray();
+            final int end = Math.min(offset + limit, elementCount);
+            for (int id = offset; id < end; id++) {
+              final JsonObject element = new JsonObject();
+              element.addProperty("id", id);
+              element.addProperty("phid", "PHID-" + id);
+              tasks.add("PHID-" + id, element);
+              users.add(element);
+            }
+            final JsonObject response = new JsonObject();
+            if ("user.query".equals(method)) {
+              response.add("result", users);
+            } else if ("project.query".equals(method)) {
+              final JsonObject result = new JsonObject();
+              result.add("data", tasks);
+              response.add("result", result);
+            } else {
+              response.add("result", tasks);
+            }
+            return response.toString();
+          }
+        }));
+    conduit = new AsyncConduit(ConduitFactory.createConduitWithApiToken(
+        connection, "api-foo"));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    connection.close();
+    super.tearDown();
+  }
+
+  /**
+   * Subscriber that records all signals, and leaves requesting to the test
+   */
+  private static class RecordingSubscriber<T> implements Flow.Subscriber<T> {
+    private final List<T> elements = new ArrayList<T>();
+    private Flow.Subscription subscription;
+    private boolean completed;
+    private Throwable failure;
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(final T item) {
+      elements.add(item);
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+      failure = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+}
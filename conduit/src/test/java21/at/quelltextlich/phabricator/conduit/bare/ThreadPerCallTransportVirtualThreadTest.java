@@ -0,0 +1,168 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.bare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import at.quelltextlich.phabricator.conduit.testutil.DelayingTransport;
+import at.quelltextlich.phabricator.conduit.testutil.LoggingMockingTestCase;
+import at.quelltextlich.phabricator.conduit.testutil.StubServer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+
+public class ThreadPerCallTransportVirtualThreadTest extends
+    LoggingMockingTestCase {
+  private static final int CALLS = 1000;
+
+  public void testCallExecutorUsesVirtualThreads() throws Exception {
+    assertTrue("Calls do not run on virtual threads", CallExecutors.isVirtual());
+
+    final ExecutorService executor = CallExecutors.newCallExecutor();
+    try {
+      final Future<Boolean> virtual = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return Thread.currentThread().isVirtual();
+        }
+      });
+      assertTrue("Task did not run on a virtual thread",
+          virtual.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testDefaultExecutorUsesVirtualThreads() throws Exception {
+    final AtomicInteger platformThreadCalls = new AtomicInteger();
+    final Connection connection = new Connection(new ThreadPerCallTransport(
+        new LoopbackTransport(new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body) {
+            if (!Thread.currentThread().isVirtual()) {
+              platformThreadCalls.incrementAndGet();
+            }
+            return "{\"result\":\"foo\"}";
+          }
+        })));
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            connection.callAsync("conduit.ping", new HashMap<String, Object>())
+                .get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      connection.close();
+    }
+
+    assertEquals("Number of calls on platform threads does not match", 0,
+        platformThreadCalls.get());
+  }
+
+  public void testManyBlockingCallsOverlap() throws Exception {
+    final AtomicInteger platformThreadCalls = new AtomicInteger();
+    final DelayingTransport delayingTransport = new DelayingTransport(
+        new LoopbackTransport.Responder() {
+          @Override
+          public String respond(final String method, final String body) {
+            if (!Thread.currentThread().isVirtual()) {
+              platformThreadCalls.incrementAndGet();
+            }
+            return "{\"result\":\"foo\"}";
+          }
+        });
+    delayingTransport.setDefaultDelayMillis(500);
+    final Connection connection = new Connection(new ThreadPerCallTransport(
+        delayingTransport, Executors.newVirtualThreadPerTaskExecutor()));
+    try {
+      final long start = System.nanoTime();
+      final List<Future<JsonElement>> futures = new ArrayList<Future<JsonElement>>();
+      for (int i = 0; i < CALLS; i++) {
+        futures.add(connection.callAsync("conduit.ping",
+            new HashMap<String, Object>()));
+      }
+      for (final Future<JsonElement> future : futures) {
+        assertEquals("Result does not match", new JsonPrimitive("foo"),
+            future.get(10, TimeUnit.SECONDS));
+      }
+      final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - start);
+
+      assertTrue("Calls took " + elapsedMillis + "ms", elapsedMillis < 5000);
+      assertEquals("Number of calls on platform threads does not match", 0,
+          platformThreadCalls.get());
+    } finally {
+      connection.close();
+    }
+  }
+
+  public void testCancelAbortsHttpRequest() throws Exception {
+    final CountDownLatch released = new CountDownLatch(1);
+    final StubServer server = new StubServer();
+    server.setResponder(new StubServer.Responder() {
+      @Override
+      public void respond(final String method, final String body,
+          final HttpExchange exchange) throws IOException {
+        if ("maniphest.info".equals(method)) {
+          try {
+            released.await(10, TimeUnit.SECONDS);
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        StubServer.respond(exchange, "{\"result\":\"foo\"}");
+      }
+    });
+    final ConnectionConfig config = new ConnectionConfig();
+    config.setMaxPerRoute(1);
+    final Connection connection = new Connection(new ThreadPerCallTransport(
+        new ApacheTransport(server.getBaseUrl(), config),
+        Executors.newVirtualThreadPerTaskExecutor()));
+    try {
+      final Future<JsonElement> future = connection.callAsync(
+          "maniphest.info", new HashMap<String, Object>());
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (server.getRequestBodies().isEmpty()
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertTrue("Cancelling failed", future.cancel(true));
+
+      // The pool holds a single connection. So the next call only gets
+      // through in time, if cancelling freed the connection of the first.
+      final long start = System.nanoTime();
+      final JsonElement result = connection.call("conduit.ping");
+      final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - start);
+
+      assertEquals("Result does not match", new JsonPrimitive("foo"), result);
+      assertTrue("Call took " + elapsedMillis + "ms", elapsedMillis < 5000);
+    } finally {
+      released.countDown();
+      connection.close();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright (C) 2015 quelltextlich e.U.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package at.quelltextlich.phabricator.conduit.demo;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+
+import at.quelltextlich.phabricator.conduit.raw.Conduit;
+import at.quelltextlich.phabricator.conduit.raw.ConduitFactory;
+
+/**
+ * Measures the time it takes a short-lived program to get its first call done
+ * <p/>
+ * The benchmark creates a Conduit, optionally warms it up, simulates the
+ * program's own setup, and then calls {@code user.whoami}. It prints the time
+ * from the start of the JVM, and from creating the Conduit, up to the first
+ * successful call.
+ * <p/>
+ * Run it once per measurement, as later runs in the same JVM would find
+ * classes loaded already.
+ */
+public class StartupBenchmark {
+  @Option(name = "--help", aliases = { "-help", "-h", "-?", "help" },
+      help = true, usage = "print this help screen")
+  private boolean help;
+
+  @Option(name = "--url", required = true, usage = "url of the Phabricator "
+      + "instance to connect to (without the trailing \"/api/\"")
+  private String url;
+
+  @Option(name = "--username", required = true, usage = "username to use "
+      + "when connecting to the Phabricator instance")
+  private String username;
+
+  @Option(name = "--certificate", required = true, usage = "certificate to "
+      + "use when connecting to the Phabricator instance")
+  private String certificate;
+
+  @Option(name = "--warm-up", usage = "number of connections to warm up. 0 "
+      + "does not warm up.")
+  private int warmUpConnections = 0;
+
+  @Option(name = "--setup-millis", usage = "time the simulated program "
+      + "spends on its own setup, before its first call")
+  private long setupMillis = 0;
+
+  PrintStream stdout = System.out;
+  PrintStream stderr = System.err;
+
+  private void parseArgs(final String[] args) {
+    final CmdLineParser parser = new CmdLineParser(this);
+    try {
+      parser.parseArgument(args);
+    } catch (final CmdLineException e) {
+      stderr.println("Failed to parse args: " + e);
+      e.printStackTrace(stderr);
+      System.exit(1);
+    }
+
+    if (help) {
+      // User asked for help screen
+      parser.printUsage(stderr);
+      stderr.println();
+      stderr.print(parser.printExample(OptionHandlerFilter.REQUIRED));
+      System.exit(0);
+    }
+  }
+
+  public void run(final String[] args) {
+    parseArgs(args);
+
+    try {
+      final long start = System.nanoTime();
+      final Conduit conduit = ConduitFactory.createConduit(url, username,
+          certificate);
+      Future<ConduitFactory.WarmUpResult> warmUp = null;
+      if (warmUpConnections > 0) {
+        warmUp = ConduitFactory.warmUp(conduit, warmUpConnections);
+      }
+
+      Thread.sleep(setupMillis);
+
+      conduit.user.whoAmI();
+      final long sinceCreation = TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - start);
+      final long sinceJvmStart = System.currentTimeMillis()
+          - ManagementFactory.getRuntimeMXBean().getStartTime();
+
+      stdout.println("warm-up connections: " + warmUpConnections);
+      stdout.println("setup: " + setupMillis + "ms");
+      stdout.println("first call since JVM start: " + sinceJvmStart + "ms");
+      stdout.println("first call since creating Conduit: " + sinceCreation
+          + "ms");
+      if (warmUp != null) {
+        stdout.println("warm-up took: " + warmUp.get().getElapsedMillis()
+            + "ms");
+      }
+      System.exit(0);
+    } catch (final Exception e) {
+      stderr.println("Benchmark failed: " + e);
+      e.printStackTrace(stderr);
+      System.exit(1);
+    }
+  }
+
+  public static void main(final String[] args) {
+    final StartupBenchmark benchmark = new StartupBenchmark();
+    benchmark.run(args);
+  }
+}